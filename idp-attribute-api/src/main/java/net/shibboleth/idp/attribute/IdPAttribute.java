@@ -87,6 +87,12 @@ public class IdPAttribute implements Comparable<IdPAttribute>, Cloneable {
     /** Encoders that may be used to encode this attribute. */
     @Nonnull private Set<AttributeEncoder<?>> encoders;
 
+    /** Identifies the hash in {@link #valuesHash}, or null if the current values have not been hashed. */
+    @Nullable private Object valuesHashKey;
+
+    /** Hash of the current values. */
+    @Nullable private String valuesHash;
+
     /**
      * Constructor.
      * 
@@ -193,6 +199,42 @@ public class IdPAttribute implements Comparable<IdPAttribute>, Cloneable {
         } else {
             values = ImmutableList.of();
         }
+        valuesHashKey = null;
+        valuesHash = null;
+    }
+
+    /**
+     * Get a hash of the values of this attribute, computing it with the given function only if it has not already
+     * been computed with that function since the values were last replaced.
+     * 
+     * @param function the function which computes the hash
+     * 
+     * @return the hash of the values, which may be <code>null</code>
+     */
+    @Nullable public String getValuesHash(
+            @Nonnull final Function<? super List<IdPAttributeValue<?>>, String> function) {
+        return getValuesHash(function, function);
+    }
+
+    /**
+     * Get a hash of the values of this attribute, computing it with the given function only if a hash identified by
+     * the given key has not already been computed since the values were last replaced.
+     * 
+     * <p>This allows a hash to be computed by a different, but equivalent, function to the one it is identified by,
+     * such as one which reuses state while hashing several attributes.</p>
+     * 
+     * @param key identifies the hash, typically the function normally used to compute it
+     * @param function the function which computes the hash
+     * 
+     * @return the hash of the values, which may be <code>null</code>
+     */
+    @Nullable public String getValuesHash(@Nonnull final Object key,
+            @Nonnull final Function<? super List<IdPAttributeValue<?>>, String> function) {
+        if (valuesHashKey != key) {
+            valuesHash = function.apply(values);
+            valuesHashKey = key;
+        }
+        return valuesHash;
     }
 
     /**
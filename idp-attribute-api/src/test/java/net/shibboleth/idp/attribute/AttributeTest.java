@@ -23,6 +23,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -32,6 +33,9 @@ import net.shibboleth.utilities.java.support.logic.ConstraintViolationException;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+
 /** Unit test for {@link IdPAttribute} class. */
 public class AttributeTest {
 
@@ -362,6 +366,34 @@ public class AttributeTest {
         
     }
     
+    /** Tests that a hash of the values is computed once and carried with the attribute until they change. */
+    @Test public void valuesHash() {
+        final IdPAttribute attrib = new IdPAttribute("foo");
+        attrib.setValues(Collections.singleton(new StringAttributeValue("value1")));
+
+        final int[] calls = new int[1];
+        final Function<List<IdPAttributeValue<?>>, String> function =
+                new Function<List<IdPAttributeValue<?>>, String>() {
+                    public String apply(final List<IdPAttributeValue<?>> input) {
+                        calls[0]++;
+                        return input.toString();
+                    }
+                };
+
+        Assert.assertEquals(attrib.getValuesHash(function), attrib.getValues().toString());
+        Assert.assertEquals(attrib.getValuesHash(function), attrib.getValues().toString());
+        Assert.assertEquals(calls[0], 1);
+
+        // A different function computing the hash identified by the first is not called.
+        Assert.assertEquals(attrib.getValuesHash(function, Functions.<String> constant("other")),
+                attrib.getValues().toString());
+        Assert.assertEquals(attrib.getValuesHash(this, Functions.<String> constant("other")), "other");
+
+        attrib.setValues(Collections.singleton(new StringAttributeValue("value2")));
+        Assert.assertEquals(attrib.getValuesHash(function), attrib.getValues().toString());
+        Assert.assertEquals(calls[0], 2);
+    }
+
     @Test public void cloneToString() {
         IdPAttribute attrib = new IdPAttribute("foo");
         IdPAttribute dupl = new IdPAttribute("foo");
@@ -34,6 +34,7 @@ import net.shibboleth.idp.attribute.filter.AttributeFilterPolicy;
 import net.shibboleth.idp.attribute.filter.context.AttributeFilterContext;
 import net.shibboleth.idp.attribute.filter.context.AttributeFilterWorkContext;
 import net.shibboleth.idp.profile.context.RelyingPartyContext;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import net.shibboleth.utilities.java.support.annotation.constraint.NullableElements;
@@ -65,6 +66,9 @@ public class AttributeFilterImpl extends AbstractServiceableComponent<AttributeF
     /** Filter policies used by this engine. */
     private final List<AttributeFilterPolicy> filterPolicies;
 
+    /** Index of the filter policies by the requests they can apply to. */
+    @NonnullAfterInit private AttributeFilterPolicyIndex policyIndex;
+
     /** Log prefix. */
     private String logPrefix;
 
@@ -125,7 +129,8 @@ public class AttributeFilterImpl extends AbstractServiceableComponent<AttributeF
             log.debug("{} Beginning process of filtering the following {} attributes: {}", new Object[] {getLogPrefix(),
                     prefilteredAttributes.size(), prefilteredAttributes.keySet(),});
     
-            final List<AttributeFilterPolicy> policies = getFilterPolicies();
+            final List<AttributeFilterPolicy> policies = policyIndex.select(filterContext);
+            log.trace("{} Evaluating {} of {} policies", getLogPrefix(), policies.size(), filterPolicies.size());
             for (final AttributeFilterPolicy policy : policies) {
                 policy.apply(filterContext);
             }
@@ -197,6 +202,9 @@ public class AttributeFilterImpl extends AbstractServiceableComponent<AttributeF
     @Override protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
         logPrefix = null;
+        policyIndex = AttributeFilterPolicyIndex.build(filterPolicies);
+        log.debug("{} Indexed {} policies, {} of which are evaluated for every request", getLogPrefix(),
+                filterPolicies.size(), policyIndex.getResidueSize());
     }
 
     /**
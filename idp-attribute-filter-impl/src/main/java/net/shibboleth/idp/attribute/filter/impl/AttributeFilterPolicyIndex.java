@@ -0,0 +1,289 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.filter.impl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.idp.attribute.filter.AttributeFilterPolicy;
+import net.shibboleth.idp.attribute.filter.PolicyRequirementRule;
+import net.shibboleth.idp.attribute.filter.context.AttributeFilterContext;
+import net.shibboleth.idp.attribute.filter.policyrule.filtercontext.impl.AttributeIssuerPolicyRule;
+import net.shibboleth.idp.attribute.filter.policyrule.filtercontext.impl.AttributeRequesterPolicyRule;
+import net.shibboleth.idp.attribute.filter.policyrule.impl.AbstractStringPolicyRule;
+import net.shibboleth.idp.attribute.filter.policyrule.logic.impl.AndPolicyRule;
+import net.shibboleth.idp.attribute.filter.policyrule.logic.impl.OrPolicyRule;
+import net.shibboleth.idp.attribute.filter.policyrule.saml.impl.AttributeRequesterInEntityGroupPolicyRule;
+import net.shibboleth.idp.saml.metadata.EntityMetadataIndex;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+
+import org.opensaml.saml.common.messaging.context.SAMLMetadataContext;
+import org.opensaml.saml.common.profile.logic.EntityGroupNamePredicate;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+
+/**
+ * An index of {@link AttributeFilterPolicy}s by the literal values that their {@link PolicyRequirementRule}s require
+ * of the attribute requester, the attribute issuer or the requester's entity group.
+ *
+ * <p>
+ * Each policy whose rule can only be satisfied when one of these takes one of a fixed set of values is filed under
+ * those values, and every other policy is held as residue. The policies selected for a request are those filed under
+ * the request's values together with the residue, in their original order. The index only ever excludes policies whose
+ * rules could not have returned {@link PolicyRequirementRule.Tristate#TRUE}, and every selected policy still evaluates
+ * its own rule, so applying the selection is indistinguishable from applying every policy.
+ * </p>
+ */
+@Immutable
+final class AttributeFilterPolicyIndex {
+
+    /** The aspects of a request which a policy may be indexed by, most selective first. */
+    private enum Dimension {
+        /** The attribute requester's entityID. */
+        REQUESTER,
+
+        /** The attribute issuer's entityID. */
+        ISSUER,
+
+        /** The name of an entity group containing the attribute requester. */
+        GROUP,
+    }
+
+    /** The indexed policies, in their original order. */
+    @Nonnull @NonnullElements @Unmodifiable private final List<AttributeFilterPolicy> policies;
+
+    /** The positions of the policies which must always be evaluated. */
+    @Nonnull private final BitSet residue;
+
+    /** The positions of the policies filed under each value, by dimension. */
+    @Nonnull private final Map<Dimension, Map<String, BitSet>> index;
+
+    /**
+     * Constructor.
+     *
+     * @param filterPolicies the policies to index, in order
+     */
+    private AttributeFilterPolicyIndex(
+            @Nonnull @NonnullElements @Unmodifiable final List<AttributeFilterPolicy> filterPolicies) {
+        policies = filterPolicies;
+        residue = new BitSet(filterPolicies.size());
+        index = new HashMap<>();
+    }
+
+    /**
+     * Get the number of policies which must be evaluated for every request.
+     *
+     * @return the number of unindexed policies
+     */
+    int getResidueSize() {
+        return residue.cardinality();
+    }
+
+    /**
+     * Select the policies that need to be applied to a request.
+     *
+     * @param filterContext the current filter context
+     *
+     * @return the candidate policies, in their original order
+     */
+    @Nonnull @NonnullElements List<AttributeFilterPolicy> select(@Nonnull final AttributeFilterContext filterContext) {
+        if (index.isEmpty()) {
+            return policies;
+        }
+
+        final BitSet selected = (BitSet) residue.clone();
+        addCandidates(selected, Dimension.REQUESTER, filterContext.getAttributeRecipientID());
+        addCandidates(selected, Dimension.ISSUER, filterContext.getAttributeIssuerID());
+
+        final Map<String, BitSet> groups = index.get(Dimension.GROUP);
+        if (null != groups) {
+            final SAMLMetadataContext metadataContext = filterContext.getRequesterMetadataContext();
+            final EntityDescriptor entity = null == metadataContext ? null : metadataContext.getEntityDescriptor();
+            final Set<String> groupNames =
+                    null == entity ? Collections.<String>emptySet() : EntityMetadataIndex.get(entity).getGroupNames();
+            for (final Map.Entry<String, BitSet> entry : groups.entrySet()) {
+                // Each distinct group is checked once, in the same way as the rules filed under it.
+                if (groupNames.contains(entry.getKey()) || new EntityGroupNamePredicate(
+                        Collections.singleton(entry.getKey()), filterContext.getMetadataResolver()).apply(entity)) {
+                    selected.or(entry.getValue());
+                }
+            }
+        }
+
+        final List<AttributeFilterPolicy> result = new ArrayList<>(selected.cardinality());
+        for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+            result.add(policies.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Add the policies filed under a value to the selection.
+     *
+     * @param selected the positions of the selected policies
+     * @param dimension the dimension of the value
+     * @param value the value, if any
+     */
+    private void addCandidates(@Nonnull final BitSet selected, @Nonnull final Dimension dimension,
+            @Nullable final String value) {
+        if (null == value) {
+            return;
+        }
+        final Map<String, BitSet> values = index.get(dimension);
+        if (null != values) {
+            final BitSet candidates = values.get(value);
+            if (null != candidates) {
+                selected.or(candidates);
+            }
+        }
+    }
+
+    /**
+     * Build the index for a list of policies.
+     *
+     * @param filterPolicies the policies, in order
+     *
+     * @return the index
+     */
+    @Nonnull static AttributeFilterPolicyIndex build(
+            @Nonnull @NonnullElements @Unmodifiable final List<AttributeFilterPolicy> filterPolicies) {
+        final AttributeFilterPolicyIndex result = new AttributeFilterPolicyIndex(filterPolicies);
+
+        for (int i = 0; i < filterPolicies.size(); i++) {
+            final Key key = extractKey(filterPolicies.get(i).getPolicyRequirementRule());
+            if (null == key) {
+                result.residue.set(i);
+                continue;
+            }
+            Map<String, BitSet> values = result.index.get(key.dimension);
+            if (null == values) {
+                values = new HashMap<>();
+                result.index.put(key.dimension, values);
+            }
+            for (final String value : key.values) {
+                BitSet positions = values.get(value);
+                if (null == positions) {
+                    positions = new BitSet(filterPolicies.size());
+                    values.put(value, positions);
+                }
+                positions.set(i);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Work out which values of a single dimension a rule requires in order to be satisfied.
+     *
+     * <p>
+     * Only the exact rule classes whose behaviour is known are considered, so that a subclass overriding
+     * {@link PolicyRequirementRule#matches(AttributeFilterContext)} is never indexed on the strength of its parent.
+     * </p>
+     *
+     * @param rule the rule
+     *
+     * @return the values required, or null if the rule cannot be indexed
+     */
+    @Nullable private static Key extractKey(@Nonnull final PolicyRequirementRule rule) {
+        final Class<?> ruleClass = rule.getClass();
+
+        if (AttributeRequesterPolicyRule.class == ruleClass) {
+            return extractStringKey(Dimension.REQUESTER, (AbstractStringPolicyRule) rule);
+        } else if (AttributeIssuerPolicyRule.class == ruleClass) {
+            return extractStringKey(Dimension.ISSUER, (AbstractStringPolicyRule) rule);
+        } else if (AttributeRequesterInEntityGroupPolicyRule.class == ruleClass) {
+            final String group = ((AttributeRequesterInEntityGroupPolicyRule) rule).getEntityGroup();
+            return null == group ? null : new Key(Dimension.GROUP, Collections.singleton(group));
+        } else if (AndPolicyRule.class == ruleClass) {
+            // Every component must be satisfied, so any one of them will do; prefer the most selective.
+            Key best = null;
+            for (final PolicyRequirementRule component : ((AndPolicyRule) rule).getComposedRules()) {
+                final Key key = extractKey(component);
+                if (null != key && (null == best || key.values.size() < best.values.size()
+                        || (key.values.size() == best.values.size() && key.dimension.compareTo(best.dimension) < 0))) {
+                    best = key;
+                }
+            }
+            return best;
+        } else if (OrPolicyRule.class == ruleClass) {
+            // Any component may be satisfied, so all of them must constrain the same thing.
+            Dimension dimension = null;
+            final Set<String> values = new LinkedHashSet<>();
+            for (final PolicyRequirementRule component : ((OrPolicyRule) rule).getComposedRules()) {
+                final Key key = extractKey(component);
+                if (null == key || (null != dimension && dimension != key.dimension)) {
+                    return null;
+                }
+                dimension = key.dimension;
+                values.addAll(key.values);
+            }
+            return null == dimension ? null : new Key(dimension, values);
+        }
+
+        return null;
+    }
+
+    /**
+     * Work out which value a string comparison rule requires.
+     *
+     * @param dimension the dimension the rule compares
+     * @param rule the rule
+     *
+     * @return the value required, or null if the comparison is not a literal one
+     */
+    @Nullable private static Key extractStringKey(@Nonnull final Dimension dimension,
+            @Nonnull final AbstractStringPolicyRule rule) {
+        if (rule.isIgnoreCase() || null == rule.getMatchString()) {
+            return null;
+        }
+        return new Key(dimension, Collections.singleton(rule.getMatchString()));
+    }
+
+    /** The values of a single dimension, one of which a rule requires. */
+    private static final class Key {
+
+        /** The dimension. */
+        @Nonnull private final Dimension dimension;
+
+        /** The values. */
+        @Nonnull @NonnullElements private final Set<String> values;
+
+        /**
+         * Constructor.
+         *
+         * @param keyDimension the dimension
+         * @param keyValues the values
+         */
+        private Key(@Nonnull final Dimension keyDimension, @Nonnull @NonnullElements final Set<String> keyValues) {
+            dimension = keyDimension;
+            values = keyValues;
+        }
+    }
+
+}
@@ -26,6 +26,7 @@ import javax.annotation.Nullable;
 
 import net.shibboleth.idp.attribute.filter.context.AttributeFilterContext;
 import net.shibboleth.idp.attribute.filter.policyrule.impl.AbstractPolicyRule;
+import net.shibboleth.idp.saml.metadata.EntityMetadataIndex;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
@@ -37,7 +38,6 @@ import net.shibboleth.utilities.java.support.primitive.StringSupport;
 import org.opensaml.core.xml.XMLObject;
 import org.opensaml.core.xml.schema.XSAny;
 import org.opensaml.core.xml.schema.XSString;
-import org.opensaml.saml.ext.saml2mdattr.EntityAttributes;
 import org.opensaml.saml.saml2.core.Attribute;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.slf4j.Logger;
@@ -180,48 +180,23 @@ public abstract class AbstractEntityAttributePolicyRule extends AbstractPolicyRu
     protected abstract boolean entityAttributeValueMatches(String entityAttributeValue);
 
     /**
-         * Gets the entity attribute values from the given entity metadata. If both the attribute name and name format
-         * for this match functor is configured then both must match, otherwise only the attribute name must match.
-         * 
-         * @param entityDescriptor the metadata for the entity
-         * 
-         * @return the values of the designated attribute
-         */
-// Checkstyle: CyclomaticComplexity OFF
+     * Gets the entity attribute values from the given entity metadata. If both the attribute name and name format
+     * for this match functor is configured then both must match, otherwise only the attribute name must match.
+     * 
+     * <p>The entity's attributes are looked up in its {@link EntityMetadataIndex}, which is built once for each
+     * copy of the metadata rather than walked on every evaluation.</p>
+     * 
+     * @param entityDescriptor the metadata for the entity
+     * 
+     * @return the values of the designated attribute
+     */
     @Nullable @NotEmpty @NonnullElements private List<XMLObject> getEntityAttributeValues(
             @Nonnull final EntityDescriptor entityDescriptor) {
         
         List<XMLObject> valueAccumulator = null;
         
-        List<XMLObject> entityAttributesCollection = null;
-        if (entityDescriptor.getExtensions() != null) {
-            entityAttributesCollection =
-                    entityDescriptor.getExtensions().getUnknownXMLObjects(EntityAttributes.DEFAULT_ELEMENT_NAME);
-        }
-        if (entityAttributesCollection == null || entityAttributesCollection.isEmpty()) {
-            log.debug("{} EntityDescriptor for {} does not contain any EntityAttributes", getLogPrefix(),
-                    entityDescriptor.getEntityID());
-            return null;
-        }
-
-        if (entityAttributesCollection.size() > 1) {
-            log.debug("{} EntityDescriptor for {} contains more than one EntityAttributes extension,"
-                    + " only using the first one", getLogPrefix(), entityDescriptor.getEntityID());
-        }
-
-        final List<Attribute> entityAttributes =
-                ((EntityAttributes) entityAttributesCollection.get(0)).getAttributes();
-        if (entityAttributes == null || entityAttributes.isEmpty()) {
-            log.debug("{} EntityAttributes extension for {} does not contain any Attributes", getLogPrefix(),
-                    entityDescriptor.getEntityID());
-            return null;
-        }
-
-        for (final Attribute entityAttribute : entityAttributes) {
-            if (!Objects.equals(getAttributeName(), entityAttribute.getName())) {
-                continue;
-            }
-
+        for (final Attribute entityAttribute :
+                EntityMetadataIndex.get(entityDescriptor).getEntityAttributes(getAttributeName())) {
             if (getNameFormat() == null || (Objects.equals(getNameFormat(), entityAttribute.getNameFormat()))) {
                 log.debug("{} EntityDescriptor for {} contains an entity attribute with the name {} and the format {}",
                         new Object[] {getLogPrefix(), entityDescriptor.getEntityID(), getAttributeName(),
@@ -241,6 +216,5 @@ public abstract class AbstractEntityAttributePolicyRule extends AbstractPolicyRu
                 new Object[] {getLogPrefix(), entityDescriptor.getEntityID(), getAttributeName(), getNameFormat()});
         return null;
     }
-// Checkstyle: CyclomaticComplexity ON
 
 }
\ No newline at end of file
@@ -24,6 +24,7 @@ import javax.annotation.Nullable;
 
 import net.shibboleth.idp.attribute.filter.context.AttributeFilterContext;
 import net.shibboleth.idp.attribute.filter.policyrule.impl.AbstractPolicyRule;
+import net.shibboleth.idp.saml.metadata.EntityMetadataIndex;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 import net.shibboleth.utilities.java.support.primitive.StringSupport;
@@ -102,10 +103,15 @@ public class AttributeRequesterInEntityGroupPolicyRule extends AbstractPolicyRul
             return Tristate.FALSE;
         }
 
+        final EntityDescriptor entity = getEntityMetadata(input);
+        if (entity != null && EntityMetadataIndex.get(entity).getGroupNames().contains(entityGroup)) {
+            // Known group names are precomputed, anything else (such as an affiliation) needs the full check.
+            return Tristate.TRUE;
+        }
+
         final Predicate<EntityDescriptor> predicate =
                 new EntityGroupNamePredicate(Collections.singleton(entityGroup), input.getMetadataResolver());
         
-        final EntityDescriptor entity = getEntityMetadata(input);
         return predicate.apply(entity) ? Tristate.TRUE : Tristate.FALSE;
     }
 
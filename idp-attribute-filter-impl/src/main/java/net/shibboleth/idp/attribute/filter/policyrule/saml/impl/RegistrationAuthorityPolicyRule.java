@@ -26,18 +26,16 @@ import javax.annotation.Nullable;
 
 import net.shibboleth.idp.attribute.filter.context.AttributeFilterContext;
 import net.shibboleth.idp.attribute.filter.policyrule.impl.AbstractPolicyRule;
+import net.shibboleth.idp.saml.metadata.EntityMetadataIndex;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotLive;
 import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 import net.shibboleth.utilities.java.support.primitive.StringSupport;
 
-import org.opensaml.core.xml.XMLObject;
 import org.opensaml.saml.common.messaging.context.SAMLMetadataContext;
 import org.opensaml.saml.ext.saml2mdrpi.RegistrationInfo;
-import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
-import org.opensaml.saml.saml2.metadata.Extensions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -121,26 +119,9 @@ public class RegistrationAuthorityPolicyRule extends AbstractPolicyRule {
             return null;
         }
 
-        Extensions extensions = spEntity.getExtensions();
-        if (null != extensions) {
-            for (final XMLObject object : extensions.getUnknownXMLObjects(RegistrationInfo.DEFAULT_ELEMENT_NAME)) {
-                if (object instanceof RegistrationInfo) {
-                    return (RegistrationInfo) object;
-                }
-            }
-        }
-        
-        EntitiesDescriptor group = (EntitiesDescriptor) spEntity.getParent();
-        while (null != group) {
-            extensions = group.getExtensions();
-            if (null != extensions) {
-                for (final XMLObject object : extensions.getUnknownXMLObjects(RegistrationInfo.DEFAULT_ELEMENT_NAME)) {
-                    if (object instanceof RegistrationInfo) {
-                        return (RegistrationInfo) object;
-                    }
-                }
-            }
-            group = (EntitiesDescriptor) group.getParent();
+        final RegistrationInfo info = EntityMetadataIndex.get(spEntity).getRegistrationInfo();
+        if (null != info) {
+            return info;
         }
 
         log.debug("{} Filtering on registration, but no RegistrationInfo available", getLogPrefix());
@@ -19,6 +19,7 @@ package net.shibboleth.idp.attribute.filter.impl;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -33,6 +34,11 @@ import net.shibboleth.idp.attribute.filter.MockMatcher;
 import net.shibboleth.idp.attribute.filter.MockPolicyRequirementRule;
 import net.shibboleth.idp.attribute.filter.PolicyRequirementRule;
 import net.shibboleth.idp.attribute.filter.context.AttributeFilterContext;
+import net.shibboleth.idp.attribute.filter.policyrule.filtercontext.impl.AttributeIssuerPolicyRule;
+import net.shibboleth.idp.attribute.filter.policyrule.filtercontext.impl.AttributeRequesterPolicyRule;
+import net.shibboleth.idp.attribute.filter.policyrule.logic.impl.AbstractComposedPolicyRule;
+import net.shibboleth.idp.attribute.filter.policyrule.logic.impl.AndPolicyRule;
+import net.shibboleth.idp.attribute.filter.policyrule.logic.impl.OrPolicyRule;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.ConstraintViolationException;
@@ -372,4 +378,106 @@ public class AttributeFilterImplTest {
         Assert.assertTrue(matcher.isDestroyed());
     }
 
-}
\ No newline at end of file
+    @Test public void testIndexedPolicies() throws Exception {
+        final AttributeFilterPolicy policy1 = releasePolicy("a1", requesterRule("sp1", false));
+        final AttributeFilterPolicy policy2 = releasePolicy("a2", requesterRule("SP2", true));
+        final AttributeFilterPolicy policy3 =
+                releasePolicy("a3", composedRule(new OrPolicyRule(), requesterRule("sp1", false),
+                        requesterRule("sp3", false)));
+        final AttributeFilterPolicy policy4 =
+                releasePolicy("a4", composedRule(new AndPolicyRule(), issuerRule("idp"),
+                        requesterRule("sp3", false)));
+        final AttributeFilterPolicy policy5 = releasePolicy("a5", PolicyRequirementRule.MATCHES_ALL);
+        final AttributeFilterPolicy policy6 = releasePolicy("a6", issuerRule("other"));
+        final AttributeFilterPolicy policy7 =
+                releasePolicy("a7", composedRule(new OrPolicyRule(), requesterRule("sp1", false), issuerRule("idp")));
+
+        final List<AttributeFilterPolicy> policies =
+                Arrays.asList(policy1, policy2, policy3, policy4, policy5, policy6, policy7);
+        final AttributeFilterPolicyIndex index = AttributeFilterPolicyIndex.build(policies);
+        Assert.assertEquals(index.getResidueSize(), 3);
+
+        AttributeFilterContext filterContext = filterContext("sp1", "idp");
+        Assert.assertEquals(index.select(filterContext), Arrays.asList(policy1, policy2, policy3, policy5, policy7));
+
+        filterContext = filterContext("sp3", "idp");
+        Assert.assertEquals(index.select(filterContext), Arrays.asList(policy2, policy3, policy4, policy5, policy7));
+
+        final AttributeFilterImpl filter = new AttributeFilterImpl("engine", policies);
+        filter.initialize();
+
+        filterContext = filterContext("sp1", "idp");
+        filter.filterAttributes(filterContext);
+        Assert.assertEquals(filterContext.getFilteredIdPAttributes().keySet(),
+                new HashSet<>(Arrays.asList("a1", "a3", "a5", "a7")));
+
+        filterContext = filterContext("sp2", "idp");
+        filter.filterAttributes(filterContext);
+        Assert.assertEquals(filterContext.getFilteredIdPAttributes().keySet(),
+                new HashSet<>(Arrays.asList("a2", "a5", "a7")));
+
+        filterContext = filterContext("sp3", "idp");
+        filter.filterAttributes(filterContext);
+        Assert.assertEquals(filterContext.getFilteredIdPAttributes().keySet(),
+                new HashSet<>(Arrays.asList("a3", "a4", "a5", "a7")));
+
+        filterContext = filterContext("sp4", "other");
+        filter.filterAttributes(filterContext);
+        Assert.assertEquals(filterContext.getFilteredIdPAttributes().keySet(),
+                new HashSet<>(Arrays.asList("a5", "a6")));
+    }
+
+    private AttributeFilterContext filterContext(final String requester, final String issuer) {
+        final AttributeFilterContext filterContext = new AttributeFilterContext();
+        filterContext.setAttributeRecipientID(requester);
+        filterContext.setAttributeIssuerID(issuer);
+        for (int i = 1; i <= 7; i++) {
+            final IdPAttribute attribute = new IdPAttribute("a" + i);
+            attribute.setValues(Collections.singletonList(new StringAttributeValue("value")));
+            filterContext.getPrefilteredIdPAttributes().put(attribute.getId(), attribute);
+        }
+        return filterContext;
+    }
+
+    private AttributeFilterPolicy releasePolicy(final String attributeId, final PolicyRequirementRule rule)
+            throws ComponentInitializationException {
+        final AttributeRule attributeRule = new AttributeRule();
+        attributeRule.setId(attributeId);
+        attributeRule.setAttributeId(attributeId);
+        attributeRule.setMatcher(Matcher.MATCHES_ALL);
+        attributeRule.setIsDenyRule(false);
+        attributeRule.initialize();
+
+        final AttributeFilterPolicy policy =
+                new AttributeFilterPolicy(attributeId, rule, Collections.singletonList(attributeRule));
+        policy.initialize();
+        return policy;
+    }
+
+    private PolicyRequirementRule requesterRule(final String requester, final boolean ignoreCase)
+            throws ComponentInitializationException {
+        final AttributeRequesterPolicyRule rule = new AttributeRequesterPolicyRule();
+        rule.setId("requester");
+        rule.setMatchString(requester);
+        rule.setIgnoreCase(ignoreCase);
+        rule.initialize();
+        return rule;
+    }
+
+    private PolicyRequirementRule issuerRule(final String issuer) throws ComponentInitializationException {
+        final AttributeIssuerPolicyRule rule = new AttributeIssuerPolicyRule();
+        rule.setId("issuer");
+        rule.setMatchString(issuer);
+        rule.initialize();
+        return rule;
+    }
+
+    private PolicyRequirementRule composedRule(final AbstractComposedPolicyRule rule,
+            final PolicyRequirementRule... rules) throws ComponentInitializationException {
+        rule.setId("composed");
+        rule.setSubsidiaries(Arrays.asList(rules));
+        rule.initialize();
+        return rule;
+    }
+
+}
@@ -55,6 +55,9 @@ public abstract class AbstractDataConnector extends AbstractResolverPlugin<Map<S
     /** How long to wait until we declare the connector live again. */
     @Duration private long noRetryDelay;
 
+    /** Breaker deciding whether this connector should be called, overriding {@link #noRetryDelay}. */
+    @Nullable private CircuitBreaker circuitBreaker;
+
     /**
      * Gets the ID of the {@link AbstractDataConnector} whose values will be used in the event that this data connector
      * experiences an error.
@@ -110,6 +113,53 @@ public abstract class AbstractDataConnector extends AbstractResolverPlugin<Map<S
         return noRetryDelay;
     }
 
+    /**
+     * Get the breaker deciding whether this connector should be called.
+     * 
+     * <p>
+     * If set this replaces the fixed {@link #getNoRetryDelay()}: callers should fail over immediately while
+     * {@link CircuitBreaker#isCallRefused()}.
+     * </p>
+     * 
+     * @return the breaker, or null
+     */
+    @Nullable public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Set the breaker deciding whether this connector should be called.
+     * 
+     * @param breaker the breaker, or null to rely on {@link #getNoRetryDelay()}
+     */
+    public void setCircuitBreaker(@Nullable final CircuitBreaker breaker) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        circuitBreaker = breaker;
+    }
+
+    /**
+     * Get whether this connector should not be called at the moment because it has been failing.
+     * 
+     * @param connector the connector
+     * 
+     * @return true if the connector's {@link CircuitBreaker} is refusing calls or, if it has none, it failed within
+     *         its {@link DataConnectorEx#getNoRetryDelay()}; false for a connector which guards its own calls, as it
+     *         may still be able to answer without calling its data source and otherwise throws a
+     *         {@link CircuitBreakerOpenException}
+     */
+    public static boolean isFailing(@Nonnull final DataConnectorEx connector) {
+        if (connector instanceof AbstractDataConnector) {
+            final AbstractDataConnector abstractConnector = (AbstractDataConnector) connector;
+            final CircuitBreaker breaker = abstractConnector.getCircuitBreaker();
+            if (null != breaker) {
+                return !abstractConnector.isGuardingOwnCalls() && breaker.isCallRefused();
+            }
+        }
+        return System.currentTimeMillis() < connector.getLastFail() + connector.getNoRetryDelay();
+    }
+
     /**
      * {@inheritDoc}
      * 
@@ -121,16 +171,22 @@ public abstract class AbstractDataConnector extends AbstractResolverPlugin<Map<S
             @Nonnull final AttributeResolutionContext resolutionContext,
             @Nonnull final AttributeResolverWorkContext workContext) throws ResolutionException {
 
+        final boolean guarded = !isGuardingOwnCalls();
+        final long permit = guarded ? acquireCall() : CircuitBreaker.REFUSED;
+        final long start = System.currentTimeMillis();
         final Map<String, IdPAttribute> result;
         try {
             result = doDataConnectorResolve(resolutionContext, workContext);
-        } catch (final NoResultAnErrorResolutionException | MultipleResultAnErrorResolutionException e) {
-            // Do not record these failures, they are 'expected'
-            throw e;
         } catch (final Exception e) {
-            setLastFail(System.currentTimeMillis());
+            recordFailure(e);
+            if (guarded) {
+                recordCall(permit, start, e);
+            }
             throw e;
         }
+        if (guarded) {
+            recordCall(permit, start, null);
+        }
 
         if (null == result) {
             log.debug("{} no attributes were produced during resolution", getId());
@@ -147,6 +203,92 @@ public abstract class AbstractDataConnector extends AbstractResolverPlugin<Map<S
         return result;
     }
 
+    /**
+     * Get whether this connector applies its {@link CircuitBreaker} to each of its own calls to the data source, by
+     * way of {@link #acquireCall()} and {@link #recordCall(long, long, Throwable)}, rather than having it applied to
+     * each resolution as a whole.
+     * 
+     * <p>
+     * A connector which may answer without calling its data source, from a cache for instance, should do so, so that
+     * such answers neither count as calls nor are refused while the breaker is open.
+     * </p>
+     * 
+     * @return whether the connector guards its own calls
+     */
+    protected boolean isGuardingOwnCalls() {
+        return false;
+    }
+
+    /**
+     * Ask the {@link CircuitBreaker}, if any, whether a call to the data source may be made. If so, its outcome must
+     * be reported to {@link #recordCall(long, long, Throwable)}.
+     * 
+     * @return the permit for the call
+     * 
+     * @throws CircuitBreakerOpenException if the breaker refused the call
+     */
+    protected long acquireCall() throws CircuitBreakerOpenException {
+        final CircuitBreaker breaker = circuitBreaker;
+        if (null == breaker) {
+            return CircuitBreaker.REFUSED;
+        }
+        final long permit = breaker.tryAcquire();
+        if (permit == CircuitBreaker.REFUSED) {
+            throw new CircuitBreakerOpenException(getLogPrefix() + " Circuit breaker is open");
+        }
+        return permit;
+    }
+
+    /**
+     * Record the outcome of a call to the data source permitted by {@link #acquireCall()}.
+     * 
+     * <p>
+     * Finding no or multiple results is 'expected' and not recorded as a failure.
+     * </p>
+     * 
+     * @param permit the permit returned by {@link #acquireCall()}
+     * @param start when the call started
+     * @param failure the failure, or null if the call succeeded
+     */
+    protected void recordCall(final long permit, final long start, @Nullable final Throwable failure) {
+        final CircuitBreaker breaker = circuitBreaker;
+        if (null != breaker) {
+            final long duration = System.currentTimeMillis() - start;
+            if (null != failure && !isExpectedFailure(failure)) {
+                breaker.onFailure(permit, duration);
+            } else {
+                breaker.onSuccess(permit, duration);
+            }
+        }
+    }
+
+    /**
+     * Record that a resolution failed, for the purposes of {@link #getNoRetryDelay()}.
+     * 
+     * <p>
+     * Finding no or multiple results is 'expected' and not recorded as a failure.
+     * </p>
+     * 
+     * @param failure the failure
+     */
+    protected void recordFailure(@Nonnull final Throwable failure) {
+        if (!isExpectedFailure(failure)) {
+            setLastFail(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Get whether a failure is one of those which are 'expected'.
+     * 
+     * @param failure the failure
+     * 
+     * @return whether no or multiple results were found
+     */
+    private static boolean isExpectedFailure(@Nonnull final Throwable failure) {
+        return failure instanceof NoResultAnErrorResolutionException
+                || failure instanceof MultipleResultAnErrorResolutionException;
+    }
+
     /** {@inheritDoc} */
     @Override protected void doInitialize() throws ComponentInitializationException {
 
@@ -198,9 +198,10 @@ public abstract class AbstractResolverPlugin<ResolvedType> extends AbstractIdent
             } catch (final ResolutionException e) {
                 //
                 // NOTE - if you change this logic you MUST make changes in any derived classes that
-                // depend on our handling of propagateResolutionExceptions.
+                // depend on our handling of propagateResolutionExceptions.  A refused call is always
+                // propagated so that the resolver can fail over.
                 //
-                if (propagateResolutionExceptions) {
+                if (propagateResolutionExceptions || e instanceof CircuitBreakerOpenException) {
                     throw e;
                 } else {
                     log.debug(
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver;
+
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+
+/**
+ * A {@link DataConnectorEx} which is also able to resolve without tying up the calling thread for the duration of
+ * the underlying request.
+ */
+@ThreadSafe
+public interface AsyncDataConnector extends DataConnectorEx {
+
+    /**
+     * Begin the resolution of this connector.
+     * 
+     * <p>
+     * The semantics are those of {@link #resolve(AttributeResolutionContext)}: the activation condition is honored,
+     * {@link #isPropagateResolutionExceptions()} determines whether a {@link ResolutionException} completes the
+     * result exceptionally or with null, and {@link #getLastFail()} is updated on failure. The dependencies of the
+     * connector must have been resolved before this method is called, and the context may not be modified while the
+     * result is outstanding.
+     * </p>
+     * 
+     * @param resolutionContext current attribute resolution context
+     * 
+     * @return the eventual result of the resolution, which may complete with null if no attributes were resolved
+     */
+    @Nonnull CompletionStage<Map<String, IdPAttribute>> resolveAsync(
+            @Nonnull final AttributeResolutionContext resolutionContext);
+
+}
@@ -0,0 +1,490 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.AbstractIdentifiableInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides whether a data connector should be called, based on how its recent calls have fared.
+ * 
+ * <p>
+ * The breaker starts {@link State#CLOSED}, permitting every call and recording the outcomes of the most recent
+ * {@link #getWindowSize()} of them. A call fails if it throws (other than because it returned too few or too many
+ * results) or takes longer than {@link #getSlowCallThreshold()}. Once at least {@link #getMinimumCalls()} outcomes
+ * have been recorded, a failure rate of {@link #getFailureRateThreshold()} or more trips the breaker
+ * {@link State#OPEN}, refusing every call for {@link #getOpenDuration()}.
+ * </p>
+ * 
+ * <p>
+ * The breaker then becomes {@link State#HALF_OPEN}, permitting at most {@link #getHalfOpenProbes()} calls at a time
+ * to probe the data source. Should that many succeed it closes again, but any failure re-opens it, so a recovering
+ * data source sees a trickle of requests rather than all those which had been held back. Only calls permitted while
+ * half open count as probes, the outcome of a call permitted before the breaker opened being ignored unless it
+ * completes once the breaker has closed again. Probes whose outcomes have not been recorded within
+ * {@link #getOpenDuration()} are abandoned, and further probes permitted in their place.
+ * </p>
+ * 
+ * <p>
+ * A breaker may be shared by connectors using the same data source.
+ * </p>
+ */
+@ThreadSafe
+public class CircuitBreaker extends AbstractIdentifiableInitializableComponent {
+
+    /** The states of the breaker. */
+    public enum State {
+        /** Calls are permitted. */
+        CLOSED,
+
+        /** Calls are refused. */
+        OPEN,
+
+        /** A limited number of calls are permitted in order to probe the data source. */
+        HALF_OPEN,
+    }
+
+    /** Value returned by {@link #tryAcquire()} when a call is refused. */
+    public static final long REFUSED = -1;
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /** Proportion of failed calls at which the breaker opens. */
+    private double failureRateThreshold = 0.5;
+
+    /** Duration beyond which a call counts as failed, or 0 for none. */
+    @Duration @NonNegative private long slowCallThreshold;
+
+    /** Number of recent calls whose outcome is considered. */
+    @Positive private int windowSize = 20;
+
+    /** Number of outcomes which must be recorded before the breaker may open. */
+    @Positive private int minimumCalls = 10;
+
+    /** How long the breaker stays open before probing the data source. */
+    @Duration @Positive private long openDuration = 60 * 1000;
+
+    /** Number of probe calls permitted at once while half open, and needed to succeed to close. */
+    @Positive private int halfOpenProbes = 1;
+
+    /** Current state. */
+    @Nonnull private State state = State.CLOSED;
+
+    /** Incremented on every change of state, identifying the state in which a call was permitted. */
+    private long generation;
+
+    /** Whether each recorded call in the window failed. */
+    private boolean[] window;
+
+    /** Where the next outcome is recorded in the window. */
+    private int windowIndex;
+
+    /** Number of outcomes in the window. */
+    private int windowCount;
+
+    /** Number of failures in the window. */
+    private int windowFailures;
+
+    /** When the breaker last opened. */
+    private long openedAt;
+
+    /** When the current set of probes began. */
+    private long probingSince;
+
+    /** Number of probes in progress. */
+    private int probesInFlight;
+
+    /** Number of probes which have succeeded since the breaker became half open. */
+    private int probeSuccesses;
+
+    /** Number of calls permitted. */
+    private long permittedCount;
+
+    /** Number of calls refused. */
+    private long rejectedCount;
+
+    /** Number of calls which failed. */
+    private long failureCount;
+
+    /** Number of calls which failed by being slow. */
+    private long slowCallCount;
+
+    /** Number of times the breaker has opened. */
+    private long openCount;
+
+    /**
+     * Get the proportion of failed calls at which the breaker opens.
+     * 
+     * @return the failure rate, between 0 and 1
+     */
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * Set the proportion of failed calls at which the breaker opens.
+     * 
+     * @param rate the failure rate, greater than 0 and no more than 1
+     */
+    public void setFailureRateThreshold(final double rate) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        Constraint.isTrue(rate > 0 && rate <= 1, "Failure rate threshold must be greater than 0 and at most 1");
+        failureRateThreshold = rate;
+    }
+
+    /**
+     * Get the duration beyond which a call counts as failed.
+     * 
+     * @return the duration, or 0 if slow calls do not count as failed
+     */
+    @Duration @NonNegative public long getSlowCallThreshold() {
+        return slowCallThreshold;
+    }
+
+    /**
+     * Set the duration beyond which a call counts as failed.
+     * 
+     * @param threshold the duration, or 0 if slow calls do not count as failed
+     */
+    @Duration public void setSlowCallThreshold(@Duration @NonNegative final long threshold) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        slowCallThreshold = Constraint.isGreaterThanOrEqual(0, threshold, "Slow call threshold cannot be negative");
+    }
+
+    /**
+     * Get the number of recent calls whose outcome is considered.
+     * 
+     * @return the number of calls
+     */
+    @Positive public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Set the number of recent calls whose outcome is considered.
+     * 
+     * @param size the number of calls
+     */
+    public void setWindowSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        windowSize = (int) Constraint.isGreaterThan(0, size, "Window size must be greater than 0");
+    }
+
+    /**
+     * Get the number of outcomes which must be recorded before the breaker may open.
+     * 
+     * @return the number of calls
+     */
+    @Positive public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /**
+     * Set the number of outcomes which must be recorded before the breaker may open.
+     * 
+     * @param calls the number of calls, limited to the window size
+     */
+    public void setMinimumCalls(@Positive final int calls) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        minimumCalls = (int) Constraint.isGreaterThan(0, calls, "Minimum calls must be greater than 0");
+    }
+
+    /**
+     * Get how long the breaker stays open before probing the data source.
+     * 
+     * @return the duration
+     */
+    @Duration @Positive public long getOpenDuration() {
+        return openDuration;
+    }
+
+    /**
+     * Set how long the breaker stays open before probing the data source.
+     * 
+     * @param duration the duration
+     */
+    @Duration public void setOpenDuration(@Duration @Positive final long duration) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        openDuration = Constraint.isGreaterThan(0, duration, "Open duration must be greater than 0");
+    }
+
+    /**
+     * Get the number of probe calls permitted at once while half open, all of which must succeed for the breaker to
+     * close.
+     * 
+     * @return the number of probes
+     */
+    @Positive public int getHalfOpenProbes() {
+        return halfOpenProbes;
+    }
+
+    /**
+     * Set the number of probe calls permitted at once while half open, all of which must succeed for the breaker to
+     * close.
+     * 
+     * @param probes the number of probes
+     */
+    public void setHalfOpenProbes(@Positive final int probes) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        halfOpenProbes = (int) Constraint.isGreaterThan(0, probes, "Half open probes must be greater than 0");
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        window = new boolean[windowSize];
+        minimumCalls = Math.min(minimumCalls, windowSize);
+    }
+
+    /**
+     * Get the state of the breaker, as it would be for a call made now.
+     * 
+     * @return the state
+     */
+    @Nonnull public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() >= openedAt + openDuration) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * Get whether a call made now would be refused. Unlike {@link #tryAcquire()}, this does not count as a call.
+     * 
+     * @return whether a call would be refused
+     */
+    public synchronized boolean isCallRefused() {
+        switch (state) {
+            case OPEN:
+                return System.currentTimeMillis() < openedAt + openDuration;
+            case HALF_OPEN:
+                return probesInFlight >= halfOpenProbes
+                        && System.currentTimeMillis() < probingSince + openDuration;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Ask to make a call. If this returns a permit, rather than {@link #REFUSED}, then the outcome of the call must be
+     * recorded with {@link #onSuccess(long, long)} or {@link #onFailure(long, long)}.
+     * 
+     * @return the permit for the call, or {@link #REFUSED}
+     */
+    public synchronized long tryAcquire() {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() < openedAt + openDuration) {
+                rejectedCount++;
+                return REFUSED;
+            }
+            log.info("Circuit breaker '{}' is half open, probing data source", getId());
+            state = State.HALF_OPEN;
+            startProbing();
+        }
+
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight >= halfOpenProbes) {
+                if (System.currentTimeMillis() < probingSince + openDuration) {
+                    rejectedCount++;
+                    return REFUSED;
+                }
+                log.warn("Circuit breaker '{}' abandoning {} probes which did not complete within {}ms", getId(),
+                        probesInFlight, openDuration);
+                startProbing();
+            }
+            probesInFlight++;
+        }
+
+        permittedCount++;
+        return generation;
+    }
+
+    /**
+     * Record that a permitted call succeeded, although it may still count as failed if it was slow.
+     * 
+     * @param permit the permit returned by {@link #tryAcquire()}
+     * @param duration how long the call took
+     */
+    public void onSuccess(final long permit, @Duration final long duration) {
+        final boolean slow = slowCallThreshold > 0 && duration > slowCallThreshold;
+        record(permit, slow, slow);
+    }
+
+    /**
+     * Record that a permitted call failed.
+     * 
+     * @param permit the permit returned by {@link #tryAcquire()}
+     * @param duration how long the call took
+     */
+    public void onFailure(final long permit, @Duration final long duration) {
+        record(permit, true, slowCallThreshold > 0 && duration > slowCallThreshold);
+    }
+
+    /**
+     * Get the proportion of recent calls which failed.
+     * 
+     * @return the failure rate, between 0 and 1
+     */
+    public synchronized double getFailureRate() {
+        return windowCount == 0 ? 0 : (double) windowFailures / windowCount;
+    }
+
+    /**
+     * Get the number of calls permitted.
+     * 
+     * @return the number of calls
+     */
+    public synchronized long getPermittedCount() {
+        return permittedCount;
+    }
+
+    /**
+     * Get the number of calls refused.
+     * 
+     * @return the number of calls
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Get the number of calls which failed, including those which were slow.
+     * 
+     * @return the number of calls
+     */
+    public synchronized long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Get the number of calls which were slow.
+     * 
+     * @return the number of calls
+     */
+    public synchronized long getSlowCallCount() {
+        return slowCallCount;
+    }
+
+    /**
+     * Get the number of times the breaker has opened.
+     * 
+     * @return the number of times
+     */
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * Record the outcome of a permitted call.
+     * 
+     * @param permit the permit for the call
+     * @param failed whether the call failed
+     * @param slow whether the call was slow
+     */
+    private synchronized void record(final long permit, final boolean failed, final boolean slow) {
+        if (failed) {
+            failureCount++;
+        }
+        if (slow) {
+            slowCallCount++;
+        }
+
+        switch (state) {
+            case HALF_OPEN:
+                if (permit != generation) {
+                    // A call permitted before the breaker opened, which is not a probe.
+                    break;
+                }
+                probesInFlight = Math.max(0, probesInFlight - 1);
+                if (failed) {
+                    open();
+                } else if (++probeSuccesses >= halfOpenProbes) {
+                    log.info("Circuit breaker '{}' closed, data source has recovered", getId());
+                    state = State.CLOSED;
+                    generation++;
+                    windowIndex = 0;
+                    windowCount = 0;
+                    windowFailures = 0;
+                }
+                break;
+
+            case CLOSED:
+                if (windowCount == window.length) {
+                    if (window[windowIndex]) {
+                        windowFailures--;
+                    }
+                } else {
+                    windowCount++;
+                }
+                window[windowIndex] = failed;
+                if (failed) {
+                    windowFailures++;
+                }
+                windowIndex = (windowIndex + 1) % window.length;
+                if (windowCount >= minimumCalls && (double) windowFailures / windowCount >= failureRateThreshold) {
+                    open();
+                }
+                break;
+
+            default:
+                // A call permitted before the breaker opened.
+                break;
+        }
+    }
+
+    /** Begin a new set of probes, ignoring the outcomes of any earlier ones. */
+    private void startProbing() {
+        generation++;
+        probingSince = System.currentTimeMillis();
+        probesInFlight = 0;
+        probeSuccesses = 0;
+    }
+
+    /** Open the breaker. */
+    private void open() {
+        log.warn("Circuit breaker '{}' opened, refusing calls for {}ms", getId(), openDuration);
+        state = State.OPEN;
+        generation++;
+        openedAt = System.currentTimeMillis();
+        openCount++;
+        probesInFlight = 0;
+        probeSuccesses = 0;
+    }
+
+}
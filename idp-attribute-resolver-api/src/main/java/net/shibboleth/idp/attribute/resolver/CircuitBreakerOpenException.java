@@ -0,0 +1,42 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver;
+
+/**
+ * A special ResolutionException which is thrown if a data connector's {@link CircuitBreaker} refused a call.
+ * 
+ * <p>
+ * Unlike other resolution exceptions this is always propagated, so that the resolver falls over to the connector's
+ * failover connector, if any, rather than treating the refused call as having produced no attributes.
+ * </p>
+ */
+public class CircuitBreakerOpenException extends ResolutionException {
+
+    /** versionID. */
+    private static final long serialVersionUID = 4761293830487125620L;
+
+    /**
+     * Constructor.
+     *
+     * @param message exception message
+     */
+    public CircuitBreakerOpenException(final String message) {
+        super(message);
+    }
+
+}
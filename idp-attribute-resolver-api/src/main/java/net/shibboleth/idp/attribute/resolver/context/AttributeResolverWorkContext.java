@@ -18,8 +18,8 @@
 package net.shibboleth.idp.attribute.resolver.context;
 
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -44,6 +44,12 @@ import org.opensaml.messaging.context.BaseContext;
  * <p>
  * This should be considered a private API limited to plugin implementations.
  * </p>
+ * 
+ * <p>
+ * The recorded results are held in concurrent maps so that plugins running on other threads (when the resolver is
+ * configured to resolve independent plugins in parallel) may safely read the results of their dependencies. Recording
+ * is still expected to be performed by a single thread.
+ * </p>
  */
 @NotThreadSafe
 public class AttributeResolverWorkContext extends BaseContext {
@@ -56,9 +62,9 @@ public class AttributeResolverWorkContext extends BaseContext {
 
     /** Constructor. */
     public AttributeResolverWorkContext() {
-        resolvedAttributeDefinitions = new HashMap<String, ResolvedAttributeDefinition>();
+        resolvedAttributeDefinitions = new ConcurrentHashMap<>();
 
-        resolvedDataConnectors = new HashMap<String, ResolvedDataConnector>();
+        resolvedDataConnectors = new ConcurrentHashMap<>();
     }
 
     /**
@@ -0,0 +1,256 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver;
+
+import net.shibboleth.idp.attribute.resolver.CircuitBreaker.State;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/** Unit test for {@link CircuitBreaker}. */
+public class CircuitBreakerTest {
+
+    /**
+     * Build an initialized breaker.
+     * 
+     * @param openDuration how long the breaker stays open
+     * @param probes the number of half open probes
+     * @return the breaker
+     * @throws ComponentInitializationException if initialization fails
+     */
+    private CircuitBreaker newBreaker(final long openDuration, final int probes)
+            throws ComponentInitializationException {
+        final CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setId("breaker");
+        breaker.setWindowSize(4);
+        breaker.setMinimumCalls(4);
+        breaker.setFailureRateThreshold(0.5);
+        breaker.setOpenDuration(openDuration);
+        breaker.setHalfOpenProbes(probes);
+        breaker.initialize();
+        return breaker;
+    }
+
+    @Test public void opensAtThreshold() throws ComponentInitializationException {
+        final CircuitBreaker breaker = newBreaker(60000, 1);
+
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure(breaker.tryAcquire(), 0);
+        }
+        Assert.assertEquals(breaker.getState(), State.CLOSED, "Too few calls to open");
+
+        breaker.onSuccess(breaker.tryAcquire(), 0);
+        Assert.assertEquals(breaker.getState(), State.OPEN);
+        Assert.assertTrue(breaker.isCallRefused());
+        Assert.assertEquals(breaker.tryAcquire(), CircuitBreaker.REFUSED);
+
+        Assert.assertEquals(breaker.getPermittedCount(), 4);
+        Assert.assertEquals(breaker.getRejectedCount(), 1);
+        Assert.assertEquals(breaker.getFailureCount(), 3);
+        Assert.assertEquals(breaker.getOpenCount(), 1);
+        Assert.assertEquals(breaker.getFailureRate(), 0.75);
+    }
+
+    @Test public void slidingWindow() throws ComponentInitializationException {
+        final CircuitBreaker breaker = newBreaker(60000, 1);
+
+        breaker.onFailure(breaker.tryAcquire(), 0);
+        for (int i = 0; i < 10; i++) {
+            breaker.onSuccess(breaker.tryAcquire(), 0);
+        }
+        breaker.onFailure(breaker.tryAcquire(), 0);
+        Assert.assertEquals(breaker.getState(), State.CLOSED, "Old failure should have left the window");
+        Assert.assertEquals(breaker.getFailureRate(), 0.25);
+
+        breaker.onFailure(breaker.tryAcquire(), 0);
+        Assert.assertEquals(breaker.getState(), State.OPEN);
+    }
+
+    @Test public void slowCalls() throws ComponentInitializationException {
+        final CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setId("breaker");
+        breaker.setWindowSize(2);
+        breaker.setMinimumCalls(2);
+        breaker.setSlowCallThreshold(100);
+        breaker.initialize();
+
+        breaker.onSuccess(breaker.tryAcquire(), 100);
+        breaker.onSuccess(breaker.tryAcquire(), 101);
+        Assert.assertEquals(breaker.getState(), State.OPEN);
+        Assert.assertEquals(breaker.getSlowCallCount(), 1);
+    }
+
+    @Test public void halfOpen() throws ComponentInitializationException, InterruptedException {
+        final CircuitBreaker breaker = newBreaker(200, 2);
+        for (int i = 0; i < 4; i++) {
+            breaker.onFailure(breaker.tryAcquire(), 0);
+        }
+        Thread.sleep(250);
+
+        Assert.assertEquals(breaker.getState(), State.HALF_OPEN);
+        Assert.assertFalse(breaker.isCallRefused());
+        final long probe = breaker.tryAcquire();
+        Assert.assertNotEquals(probe, CircuitBreaker.REFUSED);
+        final long straggler = breaker.tryAcquire();
+        Assert.assertNotEquals(straggler, CircuitBreaker.REFUSED);
+        Assert.assertTrue(breaker.isCallRefused());
+        Assert.assertEquals(breaker.tryAcquire(), CircuitBreaker.REFUSED, "Only two probes at once");
+
+        breaker.onSuccess(probe, 0);
+        Assert.assertEquals(breaker.getState(), State.HALF_OPEN);
+        breaker.onSuccess(breaker.tryAcquire(), 0);
+        Assert.assertEquals(breaker.getState(), State.CLOSED);
+        Assert.assertEquals(breaker.getFailureRate(), 0.0);
+
+        // The straggling probe is recorded against the fresh window.
+        breaker.onSuccess(straggler, 0);
+        Assert.assertNotEquals(breaker.tryAcquire(), CircuitBreaker.REFUSED);
+    }
+
+    @Test public void stragglerNotProbe() throws ComponentInitializationException, InterruptedException {
+        final CircuitBreaker breaker = newBreaker(200, 1);
+        final long succeeding = breaker.tryAcquire();
+        final long failing = breaker.tryAcquire();
+        for (int i = 0; i < 4; i++) {
+            breaker.onFailure(breaker.tryAcquire(), 0);
+        }
+        Thread.sleep(250);
+
+        final long probe = breaker.tryAcquire();
+        Assert.assertNotEquals(probe, CircuitBreaker.REFUSED);
+        Assert.assertEquals(breaker.getState(), State.HALF_OPEN);
+
+        // A call permitted while closed neither closes nor re-opens the breaker, nor frees the probe's place.
+        breaker.onSuccess(succeeding, 0);
+        Assert.assertEquals(breaker.getState(), State.HALF_OPEN);
+        Assert.assertEquals(breaker.tryAcquire(), CircuitBreaker.REFUSED);
+        breaker.onFailure(failing, 0);
+        Assert.assertEquals(breaker.getState(), State.HALF_OPEN);
+        Assert.assertEquals(breaker.getOpenCount(), 1);
+
+        breaker.onSuccess(probe, 0);
+        Assert.assertEquals(breaker.getState(), State.CLOSED);
+    }
+
+    @Test public void failedProbe() throws ComponentInitializationException, InterruptedException {
+        final CircuitBreaker breaker = newBreaker(200, 1);
+        for (int i = 0; i < 4; i++) {
+            breaker.onFailure(breaker.tryAcquire(), 0);
+        }
+        Thread.sleep(250);
+
+        breaker.onFailure(breaker.tryAcquire(), 0);
+        Assert.assertEquals(breaker.getOpenCount(), 2);
+        Assert.assertEquals(breaker.tryAcquire(), CircuitBreaker.REFUSED);
+    }
+
+    @Test public void abandonedProbe() throws ComponentInitializationException, InterruptedException {
+        final CircuitBreaker breaker = newBreaker(200, 1);
+        for (int i = 0; i < 4; i++) {
+            breaker.onFailure(breaker.tryAcquire(), 0);
+        }
+        Thread.sleep(250);
+
+        final long abandoned = breaker.tryAcquire();
+        Assert.assertNotEquals(abandoned, CircuitBreaker.REFUSED);
+        Assert.assertEquals(breaker.tryAcquire(), CircuitBreaker.REFUSED);
+        Thread.sleep(250);
+
+        // A probe which never completes does not hold the breaker half open forever.
+        Assert.assertFalse(breaker.isCallRefused());
+        final long probe = breaker.tryAcquire();
+        Assert.assertNotEquals(probe, CircuitBreaker.REFUSED);
+        breaker.onFailure(abandoned, 0);
+        Assert.assertEquals(breaker.getState(), State.HALF_OPEN, "An abandoned probe's outcome is ignored");
+        breaker.onSuccess(probe, 0);
+        Assert.assertEquals(breaker.getState(), State.CLOSED);
+    }
+
+    @Test public void connector() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setId("breaker");
+        breaker.setWindowSize(2);
+        breaker.setMinimumCalls(2);
+        breaker.setOpenDuration(60000);
+        breaker.initialize();
+
+        final MockDataConnector connector = new MockDataConnector("foo", null);
+        connector.setCircuitBreaker(breaker);
+        connector.setFailure(true);
+        connector.initialize();
+
+        final AttributeResolverWorkContext workContext = new AttributeResolverWorkContext();
+        final AttributeResolutionContext context = new AttributeResolutionContext();
+        context.addSubcontext(workContext);
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertFalse(AbstractDataConnector.isFailing(connector));
+            try {
+                connector.resolve(context);
+                Assert.fail();
+            } catch (final ResolutionException e) {
+                // expected
+            }
+        }
+
+        Assert.assertTrue(AbstractDataConnector.isFailing(connector));
+        connector.setFailure(false);
+        try {
+            connector.resolve(context);
+            Assert.fail("Breaker should refuse the call");
+        } catch (final ResolutionException e) {
+            Assert.assertTrue(e.getMessage().contains("Circuit breaker is open"));
+        }
+        Assert.assertEquals(breaker.getRejectedCount(), 1);
+    }
+
+    @Test public void refusalPropagated() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setId("breaker");
+        breaker.setWindowSize(2);
+        breaker.setMinimumCalls(2);
+        breaker.setOpenDuration(60000);
+        breaker.initialize();
+
+        final MockDataConnector connector = new MockDataConnector("foo", null);
+        connector.setCircuitBreaker(breaker);
+        connector.setPropagateResolutionExceptions(false);
+        connector.setFailure(true);
+        connector.initialize();
+
+        final AttributeResolverWorkContext workContext = new AttributeResolverWorkContext();
+        final AttributeResolutionContext context = new AttributeResolutionContext();
+        context.addSubcontext(workContext);
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertNull(connector.resolve(context), "Failure should not be propagated");
+        }
+
+        // A refused call is propagated regardless, so that the resolver can fail over.
+        try {
+            connector.resolve(context);
+            Assert.fail("Breaker should refuse the call");
+        } catch (final CircuitBreakerOpenException e) {
+            // expected
+        }
+    }
+
+}
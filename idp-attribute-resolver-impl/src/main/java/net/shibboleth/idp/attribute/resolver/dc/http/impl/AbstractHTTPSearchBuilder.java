@@ -26,6 +26,7 @@ import java.util.Map;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpRequest;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
@@ -165,8 +166,21 @@ public abstract class AbstractHTTPSearchBuilder extends AbstractInitializableCom
             @Nonnull public Map<String,IdPAttribute> execute(@Nonnull final HttpClient client,
                     @Nullable final HttpClientSecurityParameters securityParameters,
                     @Nonnull final HTTPResponseMappingStrategy mappingStrategy) throws IOException {
+                return execute(client, securityParameters, mappingStrategy, HttpClientContext.create(), null);
+            }
+
+            /** {@inheritDoc} */
+            @Nonnull public Map<String,IdPAttribute> execute(@Nonnull final HttpClient client,
+                    @Nullable final HttpClientSecurityParameters securityParameters,
+                    @Nonnull final HTTPResponseMappingStrategy mappingStrategy,
+                    @Nonnull final HttpClientContext clientContext, @Nullable final String entityTag)
+                            throws IOException {
                 
-                final HttpClientContext clientContext = HttpClientContext.create();
+                if (entityTag != null) {
+                    request.setHeader(HttpHeaders.IF_NONE_MATCH, entityTag);
+                } else {
+                    request.removeHeaders(HttpHeaders.IF_NONE_MATCH);
+                }
                 HttpClientSecuritySupport.marshalSecurityParameters(clientContext, securityParameters, true);
                 HttpClientSecuritySupport.addDefaultTLSTrustEngineCriteria(clientContext, request);
                 final Map<String,IdPAttribute> results = client.execute(request, mappingStrategy, clientContext);
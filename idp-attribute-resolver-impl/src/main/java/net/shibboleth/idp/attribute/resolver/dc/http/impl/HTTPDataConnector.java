@@ -22,20 +22,33 @@
 package net.shibboleth.idp.attribute.resolver.dc.http.impl;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.apache.http.Header;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.opensaml.security.httpclient.HttpClientSecurityParameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import net.shibboleth.idp.attribute.IdPAttribute;
 import net.shibboleth.idp.attribute.resolver.ResolutionException;
 import net.shibboleth.idp.attribute.resolver.dc.ValidationException;
 import net.shibboleth.idp.attribute.resolver.dc.Validator;
 import net.shibboleth.idp.attribute.resolver.dc.impl.AbstractSearchDataConnector;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
@@ -44,6 +57,11 @@ import net.shibboleth.utilities.java.support.logic.Constraint;
 /**
  * This class implements a {@link net.shibboleth.idp.attribute.resolver.DataConnector}
  * that obtains data from an HTTP service.
+ * 
+ * <p>If {@link #getEntityTagCacheSize()} is non-zero, the results of requests which carry a cache key and were
+ * returned with an <code>ETag</code> are retained, and later requests for the same key (typically once the entry in
+ * the results cache has expired) are made conditional on that tag, so an unchanged result need not be sent or mapped
+ * again.</p>
  */
 public class HTTPDataConnector extends AbstractSearchDataConnector<HTTPSearch,HTTPResponseMappingStrategy> {
     
@@ -55,6 +73,21 @@ public class HTTPDataConnector extends AbstractSearchDataConnector<HTTPSearch,HT
     
     /** HTTP client security parameters. */
     @Nullable private HttpClientSecurityParameters httpClientSecurityParameters;
+
+    /** Maximum number of results retained for revalidation by entity tag. */
+    @NonNegative private int entityTagCacheSize;
+
+    /** Results retained for revalidation by entity tag, keyed by result cache key. */
+    @Nullable private Cache<String,TaggedResults> entityTagCache;
+
+    /** Number of requests which received a response. */
+    @Nonnull private final AtomicLong responseCount = new AtomicLong();
+
+    /** Number of those responses received over a connection used by an earlier request. */
+    @Nonnull private final AtomicLong reusedConnectionCount = new AtomicLong();
+
+    /** Number of those responses which reported the retained results to be unmodified. */
+    @Nonnull private final AtomicLong notModifiedCount = new AtomicLong();
     
     /** Constructor. */
     public HTTPDataConnector() {
@@ -87,6 +120,54 @@ public class HTTPDataConnector extends AbstractSearchDataConnector<HTTPSearch,HT
 
         httpClientSecurityParameters = params;
     }
+
+    /**
+     * Get the maximum number of results retained for revalidation by entity tag.
+     * 
+     * @return the maximum number of results, or 0 if requests are never conditional
+     */
+    @NonNegative public int getEntityTagCacheSize() {
+        return entityTagCacheSize;
+    }
+
+    /**
+     * Set the maximum number of results retained for revalidation by entity tag.
+     * 
+     * @param size the maximum number of results, or 0 if requests are never to be conditional
+     */
+    public void setEntityTagCacheSize(@NonNegative final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        entityTagCacheSize = (int) Constraint.isGreaterThanOrEqual(0, size, "Cache size cannot be negative");
+    }
+
+    /**
+     * Get the number of requests which received a response.
+     * 
+     * @return the number of responses
+     */
+    public long getResponseCount() {
+        return responseCount.get();
+    }
+
+    /**
+     * Get the number of responses received over a connection which had already been used by an earlier request.
+     * 
+     * @return the number of responses over reused connections
+     */
+    public long getReusedConnectionCount() {
+        return reusedConnectionCount.get();
+    }
+
+    /**
+     * Get the number of responses which reported the results retained for their entity tag to be unmodified.
+     * 
+     * @return the number of "304 Not Modified" responses
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
     
     /** {@inheritDoc} */
     public void doInitialize() throws ComponentInitializationException {
@@ -95,6 +176,10 @@ public class HTTPDataConnector extends AbstractSearchDataConnector<HTTPSearch,HT
         if (httpClient == null) {
             throw new ComponentInitializationException(getLogPrefix() + " HttpClient cannot be null");
         }
+
+        if (entityTagCacheSize > 0) {
+            entityTagCache = CacheBuilder.newBuilder().maximumSize(entityTagCacheSize).build();
+        }
     }
 
     /** {@inheritDoc} */
@@ -102,12 +187,160 @@ public class HTTPDataConnector extends AbstractSearchDataConnector<HTTPSearch,HT
     @Nullable protected Map<String,IdPAttribute> retrieveAttributes(@Nonnull final HTTPSearch executable)
             throws ResolutionException {
 
+        final String cacheKey = entityTagCache != null ? executable.getResultCacheKey() : null;
+        final TaggedResults held = cacheKey != null ? entityTagCache.getIfPresent(cacheKey) : null;
+
+        final HttpClientContext clientContext = HttpClientContext.create();
+        final ConditionalResponseHandler handler =
+                new ConditionalResponseHandler(getMappingStrategy(), clientContext, held != null);
         try {
-            return getMappingStrategy().map(
-                    executable.execute(httpClient, httpClientSecurityParameters, getMappingStrategy()));
+            final Map<String,IdPAttribute> results = executable.execute(httpClient, httpClientSecurityParameters,
+                    handler, clientContext, held != null ? held.getEntityTag() : null);
+            if (handler.isNotModified()) {
+                log.debug("{} Results for entity tag {} were not modified", getLogPrefix(), held.getEntityTag());
+                return held.getAttributes();
+            }
+
+            final Map<String,IdPAttribute> attributes = getMappingStrategy().map(results);
+            if (cacheKey != null) {
+                if (handler.getEntityTag() != null && attributes != null) {
+                    entityTagCache.put(cacheKey, new TaggedResults(handler.getEntityTag(), attributes));
+                } else {
+                    entityTagCache.invalidate(cacheKey);
+                }
+            }
+            return attributes;
         } catch (final IOException e) {
             throw new ResolutionException(getLogPrefix() + " HTTP request failed", e);
         }
     }
+
+    /**
+     * Wraps the mapping strategy in order to gather statistics about, and the entity tag of, the response, and to
+     * recognize a response reporting that the results already held are unmodified.
+     */
+    private final class ConditionalResponseHandler implements HTTPResponseMappingStrategy {
+
+        /** The mapping strategy. */
+        @Nonnull private final HTTPResponseMappingStrategy delegate;
+
+        /** The context in which the request is executed. */
+        @Nonnull private final HttpClientContext clientContext;
+
+        /** Whether the request is conditional. */
+        private final boolean conditional;
+
+        /** The entity tag of the response. */
+        @Nullable private String entityTag;
+
+        /** Whether the response reported the results already held to be unmodified. */
+        private boolean notModified;
+
+        /**
+         * Constructor.
+         * 
+         * @param strategy the mapping strategy
+         * @param context the context in which the request is executed
+         * @param isConditional whether the request is conditional
+         */
+        ConditionalResponseHandler(@Nonnull final HTTPResponseMappingStrategy strategy,
+                @Nonnull final HttpClientContext context, final boolean isConditional) {
+            delegate = strategy;
+            clientContext = context;
+            conditional = isConditional;
+        }
+
+        /**
+         * Get the entity tag of the response.
+         * 
+         * @return the entity tag, or null
+         */
+        @Nullable String getEntityTag() {
+            return entityTag;
+        }
+
+        /**
+         * Get whether the response reported the results already held to be unmodified.
+         * 
+         * @return whether the results are unmodified
+         */
+        boolean isNotModified() {
+            return notModified;
+        }
+
+        /** {@inheritDoc} */
+        @Nullable public Map<String,IdPAttribute> map(@Nonnull final Map<String,IdPAttribute> results)
+                throws ResolutionException {
+            return delegate.map(results);
+        }
+
+        /** {@inheritDoc} */
+        public Map<String,IdPAttribute> handleResponse(final HttpResponse response) throws IOException {
+            responseCount.incrementAndGet();
+            recordConnectionReuse();
+
+            if (conditional && response != null && response.getStatusLine() != null
+                    && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                notModifiedCount.incrementAndGet();
+                notModified = true;
+                return Collections.emptyMap();
+            }
+
+            final Header header = response != null ? response.getFirstHeader(HttpHeaders.ETAG) : null;
+            entityTag = header != null ? header.getValue() : null;
+            return delegate.handleResponse(response);
+        }
+
+        /** Count the response if the connection it arrived on had carried an earlier request. */
+        private void recordConnectionReuse() {
+            try {
+                final HttpConnection connection = clientContext.getConnection();
+                if (connection != null && connection.getMetrics().getRequestCount() > 1) {
+                    reusedConnectionCount.incrementAndGet();
+                }
+            } catch (final IllegalStateException e) {
+                log.trace("{} Connection metrics unavailable", getLogPrefix(), e);
+            }
+        }
+    }
+
+    /** Results retained along with the entity tag they were returned with. */
+    private static final class TaggedResults {
+
+        /** The entity tag. */
+        @Nonnull private final String entityTag;
+
+        /** The results. */
+        @Nonnull private final Map<String,IdPAttribute> attributes;
+
+        /**
+         * Constructor.
+         * 
+         * @param tag the entity tag
+         * @param results the results
+         */
+        TaggedResults(@Nonnull final String tag, @Nonnull final Map<String,IdPAttribute> results) {
+            entityTag = tag;
+            attributes = results;
+        }
+
+        /**
+         * Get the entity tag.
+         * 
+         * @return the entity tag
+         */
+        @Nonnull String getEntityTag() {
+            return entityTag;
+        }
+
+        /**
+         * Get the results.
+         * 
+         * @return the results
+         */
+        @Nonnull Map<String,IdPAttribute> getAttributes() {
+            return attributes;
+        }
+    }
         
-}
\ No newline at end of file
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver.dc.http.impl;
+
+import java.io.IOException;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks applied to an HTTP response by the {@link HTTPResponseMappingStrategy} implementations before they read it.
+ */
+final class HTTPResponseSupport {
+
+    /** Class logger. */
+    @Nonnull private static final Logger LOG = LoggerFactory.getLogger(HTTPResponseSupport.class);
+
+    /** Constructor. */
+    private HTTPResponseSupport() {
+    }
+
+    /**
+     * Check that the response is present and has an acceptable status and an entity body of an acceptable type and
+     * length.
+     * 
+     * @param response HTTP response
+     * @param acceptStatuses statuses to allow, or empty to allow any
+     * @param acceptTypes content types to allow, or empty to allow any
+     * @param maxLength limit on content-length, or 0 to allow any
+     * @param logPrefix prefix for log and exception messages
+     * 
+     * @return the entity body
+     * 
+     * @throws IOException if the response is unacceptable
+     */
+    @Nonnull static HttpEntity checkResponse(@Nullable final HttpResponse response,
+            @Nonnull final Set<Integer> acceptStatuses, @Nonnull final Set<String> acceptTypes, final long maxLength,
+            @Nonnull final String logPrefix) throws IOException {
+        if (response == null) {
+            LOG.debug("{} HTTP response was missing", logPrefix);
+            throw new IOException(logPrefix + " HTTP response was missing");
+        }
+
+        checkStatus(response, acceptStatuses, logPrefix);
+
+        final HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            LOG.debug("{} Response body was missing", logPrefix);
+            throw new IOException(logPrefix + " Response body was missing");
+        }
+
+        checkContentType(entity, acceptTypes, logPrefix);
+        checkContentLength(entity, maxLength, logPrefix);
+        return entity;
+    }
+
+    /**
+     * Enforce any status code requirements.
+     * 
+     * @param response HTTP response
+     * @param acceptStatuses statuses to allow, or empty to allow any
+     * @param logPrefix prefix for log and exception messages
+     * 
+     * @throws IOException if the status is unacceptable
+     */
+    private static void checkStatus(@Nonnull final HttpResponse response, @Nonnull final Set<Integer> acceptStatuses,
+            @Nonnull final String logPrefix) throws IOException {
+        if (!acceptStatuses.isEmpty()) {
+            if (response.getStatusLine() == null
+                    || !acceptStatuses.contains(response.getStatusLine().getStatusCode())) {
+                LOG.debug("{} Unacceptable HTTP status: {}", logPrefix,
+                        response.getStatusLine() != null ? response.getStatusLine().getStatusCode() : "unknown");
+                throw new IOException(logPrefix + " HTTP status unknown or unacceptable");
+            }
+        }
+    }
+
+    /**
+     * Enforce Content-Type requirements.
+     * 
+     * @param entity the entity body
+     * @param acceptTypes content types to allow, or empty to allow any
+     * @param logPrefix prefix for log and exception messages
+     * 
+     * @throws IOException if the type is unacceptable
+     */
+    private static void checkContentType(@Nonnull final HttpEntity entity, @Nonnull final Set<String> acceptTypes,
+            @Nonnull final String logPrefix) throws IOException {
+        if (!acceptTypes.isEmpty()) {
+            
+            final ContentType contentType = ContentType.get(entity);
+            if (contentType == null || !acceptTypes.contains(contentType.getMimeType())) {
+                LOG.debug("{} Unacceptable Content-Type: {}", logPrefix,
+                        contentType != null ? contentType.getMimeType() : "unknown");
+                throw new IOException(logPrefix + " Content-Type unknown or unacceptable");
+            }
+        }
+    }
+
+    /**
+     * Check the content length.
+     * 
+     * @param entity the entity body
+     * @param maxLength limit on content-length, or 0 to allow any
+     * @param logPrefix prefix for log and exception messages
+     * 
+     * @throws IOException if the length is unacceptable
+     */
+    private static void checkContentLength(@Nonnull final HttpEntity entity, final long maxLength,
+            @Nonnull final String logPrefix) throws IOException {
+        if (maxLength > 0) {
+            if (entity.getContentLength() < 0 || entity.getContentLength() > maxLength) {
+                LOG.debug("{} Unacceptable Content-Length: {}", logPrefix, entity.getContentLength());
+                throw new IOException(logPrefix + " Content-Length exceeded acceptable limits or was unset");
+            }
+        }
+    }
+
+}
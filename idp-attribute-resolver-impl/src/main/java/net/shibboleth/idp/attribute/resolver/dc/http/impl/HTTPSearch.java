@@ -24,6 +24,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.opensaml.security.httpclient.HttpClientSecurityParameters;
 
 import net.shibboleth.idp.attribute.IdPAttribute;
@@ -45,5 +46,31 @@ public interface HTTPSearch extends ExecutableSearch {
     @Nonnull Map<String,IdPAttribute> execute(@Nonnull final HttpClient client,
             @Nullable final HttpClientSecurityParameters securityParameters,
             @Nonnull final HTTPResponseMappingStrategy mappingStrategy) throws IOException;
+
+    /**
+     * The abstraction that will contact the service and obtain results, within a supplied client context and
+     * optionally conditional on the results having changed.
+     * 
+     * <p>If an entity tag is supplied, the request carries it in an <code>If-None-Match</code> header, so the
+     * mapping strategy must be prepared to handle a "304 Not Modified" response.</p>
+     * 
+     * <p>The default implementation ignores the context and entity tag, and calls
+     * {@link #execute(HttpClient, HttpClientSecurityParameters, HTTPResponseMappingStrategy)}.</p>
+     * 
+     * @param client the HTTP client
+     * @param securityParameters client security settings
+     * @param mappingStrategy response mapping strategy
+     * @param clientContext the client context in which to execute the request
+     * @param entityTag entity tag of the results already held, or null
+     * 
+     * @return attribute results
+     * @throws IOException if an error occurs
+     */
+    @Nonnull default Map<String,IdPAttribute> execute(@Nonnull final HttpClient client,
+            @Nullable final HttpClientSecurityParameters securityParameters,
+            @Nonnull final HTTPResponseMappingStrategy mappingStrategy,
+            @Nonnull final HttpClientContext clientContext, @Nullable final String entityTag) throws IOException {
+        return execute(client, securityParameters, mappingStrategy);
+    }
     
 }
\ No newline at end of file
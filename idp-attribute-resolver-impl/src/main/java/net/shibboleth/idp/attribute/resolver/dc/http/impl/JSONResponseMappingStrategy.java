@@ -0,0 +1,352 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver.dc.http.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.Collections2;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.attribute.resolver.ResolutionException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+
+/**
+ * {@link HTTPResponseMappingStrategy} that maps values found at configured paths within a JSON response to
+ * attributes.
+ * 
+ * <p>The response is read as a stream of parser events, so the document is never built in memory and only the
+ * values at the configured paths are retained. A path is a sequence of object member names separated by '.';
+ * arrays are transparent, so every element of an array found along a path contributes a value. Only scalar values
+ * are mapped, each as a {@link StringAttributeValue}, and null values are ignored.</p>
+ */
+public class JSONResponseMappingStrategy implements HTTPResponseMappingStrategy {
+
+    /** Shared parser factory. */
+    @Nonnull private static final JsonParserFactory PARSER_FACTORY = Json.createParserFactory(null);
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(JSONResponseMappingStrategy.class);
+
+    /** The paths to map, as a tree of member names. */
+    @Nonnull private PathNode paths;
+
+    /** "Successful" statuses. */
+    @Nonnull private Set<Integer> acceptStatuses;
+    
+    /** Acceptable Content-Types. */
+    @Nonnull private Set<String> acceptTypes;
+    
+    /** Limit on content-length. */
+    private long maxLength;
+
+    /** Prefix for log messages. */
+    @Nonnull private String logPrefix;
+
+    /** Constructor. */
+    public JSONResponseMappingStrategy() {
+        paths = new PathNode();
+        acceptStatuses = Collections.singleton(HttpStatus.SC_OK);
+        acceptTypes = Collections.emptySet();
+        logPrefix = "";
+    }
+
+    /**
+     * Set the paths within the response to map, keyed by the ID of the attribute to map each to.
+     * 
+     * @param attributePaths map of attribute ID to path
+     */
+    public void setAttributePaths(@Nonnull @NonnullElements final Map<String,String> attributePaths) {
+        Constraint.isNotNull(attributePaths, "Attribute paths cannot be null");
+
+        final PathNode root = new PathNode();
+        for (final Map.Entry<String,String> entry : attributePaths.entrySet()) {
+            final String id = StringSupport.trimOrNull(entry.getKey());
+            final String path = StringSupport.trimOrNull(entry.getValue());
+            if (id == null || path == null) {
+                continue;
+            }
+            PathNode node = root;
+            for (final String name : path.split("\\.")) {
+                node = node.getOrCreateChild(name);
+            }
+            node.attributeIds.add(id);
+        }
+        paths = root;
+    }
+
+    /**
+     * Set the HTTP status codes to treat as successful.
+     * 
+     * @param statuses successful codes
+     */
+    public void setAcceptStatuses(@Nonnull final Collection<Integer> statuses) {
+        Constraint.isNotNull(statuses, "Statuses cannot be null");
+        
+        acceptStatuses = new HashSet<>(Collections2.filter(statuses, Predicates.notNull()));
+    }
+
+    /**
+     * Set the content-types to allow.
+     * 
+     * @param types types to allow
+     */
+    public void setAcceptTypes(@Nonnull final Collection<String> types) {
+        Constraint.isNotNull(types, "Types cannot be null");
+        
+        acceptTypes = new HashSet<>(StringSupport.normalizeStringCollection(types));
+    }
+    
+    /**
+     * Set a limit on content-length.
+     * 
+     * <p>Defaults to 0, allowing any. Setting a limit implies that an unknown length will be rejected.</p>
+     * 
+     * @param len limit on size
+     */
+    public void setMaxLength(final long len) {
+        maxLength = len;
+    }
+
+    /**
+     * Get the prefix for log messages.
+     * 
+     * @return prefix for log messages
+     */
+    @Nonnull public String getLogPrefix() {
+        return logPrefix;
+    }
+
+    /**
+     * Set the prefix for log messages.
+     * 
+     * @param prefix prefix for log messages
+     */
+    public void setLogPrefix(@Nullable final String prefix) {
+        logPrefix = prefix != null ? prefix : "";
+    }
+
+    /** {@inheritDoc} */
+    @Nonnull public Map<String,IdPAttribute> map(@Nonnull final Map<String,IdPAttribute> results)
+            throws ResolutionException {
+        return results;
+    }
+
+    /** {@inheritDoc} */
+    public Map<String,IdPAttribute> handleResponse(final HttpResponse response) throws IOException {
+
+        log.debug("{} Handling HTTP response", getLogPrefix());
+
+        final HttpEntity entity =
+                HTTPResponseSupport.checkResponse(response, acceptStatuses, acceptTypes, maxLength, getLogPrefix());
+
+        final ContentType contentType = ContentType.get(entity);
+        final Charset charset = contentType != null && contentType.getCharset() != null ?
+                contentType.getCharset() : StandardCharsets.UTF_8;
+
+        final Map<String,List<IdPAttributeValue<?>>> values = new HashMap<>();
+        try (final InputStream is = entity.getContent(); final JsonParser parser = PARSER_FACTORY.createParser(is,
+                charset)) {
+            parse(parser, values);
+        } catch (final JsonException e) {
+            throw new IOException(getLogPrefix() + " Response could not be parsed as JSON", e);
+        }
+
+        final Map<String,IdPAttribute> results = new HashMap<>(values.size());
+        for (final Map.Entry<String,List<IdPAttributeValue<?>>> entry : values.entrySet()) {
+            final IdPAttribute attribute = new IdPAttribute(entry.getKey());
+            attribute.setValues(entry.getValue());
+            results.put(entry.getKey(), attribute);
+        }
+        log.debug("{} Mapped {} attribute(s) from response", getLogPrefix(), results.size());
+        return results;
+    }
+
+// Checkstyle: CyclomaticComplexity OFF
+    /**
+     * Walk the parser's events, collecting the values found at the configured paths.
+     * 
+     * <p>Each open container is represented on a stack by the path node it corresponds to, or null if it lies off
+     * every configured path, in which case everything within it is skipped without further lookups.</p>
+     * 
+     * @param parser the parser
+     * @param values the values collected for each attribute
+     */
+    private void parse(@Nonnull final JsonParser parser, @Nonnull final Map<String,List<IdPAttributeValue<?>>> values) {
+        final Deque<PathNode> nodes = new ArrayDeque<>();
+        final Deque<Boolean> arrays = new ArrayDeque<>();
+        PathNode current = null;
+        boolean started = false;
+
+        while (parser.hasNext()) {
+            final JsonParser.Event event = parser.next();
+            switch (event) {
+                case KEY_NAME:
+                    final PathNode parent = nodes.peek();
+                    current = parent != null ? parent.getChild(parser.getString()) : null;
+                    break;
+
+                case START_OBJECT:
+                case START_ARRAY:
+                    final PathNode container;
+                    if (!started) {
+                        container = paths;
+                        started = true;
+                    } else {
+                        container = valueNode(nodes, arrays, current);
+                    }
+                    nodes.push(container != null ? container : PathNode.NONE);
+                    arrays.push(event == JsonParser.Event.START_ARRAY);
+                    break;
+
+                case END_OBJECT:
+                case END_ARRAY:
+                    nodes.pop();
+                    arrays.pop();
+                    break;
+
+                case VALUE_STRING:
+                case VALUE_NUMBER:
+                    addValue(valueNode(nodes, arrays, current), parser.getString(), values);
+                    break;
+
+                case VALUE_TRUE:
+                    addValue(valueNode(nodes, arrays, current), Boolean.TRUE.toString(), values);
+                    break;
+
+                case VALUE_FALSE:
+                    addValue(valueNode(nodes, arrays, current), Boolean.FALSE.toString(), values);
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
+// Checkstyle: CyclomaticComplexity ON
+
+    /**
+     * Get the path node for a value (or container) in the current position.
+     * 
+     * @param nodes the path nodes of the open containers
+     * @param arrays whether each open container is an array
+     * @param member the path node of the last member name seen
+     * 
+     * @return the path node, or null if the position is off every configured path
+     */
+    @Nullable private PathNode valueNode(@Nonnull final Deque<PathNode> nodes, @Nonnull final Deque<Boolean> arrays,
+            @Nullable final PathNode member) {
+        final PathNode node = arrays.isEmpty() ? null : arrays.peek() ? nodes.peek() : member;
+        return node == PathNode.NONE ? null : node;
+    }
+
+    /**
+     * Add a value to the attributes mapped from a path node.
+     * 
+     * @param node the path node
+     * @param value the value
+     * @param values the values collected for each attribute
+     */
+    private void addValue(@Nullable final PathNode node, @Nonnull final String value,
+            @Nonnull final Map<String,List<IdPAttributeValue<?>>> values) {
+        if (node == null || node.attributeIds.isEmpty()) {
+            return;
+        }
+        final StringAttributeValue attributeValue = StringAttributeValue.valueOf(value);
+        for (final String id : node.attributeIds) {
+            List<IdPAttributeValue<?>> list = values.get(id);
+            if (list == null) {
+                list = new ArrayList<>();
+                values.put(id, list);
+            }
+            list.add(attributeValue);
+        }
+    }
+
+    /** A member name within the configured paths. */
+    private static final class PathNode {
+
+        /** Marker for a container off every configured path. */
+        @Nonnull private static final PathNode NONE = new PathNode();
+
+        /** The members beneath this one which lie on a configured path. */
+        @Nonnull private final Map<String,PathNode> children = new HashMap<>();
+
+        /** The IDs of the attributes to which values at this path are mapped. */
+        @Nonnull private final List<String> attributeIds = new ArrayList<>();
+
+        /**
+         * Get the node for a member beneath this one.
+         * 
+         * @param name the member name
+         * 
+         * @return the node, or null if the member lies off every configured path
+         */
+        @Nullable PathNode getChild(@Nonnull final String name) {
+            return children.get(name);
+        }
+
+        /**
+         * Get the node for a member beneath this one, creating it if necessary.
+         * 
+         * @param name the member name
+         * 
+         * @return the node
+         */
+        @Nonnull PathNode getOrCreateChild(@Nonnull final String name) {
+            PathNode child = children.get(name);
+            if (child == null) {
+                child = new PathNode();
+                children.put(name, child);
+            }
+            return child;
+        }
+    }
+
+}
@@ -33,10 +33,8 @@ import javax.annotation.Nullable;
 import javax.script.ScriptContext;
 import javax.script.ScriptException;
 
-import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.entity.ContentType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -133,21 +131,7 @@ public final class ScriptedResponseMappingStrategy extends AbstractScriptEvaluat
         
         log.debug("{} Handling HTTP response", getLogPrefix());
         
-        if (response == null) {
-            log.debug("{} HTTP response was missing", getLogPrefix());
-            throw new IOException(getLogPrefix() + " HTTP response was missing");
-        }
-        
-        checkStatus(response);
-        
-        final HttpEntity entity = response.getEntity();
-        if (entity == null) {
-            log.debug("{} Response body was missing", getLogPrefix());
-            throw new IOException(getLogPrefix() + " Response body was missing");
-        }
-        
-        checkContentType(entity);
-        checkContentLength(entity);
+        HTTPResponseSupport.checkResponse(response, acceptStatuses, acceptTypes, maxLength, getLogPrefix());
         
         try {
             return (Map<String,IdPAttribute>) evaluate(response);
@@ -204,59 +188,6 @@ public final class ScriptedResponseMappingStrategy extends AbstractScriptEvaluat
         return outputMap;
     }
     
-    /**
-     * Enforce any status code requirements.
-     * 
-     * @param response HTTP response
-     * 
-     * @throws IOException if the status is unacceptable
-     */
-    private void checkStatus(@Nonnull final HttpResponse response) throws IOException {
-        if (!acceptStatuses.isEmpty()) {
-            if (response.getStatusLine() == null
-                    || !acceptStatuses.contains(response.getStatusLine().getStatusCode())) {
-                log.debug("{} Unacceptable HTTP status: {}", getLogPrefix(),
-                        response.getStatusLine() != null ? response.getStatusLine().getStatusCode() : "unknown");
-                throw new IOException(getLogPrefix() + " HTTP status unknown or unacceptable");
-            }
-        }
-    }
-
-    /**
-     * Enforce Content-Type requirements.
-     * 
-     * @param entity the entity body
-     * 
-     * @throws IOException if the type is unacceptable
-     */
-    private void checkContentType(@Nonnull final HttpEntity entity) throws IOException {
-        if (!acceptTypes.isEmpty()) {
-            
-            final ContentType contentType = ContentType.get(entity);
-            if (contentType == null || !acceptTypes.contains(contentType.getMimeType())) {
-                log.debug("{} Unacceptable Content-Type: {}", getLogPrefix(),
-                        contentType != null ? contentType.getMimeType() : "unknown");
-                throw new IOException(getLogPrefix() + " Content-Type unknown or unacceptable");
-            }
-        }
-    }
-
-    /**
-     * Check the content length.
-     * 
-     * @param entity the entity body
-     * 
-     * @throws IOException if the length is unacceptable
-     */
-    private void checkContentLength(@Nonnull final HttpEntity entity) throws IOException {
-        if (maxLength > 0) {
-            if (entity.getContentLength() < 0 || entity.getContentLength() > maxLength) {
-                log.debug("{} Unacceptable Content-Length: {}", getLogPrefix(), entity.getContentLength());
-                throw new IOException(getLogPrefix() + " Content-Length exceeded acceptable limits or was unset");
-            }
-        }
-    }
-
     /**
      * Ensure that all the values in the attribute are of the correct type.
      * 
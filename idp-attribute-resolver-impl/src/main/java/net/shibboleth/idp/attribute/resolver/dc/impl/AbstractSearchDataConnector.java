@@ -20,6 +20,16 @@ package net.shibboleth.idp.attribute.resolver.dc.impl;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -27,31 +37,56 @@ import javax.annotation.Nullable;
 import net.shibboleth.idp.attribute.IdPAttribute;
 import net.shibboleth.idp.attribute.IdPAttributeValue;
 import net.shibboleth.idp.attribute.resolver.AbstractDataConnector;
+import net.shibboleth.idp.attribute.resolver.AsyncDataConnector;
+import net.shibboleth.idp.attribute.resolver.CircuitBreakerOpenException;
 import net.shibboleth.idp.attribute.resolver.PluginDependencySupport;
 import net.shibboleth.idp.attribute.resolver.ResolutionException;
 import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
 import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
 import net.shibboleth.idp.attribute.resolver.dc.MappingStrategy;
 import net.shibboleth.idp.attribute.resolver.dc.Validator;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 
+import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Predicate;
 import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * A {@link net.shibboleth.idp.attribute.resolver.DataConnector} containing functionality common to data connectors that
  * retrieve attribute data by searching a data source.
  * 
+ * <p>
+ * The connector may also be resolved asynchronously. By default the search is run on the configured
+ * {@link Executor}, or on the calling thread if there is none, but subclasses with access to a non-blocking client
+ * may override {@link #retrieveAttributesAsync(ExecutableSearch)}.
+ * </p>
+ * 
+ * <p>
+ * When a results cache is in use, concurrent searches for the same cache key may optionally be coalesced so that
+ * only one query is made of the data source, and cached results may be refreshed in the background once they reach
+ * a given age, continuing to be served until the refresh completes.
+ * </p>
+ * 
+ * <p>
+ * Any {@link net.shibboleth.idp.attribute.resolver.CircuitBreaker} is applied only to the searches themselves, so
+ * cached results are used regardless of its state and do not count as calls to the data source.
+ * </p>
+ * 
  * @param <T1> type of executable search
  * @param <T2> type of mapping strategy
  */
 public abstract class AbstractSearchDataConnector<T1 extends ExecutableSearch,T2 extends MappingStrategy>
-    extends AbstractDataConnector {
+    extends AbstractDataConnector implements AsyncDataConnector {
 
     /** Class logger. */
     @Nonnull private final Logger log = LoggerFactory.getLogger(AbstractSearchDataConnector.class);
@@ -68,6 +103,30 @@ public abstract class AbstractSearchDataConnector<T1 extends ExecutableSearch,T2
     /** Query result cache. */
     @Nullable private Cache<String,Map<String,IdPAttribute>> resultsCache;
 
+    /** Executor on which to run searches when resolving asynchronously. */
+    @Nullable private Executor asyncExecutor;
+
+    /** Whether concurrent searches with the same cache key share a single query. */
+    private boolean coalesceSearches;
+
+    /** How long to wait for a search being run by another caller. */
+    @Duration @Positive private long coalescedSearchTimeout;
+
+    /** Age after which a cached result is refreshed in the background. */
+    @Duration @NonNegative private long cacheRefreshAfterWrite;
+
+    /** Searches currently running, indexed by cache key. */
+    @Nonnull private final ConcurrentMap<String,CompletableFuture<Map<String,IdPAttribute>>> searchesInProgress;
+
+    /** Cache keys whose results were retrieved recently enough not to need refreshing. */
+    @Nullable private Cache<String,Boolean> freshResults;
+
+    /** Constructor. */
+    public AbstractSearchDataConnector() {
+        searchesInProgress = new ConcurrentHashMap<>();
+        coalescedSearchTimeout = 30 * 1000;
+    }
+
     /**
      * Gets the builder used to create executable searches.
      * 
@@ -155,6 +214,106 @@ public abstract class AbstractSearchDataConnector<T1 extends ExecutableSearch,T2
         resultsCache = cache;
     }
 
+    /**
+     * Gets the executor on which searches are run when resolving asynchronously.
+     * 
+     * @return the executor, or null if searches are run on the calling thread
+     */
+    @Nullable public Executor getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    /**
+     * Sets the executor on which searches are run when resolving asynchronously.
+     * 
+     * @param executor the executor, or null to run searches on the calling thread
+     */
+    public void setAsyncExecutor(@Nullable final Executor executor) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        asyncExecutor = executor;
+    }
+
+    /**
+     * Gets whether concurrent searches with the same cache key share a single query of the data source.
+     * 
+     * @return whether searches are coalesced
+     */
+    public boolean isCoalesceSearches() {
+        return coalesceSearches;
+    }
+
+    /**
+     * Sets whether concurrent searches with the same cache key share a single query of the data source.
+     * 
+     * <p>
+     * This has no effect unless a results cache is in use.
+     * </p>
+     * 
+     * @param flag whether to coalesce searches
+     */
+    public void setCoalesceSearches(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        coalesceSearches = flag;
+    }
+
+    /**
+     * Gets how long to wait for a search being run by another caller.
+     * 
+     * @return the timeout in milliseconds
+     */
+    @Positive @Duration public long getCoalescedSearchTimeout() {
+        return coalescedSearchTimeout;
+    }
+
+    /**
+     * Sets how long to wait for a search being run by another caller.
+     * 
+     * <p>
+     * A caller which has waited this long for a coalesced search fails to resolve, the search itself continuing on
+     * behalf of any other callers. Defaults to 30 seconds.
+     * </p>
+     * 
+     * @param timeout the timeout in milliseconds
+     */
+    @Duration public void setCoalescedSearchTimeout(@Duration @Positive final long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        coalescedSearchTimeout =
+                Constraint.isGreaterThan(0, timeout, "Coalesced search timeout must be greater than 0");
+    }
+
+    /**
+     * Gets the age after which a cached result is refreshed in the background.
+     * 
+     * @return the age in milliseconds, or 0 if results are not refreshed
+     */
+    @NonNegative @Duration public long getCacheRefreshAfterWrite() {
+        return cacheRefreshAfterWrite;
+    }
+
+    /**
+     * Sets the age after which a cached result is refreshed in the background.
+     * 
+     * <p>
+     * The stale result continues to be used until the refresh completes. The refresh is run on the asynchronous
+     * executor, so results are never refreshed if there is none. To have any effect this must be less than the
+     * expiry time of the results cache.
+     * </p>
+     * 
+     * @param age the age in milliseconds, or 0 to never refresh results
+     */
+    @Duration public void setCacheRefreshAfterWrite(@Duration @NonNegative final long age) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        cacheRefreshAfterWrite = Constraint.isGreaterThanOrEqual(0, age, "Refresh interval cannot be negative");
+    }
+
     /**
      * Attempts to retrieve attributes from the data source.
      * 
@@ -184,24 +343,347 @@ public abstract class AbstractSearchDataConnector<T1 extends ExecutableSearch,T2
                 log.trace("{} Cache found, resolved attributes {} using cache {}", new Object[] {getLogPrefix(),
                         resolvedAttributes, resultsCache,});
                 if (resolvedAttributes == null) {
-                    resolvedAttributes = retrieveAttributes(executable);
+                    if (coalesceSearches) {
+                        resolvedAttributes = retrieveAttributesOnce(cacheKey, executable);
+                    } else {
+                        resolvedAttributes = callDataSource(executable);
+                        cacheAttributes(cacheKey, resolvedAttributes);
+                    }
                     log.trace("{} Resolved attributes {}", getLogPrefix(), resolvedAttributes);
-                    resultsCache.put(cacheKey, resolvedAttributes != null ? resolvedAttributes
-                            : Collections.<String,IdPAttribute>emptyMap());
+                } else {
+                    refreshIfStale(cacheKey, executable);
                 }
             } else {
                 log.trace("No cache key returned, will not check for cached results");
-                resolvedAttributes = retrieveAttributes(executable);
+                resolvedAttributes = callDataSource(executable);
                 log.trace("{} Resolved attributes: {}", getLogPrefix(), resolvedAttributes);
             }
         } else {
-            resolvedAttributes = retrieveAttributes(executable);
+            resolvedAttributes = callDataSource(executable);
             log.trace("{} Resolved attributes: {}", getLogPrefix(), resolvedAttributes);
         }
 
         return resolvedAttributes;
     }
 
+    /** {@inheritDoc} */
+    @Override protected boolean isGuardingOwnCalls() {
+        return true;
+    }
+
+    /**
+     * Retrieve attributes from the data source, subject to the circuit breaker if any.
+     * 
+     * @param executable used to retrieve data from the data source
+     * 
+     * @return attributes
+     * 
+     * @throws ResolutionException thrown if the call was refused or there is a problem retrieving data from the data
+     *             source
+     */
+    @Nullable protected Map<String,IdPAttribute> callDataSource(@Nonnull final T1 executable)
+            throws ResolutionException {
+        final long permit = acquireCall();
+        final long start = System.currentTimeMillis();
+        final Map<String,IdPAttribute> resolvedAttributes;
+        try {
+            resolvedAttributes = retrieveAttributes(executable);
+        } catch (final Throwable t) {
+            // Errors included, lest the permit of a probe be held until the breaker gives up on it.
+            recordCall(permit, start, t);
+            throw t;
+        }
+        recordCall(permit, start, null);
+        return resolvedAttributes;
+    }
+
+    /**
+     * Begin retrieving attributes from the data source, subject to the circuit breaker if any.
+     * 
+     * @param executable used to retrieve data from the data source
+     * 
+     * @return the eventual attributes, or an exceptional completion
+     */
+    @Nonnull private CompletionStage<Map<String,IdPAttribute>> callDataSourceAsync(@Nonnull final T1 executable) {
+        final long permit;
+        try {
+            permit = acquireCall();
+        } catch (final ResolutionException e) {
+            final CompletableFuture<Map<String,IdPAttribute>> refused = new CompletableFuture<>();
+            refused.completeExceptionally(e);
+            return refused;
+        }
+
+        final long start = System.currentTimeMillis();
+        final CompletionStage<Map<String,IdPAttribute>> search;
+        try {
+            search = retrieveAttributesAsync(executable);
+        } catch (final Throwable t) {
+            recordCall(permit, start, t);
+            throw t;
+        }
+        return search.whenComplete((resolvedAttributes, failure) -> recordCall(permit, start,
+                failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure));
+    }
+
+    /**
+     * Retrieve attributes from the data source, unless another thread is already doing so for the same cache key in
+     * which case its result is used instead.
+     * 
+     * @param cacheKey the cache key of the search
+     * @param executable used to retrieve data from the data source
+     * 
+     * @return attributes
+     * 
+     * @throws ResolutionException thrown if there is a problem retrieving data from the data source
+     */
+    @Nullable private Map<String,IdPAttribute> retrieveAttributesOnce(@Nonnull final String cacheKey,
+            @Nonnull final T1 executable) throws ResolutionException {
+        final CompletableFuture<Map<String,IdPAttribute>> search = new CompletableFuture<>();
+        final CompletableFuture<Map<String,IdPAttribute>> existing = searchesInProgress.putIfAbsent(cacheKey, search);
+        if (existing != null) {
+            log.trace("{} Waiting for search already in progress", getLogPrefix());
+            return awaitSearch(existing);
+        }
+
+        try {
+            // The search we might have waited for may have completed between the cache lookup and now.
+            Map<String,IdPAttribute> resolvedAttributes = resultsCache.getIfPresent(cacheKey);
+            if (resolvedAttributes == null) {
+                resolvedAttributes = callDataSource(executable);
+                cacheAttributes(cacheKey, resolvedAttributes);
+            }
+            search.complete(resolvedAttributes);
+            return resolvedAttributes;
+        } catch (final ResolutionException | RuntimeException e) {
+            search.completeExceptionally(e);
+            throw e;
+        } finally {
+            searchesInProgress.remove(cacheKey, search);
+        }
+    }
+
+    /**
+     * Wait for a search being run by another thread.
+     * 
+     * @param search the search
+     * 
+     * @return the result of the search
+     * 
+     * @throws ResolutionException if the search failed, or the wait was interrupted or timed out
+     */
+    @Nullable private Map<String,IdPAttribute> awaitSearch(
+            @Nonnull final CompletableFuture<Map<String,IdPAttribute>> search) throws ResolutionException {
+        try {
+            return search.get(coalescedSearchTimeout, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResolutionException(getLogPrefix() + " Interrupted waiting for search", e);
+        } catch (final TimeoutException e) {
+            throw new ResolutionException(getLogPrefix() + " Timed out waiting for search", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ResolutionException) {
+                throw (ResolutionException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ResolutionException(getLogPrefix() + " Search failed", e);
+        }
+    }
+
+    /**
+     * Start retrieving attributes from the data source asynchronously, unless a search for the same cache key is
+     * already in progress in which case that is returned instead. The result is cached once retrieved.
+     * 
+     * @param cacheKey the cache key of the search
+     * @param executable used to retrieve data from the data source
+     * 
+     * @return the search
+     */
+    @Nonnull private CompletableFuture<Map<String,IdPAttribute>> startSearch(@Nonnull final String cacheKey,
+            @Nonnull final T1 executable) {
+        final CompletableFuture<Map<String,IdPAttribute>> search = new CompletableFuture<>();
+        final CompletableFuture<Map<String,IdPAttribute>> existing = searchesInProgress.putIfAbsent(cacheKey, search);
+        if (existing != null) {
+            return existing;
+        }
+
+        callDataSourceAsync(executable).whenComplete((resolvedAttributes, failure) -> {
+            if (failure == null) {
+                cacheAttributes(cacheKey, resolvedAttributes);
+            }
+            searchesInProgress.remove(cacheKey, search);
+            if (failure == null) {
+                search.complete(resolvedAttributes);
+            } else {
+                search.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null ?
+                        failure.getCause() : failure);
+            }
+        });
+        return search;
+    }
+
+    /**
+     * Start refreshing a cached result in the background if it is old enough.
+     * 
+     * <p>
+     * A failed refresh is logged and not retried until the refresh interval has passed again, the stale result
+     * remaining in use until the cache expires it.
+     * </p>
+     * 
+     * @param cacheKey the cache key of the result
+     * @param executable used to retrieve data from the data source
+     */
+    private void refreshIfStale(@Nonnull final String cacheKey, @Nonnull final T1 executable) {
+        if (freshResults == null || freshResults.getIfPresent(cacheKey) != null
+                || searchesInProgress.containsKey(cacheKey)) {
+            return;
+        }
+
+        log.debug("{} Refreshing cached result", getLogPrefix());
+        startSearch(cacheKey, executable).whenComplete((resolvedAttributes, failure) -> {
+            if (failure != null) {
+                log.warn("{} Unable to refresh cached result: {}", getLogPrefix(), failure.getMessage());
+                freshResults.put(cacheKey, Boolean.TRUE);
+            }
+        });
+    }
+
+    /**
+     * Cache the result of a search.
+     * 
+     * @param cacheKey the cache key of the search
+     * @param resolvedAttributes the result of the search
+     */
+    private void cacheAttributes(@Nonnull final String cacheKey,
+            @Nullable final Map<String,IdPAttribute> resolvedAttributes) {
+        resultsCache.put(cacheKey, resolvedAttributes != null ? resolvedAttributes
+                : Collections.<String,IdPAttribute>emptyMap());
+        if (freshResults != null) {
+            freshResults.put(cacheKey, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Begins an attempt to retrieve attributes from the data source.
+     * 
+     * <p>
+     * The default implementation runs {@link #retrieveAttributes(ExecutableSearch)} on the configured
+     * {@link Executor}, falling back to the calling thread if there is none or it rejects the work.
+     * </p>
+     * 
+     * @param executable used to retrieve data from the data source
+     * 
+     * @return the eventual attributes, or an exceptional completion (usually by a {@link ResolutionException})
+     */
+    @Nonnull protected CompletionStage<Map<String,IdPAttribute>> retrieveAttributesAsync(
+            @Nonnull final T1 executable) {
+        final CompletableFuture<Map<String,IdPAttribute>> future = new CompletableFuture<>();
+        final Runnable search = new Runnable() {
+            @Override public void run() {
+                try {
+                    future.complete(retrieveAttributes(executable));
+                } catch (final ResolutionException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        };
+
+        if (asyncExecutor != null) {
+            try {
+                asyncExecutor.execute(search);
+                return future;
+            } catch (final RejectedExecutionException e) {
+                log.debug("{} Executor rejected search, running it on the calling thread", getLogPrefix());
+            }
+        }
+        search.run();
+        return future;
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nonnull public CompletionStage<Map<String, IdPAttribute>> resolveAsync(
+            @Nonnull final AttributeResolutionContext resolutionContext) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        Constraint.isNotNull(resolutionContext, "AttributeResolutionContext cannot be null");
+
+        final CompletableFuture<Map<String, IdPAttribute>> result = new CompletableFuture<>();
+
+        final Predicate<ProfileRequestContext> activationCondition = getActivationCondition();
+        if (null != activationCondition
+                && !activationCondition.apply(getProfileContextStrategy().apply(resolutionContext))) {
+            log.debug("{} Activation criteria not met, nothing to do", getLogPrefix());
+            result.complete(null);
+            return result;
+        }
+
+        final AttributeResolverWorkContext workContext =
+                resolutionContext.getSubcontext(AttributeResolverWorkContext.class, false);
+        Constraint.isNotNull(workContext, "AttributeResolverWorkContext cannot be null");
+
+        final T1 executable;
+        try {
+            executable = searchBuilder.build(resolutionContext,
+                    PluginDependencySupport.getAllAttributeValues(workContext, getDependencies()));
+        } catch (final ResolutionException | RuntimeException e) {
+            completeWithFailure(result, e);
+            return result;
+        }
+
+        final String cacheKey = resultsCache != null && resolutionContext.getAllowCachedResults() ?
+                executable.getResultCacheKey() : null;
+        if (cacheKey != null) {
+            final Map<String, IdPAttribute> cached = resultsCache.getIfPresent(cacheKey);
+            if (cached != null) {
+                log.trace("{} Resolved attributes {} using cache {}", getLogPrefix(), cached, resultsCache);
+                refreshIfStale(cacheKey, executable);
+                result.complete(cached);
+                return result;
+            }
+        }
+
+        final CompletionStage<Map<String, IdPAttribute>> search;
+        if (cacheKey != null && coalesceSearches) {
+            search = startSearch(cacheKey, executable);
+        } else {
+            search = callDataSourceAsync(executable);
+        }
+        search.whenComplete((resolvedAttributes, failure) -> {
+            if (failure != null) {
+                completeWithFailure(result, failure instanceof CompletionException && failure.getCause() != null ?
+                        failure.getCause() : failure);
+                return;
+            }
+            log.trace("{} Resolved attributes: {}", getLogPrefix(), resolvedAttributes);
+            if (cacheKey != null && !coalesceSearches) {
+                cacheAttributes(cacheKey, resolvedAttributes);
+            }
+            result.complete(resolvedAttributes);
+        });
+        return result;
+    }
+
+    /**
+     * Complete an asynchronous resolution which failed, applying the same failure handling as a synchronous one.
+     * 
+     * @param result the result to complete
+     * @param cause the cause of the failure
+     */
+    private void completeWithFailure(@Nonnull final CompletableFuture<Map<String, IdPAttribute>> result,
+            @Nonnull final Throwable cause) {
+        recordFailure(cause);
+        if (cause instanceof ResolutionException && !isPropagateResolutionExceptions()
+                && !(cause instanceof CircuitBreakerOpenException)) {
+            log.debug("{} Produced the following error but was configured not to propagate it.", getLogPrefix(),
+                    cause);
+            result.complete(null);
+        } else {
+            result.completeExceptionally(cause);
+        }
+    }
+
     /** {@inheritDoc} */
     @Override protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
@@ -215,6 +697,17 @@ public abstract class AbstractSearchDataConnector<T1 extends ExecutableSearch,T2
         if (mappingStrategy == null) {
             throw new ComponentInitializationException(getLogPrefix() + " No mapping strategy was configured");
         }
+        if (resultsCache != null && cacheRefreshAfterWrite > 0) {
+            if (asyncExecutor == null) {
+                // Refreshing on the calling thread would delay a request which already has a result.
+                log.warn("{} No asynchronous executor was configured, cached results will not be refreshed",
+                        getLogPrefix());
+            } else {
+                freshResults = CacheBuilder.newBuilder()
+                        .expireAfterWrite(cacheRefreshAfterWrite, TimeUnit.MILLISECONDS)
+                        .build();
+            }
+        }
     }
     
 }
\ No newline at end of file
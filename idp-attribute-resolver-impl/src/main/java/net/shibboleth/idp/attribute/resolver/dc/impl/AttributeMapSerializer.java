@@ -0,0 +1,304 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver.dc.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.idp.attribute.ByteAttributeValue;
+import net.shibboleth.idp.attribute.EmptyAttributeValue;
+import net.shibboleth.idp.attribute.EmptyAttributeValue.EmptyType;
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.LocalizedStringAttributeValue;
+import net.shibboleth.idp.attribute.ScopedStringAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.codec.Base64Support;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+import org.opensaml.storage.StorageSerializer;
+
+/**
+ * Serializes the {@link IdPAttribute}s produced by a data connector in a compact binary form, encoded in base64.
+ * 
+ * <p>
+ * String, scoped, localized, byte and empty values are supported, along with attribute display names and
+ * descriptions. Values of any other type, such as XML objects, cannot be serialized and cause an
+ * {@link IOException}.
+ * </p>
+ */
+@ThreadSafe
+public class AttributeMapSerializer extends AbstractInitializableComponent
+        implements StorageSerializer<Map<String,IdPAttribute>> {
+
+    /** Version of the serialized form. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** Tag for a {@link StringAttributeValue}. */
+    private static final int STRING_VALUE = 0;
+
+    /** Tag for a {@link ScopedStringAttributeValue}. */
+    private static final int SCOPED_VALUE = 1;
+
+    /** Tag for a {@link LocalizedStringAttributeValue}. */
+    private static final int LOCALIZED_VALUE = 2;
+
+    /** Tag for a {@link ByteAttributeValue}. */
+    private static final int BYTE_VALUE = 3;
+
+    /** Tag for {@link EmptyAttributeValue#NULL}. */
+    private static final int NULL_VALUE = 4;
+
+    /** Tag for {@link EmptyAttributeValue#ZERO_LENGTH}. */
+    private static final int ZERO_LENGTH_VALUE = 5;
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull @NotEmpty public String serialize(@Nonnull final Map<String,IdPAttribute> instance)
+            throws IOException {
+        Constraint.isNotNull(instance, "Attributes cannot be null");
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (final DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(instance.size());
+            for (final IdPAttribute attribute : instance.values()) {
+                writeString(out, attribute.getId());
+                writeLocalizedStrings(out, attribute.getDisplayNames());
+                writeLocalizedStrings(out, attribute.getDisplayDescriptions());
+                final List<IdPAttributeValue<?>> values = attribute.getValues();
+                out.writeInt(values.size());
+                for (final IdPAttributeValue<?> value : values) {
+                    writeValue(out, value);
+                }
+            }
+        }
+        return Base64Support.encode(bytes.toByteArray(), Base64Support.UNCHUNKED);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull public Map<String,IdPAttribute> deserialize(final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value,
+            @Nullable final Long expiration) throws IOException {
+
+        final byte[] decoded;
+        try {
+            decoded = Base64Support.decode(value);
+        } catch (final RuntimeException e) {
+            throw new IOException("Found invalid data structure", e);
+        }
+
+        try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(decoded))) {
+            if (in.readUnsignedByte() != FORMAT_VERSION) {
+                throw new IOException("Found unsupported serialization version");
+            }
+            final int attributeCount = in.readInt();
+            final Map<String,IdPAttribute> attributes = new LinkedHashMap<>(Math.max(attributeCount, 0) * 2);
+            for (int i = 0; i < attributeCount; i++) {
+                final IdPAttribute attribute = new IdPAttribute(readString(in));
+                attribute.setDisplayNames(readLocalizedStrings(in));
+                attribute.setDisplayDescriptions(readLocalizedStrings(in));
+                final int valueCount = in.readInt();
+                final List<IdPAttributeValue<?>> values = new ArrayList<>(Math.max(valueCount, 0));
+                for (int j = 0; j < valueCount; j++) {
+                    values.add(readValue(in));
+                }
+                attribute.setValues(values);
+                attributes.put(attribute.getId(), attribute);
+            }
+            return Collections.unmodifiableMap(attributes);
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Found invalid data structure", e);
+        }
+    }
+
+    /**
+     * Write an attribute value.
+     * 
+     * @param out where to write
+     * @param value the value
+     * 
+     * @throws IOException if the value is of an unsupported type
+     */
+    private void writeValue(@Nonnull final DataOutputStream out, @Nonnull final IdPAttributeValue<?> value)
+            throws IOException {
+        if (value instanceof ScopedStringAttributeValue) {
+            out.writeByte(SCOPED_VALUE);
+            writeString(out, ((ScopedStringAttributeValue) value).getValue());
+            writeString(out, ((ScopedStringAttributeValue) value).getScope());
+        } else if (value instanceof LocalizedStringAttributeValue) {
+            final Locale locale = ((LocalizedStringAttributeValue) value).getValueLocale();
+            out.writeByte(LOCALIZED_VALUE);
+            writeString(out, ((LocalizedStringAttributeValue) value).getValue());
+            writeString(out, locale != null ? locale.toLanguageTag() : "");
+        } else if (value instanceof StringAttributeValue) {
+            out.writeByte(STRING_VALUE);
+            writeString(out, ((StringAttributeValue) value).getValue());
+        } else if (value instanceof ByteAttributeValue) {
+            final byte[] data = ((ByteAttributeValue) value).getValue();
+            out.writeByte(BYTE_VALUE);
+            out.writeInt(data.length);
+            out.write(data);
+        } else if (value instanceof EmptyAttributeValue) {
+            out.writeByte(((EmptyAttributeValue) value).getValue() == EmptyType.NULL_VALUE ? NULL_VALUE
+                    : ZERO_LENGTH_VALUE);
+        } else {
+            throw new IOException("Unable to serialize attribute value of type " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * Read an attribute value.
+     * 
+     * @param in where to read from
+     * 
+     * @return the value
+     * 
+     * @throws IOException if the value cannot be read
+     */
+    @Nonnull private IdPAttributeValue<?> readValue(@Nonnull final DataInputStream in) throws IOException {
+        final int type = in.readUnsignedByte();
+        switch (type) {
+            case STRING_VALUE:
+                return new StringAttributeValue(readString(in));
+            case SCOPED_VALUE:
+                final String scopedValue = readString(in);
+                return new ScopedStringAttributeValue(scopedValue, readString(in));
+            case LOCALIZED_VALUE:
+                final String localizedValue = readString(in);
+                final String languageTag = readString(in);
+                return new LocalizedStringAttributeValue(localizedValue,
+                        languageTag.isEmpty() ? null : Locale.forLanguageTag(languageTag));
+            case BYTE_VALUE:
+                final byte[] data = new byte[readLength(in)];
+                in.readFully(data);
+                return new ByteAttributeValue(data);
+            case NULL_VALUE:
+                return EmptyAttributeValue.NULL;
+            case ZERO_LENGTH_VALUE:
+                return EmptyAttributeValue.ZERO_LENGTH;
+            default:
+                throw new IOException("Found unknown attribute value type " + type);
+        }
+    }
+
+    /**
+     * Write a map of localized strings.
+     * 
+     * @param out where to write
+     * @param strings the strings, indexed by locale
+     * 
+     * @throws IOException if the strings cannot be written
+     */
+    private void writeLocalizedStrings(@Nonnull final DataOutputStream out,
+            @Nonnull final Map<Locale,String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (final Map.Entry<Locale,String> entry : strings.entrySet()) {
+            writeString(out, entry.getKey().toLanguageTag());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Read a map of localized strings.
+     * 
+     * @param in where to read from
+     * 
+     * @return the strings, indexed by locale
+     * 
+     * @throws IOException if the strings cannot be read
+     */
+    @Nonnull private Map<Locale,String> readLocalizedStrings(@Nonnull final DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        if (count == 0) {
+            return Collections.emptyMap();
+        }
+        final Map<Locale,String> strings = new HashMap<>(Math.max(count, 0) * 2);
+        for (int i = 0; i < count; i++) {
+            final Locale locale = Locale.forLanguageTag(readString(in));
+            strings.put(locale, readString(in));
+        }
+        return strings;
+    }
+
+    /**
+     * Write a string as length prefixed UTF-8, which unlike {@link DataOutputStream#writeUTF(String)} is not limited
+     * in length.
+     * 
+     * @param out where to write
+     * @param string the string
+     * 
+     * @throws IOException if the string cannot be written
+     */
+    private void writeString(@Nonnull final DataOutputStream out, @Nonnull final String string) throws IOException {
+        final byte[] data = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Read a string written by {@link #writeString(DataOutputStream, String)}.
+     * 
+     * @param in where to read from
+     * 
+     * @return the string
+     * 
+     * @throws IOException if the string cannot be read
+     */
+    @Nonnull private String readString(@Nonnull final DataInputStream in) throws IOException {
+        final byte[] data = new byte[readLength(in)];
+        in.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a length, checking that it is plausible.
+     * 
+     * @param in where to read from
+     * 
+     * @return the length
+     * 
+     * @throws IOException if the length cannot be read or is longer than the remaining input
+     */
+    private int readLength(@Nonnull final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Found invalid data structure");
+        }
+        return length;
+    }
+
+}
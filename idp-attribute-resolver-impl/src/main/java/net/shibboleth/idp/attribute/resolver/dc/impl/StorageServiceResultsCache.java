@@ -0,0 +1,516 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver.dc.impl;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageSerializer;
+import org.opensaml.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ForwardingConcurrentMap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A results cache for {@link AbstractSearchDataConnector}s which keeps the search results in a {@link StorageService},
+ * so that they may be held outside the heap and, given a suitable service, shared between servers.
+ * 
+ * <p>
+ * Results are serialized in a compact binary form and expire from the storage service after a fixed time. Those
+ * which cannot be serialized, or whose serialized form is too large, are not stored. A small, size bounded local
+ * cache in front of the storage service avoids repeatedly deserializing results in frequent use. A result read from
+ * the storage service is held locally no longer than the storage record itself.
+ * </p>
+ * 
+ * <p>
+ * Each connector should have its own instance, with its own storage context. The storage service is not
+ * enumerable, so {@link #invalidateAll()} discards only the locally held results and {@link #asMap()} is an
+ * unmodifiable snapshot of them; shared results remain until they expire.
+ * </p>
+ */
+@ThreadSafe
+public class StorageServiceResultsCache extends AbstractInitializableComponent
+        implements Cache<String,Map<String,IdPAttribute>> {
+
+    /** Default storage context. */
+    @Nonnull @NotEmpty public static final String DEFAULT_CONTEXT = "_idp_attribute_results";
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(StorageServiceResultsCache.class);
+
+    /** Storage service holding the results. */
+    @NonnullAfterInit private StorageService storageService;
+
+    /** Storage context under which the results are held. */
+    @Nonnull @NotEmpty private String storageContext;
+
+    /** Serializer for the results. */
+    @Nonnull private StorageSerializer<Map<String,IdPAttribute>> serializer;
+
+    /** Time for which results are held. */
+    @Duration @Positive private long timeToLive;
+
+    /** Maximum number of results held locally. */
+    @NonNegative private long localCacheSize;
+
+    /** Maximum size of a serialized result, in characters. */
+    @Positive private int maximumValueSize;
+
+    /** Results held locally. */
+    @NonnullAfterInit private Cache<String,LocalResult> localCache;
+
+    /** Number of results found. */
+    @Nonnull private final AtomicLong hitCount;
+
+    /** Number of results not found. */
+    @Nonnull private final AtomicLong missCount;
+
+    /** Constructor. */
+    public StorageServiceResultsCache() {
+        storageContext = DEFAULT_CONTEXT;
+        serializer = new AttributeMapSerializer();
+        timeToLive = 4 * 60 * 60 * 1000;
+        localCacheSize = 100;
+        maximumValueSize = Integer.MAX_VALUE;
+        hitCount = new AtomicLong();
+        missCount = new AtomicLong();
+    }
+
+    /**
+     * Set the storage service holding the results.
+     * 
+     * @param storage the storage service
+     */
+    public void setStorageService(@Nonnull final StorageService storage) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        storageService = Constraint.isNotNull(storage, "StorageService cannot be null");
+    }
+
+    /**
+     * Set the storage context under which the results are held.
+     * 
+     * @param context the storage context
+     */
+    public void setStorageContext(@Nonnull @NotEmpty final String context) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        storageContext = Constraint.isNotNull(StringSupport.trimOrNull(context), "Context cannot be null or empty");
+    }
+
+    /**
+     * Set the serializer for the results.
+     * 
+     * @param resultSerializer the serializer
+     */
+    public void setSerializer(@Nonnull final StorageSerializer<Map<String,IdPAttribute>> resultSerializer) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        serializer = Constraint.isNotNull(resultSerializer, "Serializer cannot be null");
+    }
+
+    /**
+     * Set the time for which results are held.
+     * 
+     * @param lifetime the time in milliseconds
+     */
+    @Duration public void setTimeToLive(@Duration @Positive final long lifetime) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        timeToLive = Constraint.isGreaterThan(0, lifetime, "Time to live must be greater than 0");
+    }
+
+    /**
+     * Set the maximum number of results held locally, in front of the storage service.
+     * 
+     * @param size the number of results, or 0 to always use the storage service
+     */
+    public void setLocalCacheSize(@NonNegative final long size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        localCacheSize = Constraint.isGreaterThanOrEqual(0, size, "Local cache size cannot be negative");
+    }
+
+    /**
+     * Set the maximum size of a serialized result, in characters. Larger results are not stored.
+     * 
+     * <p>
+     * The limit imposed by the storage service itself is always respected.
+     * </p>
+     * 
+     * @param size the maximum size
+     */
+    public void setMaximumValueSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maximumValueSize = (int) Constraint.isGreaterThan(0, size, "Maximum value size must be greater than 0");
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (storageService == null) {
+            throw new ComponentInitializationException("StorageService cannot be null");
+        }
+        if (storageContext.length() > storageService.getCapabilities().getContextSize()) {
+            throw new ComponentInitializationException("Storage context is too long for the StorageService");
+        }
+
+        localCache = CacheBuilder.newBuilder()
+                .maximumSize(localCacheSize)
+                .expireAfterWrite(timeToLive, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /** {@inheritDoc} */
+    @SuppressWarnings("unchecked")
+    @Override @Nullable public Map<String,IdPAttribute> getIfPresent(@Nonnull final Object key) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+
+        final long now = System.currentTimeMillis();
+        Map<String,IdPAttribute> result = null;
+        final LocalResult local = localCache.getIfPresent(key);
+        if (local != null) {
+            if (local.expiration > now) {
+                result = local.value;
+            } else {
+                localCache.invalidate(key);
+            }
+        }
+
+        if (result == null && key instanceof String) {
+            try {
+                final StorageRecord<Map<String,IdPAttribute>> record =
+                        storageService.read(storageContext, getStorageKey((String) key));
+                if (record != null) {
+                    result = record.getValue(serializer, storageContext, (String) key);
+                    final Long expiration = record.getExpiration();
+                    if (expiration == null) {
+                        localCache.put((String) key, new LocalResult(result, now + timeToLive));
+                    } else if (expiration > now) {
+                        localCache.put((String) key, new LocalResult(result, Math.min(expiration, now + timeToLive)));
+                    }
+                }
+            } catch (final IOException e) {
+                log.warn("Unable to read cached result from StorageService: {}", e.getMessage());
+            }
+        }
+
+        if (result != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * As with Guava's own caches, a loader returning null results in an
+     * {@link CacheLoader.InvalidCacheLoadException}.
+     * </p>
+     */
+    @Override @Nonnull public Map<String,IdPAttribute> get(@Nonnull final String key,
+            @Nonnull final Callable<? extends Map<String,IdPAttribute>> valueLoader) throws ExecutionException {
+        Map<String,IdPAttribute> result = getIfPresent(key);
+        if (result == null) {
+            try {
+                result = valueLoader.call();
+            } catch (final RuntimeException e) {
+                throw new UncheckedExecutionException(e);
+            } catch (final Exception e) {
+                throw new ExecutionException(e);
+            }
+            if (result == null) {
+                throw new CacheLoader.InvalidCacheLoadException("CacheLoader returned null for key " + key + ".");
+            }
+            put(key, result);
+        }
+        return result;
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nonnull public ImmutableMap<String,Map<String,IdPAttribute>> getAllPresent(
+            @Nonnull final Iterable<?> keys) {
+        final ImmutableMap.Builder<String,Map<String,IdPAttribute>> builder = ImmutableMap.builder();
+        for (final Object key : keys) {
+            final Map<String,IdPAttribute> result = getIfPresent(key);
+            if (result != null) {
+                builder.put((String) key, result);
+            }
+        }
+        return builder.build();
+    }
+
+    /** {@inheritDoc} */
+    @Override public void put(@Nonnull final String key, @Nonnull final Map<String,IdPAttribute> value) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+
+        localCache.put(key, new LocalResult(value, System.currentTimeMillis() + timeToLive));
+
+        try {
+            final String serialized = serializer.serialize(value);
+            if (serialized.length() > Math.min(maximumValueSize, storageService.getCapabilities().getValueSize())) {
+                log.debug("Result for key '{}' is too large to store", key);
+                return;
+            }
+            final String storageKey = getStorageKey(key);
+            final Long expiration = System.currentTimeMillis() + timeToLive;
+            if (!storageService.create(storageContext, storageKey, serialized, expiration)) {
+                storageService.update(storageContext, storageKey, serialized, expiration);
+            }
+        } catch (final IOException e) {
+            log.warn("Unable to store result in StorageService: {}", e.getMessage());
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override public void putAll(@Nonnull final Map<? extends String,? extends Map<String,IdPAttribute>> m) {
+        for (final Map.Entry<? extends String,? extends Map<String,IdPAttribute>> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override public void invalidate(@Nonnull final Object key) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+
+        localCache.invalidate(key);
+        if (key instanceof String) {
+            try {
+                storageService.delete(storageContext, getStorageKey((String) key));
+            } catch (final IOException e) {
+                log.warn("Unable to remove result from StorageService: {}", e.getMessage());
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override public void invalidateAll(@Nonnull final Iterable<?> keys) {
+        for (final Object key : keys) {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Only the results held locally are discarded.
+     * </p>
+     */
+    @Override public void invalidateAll() {
+        if (localCache != null) {
+            localCache.invalidateAll();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * This is the number of results held locally.
+     * </p>
+     */
+    @Override public long size() {
+        return localCache != null ? localCache.size() : 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nonnull public CacheStats stats() {
+        return new CacheStats(hitCount.get(), missCount.get(), 0, 0, 0, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * As the storage service cannot be enumerated, this is an unmodifiable snapshot of the results held locally.
+     * </p>
+     */
+    @Override @Nonnull public ConcurrentMap<String,Map<String,IdPAttribute>> asMap() {
+        final ConcurrentMap<String,Map<String,IdPAttribute>> snapshot = new ConcurrentHashMap<>();
+        if (localCache != null) {
+            final long now = System.currentTimeMillis();
+            for (final Map.Entry<String,LocalResult> entry : localCache.asMap().entrySet()) {
+                if (entry.getValue().expiration > now) {
+                    snapshot.put(entry.getKey(), entry.getValue().value);
+                }
+            }
+        }
+        return new UnmodifiableConcurrentMap<>(snapshot);
+    }
+
+    /** {@inheritDoc} */
+    @Override public void cleanUp() {
+        if (localCache != null) {
+            localCache.cleanUp();
+        }
+    }
+
+    /**
+     * Get the storage key for a result, which is a digest of the cache key so as to fit the storage service.
+     * 
+     * @param key the cache key
+     * 
+     * @return the storage key
+     */
+    @Nonnull @NotEmpty private String getStorageKey(@Nonnull final String key) {
+        return DigestUtils.sha256Hex(key);
+    }
+
+    /** A result held locally, with when it must be discarded. */
+    private static final class LocalResult {
+
+        /** The result. */
+        @Nonnull private final Map<String,IdPAttribute> value;
+
+        /** When the result expires. */
+        private final long expiration;
+
+        /**
+         * Constructor.
+         * 
+         * @param result the result
+         * @param expires when the result expires
+         */
+        private LocalResult(@Nonnull final Map<String,IdPAttribute> result, final long expires) {
+            value = result;
+            expiration = expires;
+        }
+    }
+
+    /**
+     * A {@link ConcurrentMap} which cannot be modified.
+     * 
+     * @param <K> key type
+     * @param <V> value type
+     */
+    private static final class UnmodifiableConcurrentMap<K,V> extends ForwardingConcurrentMap<K,V> {
+
+        /** The map. */
+        @Nonnull private final ConcurrentMap<K,V> delegate;
+
+        /**
+         * Constructor.
+         * 
+         * @param map the map
+         */
+        private UnmodifiableConcurrentMap(@Nonnull final ConcurrentMap<K,V> map) {
+            delegate = map;
+        }
+
+        /** {@inheritDoc} */
+        @Override protected ConcurrentMap<K,V> delegate() {
+            return delegate;
+        }
+
+        /** {@inheritDoc} */
+        @Override public V put(final K key, final V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        /** {@inheritDoc} */
+        @Override public void putAll(final Map<? extends K,? extends V> map) {
+            throw new UnsupportedOperationException();
+        }
+
+        /** {@inheritDoc} */
+        @Override public V putIfAbsent(final K key, final V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        /** {@inheritDoc} */
+        @Override public V remove(final Object key) {
+            throw new UnsupportedOperationException();
+        }
+
+        /** {@inheritDoc} */
+        @Override public boolean remove(final Object key, final Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        /** {@inheritDoc} */
+        @Override public V replace(final K key, final V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        /** {@inheritDoc} */
+        @Override public boolean replace(final K key, final V oldValue, final V newValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        /** {@inheritDoc} */
+        @Override public void clear() {
+            throw new UnsupportedOperationException();
+        }
+
+        /** {@inheritDoc} */
+        @Override public Set<K> keySet() {
+            return Collections.unmodifiableSet(delegate.keySet());
+        }
+
+        /** {@inheritDoc} */
+        @Override public Collection<V> values() {
+            return Collections.unmodifiableCollection(delegate.values());
+        }
+
+        /** {@inheritDoc} */
+        @Override public Set<Map.Entry<K,V>> entrySet() {
+            return Collections.unmodifiableMap(delegate).entrySet();
+        }
+    }
+
+}
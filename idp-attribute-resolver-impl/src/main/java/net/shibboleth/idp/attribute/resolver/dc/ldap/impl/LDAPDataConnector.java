@@ -17,37 +17,69 @@
 
 package net.shibboleth.idp.attribute.resolver.dc.ldap.impl;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.resolver.PluginDependencySupport;
 import net.shibboleth.idp.attribute.resolver.ResolutionException;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
 import net.shibboleth.idp.attribute.resolver.dc.ValidationException;
 import net.shibboleth.idp.attribute.resolver.dc.Validator;
 import net.shibboleth.idp.attribute.resolver.dc.impl.AbstractSearchDataConnector;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
 import net.shibboleth.utilities.java.support.primitive.DeprecationSupport;
 import net.shibboleth.utilities.java.support.primitive.DeprecationSupport.ObjectType;
 
 import org.ldaptive.Connection;
 import org.ldaptive.ConnectionConfig;
 import org.ldaptive.ConnectionFactory;
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
 import org.ldaptive.LdapException;
 import org.ldaptive.SearchExecutor;
+import org.ldaptive.SearchFilter;
 import org.ldaptive.SearchResult;
 import org.ldaptive.ssl.X509SSLContextInitializer;
 import org.ldaptive.ssl.SslConfig;
 import org.ldaptive.ssl.SSLContextInitializer;
+import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Predicate;
+import com.google.common.cache.Cache;
+
 /**
  * A {@link net.shibboleth.idp.attribute.resolver.DataConnector} that queries an LDAP in order to retrieve attribute
  * data.
+ * 
+ * <p>
+ * Many principals may be resolved at once with {@link #resolveBatch(List)}, in which case searches of the form
+ * <code>(attribute=value)</code> are combined into disjunctions of at most {@link #getBatchSize()} terms, and the
+ * entries returned are assigned back to each principal by comparing the value of that attribute. Values are compared
+ * exactly unless the attribute is one of the {@link #getCaseIgnoreAttributes()}. Should an entry match none of the
+ * searches, or two searches differ only by case, the searches are run individually instead.
+ * </p>
  */
 public class LDAPDataConnector extends AbstractSearchDataConnector<ExecutableSearchFilter,SearchResultMappingStrategy> {
 
@@ -66,6 +98,12 @@ public class LDAPDataConnector extends AbstractSearchDataConnector<ExecutableSea
     /** Whether the default mapping strategy is being used. */
     private boolean defaultMappingStrategy = true;
 
+    /** Maximum number of searches combined into one when resolving in batches. */
+    @Positive private int batchSize = 50;
+
+    /** Lower cased names of the attributes whose values are compared ignoring case when resolving in batches. */
+    @Nonnull @NonnullElements private Set<String> caseIgnoreAttributes = Collections.emptySet();
+
     /**
      * Constructor.
      */
@@ -114,6 +152,62 @@ public class LDAPDataConnector extends AbstractSearchDataConnector<ExecutableSea
         searchExecutor = Constraint.isNotNull(executor, "LDAP search executor can not be null");
     }
 
+    /**
+     * Gets the maximum number of searches combined into one when resolving in batches.
+     * 
+     * @return the maximum number of searches
+     */
+    @Positive public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the maximum number of searches combined into one when resolving in batches.
+     * 
+     * @param size the maximum number of searches
+     */
+    public void setBatchSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        batchSize = (int) Constraint.isGreaterThan(0, size, "Batch size must be greater than 0");
+    }
+
+    /**
+     * Gets the lower cased names of the attributes whose values are compared ignoring case when resolving in batches.
+     * 
+     * @return the attribute names
+     */
+    @Nonnull @NonnullElements public Set<String> getCaseIgnoreAttributes() {
+        return Collections.unmodifiableSet(caseIgnoreAttributes);
+    }
+
+    /**
+     * Sets the names of the attributes whose values are compared ignoring case when resolving in batches.
+     * 
+     * <p>
+     * These should be the attributes whose equality matching rule in the directory ignores case. Values of any other
+     * attribute are compared exactly, which is always safe but may cause searches to be run individually.
+     * </p>
+     * 
+     * @param attributes the attribute names
+     */
+    public void setCaseIgnoreAttributes(@Nullable final Collection<String> attributes) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        final Set<String> names = new HashSet<>();
+        if (attributes != null) {
+            for (final String attribute : attributes) {
+                final String trimmed = StringSupport.trimOrNull(attribute);
+                if (trimmed != null) {
+                    names.add(trimmed.toLowerCase());
+                }
+            }
+        }
+        caseIgnoreAttributes = names;
+    }
+
     /** {@inheritDoc} */
     @Override public void setValidator(@Nonnull final Validator validator) {
         super.setValidator(validator);
@@ -210,4 +304,335 @@ public class LDAPDataConnector extends AbstractSearchDataConnector<ExecutableSea
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Resolves this connector for many principals at once, combining their searches where possible.
+     * 
+     * <p>
+     * Each context must be ready for resolution as if by {@link #resolve(AttributeResolutionContext)}, so its
+     * {@link AttributeResolverWorkContext} must already contain the results of this connector's dependencies. The
+     * results cache is consulted and updated as usual, but failures do not cause this connector to be bypassed by
+     * later resolutions.
+     * </p>
+     * 
+     * @param resolutionContexts the contexts to resolve
+     * 
+     * @return the attributes for each context, in the same order, with null for contexts which produced none
+     * 
+     * @throws ResolutionException if a search failed, or mapping failed and errors are being propagated
+     */
+    @Nonnull public List<Map<String, IdPAttribute>> resolveBatch(
+            @Nonnull @NonnullElements final List<AttributeResolutionContext> resolutionContexts)
+                    throws ResolutionException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        Constraint.isNotNull(resolutionContexts, "AttributeResolutionContexts cannot be null");
+
+        final Cache<String, Map<String, IdPAttribute>> cache = getResultsCache();
+        final List<Map<String, IdPAttribute>> results =
+                new ArrayList<>(Collections.<Map<String, IdPAttribute>>nCopies(resolutionContexts.size(), null));
+        final List<Integer> searched = new ArrayList<>(resolutionContexts.size());
+        final List<ExecutableSearchFilter> filters = new ArrayList<>(resolutionContexts.size());
+        final List<String> cacheKeys = new ArrayList<>(resolutionContexts.size());
+
+        final Predicate<ProfileRequestContext> activationCondition = getActivationCondition();
+        for (int i = 0; i < resolutionContexts.size(); i++) {
+            final AttributeResolutionContext resolutionContext = resolutionContexts.get(i);
+            if (null != activationCondition
+                    && !activationCondition.apply(getProfileContextStrategy().apply(resolutionContext))) {
+                log.debug("{} Activation criteria not met for principal {}", getLogPrefix(),
+                        resolutionContext.getPrincipal());
+                continue;
+            }
+            final AttributeResolverWorkContext workContext =
+                    resolutionContext.getSubcontext(AttributeResolverWorkContext.class, false);
+            Constraint.isNotNull(workContext, "AttributeResolverWorkContext cannot be null");
+
+            final ExecutableSearchFilter filter = getExecutableSearchBuilder().build(resolutionContext,
+                    PluginDependencySupport.getAllAttributeValues(workContext, getDependencies()));
+            if (filter == null) {
+                throw new ResolutionException(getLogPrefix() + " Search filter cannot be null");
+            }
+            final String cacheKey = cache != null && resolutionContext.getAllowCachedResults() ?
+                    filter.getResultCacheKey() : null;
+            if (cacheKey != null) {
+                final Map<String, IdPAttribute> cached = cache.getIfPresent(cacheKey);
+                if (cached != null) {
+                    results.set(i, cached);
+                    continue;
+                }
+            }
+            searched.add(i);
+            filters.add(filter);
+            cacheKeys.add(cacheKey);
+        }
+
+        final List<SearchResult> searchResults = searchInBatches(filters);
+        for (int j = 0; j < searched.size(); j++) {
+            Map<String, IdPAttribute> attributes = null;
+            try {
+                attributes = getMappingStrategy().map(searchResults.get(j));
+            } catch (final ResolutionException e) {
+                if (isPropagateResolutionExceptions()) {
+                    throw e;
+                }
+                log.debug("{} Produced the following error but was configured not to propagate it.", getLogPrefix(),
+                        e);
+            }
+            if (cacheKeys.get(j) != null) {
+                cache.put(cacheKeys.get(j), attributes != null ? attributes
+                        : Collections.<String, IdPAttribute>emptyMap());
+            }
+            results.set(searched.get(j), attributes);
+        }
+        return results;
+    }
+
+    /**
+     * Run a number of searches, combining those which can be into disjunctions.
+     * 
+     * @param filters the searches
+     * 
+     * @return the result of each search, in the same order
+     * 
+     * @throws ResolutionException if a search failed
+     */
+    @Nonnull private List<SearchResult> searchInBatches(@Nonnull @NonnullElements
+            final List<ExecutableSearchFilter> filters) throws ResolutionException {
+        final List<SearchResult> results =
+                new ArrayList<>(Collections.<SearchResult>nCopies(filters.size(), null));
+        final List<Integer> batchable = new ArrayList<>(filters.size());
+        final List<EqualityFilter> equalities = new ArrayList<>(filters.size());
+
+        try {
+            for (int i = 0; i < filters.size(); i++) {
+                final EqualityFilter equality = EqualityFilter.parse(filters.get(i).getSearchFilter().format());
+                if (equality != null && isReturned(equality.getAttribute())) {
+                    batchable.add(i);
+                    equalities.add(equality);
+                } else {
+                    results.set(i, filters.get(i).execute(searchExecutor, connectionFactory));
+                }
+            }
+
+            for (int start = 0; start < batchable.size(); start += batchSize) {
+                final int end = Math.min(start + batchSize, batchable.size());
+                final List<Integer> batch = batchable.subList(start, end);
+                final List<SearchResult> split = searchBatch(filters, batch, equalities.subList(start, end));
+                for (int j = 0; j < batch.size(); j++) {
+                    results.set(batch.get(j), split.get(j));
+                }
+            }
+        } catch (final LdapException e) {
+            throw new ResolutionException(getLogPrefix() + " Unable to execute LDAP search", e);
+        }
+        return results;
+    }
+
+    /**
+     * Run a batch of equality searches as a single search, then split the entries returned between them.
+     * 
+     * <p>
+     * If the entries cannot be split reliably, because two searches differ only by case, the size limit was reached
+     * or an entry matches none of the searches as compared here, the searches are run individually instead.
+     * </p>
+     * 
+     * @param filters all the searches
+     * @param batch the indices of the searches in this batch
+     * @param equalities the parsed form of the searches in this batch
+     * 
+     * @return the result of each search in the batch
+     * 
+     * @throws LdapException if a search failed
+     */
+    @Nonnull private List<SearchResult> searchBatch(
+            @Nonnull @NonnullElements final List<ExecutableSearchFilter> filters,
+            @Nonnull @NonnullElements final List<Integer> batch,
+            @Nonnull @NonnullElements final List<EqualityFilter> equalities) throws LdapException {
+        final List<SearchResult> results = new ArrayList<>(batch.size());
+        for (int j = 0; j < batch.size(); j++) {
+            results.add(new SearchResult());
+        }
+
+        if (batch.size() > 1 && hasCaseCollision(equalities)) {
+            log.debug("{} Searches differ only by case, searching individually", getLogPrefix());
+            results.clear();
+            for (final Integer index : batch) {
+                results.add(filters.get(index).execute(searchExecutor, connectionFactory));
+            }
+            return results;
+        }
+
+        final SearchResult combined;
+        if (batch.size() == 1) {
+            combined = filters.get(batch.get(0)).execute(searchExecutor, connectionFactory);
+        } else {
+            final StringBuilder disjunction = new StringBuilder("(|");
+            for (final Integer index : batch) {
+                disjunction.append(filters.get(index).getSearchFilter().format());
+            }
+            disjunction.append(')');
+            log.trace("{} Searching for {} principals with {}", getLogPrefix(), batch.size(), disjunction);
+            combined = searchExecutor.search(connectionFactory, new SearchFilter(disjunction.toString())).getResult();
+        }
+
+        boolean reliable = searchExecutor.getSizeLimit() <= 0 || combined.size() < searchExecutor.getSizeLimit();
+        for (final LdapEntry entry : combined.getEntries()) {
+            boolean matched = false;
+            for (int j = 0; j < batch.size(); j++) {
+                final EqualityFilter equality = equalities.get(j);
+                if (equality.matches(entry,
+                        caseIgnoreAttributes.contains(equality.getAttribute().toLowerCase()))) {
+                    results.get(j).addEntry(entry);
+                    matched = true;
+                }
+            }
+            reliable &= matched;
+        }
+
+        if (!reliable && batch.size() > 1) {
+            log.debug("{} Unable to split combined search results, searching individually", getLogPrefix());
+            results.clear();
+            for (final Integer index : batch) {
+                results.add(filters.get(index).execute(searchExecutor, connectionFactory));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Get whether any two searches differ only by the case of their attribute values, in which case the entries
+     * returned by a combined search cannot be split between them without knowing how the directory compares them.
+     * 
+     * @param equalities the parsed searches
+     * 
+     * @return whether any two searches differ only by case
+     */
+    private boolean hasCaseCollision(@Nonnull @NonnullElements final List<EqualityFilter> equalities) {
+        final Map<String, String> values = new HashMap<>(equalities.size());
+        for (final EqualityFilter equality : equalities) {
+            final String folded = equality.getAttribute().toLowerCase() + '=' + equality.getValue().toLowerCase();
+            final String previous = values.putIfAbsent(folded, equality.getValue());
+            if (previous != null && !previous.equals(equality.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get whether the searches return an attribute, so that the entries they return can be matched on it.
+     * 
+     * @param attribute the name of the attribute
+     * 
+     * @return whether the attribute is returned
+     */
+    private boolean isReturned(@Nonnull final String attribute) {
+        final String[] returnAttributes = searchExecutor.getReturnAttributes();
+        if (returnAttributes == null || returnAttributes.length == 0) {
+            return true;
+        }
+        for (final String returned : returnAttributes) {
+            if ("*".equals(returned) || attribute.equalsIgnoreCase(returned)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** A search filter of the form <code>(attribute=value)</code>. */
+    private static final class EqualityFilter {
+
+        /** Matches a filter with a single equality term, whose value is escaped as per RFC 4515. */
+        @Nonnull private static final Pattern EQUALITY =
+                Pattern.compile("\\(([A-Za-z][A-Za-z0-9-]*)=((?:[^*()\\\\\\x00]|\\\\[0-9A-Fa-f]{2})+)\\)");
+
+        /** The attribute name. */
+        @Nonnull private final String attribute;
+
+        /** The unescaped value. */
+        @Nonnull private final String value;
+
+        /**
+         * Constructor.
+         * 
+         * @param name the attribute name
+         * @param unescaped the unescaped value
+         */
+        private EqualityFilter(@Nonnull final String name, @Nonnull final String unescaped) {
+            attribute = name;
+            value = unescaped;
+        }
+
+        /**
+         * Get the attribute name.
+         * 
+         * @return the attribute name
+         */
+        @Nonnull String getAttribute() {
+            return attribute;
+        }
+
+        /**
+         * Get the unescaped value.
+         * 
+         * @return the value
+         */
+        @Nonnull String getValue() {
+            return value;
+        }
+
+        /**
+         * Get whether an entry has the value.
+         * 
+         * @param entry the entry
+         * @param ignoreCase whether to compare values ignoring case
+         * 
+         * @return whether the entry matches
+         */
+        boolean matches(@Nonnull final LdapEntry entry, final boolean ignoreCase) {
+            final LdapAttribute ldapAttribute = entry.getAttribute(attribute);
+            if (ldapAttribute != null) {
+                for (final String candidate : ldapAttribute.getStringValues()) {
+                    if (ignoreCase ? value.equalsIgnoreCase(candidate) : value.equals(candidate)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Parse a search filter.
+         * 
+         * @param filter the formatted filter
+         * 
+         * @return the parsed filter, or null if the filter is not a single equality term
+         */
+        @Nullable static EqualityFilter parse(@Nullable final String filter) {
+            if (filter == null) {
+                return null;
+            }
+            final Matcher matcher = EQUALITY.matcher(filter.trim());
+            if (!matcher.matches()) {
+                return null;
+            }
+
+            final String escaped = matcher.group(2);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(escaped.length());
+            for (int i = 0; i < escaped.length(); i++) {
+                final char c = escaped.charAt(i);
+                if (c == '\\') {
+                    bytes.write(Integer.parseInt(escaped.substring(i + 1, i + 3), 16));
+                    i += 2;
+                } else {
+                    final int codePoint = escaped.codePointAt(i);
+                    final byte[] encoded = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+                    bytes.write(encoded, 0, encoded.length);
+                    i += Character.charCount(codePoint) - 1;
+                }
+            }
+            return new EqualityFilter(matcher.group(1), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver.dc.rdbms.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * An {@link ExecutableStatement} whose values are bound as parameters of a {@link PreparedStatement}, rather than
+ * being written into the SQL.
+ * 
+ * <p>
+ * The SQL is therefore the same for every execution of a given template, which allows the database to reuse its
+ * execution plan and the driver or connection pool to reuse the prepared statement. The statement is closed along
+ * with its results, returning it to any such cache.
+ * </p>
+ */
+public class ParameterizedExecutableStatement implements ExecutableStatement {
+
+    /**
+     * Matches the single comparison which may be turned into an <code>IN</code> clause: a bare <code>=</code>, not
+     * part of <code>&lt;=</code>, <code>&gt;=</code> or <code>!=</code>.
+     */
+    @Nonnull private static final Pattern EQUALS_PARAMETER = Pattern.compile("(?<![<>!])=\\s*\\?");
+
+    /** The SQL, with a placeholder for each parameter. */
+    @Nonnull @NotEmpty private final String sql;
+
+    /** The parameters, in order. */
+    @Nonnull @Unmodifiable private final List<Object> parameters;
+
+    /** Query timeout in seconds. */
+    private final int queryTimeout;
+
+    /**
+     * Constructor.
+     * 
+     * @param query the SQL, with a placeholder for each parameter
+     * @param values the parameters, in order
+     * @param timeout query timeout in seconds
+     */
+    public ParameterizedExecutableStatement(@Nonnull @NotEmpty final String query,
+            @Nonnull final List<Object> values, final int timeout) {
+        sql = Constraint.isNotNull(query, "SQL query cannot be null");
+        parameters = Collections.unmodifiableList(new ArrayList<>(Constraint.isNotNull(values,
+                "Parameters cannot be null")));
+        queryTimeout = timeout;
+    }
+
+    /**
+     * Get the SQL, with a placeholder for each parameter.
+     * 
+     * @return the SQL
+     */
+    @Nonnull @NotEmpty public String getSQL() {
+        return sql;
+    }
+
+    /**
+     * Get the parameters, in order.
+     * 
+     * @return the parameters
+     */
+    @Nonnull @Unmodifiable public List<Object> getParameters() {
+        return parameters;
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nullable public String getResultCacheKey() {
+        return sql + ' ' + parameters;
+    }
+
+    /** {@inheritDoc} */
+    @Override @Nonnull public ResultSet execute(@Nonnull final Connection connection) throws SQLException {
+        final PreparedStatement statement = connection.prepareStatement(sql);
+        try {
+            statement.setQueryTimeout(queryTimeout);
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 1, parameters.get(i));
+            }
+            statement.closeOnCompletion();
+            return statement.executeQuery();
+        } catch (final SQLException | RuntimeException e) {
+            statement.close();
+            throw e;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override public String toString() {
+        return sql + ' ' + parameters;
+    }
+
+    /**
+     * Combine statements which differ only in their single parameter, compared by equality, into one statement
+     * which compares the parameter with all of their values using an <code>IN</code> clause.
+     * 
+     * @param statements the statements to combine
+     * 
+     * @return the combined statement, or null if the statements cannot be combined
+     */
+    @Nullable public static ParameterizedExecutableStatement combine(
+            @Nonnull @NonnullElements final List<ParameterizedExecutableStatement> statements) {
+        if (statements.isEmpty()) {
+            return null;
+        }
+
+        final ParameterizedExecutableStatement first = statements.get(0);
+        if (first.parameters.size() != 1) {
+            return null;
+        }
+        final Matcher matcher = EQUALS_PARAMETER.matcher(first.sql);
+        if (!matcher.find() || first.sql.indexOf('?', matcher.end()) >= 0) {
+            return null;
+        }
+
+        final List<Object> values = new ArrayList<>(statements.size());
+        final StringBuilder in = new StringBuilder(" IN (");
+        for (final ParameterizedExecutableStatement statement : statements) {
+            if (!first.sql.equals(statement.sql) || statement.parameters.size() != 1) {
+                return null;
+            }
+            if (!values.isEmpty()) {
+                in.append(", ");
+            }
+            in.append('?');
+            values.add(statement.parameters.get(0));
+        }
+        in.append(')');
+
+        final String combined = first.sql.substring(0, matcher.start()) + in + first.sql.substring(matcher.end());
+        return new ParameterizedExecutableStatement(combined, values, first.queryTimeout);
+    }
+
+}
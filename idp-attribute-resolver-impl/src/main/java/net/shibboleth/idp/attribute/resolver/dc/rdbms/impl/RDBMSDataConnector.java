@@ -20,27 +20,55 @@ package net.shibboleth.idp.attribute.resolver.dc.rdbms.impl;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.sql.DataSource;
 
 import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.resolver.CircuitBreakerOpenException;
+import net.shibboleth.idp.attribute.resolver.MultipleResultAnErrorResolutionException;
+import net.shibboleth.idp.attribute.resolver.NoResultAnErrorResolutionException;
+import net.shibboleth.idp.attribute.resolver.PluginDependencySupport;
 import net.shibboleth.idp.attribute.resolver.ResolutionException;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
 import net.shibboleth.idp.attribute.resolver.dc.ValidationException;
 import net.shibboleth.idp.attribute.resolver.dc.Validator;
 import net.shibboleth.idp.attribute.resolver.dc.impl.AbstractSearchDataConnector;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
 
+import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Predicate;
+import com.google.common.cache.Cache;
+
 /**
  * A {@link net.shibboleth.idp.attribute.resolver.DataConnector} that queries a relation database in order to retrieve
  * attribute data.
+ * 
+ * <p>
+ * Many principals may be resolved at once with {@link #resolveBatch(List)}. If a {@link #getBatchKeyColumn()} is set
+ * and the statements are {@link ParameterizedExecutableStatement}s comparing a single parameter for equality, then
+ * they are combined into <code>IN</code> queries of at most {@link #getBatchSize()} values, and the rows returned are
+ * assigned back to each principal by the value of that column.
+ * </p>
  */
 public class RDBMSDataConnector extends AbstractSearchDataConnector<ExecutableStatement,ResultMappingStrategy> {
 
@@ -59,6 +87,12 @@ public class RDBMSDataConnector extends AbstractSearchDataConnector<ExecutableSt
     /** Whether the default mapping strategy is being used. */
     private boolean defaultMappingStrategy = true;
 
+    /** Column identifying the principal each row answers when resolving in batches. */
+    @Nullable private String batchKeyColumn;
+
+    /** Maximum number of statements combined into one when resolving in batches. */
+    @Positive private int batchSize = 50;
+
     /**
      * Constructor.
      */
@@ -104,6 +138,52 @@ public class RDBMSDataConnector extends AbstractSearchDataConnector<ExecutableSt
         readOnlyConnection = isReadOnly;
     }
 
+    /**
+     * Gets the column identifying the principal each row answers when resolving in batches.
+     * 
+     * @return the column, or null if statements are not combined
+     */
+    @Nullable public String getBatchKeyColumn() {
+        return batchKeyColumn;
+    }
+
+    /**
+     * Sets the column identifying the principal each row answers when resolving in batches.
+     * 
+     * <p>
+     * The column must be returned by the query and hold the value compared with the statement's parameter.
+     * </p>
+     * 
+     * @param column the column, or null if statements are not to be combined
+     */
+    public void setBatchKeyColumn(@Nullable final String column) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        batchKeyColumn = StringSupport.trimOrNull(column);
+    }
+
+    /**
+     * Gets the maximum number of statements combined into one when resolving in batches.
+     * 
+     * @return the maximum number of statements
+     */
+    @Positive public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the maximum number of statements combined into one when resolving in batches.
+     * 
+     * @param size the maximum number of statements
+     */
+    public void setBatchSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        batchSize = (int) Constraint.isGreaterThan(0, size, "Batch size must be greater than 0");
+    }
+
     /** {@inheritDoc} */
     @Override public void setValidator(@Nonnull final Validator validator) {
         super.setValidator(validator);
@@ -158,6 +238,265 @@ public class RDBMSDataConnector extends AbstractSearchDataConnector<ExecutableSt
         if (statement == null) {
             throw new ResolutionException("Executable statement cannot be null");
         }
+        return query(statement, getMappingStrategy()::map);
+    }
+
+    /**
+     * Resolves this connector for many principals at once, combining their statements where possible.
+     * 
+     * <p>
+     * Each context must be ready for resolution as if by {@link #resolve(AttributeResolutionContext)}, so its
+     * {@link AttributeResolverWorkContext} must already contain the results of this connector's dependencies. The
+     * results cache is consulted and updated as usual, but failures do not cause this connector to be bypassed by
+     * later resolutions.
+     * </p>
+     * 
+     * @param resolutionContexts the contexts to resolve
+     * 
+     * @return the attributes for each context, in the same order, with null for contexts which produced none
+     * 
+     * @throws ResolutionException if a statement could not be built, or failed and errors are being propagated
+     */
+    @Nonnull public List<Map<String, IdPAttribute>> resolveBatch(
+            @Nonnull @NonnullElements final List<AttributeResolutionContext> resolutionContexts)
+                    throws ResolutionException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        Constraint.isNotNull(resolutionContexts, "AttributeResolutionContexts cannot be null");
+
+        final Cache<String, Map<String, IdPAttribute>> cache = getResultsCache();
+        final List<Map<String, IdPAttribute>> results =
+                new ArrayList<>(Collections.<Map<String, IdPAttribute>>nCopies(resolutionContexts.size(), null));
+        final List<Integer> queried = new ArrayList<>(resolutionContexts.size());
+        final List<ExecutableStatement> statements = new ArrayList<>(resolutionContexts.size());
+        final List<String> cacheKeys = new ArrayList<>(resolutionContexts.size());
+
+        final Predicate<ProfileRequestContext> activationCondition = getActivationCondition();
+        for (int i = 0; i < resolutionContexts.size(); i++) {
+            final AttributeResolutionContext resolutionContext = resolutionContexts.get(i);
+            if (null != activationCondition
+                    && !activationCondition.apply(getProfileContextStrategy().apply(resolutionContext))) {
+                log.debug("{} Activation criteria not met for principal {}", getLogPrefix(),
+                        resolutionContext.getPrincipal());
+                continue;
+            }
+            final AttributeResolverWorkContext workContext =
+                    resolutionContext.getSubcontext(AttributeResolverWorkContext.class, false);
+            Constraint.isNotNull(workContext, "AttributeResolverWorkContext cannot be null");
+
+            final ExecutableStatement statement = getExecutableSearchBuilder().build(resolutionContext,
+                    PluginDependencySupport.getAllAttributeValues(workContext, getDependencies()));
+            if (statement == null) {
+                throw new ResolutionException(getLogPrefix() + " Executable statement cannot be null");
+            }
+            final String cacheKey = cache != null && resolutionContext.getAllowCachedResults() ?
+                    statement.getResultCacheKey() : null;
+            if (cacheKey != null) {
+                final Map<String, IdPAttribute> cached = cache.getIfPresent(cacheKey);
+                if (cached != null) {
+                    results.set(i, cached);
+                    continue;
+                }
+            }
+            queried.add(i);
+            statements.add(statement);
+            cacheKeys.add(cacheKey);
+        }
+
+        final List<Map<String, IdPAttribute>> queryResults =
+                new ArrayList<>(Collections.<Map<String, IdPAttribute>>nCopies(statements.size(), null));
+        final List<ResolutionException> failures =
+                new ArrayList<>(Collections.<ResolutionException>nCopies(statements.size(), null));
+        queryInBatches(statements, queryResults, failures);
+
+        for (int j = 0; j < queried.size(); j++) {
+            final ResolutionException failure = failures.get(j);
+            if (failure != null) {
+                if (isPropagateResolutionExceptions() || failure instanceof CircuitBreakerOpenException) {
+                    throw failure;
+                }
+                log.debug("{} Produced the following error but was configured not to propagate it.", getLogPrefix(),
+                        failure);
+            }
+            final Map<String, IdPAttribute> attributes = queryResults.get(j);
+            if (cacheKeys.get(j) != null) {
+                cache.put(cacheKeys.get(j), attributes != null ? attributes
+                        : Collections.<String, IdPAttribute>emptyMap());
+            }
+            results.set(queried.get(j), attributes);
+        }
+        return results;
+    }
+
+    /**
+     * Run a number of statements, combining those which can be into <code>IN</code> queries.
+     * 
+     * @param statements the statements
+     * @param results where to put the attributes produced by each statement, in the same order
+     * @param failures where to put the failure of each statement, in the same order
+     */
+    private void queryInBatches(@Nonnull @NonnullElements final List<ExecutableStatement> statements,
+            @Nonnull final List<Map<String, IdPAttribute>> results,
+            @Nonnull final List<ResolutionException> failures) {
+        final Map<String, List<Integer>> batchable = new LinkedHashMap<>();
+
+        for (int i = 0; i < statements.size(); i++) {
+            final ExecutableStatement statement = statements.get(i);
+            if (batchKeyColumn != null && getMappingStrategy() instanceof StringResultMappingStrategy
+                    && statement instanceof ParameterizedExecutableStatement) {
+                final String sql = ((ParameterizedExecutableStatement) statement).getSQL();
+                List<Integer> group = batchable.get(sql);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    batchable.put(sql, group);
+                }
+                group.add(i);
+            } else {
+                queryIndividually(statements, Collections.singletonList(i), results, failures);
+            }
+        }
+
+        for (final List<Integer> group : batchable.values()) {
+            for (int start = 0; start < group.size(); start += batchSize) {
+                queryBatch(statements, group.subList(start, Math.min(start + batchSize, group.size())), results,
+                        failures);
+            }
+        }
+    }
+
+    /**
+     * Run a batch of statements as a single <code>IN</code> query, falling back to running them individually if
+     * they cannot be combined, the combined query fails or the rows returned cannot be reliably assigned to them.
+     * 
+     * <p>
+     * Statements whose parameter differs only in case from that of another in the batch are always run individually,
+     * since a case-insensitive collation would return the same rows for each of them.
+     * </p>
+     * 
+     * @param statements all the statements
+     * @param batch the indices of the statements in this batch
+     * @param results where to put the attributes produced by each statement
+     * @param failures where to put the failure of each statement
+     */
+    private void queryBatch(@Nonnull @NonnullElements final List<ExecutableStatement> statements,
+            @Nonnull @NonnullElements final List<Integer> batch,
+            @Nonnull final List<Map<String, IdPAttribute>> results,
+            @Nonnull final List<ResolutionException> failures) {
+        final List<Integer> combinable = new ArrayList<>(batch.size());
+        final List<Integer> caseVariants = new ArrayList<>();
+        final List<ParameterizedExecutableStatement> parameterized = new ArrayList<>(batch.size());
+        final Set<String> keys = new HashSet<>(batch.size());
+        final Map<String, String> foldedKeys = new HashMap<>(batch.size());
+        for (final Integer i : batch) {
+            final ParameterizedExecutableStatement statement = (ParameterizedExecutableStatement) statements.get(i);
+            if (statement.getParameters().size() == 1) {
+                final String key = String.valueOf(statement.getParameters().get(0));
+                final String folded = key.toLowerCase(Locale.ROOT);
+                final String previous = foldedKeys.get(folded);
+                if (previous == null) {
+                    foldedKeys.put(folded, key);
+                } else if (!previous.equals(key)) {
+                    caseVariants.add(i);
+                    continue;
+                }
+                keys.add(key);
+            }
+            combinable.add(i);
+            parameterized.add(statement);
+        }
+        if (!caseVariants.isEmpty()) {
+            log.debug("{} {} principal(s) in batch differ from another only in case, querying them individually",
+                    getLogPrefix(), caseVariants.size());
+            queryIndividually(statements, caseVariants, results, failures);
+        }
+
+        final ParameterizedExecutableStatement combined =
+                combinable.size() > 1 ? ParameterizedExecutableStatement.combine(parameterized) : null;
+        if (combined == null) {
+            queryIndividually(statements, combinable, results, failures);
+            return;
+        }
+
+        final long permit;
+        try {
+            permit = acquireCall();
+        } catch (final ResolutionException e) {
+            for (final Integer i : combinable) {
+                failures.set(i, e);
+            }
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final StringResultMappingStrategy mappingStrategy = (StringResultMappingStrategy) getMappingStrategy();
+        final Map<String, Map<String, IdPAttribute>> keyed;
+        try {
+            keyed = query(combined, rs -> mappingStrategy.mapByKey(rs, batchKeyColumn));
+            recordCall(permit, start, null);
+        } catch (final MultipleResultAnErrorResolutionException e) {
+            recordCall(permit, start, e);
+            log.debug("{} Multiple rows returned for a principal in batch, querying individually", getLogPrefix());
+            queryIndividually(statements, combinable, results, failures);
+            return;
+        } catch (final ResolutionException e) {
+            recordCall(permit, start, e);
+            log.debug("{} Batch query failed, querying individually", getLogPrefix(), e);
+            queryIndividually(statements, combinable, results, failures);
+            return;
+        }
+
+        if (!keys.containsAll(keyed.keySet())) {
+            log.debug("{} Rows returned by batch could not be assigned by column '{}', querying individually",
+                    getLogPrefix(), batchKeyColumn);
+            queryIndividually(statements, combinable, results, failures);
+            return;
+        }
+
+        for (int j = 0; j < combinable.size(); j++) {
+            final Map<String, IdPAttribute> attributes =
+                    keyed.get(String.valueOf(parameterized.get(j).getParameters().get(0)));
+            if (attributes != null && !attributes.isEmpty()) {
+                results.set(combinable.get(j), attributes);
+            } else if (mappingStrategy.isNoResultAnError()) {
+                failures.set(combinable.get(j),
+                        new NoResultAnErrorResolutionException("No rows returned from query"));
+            }
+        }
+    }
+
+    /**
+     * Run statements one at a time, each subject to the circuit breaker if any.
+     * 
+     * @param statements all the statements
+     * @param indices the indices of the statements to run
+     * @param results where to put the attributes produced by each statement
+     * @param failures where to put the failure of each statement
+     */
+    private void queryIndividually(@Nonnull @NonnullElements final List<ExecutableStatement> statements,
+            @Nonnull @NonnullElements final List<Integer> indices,
+            @Nonnull final List<Map<String, IdPAttribute>> results,
+            @Nonnull final List<ResolutionException> failures) {
+        for (final Integer i : indices) {
+            try {
+                results.set(i, callDataSource(statements.get(i)));
+            } catch (final ResolutionException e) {
+                failures.set(i, e);
+            }
+        }
+    }
+
+    /**
+     * Execute a statement and process its results.
+     * 
+     * @param <T> the type of the processed results
+     * @param statement the statement
+     * @param processor what to do with the results
+     * 
+     * @return the processed results
+     * 
+     * @throws ResolutionException thrown if there is a problem executing the statement or processing its results
+     */
+    @Nullable private <T> T query(@Nonnull final ExecutableStatement statement,
+            @Nonnull final ResultSetProcessor<T> processor) throws ResolutionException {
         Connection connection = null;
         ResultSet queryResult = null;
         try {
@@ -167,7 +506,7 @@ public class RDBMSDataConnector extends AbstractSearchDataConnector<ExecutableSt
             }
             queryResult = statement.execute(connection);
             log.trace("Data connector '{}': search returned {}", getId(), queryResult);
-            return getMappingStrategy().map(queryResult);
+            return processor.process(queryResult);
         } catch (final SQLException e) {
             throw new ResolutionException(getLogPrefix() + " Unable to execute SQL query", e);
         } finally {
@@ -185,4 +524,25 @@ public class RDBMSDataConnector extends AbstractSearchDataConnector<ExecutableSt
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Something which processes the results of a query.
+     * 
+     * @param <T> the type of the processed results
+     */
+    @FunctionalInterface
+    private interface ResultSetProcessor<T> {
+
+        /**
+         * Process the results.
+         * 
+         * @param results the results
+         * 
+         * @return the processed results
+         * 
+         * @throws ResolutionException if the results could not be processed
+         */
+        @Nullable T process(@Nonnull ResultSet results) throws ResolutionException;
+    }
+
+}
@@ -36,6 +36,7 @@ import net.shibboleth.idp.attribute.resolver.MultipleResultAnErrorResolutionExce
 import net.shibboleth.idp.attribute.resolver.NoResultAnErrorResolutionException;
 import net.shibboleth.idp.attribute.resolver.ResolutionException;
 import net.shibboleth.idp.attribute.resolver.dc.AbstractMappingStrategy;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 
 import org.slf4j.Logger;
@@ -77,31 +78,7 @@ public class StringResultMappingStrategy extends AbstractMappingStrategy<ResultS
                 if (rowCount > 1 && isMultipleResultsAnError()) {
                     throw new MultipleResultAnErrorResolutionException("Multiple rows returned from query");
                 }
-                for (int i = 1; i <= resultMetadata.getColumnCount(); i++) {
-
-                    final String originalId = resultMetadata.getColumnName(i);
-                    final String effectiveId = aliases.containsKey(originalId) ? aliases.get(originalId) : originalId;
-                    if (log.isDebugEnabled()) {
-                        if (!effectiveId.equals(originalId)) {
-                            log.debug("Remapping column {} to {}", originalId, effectiveId);
-                        }
-                    }
-
-                    IdPAttribute attribute = attributes.get(effectiveId);
-                    if (attribute == null) {
-                        attribute = new IdPAttribute(effectiveId);
-                        attributes.put(effectiveId, attribute);
-                    }
-
-                    if (attribute.getValues().isEmpty()) {
-                        attribute.setValues(
-                            Collections.singletonList(StringAttributeValue.valueOf(results.getString(i))));
-                    } else {
-                        final List<IdPAttributeValue<?>> values = new ArrayList<>(attribute.getValues());
-                        values.add(StringAttributeValue.valueOf(results.getString(i)));
-                        attribute.setValues(values);
-                    }
-                }
+                addRow(results, resultMetadata, aliases, attributes);
             } while (results.next());
 
             if (attributes.isEmpty()) {
@@ -115,4 +92,89 @@ public class StringResultMappingStrategy extends AbstractMappingStrategy<ResultS
     }
 // Checkstyle: CyclomaticComplexity ON
 
-}
\ No newline at end of file
+    /**
+     * Map the rows of a result set which answers several queries at once, grouping them by the value of a column
+     * which identifies the query each row answers.
+     * 
+     * <p>
+     * No error is raised for a query with no rows, since those rows are simply absent, but
+     * {@link #isMultipleResultsAnError()} is honored.
+     * </p>
+     * 
+     * @param results the result set
+     * @param keyColumn the name of the column identifying the query each row answers
+     * 
+     * @return the attributes for each value of the column
+     * 
+     * @throws ResolutionException if the rows could not be read or several rows answer a query and that is an error
+     */
+    @Nonnull public Map<String, Map<String, IdPAttribute>> mapByKey(@Nonnull final ResultSet results,
+            @Nonnull @NotEmpty final String keyColumn) throws ResolutionException {
+        Constraint.isNotNull(results, "Result set can not be null");
+        Constraint.isNotNull(keyColumn, "Key column can not be null");
+
+        try {
+            final ResultSetMetaData resultMetadata = results.getMetaData();
+            final int keyIndex = results.findColumn(keyColumn);
+            final Map<String, String> aliases = getResultRenamingMap();
+            final Map<String, Map<String, IdPAttribute>> keyed = new HashMap<>();
+
+            while (results.next()) {
+                final String key = results.getString(keyIndex);
+                Map<String, IdPAttribute> attributes = keyed.get(key);
+                if (attributes == null) {
+                    attributes = new HashMap<>(resultMetadata.getColumnCount());
+                    keyed.put(key, attributes);
+                } else if (isMultipleResultsAnError()) {
+                    throw new MultipleResultAnErrorResolutionException("Multiple rows returned from query for " + key);
+                }
+                addRow(results, resultMetadata, aliases, attributes);
+            }
+
+            return keyed;
+        } catch (final SQLException e) {
+            throw new ResolutionException("Error reading data from result set", e);
+        }
+    }
+
+    /**
+     * Add the values of the current row to the attributes.
+     * 
+     * @param results the result set, positioned on the row
+     * @param resultMetadata the metadata of the result set
+     * @param aliases the renaming of columns to attributes
+     * @param attributes the attributes to add to
+     * 
+     * @throws SQLException if the row could not be read
+     */
+    private void addRow(@Nonnull final ResultSet results, @Nonnull final ResultSetMetaData resultMetadata,
+            @Nonnull final Map<String, String> aliases, @Nonnull final Map<String, IdPAttribute> attributes)
+                    throws SQLException {
+        for (int i = 1; i <= resultMetadata.getColumnCount(); i++) {
+
+            final String originalId = resultMetadata.getColumnName(i);
+            final String effectiveId = aliases.containsKey(originalId) ? aliases.get(originalId) : originalId;
+            if (log.isDebugEnabled()) {
+                if (!effectiveId.equals(originalId)) {
+                    log.debug("Remapping column {} to {}", originalId, effectiveId);
+                }
+            }
+
+            IdPAttribute attribute = attributes.get(effectiveId);
+            if (attribute == null) {
+                attribute = new IdPAttribute(effectiveId);
+                attributes.put(effectiveId, attribute);
+            }
+
+            if (attribute.getValues().isEmpty()) {
+                attribute.setValues(
+                    Collections.singletonList(StringAttributeValue.valueOf(results.getString(i))));
+            } else {
+                final List<IdPAttributeValue<?>> values = new ArrayList<>(attribute.getValues());
+                values.add(StringAttributeValue.valueOf(results.getString(i)));
+                attribute.setValues(values);
+            }
+        }
+    }
+
+}
@@ -18,6 +18,7 @@
 package net.shibboleth.idp.attribute.resolver.dc.rdbms.impl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -70,6 +71,9 @@ public class TemplatedExecutableStatementBuilder extends AbstractExecutableState
     /** Do we need to make ourself V2 Compatible? */
     private boolean v2Compatibility;
 
+    /** Whether inserted references are bound as statement parameters rather than written into the SQL. */
+    private boolean bindParameters;
+
     /**
      * Gets the template to be evaluated.
      * 
@@ -157,6 +161,32 @@ public class TemplatedExecutableStatementBuilder extends AbstractExecutableState
         v2Compatibility = compat;
     }
 
+    /**
+     * Gets whether inserted references are bound as statement parameters rather than written into the SQL.
+     * 
+     * @return whether inserted references are bound as statement parameters
+     */
+    public boolean isBindParameters() {
+        return bindParameters;
+    }
+
+    /**
+     * Sets whether inserted references are bound as statement parameters rather than written into the SQL.
+     * 
+     * <p>
+     * This keeps the SQL the same for every request, so the database need only parse it once, but requires that the
+     * template insert references only where a value may appear. The configured
+     * {@link ReferenceInsertionEventHandler} is not used.
+     * </p>
+     * 
+     * @param flag whether inserted references are bound as statement parameters
+     */
+    public void setBindParameters(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        bindParameters = flag;
+    }
+
     /**
      * Invokes {@link Template#merge(org.apache.velocity.context.Context)} on the supplied context.
      * 
@@ -175,6 +205,38 @@ public class TemplatedExecutableStatementBuilder extends AbstractExecutableState
      */
     @Override protected String getSQLQuery(@Nonnull final AttributeResolutionContext resolutionContext,
             @Nonnull final Map<String, List<IdPAttributeValue<?>>> dependencyAttributes) throws ResolutionException {
+        return render(createVelocityContext(resolutionContext, dependencyAttributes), eventHandler);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * If {@link #isBindParameters()} is set, this returns a {@link ParameterizedExecutableStatement} in which each
+     * reference inserted by the template is replaced by a parameter placeholder.
+     * </p>
+     */
+    @Override public ExecutableStatement build(@Nonnull final AttributeResolutionContext resolutionContext,
+            @Nonnull final Map<String, List<IdPAttributeValue<?>>> dependencyAttributes) throws ResolutionException {
+        if (!bindParameters) {
+            return super.build(resolutionContext, dependencyAttributes);
+        }
+
+        final BindingReferenceInsertionEventHandler binder = new BindingReferenceInsertionEventHandler();
+        final String query = render(createVelocityContext(resolutionContext, dependencyAttributes), binder);
+        return new ParameterizedExecutableStatement(query, binder.getParameters(), getQueryTimeout());
+    }
+
+    /**
+     * Create the context against which the template is evaluated.
+     * 
+     * @param resolutionContext the context of the resolution
+     * @param dependencyAttributes made available to the template
+     * 
+     * @return the context
+     */
+    @Nonnull private VelocityContext createVelocityContext(@Nonnull final AttributeResolutionContext resolutionContext,
+            @Nonnull final Map<String, List<IdPAttributeValue<?>>> dependencyAttributes) {
         final VelocityContext context = new VelocityContext();
         log.trace("Creating search filter using attribute resolution context {}", resolutionContext);
         context.put("resolutionContext", resolutionContext);
@@ -197,9 +259,24 @@ public class TemplatedExecutableStatementBuilder extends AbstractExecutableState
             }
         }
 
-        if (eventHandler != null) {
+        return context;
+    }
+
+    /**
+     * Evaluate the template against the context.
+     * 
+     * @param context the context
+     * @param handler the handler applied to each inserted reference, or null
+     * 
+     * @return the SQL
+     * 
+     * @throws ResolutionException if the template could not be evaluated
+     */
+    @Nonnull private String render(@Nonnull final VelocityContext context,
+            @Nullable final ReferenceInsertionEventHandler handler) throws ResolutionException {
+        if (handler != null) {
             final EventCartridge cartridge = new EventCartridge();
-            cartridge.addEventHandler(eventHandler);
+            cartridge.addEventHandler(handler);
             cartridge.attachToContext(context);
         }
 
@@ -266,4 +343,60 @@ public class TemplatedExecutableStatementBuilder extends AbstractExecutableState
             return value;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Replaces each value inserted into the template with a parameter placeholder, collecting the values in order.
+     * Multiple values are replaced with a comma separated list of placeholders.
+     */
+    private static class BindingReferenceInsertionEventHandler implements ReferenceInsertionEventHandler {
+
+        /** The values, in order of insertion. */
+        @Nonnull private final List<Object> parameters = new ArrayList<>();
+
+        /**
+         * Get the values, in order of insertion.
+         * 
+         * @return the values
+         */
+        @Nonnull public List<Object> getParameters() {
+            return parameters;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Object referenceInsert(final String reference, final Object value) {
+            if (value == null) {
+                return null;
+            } else if (value instanceof Object[]) {
+                return bindAll(Arrays.asList((Object[]) value));
+            } else if (value instanceof Collection<?>) {
+                return bindAll((Collection<?>) value);
+            } else {
+                parameters.add(value);
+                return "?";
+            }
+        }
+
+        /**
+         * Bind each of the values.
+         * 
+         * @param values the values
+         * 
+         * @return the placeholders
+         */
+        @Nonnull private String bindAll(@Nonnull final Collection<?> values) {
+            if (values.isEmpty()) {
+                return "NULL";
+            }
+            final StringBuilder placeholders = new StringBuilder();
+            for (final Object o : values) {
+                if (placeholders.length() > 0) {
+                    placeholders.append(", ");
+                }
+                placeholders.append('?');
+                parameters.add(o);
+            }
+            return placeholders.toString();
+        }
+    }
+}
@@ -17,13 +17,17 @@
 
 package net.shibboleth.idp.attribute.resolver.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -37,12 +41,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import net.shibboleth.ext.spring.service.AbstractServiceableComponent;
 import net.shibboleth.idp.attribute.EmptyAttributeValue;
 import net.shibboleth.idp.attribute.IdPAttribute;
 import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.resolver.AbstractDataConnector;
 import net.shibboleth.idp.attribute.resolver.AttributeDefinition;
 import net.shibboleth.idp.attribute.resolver.AttributeResolver;
 import net.shibboleth.idp.attribute.resolver.DataConnector;
@@ -57,10 +65,13 @@ import net.shibboleth.idp.attribute.resolver.ResolverPluginDependency;
 import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
 import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
 import net.shibboleth.idp.authn.context.SubjectCanonicalizationContext;
+import net.shibboleth.utilities.java.support.annotation.Duration;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import net.shibboleth.utilities.java.support.annotation.constraint.NullableElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
 import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
 import net.shibboleth.utilities.java.support.collection.LazyList;
 import net.shibboleth.utilities.java.support.collection.LazySet;
@@ -78,6 +89,18 @@ import net.shibboleth.utilities.java.support.logic.Constraint;
  * {@link net.shibboleth.utilities.java.support.resolver.Criterion}s. <br>
  * The implementation also implements {@link LegacyPrincipalDecoder} in support of the deprecated
  * &lt;PrincipalConnector&gt;
+ * 
+ * <p>
+ * If an {@link Executor} is supplied then plugins which do not depend upon each other are resolved concurrently, the
+ * whole resolution being bounded by {@link #getResolutionTimeout()}. The plugins must then be safe to run in parallel
+ * against the same {@link AttributeResolutionContext}.
+ * </p>
+ * 
+ * <p>
+ * The order in which plugins must be resolved to produce a given set of requested attributes is compiled into a
+ * {@link ResolutionPlan} on first use and cached. The cache lives and dies with the resolver, and so is discarded
+ * whenever the service is reloaded.
+ * </p>
  * */
 @ThreadSafe
 public class AttributeResolverImpl extends AbstractServiceableComponent<AttributeResolver> implements
@@ -104,9 +127,29 @@ public class AttributeResolverImpl extends AbstractServiceableComponent<Attribut
     /** Strategy to get the {@link ProfileRequestContext}. */
     @Nonnull private Function<AttributeResolutionContext,ProfileRequestContext> profileContextStrategy;
 
+    /** Optional executor used to resolve independent plugins concurrently. */
+    @Nullable private Executor executor;
+
+    /** How long to wait for a parallel resolution to complete. */
+    @Duration @Positive private long resolutionTimeout;
+
+    /** The plugins on which each plugin depends, computed at initialization. */
+    @NonnullAfterInit private Map<ResolverPlugin<?>, List<ResolverPlugin<?>>> dependencyGraph;
+
+    /** Maximum number of compiled resolution plans to cache. */
+    @NonNegative private long resolutionPlanCacheSize;
+
+    /** Compiled resolution plans, indexed by the requested attribute IDs. */
+    @NonnullAfterInit private Cache<Set<String>, ResolutionPlan> resolutionPlans;
+
+    /** The resolution plan used when no attributes are specifically requested. */
+    @NonnullAfterInit private ResolutionPlan defaultResolutionPlan;
+
     /** Constructor. */
     public AttributeResolverImpl() {
         profileContextStrategy = new ParentContextLookup<>();
+        resolutionTimeout = 30 * 1000;
+        resolutionPlanCacheSize = 1000;
     }
     
     /** {@inheritDoc} */
@@ -212,6 +255,61 @@ public class AttributeResolverImpl extends AbstractServiceableComponent<Attribut
         
         profileContextStrategy = Constraint.isNotNull(strategy, "ProfileRequestContext lookup strategy cannot be null");
     }
+
+    /**
+     * Get the executor used to resolve independent plugins concurrently.
+     * 
+     * @return the executor, or null if plugins are resolved serially on the calling thread
+     */
+    @Nullable public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set the executor used to resolve independent plugins concurrently.
+     * 
+     * <p>
+     * The executor should be bounded. Work that it rejects is run on the calling thread.
+     * </p>
+     * 
+     * @param exec the executor, or null to resolve plugins serially on the calling thread
+     */
+    public void setExecutor(@Nullable final Executor exec) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        executor = exec;
+    }
+
+    /**
+     * Get how long to wait for a parallel resolution to complete.
+     * 
+     * @return the timeout in milliseconds
+     */
+    @Duration @Positive public long getResolutionTimeout() {
+        return resolutionTimeout;
+    }
+
+    /**
+     * Set how long to wait for a parallel resolution to complete. Only used if an {@link Executor} is supplied.
+     * 
+     * @param timeout the timeout in milliseconds
+     */
+    @Duration public void setResolutionTimeout(@Duration @Positive final long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        resolutionTimeout = Constraint.isGreaterThan(0, timeout, "Resolution timeout must be greater than 0");
+    }
+
+    /**
+     * Set the maximum number of distinct requested attribute sets for which to cache a compiled resolution plan.
+     * 
+     * @param size the maximum number of plans to cache, 0 disables caching
+     */
+    public void setResolutionPlanCacheSize(@NonNegative final long size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        resolutionPlanCacheSize = Constraint.isGreaterThanOrEqual(0, size, "Cache size must be non-negative");
+    }
     
     /**
      * Resolves the attribute for the given request. Note, if attributes are requested,
@@ -240,15 +338,19 @@ public class AttributeResolverImpl extends AbstractServiceableComponent<Attribut
                 return;
             }
     
-            final Collection<String> attributeIds = getToBeResolvedAttributeIds(resolutionContext);
-            log.debug("{} Attempting to resolve the following attribute definitions {}", logPrefix, attributeIds);
+            final ResolutionPlan plan = getResolutionPlan(resolutionContext);
+            log.debug("{} Attempting to resolve the following attribute definitions {}", logPrefix,
+                    plan.getDefinitionIds());
     
             // Create work context to hold intermediate results.
             final AttributeResolverWorkContext workContext =
                     resolutionContext.getSubcontext(AttributeResolverWorkContext.class, true);
     
-            for (final String attributeId : attributeIds) {
-                resolveAttributeDefinition(attributeId, resolutionContext);
+            if (null != executor) {
+                new ParallelResolutionCoordinator(logPrefix, dependencyGraph, dataConnectors, executor,
+                        resolutionContext).resolve(plan.getDefinitions(), resolutionTimeout);
+            } else {
+                executeResolutionPlan(plan, resolutionContext, workContext);
             }
     
             log.debug("{} Finalizing resolved attributes", logPrefix);
@@ -289,6 +391,102 @@ public class AttributeResolverImpl extends AbstractServiceableComponent<Attribut
 
     }
 
+    /**
+     * Get the (possibly cached) plan for resolving the attributes required by the given context.
+     * 
+     * @param resolutionContext current resolution context
+     * 
+     * @return the plan
+     */
+    @Nonnull private ResolutionPlan getResolutionPlan(@Nonnull final AttributeResolutionContext resolutionContext) {
+        final Collection<String> requested = resolutionContext.getRequestedIdPAttributeNames();
+        if (requested.isEmpty()) {
+            return defaultResolutionPlan;
+        }
+
+        final Set<String> key = requested instanceof Set ? (Set<String>) requested : ImmutableSet.copyOf(requested);
+        ResolutionPlan plan = resolutionPlans.getIfPresent(key);
+        if (null == plan) {
+            plan = ResolutionPlan.compile(getToBeResolvedAttributeIds(resolutionContext), attributeDefinitions,
+                    dependencyGraph);
+            log.debug("{} Compiled resolution plan of {} steps for {}", logPrefix, plan.size(), key);
+            resolutionPlans.put(ImmutableSet.copyOf(key), plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Resolve each plugin in a resolution plan in turn.
+     * 
+     * <p>
+     * This has exactly the same effect as calling {@link #resolveAttributeDefinition(String,
+     * AttributeResolutionContext)} for each requested attribute, but without repeatedly walking the dependencies.
+     * </p>
+     * 
+     * @param plan the plan
+     * @param resolutionContext resolution context that we are working in
+     * @param workContext where the results are recorded
+     * 
+     * @throws ResolutionException if unable to resolve the requested attribute definitions
+     */
+    private void executeResolutionPlan(@Nonnull final ResolutionPlan plan,
+            @Nonnull final AttributeResolutionContext resolutionContext,
+            @Nonnull final AttributeResolverWorkContext workContext) throws ResolutionException {
+        for (int index = 0; index < plan.size(); index++) {
+            if (isSkippingConnector(plan, index, workContext)) {
+                // The rest of the plan may depend on the plugins we would skip, so revert to walking the graph.
+                log.debug("{} Resolution plan interrupted, resolving remaining dependencies individually",
+                        logPrefix);
+                for (final String attributeId : plan.getDefinitionIds()) {
+                    resolveAttributeDefinition(attributeId, resolutionContext);
+                }
+                return;
+            }
+
+            final ResolverPlugin<?> step = plan.getStep(index);
+            if (plan.isConnector(index)) {
+                if (workContext.getResolvedDataConnectors().containsKey(step.getId())) {
+                    log.trace("{} Data connector '{}' was already resolved, nothing to do", logPrefix, step.getId());
+                } else {
+                    doResolveDataConnector((DataConnector) step, resolutionContext, workContext, false);
+                }
+            } else if (workContext.getResolvedIdPAttributeDefinitions().containsKey(step.getId())) {
+                log.trace("{} Attribute definition '{}' was already resolved, nothing to do", logPrefix,
+                        step.getId());
+            } else {
+                doResolveAttributeDefinition((AttributeDefinition) step, resolutionContext, workContext);
+            }
+        }
+    }
+
+    /**
+     * Determine whether a plan step starts the dependencies of a data connector which is not going to be called,
+     * because it has already been resolved or has failed recently. The dependencies of such a connector would not
+     * have been resolved at this point by a walk of the graph.
+     * 
+     * @param plan the plan
+     * @param index the current step
+     * @param workContext where the results are recorded
+     * 
+     * @return whether the plan can no longer be followed step by step
+     */
+    private boolean isSkippingConnector(@Nonnull final ResolutionPlan plan, final int index,
+            @Nonnull final AttributeResolverWorkContext workContext) {
+        final int[] guards = plan.getGuards(index);
+        if (null == guards) {
+            return false;
+        }
+
+        for (final int guard : guards) {
+            final DataConnectorEx connector = (DataConnectorEx) plan.getStep(guard);
+            if (workContext.getResolvedDataConnectors().containsKey(connector.getId())
+                    || AbstractDataConnector.isFailing(connector)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Resolve the {@link AttributeDefinition} which has the specified ID.
      * 
@@ -321,6 +519,23 @@ public class AttributeResolverImpl extends AbstractServiceableComponent<Attribut
         }
 
         resolveDependencies(definition, resolutionContext);
+        doResolveAttributeDefinition(definition, resolutionContext, workContext);
+    }
+    // CheckStyle: ReturnCount ON
+
+    /**
+     * Resolve an {@link AttributeDefinition} whose dependencies have already been resolved.
+     * 
+     * @param definition the attribute definition to resolve
+     * @param resolutionContext resolution context that we are working in
+     * @param workContext where the result is recorded
+     * 
+     * @throws ResolutionException if unable to resolve the attribute definition
+     */
+    private void doResolveAttributeDefinition(@Nonnull final AttributeDefinition definition,
+            @Nonnull final AttributeResolutionContext resolutionContext,
+            @Nonnull final AttributeResolverWorkContext workContext) throws ResolutionException {
+        final String attributeId = definition.getId();
 
         log.trace("{} Resolving attribute definition {}", logPrefix, attributeId);
         final IdPAttribute resolvedAttribute = definition.resolve(resolutionContext);
@@ -334,7 +549,6 @@ public class AttributeResolverImpl extends AbstractServiceableComponent<Attribut
 
         workContext.recordAttributeDefinitionResolution(definition, resolvedAttribute);
     }
-    // CheckStyle: ReturnCount ON
 
     /**
      * Resolve the {@link DataConnector} which has the specified ID.
@@ -353,7 +567,6 @@ public class AttributeResolverImpl extends AbstractServiceableComponent<Attribut
         Constraint.isNotNull(resolutionContext, "Attribute resolution context cannot be null");
         final AttributeResolverWorkContext workContext =
                 resolutionContext.getSubcontext(AttributeResolverWorkContext.class, false);
-        final long resolveTime = System.currentTimeMillis();
 
         if (workContext.getResolvedDataConnectors().containsKey(connectorId)) {
             log.trace("{} Data connector '{}' was already resolved, nothing to do", logPrefix, connectorId);
@@ -366,9 +579,30 @@ public class AttributeResolverImpl extends AbstractServiceableComponent<Attribut
             return;
         }
 
+        doResolveDataConnector(connector, resolutionContext, workContext, true);
+    }
+    // CheckStyle: ReturnCount ON
+
+    /**
+     * Resolve a {@link DataConnector}, falling over to its failover connector if it fails.
+     * 
+     * @param connector the data connector to resolve
+     * @param resolutionContext resolution context that we are working in
+     * @param workContext where the result is recorded
+     * @param withDependencies whether the dependencies of the connector still need to be resolved
+     * 
+     * @throws ResolutionException if unable to resolve the connector or its failover
+     */
+    // CheckStyle: ReturnCount OFF
+    private void doResolveDataConnector(@Nonnull final DataConnector connector,
+            @Nonnull final AttributeResolutionContext resolutionContext,
+            @Nonnull final AttributeResolverWorkContext workContext, final boolean withDependencies)
+                    throws ResolutionException {
+        final String connectorId = connector.getId();
+
         if (connector instanceof DataConnectorEx) {
             final DataConnectorEx connectorEx = (DataConnectorEx) connector;
-            if (resolveTime < connectorEx.getLastFail() + connectorEx.getNoRetryDelay()) {
+            if (AbstractDataConnector.isFailing(connectorEx)) {
                 log.debug("{} Data connector '{}' failed to resolve previously.  Still waiting", logPrefix, 
                         connectorId);
                 final String failoverDataConnectorId = connector.getFailoverDataConnectorId();
@@ -384,7 +618,9 @@ public class AttributeResolverImpl extends AbstractServiceableComponent<Attribut
             }
         }
 
-        resolveDependencies(connector, resolutionContext);
+        if (withDependencies) {
+            resolveDependencies(connector, resolutionContext);
+        }
         final Map<String, IdPAttribute> resolvedAttributes;
         try {
             log.debug("{} Resolving data connector {}", logPrefix, connectorId);
@@ -557,6 +793,53 @@ public class AttributeResolverImpl extends AbstractServiceableComponent<Attribut
             log.debug("{} Checking if attribute definition '{}' has a circular dependency", logPrefix, plugin.getId());
             checkPlugInDependencies(plugin.getId(), plugin, dependencyVerifiedPlugins);
         }
+
+        final Map<ResolverPlugin<?>, List<ResolverPlugin<?>>> graph = new IdentityHashMap<>();
+        for (final DataConnector plugin : dataConnectors.values()) {
+            graph.put(plugin, getDependencyPlugins(plugin));
+        }
+        for (final AttributeDefinition plugin : attributeDefinitions.values()) {
+            graph.put(plugin, getDependencyPlugins(plugin));
+        }
+        dependencyGraph = graph;
+
+        resolutionPlans = CacheBuilder.newBuilder().maximumSize(resolutionPlanCacheSize).build();
+        defaultResolutionPlan = ResolutionPlan.compile(attributeDefinitions.keySet(), attributeDefinitions, graph);
+    }
+
+    /**
+     * Find the plugins upon which a given plugin depends, using the same rules as
+     * {@link #resolveDependencies(ResolverPlugin, AttributeResolutionContext)}.
+     * 
+     * @param plugin the plugin
+     * 
+     * @return the plugins it depends upon
+     */
+    @Nonnull @NonnullElements @Unmodifiable private List<ResolverPlugin<?>> getDependencyPlugins(
+            @Nonnull final ResolverPlugin<?> plugin) {
+        if (plugin.getDependencies().isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<ResolverPlugin<?>> result = new ArrayList<>(plugin.getDependencies().size());
+        for (final ResolverPluginDependency dependency : plugin.getDependencies()) {
+            final String pluginId = dependency.getDependencyPluginId();
+            final ResolverPlugin<?> dependencyPlugin;
+            if (dependency instanceof ResolverAttributeDefinitionDependency) {
+                dependencyPlugin = attributeDefinitions.get(pluginId);
+            } else if (dependency instanceof ResolverDataConnectorDependency) {
+                dependencyPlugin = dataConnectors.get(pluginId);
+            } else if (attributeDefinitions.containsKey(pluginId)) {
+                dependencyPlugin = attributeDefinitions.get(pluginId);
+            } else {
+                dependencyPlugin = dataConnectors.get(pluginId);
+            }
+            // Existence has been established by checkPlugInDependencies
+            if (null != dependencyPlugin) {
+                result.add(dependencyPlugin);
+            }
+        }
+        return Collections.unmodifiableList(result);
     }
 
     /**
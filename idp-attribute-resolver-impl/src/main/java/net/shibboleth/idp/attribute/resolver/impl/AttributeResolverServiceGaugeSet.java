@@ -23,7 +23,9 @@ import com.codahale.metrics.MetricSet;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 
+import net.shibboleth.idp.attribute.resolver.AbstractDataConnector;
 import net.shibboleth.idp.attribute.resolver.AttributeResolver;
+import net.shibboleth.idp.attribute.resolver.CircuitBreaker;
 import net.shibboleth.idp.attribute.resolver.DataConnector;
 import net.shibboleth.idp.attribute.resolver.DataConnectorEx;
 import net.shibboleth.idp.metrics.ReloadableServiceGaugeSet;
@@ -81,10 +83,58 @@ public class AttributeResolverServiceGaugeSet extends ReloadableServiceGaugeSet
                         return mapBuilder.build();
                     }
                 });
+
+        getMetricMap().put(
+                MetricRegistry.name(DEFAULT_METRIC_NAME, metricName, "circuitbreaker"),
+                new Gauge<Map<String,Map<String,Object>>>() {
+                    public Map<String,Map<String,Object>> getValue() {
+                        final Builder mapBuilder = ImmutableMap.<String,Map<String,Object>>builder();
+                        final ServiceableComponent<AttributeResolver> component =
+                                getService().getServiceableComponent();
+                        if (component != null) {
+                            try {
+                                final AttributeResolver resolver = component.getComponent();
+                                final Collection<DataConnector> connectors = resolver.getDataConnectors().values();
+                                
+                                for (final DataConnector connector: connectors) {
+                                    if (connector instanceof AbstractDataConnector) {
+                                        final CircuitBreaker breaker =
+                                                ((AbstractDataConnector) connector).getCircuitBreaker();
+                                        if (breaker != null) {
+                                            mapBuilder.put(connector.getId(), getBreakerStatistics(breaker));
+                                        }
+                                    }
+                                }
+                            } finally {
+                                component.unpinComponent();
+                            }
+                        }
+                        return mapBuilder.build();
+                    }
+                });
 // Checkstyle: AnonInnerLength ON
         
     }
     
+    /**
+     * Get the state and statistics of a circuit breaker.
+     * 
+     * @param breaker the breaker
+     * 
+     * @return the state and statistics, by name
+     */
+    @Nonnull private static Map<String,Object> getBreakerStatistics(@Nonnull final CircuitBreaker breaker) {
+        return ImmutableMap.<String,Object>builder()
+                .put("state", breaker.getState().toString())
+                .put("failureRate", breaker.getFailureRate())
+                .put("permitted", breaker.getPermittedCount())
+                .put("rejected", breaker.getRejectedCount())
+                .put("failures", breaker.getFailureCount())
+                .put("slowCalls", breaker.getSlowCallCount())
+                .put("opened", breaker.getOpenCount())
+                .build();
+    }
+    
     /** {@inheritDoc} */
     @Override
     protected void doInitialize() throws ComponentInitializationException {
@@ -0,0 +1,504 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver.impl;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.resolver.AbstractDataConnector;
+import net.shibboleth.idp.attribute.resolver.AsyncDataConnector;
+import net.shibboleth.idp.attribute.resolver.AttributeDefinition;
+import net.shibboleth.idp.attribute.resolver.DataConnector;
+import net.shibboleth.idp.attribute.resolver.DataConnectorEx;
+import net.shibboleth.idp.attribute.resolver.ResolutionException;
+import net.shibboleth.idp.attribute.resolver.ResolverPlugin;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * Drives a single attribute resolution by running independent {@link ResolverPlugin}s concurrently.
+ *
+ * <p>
+ * The calling thread acts as the coordinator: it alone records results into the {@link AttributeResolverWorkContext}
+ * and it alone decides which plugins are ready to run, so the plugins themselves only ever observe fully recorded
+ * dependency results. Plugins whose dependencies have all been resolved are handed to the supplied {@link Executor};
+ * if the executor refuses the work it is run on the coordinating thread instead.
+ * </p>
+ *
+ * <p>
+ * Data connector failure handling mirrors {@link AttributeResolverImpl#resolveDataConnector(String,
+ * AttributeResolutionContext)}: a connector which {@link AbstractDataConnector#isFailing(DataConnectorEx)}, or one
+ * which fails, is replaced by its failover connector (which is scheduled on demand) or causes the resolution to fail.
+ * </p>
+ *
+ * <p>
+ * Should the resolution fail or time out, any plugins still running are cancelled so that they stop using the
+ * {@link AttributeResolutionContext} as soon as they are able.
+ * </p>
+ *
+ * <p>
+ * Instances are single use.
+ * </p>
+ */
+@NotThreadSafe
+final class ParallelResolutionCoordinator {
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(ParallelResolutionCoordinator.class);
+
+    /** Log prefix of the owning resolver. */
+    @Nonnull private final String logPrefix;
+
+    /** Plugin dependency graph, precomputed by the owning resolver. */
+    @Nonnull private final Map<ResolverPlugin<?>, List<ResolverPlugin<?>>> dependencyGraph;
+
+    /** Data connectors, indexed by ID, used to locate failover connectors. */
+    @Nonnull private final Map<String, DataConnector> dataConnectors;
+
+    /** Where the plugins are run. */
+    @Nonnull private final Executor executor;
+
+    /** The resolution being driven. */
+    @Nonnull private final AttributeResolutionContext resolutionContext;
+
+    /** Where the results are recorded. */
+    @Nonnull private final AttributeResolverWorkContext workContext;
+
+    /** The plugins taking part in this resolution. */
+    @Nonnull private final Map<ResolverPlugin<?>, Node> nodes;
+
+    /** Where completed work is posted back to the coordinating thread. */
+    @Nonnull private final BlockingQueue<Outcome> completions;
+
+    /** Number of plugins handed out and not yet reported back. */
+    private int outstanding;
+
+    /** The work handed out, including asynchronous resolutions once they have started. */
+    @Nonnull private final Queue<Future<?>> tasks;
+
+    /**
+     * Constructor.
+     *
+     * @param prefix log prefix of the owning resolver
+     * @param graph the precomputed plugin dependency graph
+     * @param connectors data connectors indexed by ID
+     * @param exec where to run the plugins
+     * @param context the resolution to drive
+     */
+    ParallelResolutionCoordinator(@Nonnull final String prefix,
+            @Nonnull final Map<ResolverPlugin<?>, List<ResolverPlugin<?>>> graph,
+            @Nonnull final Map<String, DataConnector> connectors, @Nonnull final Executor exec,
+            @Nonnull final AttributeResolutionContext context) {
+        logPrefix = prefix;
+        dependencyGraph = graph;
+        dataConnectors = connectors;
+        executor = exec;
+        resolutionContext = context;
+        workContext = context.getSubcontext(AttributeResolverWorkContext.class, false);
+        nodes = new IdentityHashMap<>();
+        completions = new LinkedBlockingQueue<>();
+        tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Resolve the supplied attribute definitions, together with everything that they depend upon.
+     *
+     * @param definitions the definitions to resolve
+     * @param timeout how long to wait, overall, for the resolution to complete
+     *
+     * @throws ResolutionException if a plugin fails, or the resolution does not complete in time
+     */
+    void resolve(@Nonnull @NonnullElements final Iterable<? extends ResolverPlugin<?>> definitions,
+            @Duration final long timeout) throws ResolutionException {
+
+        boolean completed = false;
+        try {
+            for (final ResolverPlugin<?> definition : definitions) {
+                require(definition);
+            }
+            startReady();
+
+            final long deadline = System.currentTimeMillis() + timeout;
+            while (outstanding > 0) {
+                final long remaining = deadline - System.currentTimeMillis();
+                final Outcome outcome;
+                try {
+                    outcome = remaining > 0 ? completions.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ResolutionException(logPrefix + " Interrupted while waiting for resolution to complete",
+                            e);
+                }
+                if (null == outcome) {
+                    throw new ResolutionException(logPrefix + " Attribute resolution did not complete within "
+                            + timeout + "ms, " + outstanding + " plugin(s) still running");
+                }
+                outstanding--;
+                handle(outcome);
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                cancelOutstanding();
+            }
+        }
+    }
+
+    /**
+     * Cancel any work which is still running or waiting to run, following a failed resolution.
+     */
+    private void cancelOutstanding() {
+        int cancelled = 0;
+        for (Future<?> task = tasks.poll(); null != task; task = tasks.poll()) {
+            if (task.cancel(true)) {
+                cancelled++;
+            }
+        }
+        if (cancelled > 0) {
+            log.debug("{} Cancelled {} outstanding plugin resolution(s)", logPrefix, cancelled);
+        }
+    }
+
+    /**
+     * Locate (creating if needed) the node for the given plugin and, transitively, its dependencies.
+     *
+     * @param plugin the plugin
+     *
+     * @return the node
+     */
+    @Nonnull private Node require(@Nonnull final ResolverPlugin<?> plugin) {
+        Node node = nodes.get(plugin);
+        if (null != node) {
+            return node;
+        }
+        node = new Node(plugin);
+        nodes.put(plugin, node);
+
+        if (plugin instanceof DataConnector
+                && workContext.getResolvedDataConnectors().containsKey(plugin.getId())) {
+            log.trace("{} Data connector '{}' was already resolved, nothing to do", logPrefix, plugin.getId());
+            node.done = true;
+            return node;
+        } else if (plugin instanceof AttributeDefinition
+                && workContext.getResolvedIdPAttributeDefinitions().containsKey(plugin.getId())) {
+            log.trace("{} Attribute definition '{}' was already resolved, nothing to do", logPrefix, plugin.getId());
+            node.done = true;
+            return node;
+        }
+
+        final List<ResolverPlugin<?>> dependencies = dependencyGraph.get(plugin);
+        if (null != dependencies) {
+            for (final ResolverPlugin<?> dependency : dependencies) {
+                final Node dependencyNode = require(dependency);
+                if (!dependencyNode.done) {
+                    node.pending++;
+                    dependencyNode.dependents.add(node);
+                }
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Start a node whose dependencies have all been resolved.
+     *
+     * @param node the node to start
+     *
+     * @throws ResolutionException if a data connector is known to be down and has no failover
+     */
+    private void launch(@Nonnull final Node node) throws ResolutionException {
+        node.launched = true;
+        final ResolverPlugin<?> plugin = node.plugin;
+
+        if (plugin instanceof DataConnectorEx) {
+            final DataConnectorEx connectorEx = (DataConnectorEx) plugin;
+            if (AbstractDataConnector.isFailing(connectorEx)) {
+                log.debug("{} Data connector '{}' failed to resolve previously.  Still waiting", logPrefix,
+                        plugin.getId());
+                if (null == connectorEx.getFailoverDataConnectorId()) {
+                    throw new ResolutionException("Previous resolve failed");
+                }
+                failover(node);
+                return;
+            }
+        }
+
+        log.debug("{} Scheduling resolution of {} '{}'", logPrefix,
+                plugin instanceof DataConnector ? "data connector" : "attribute definition", plugin.getId());
+        outstanding++;
+        final Runnable task;
+        if (plugin instanceof AsyncDataConnector) {
+            // The connector completes on its own schedule, freeing the executor thread while it waits.
+            task = new Runnable() {
+                @Override public void run() {
+                    try {
+                        final Future<Map<String, IdPAttribute>> resolution = ((AsyncDataConnector) plugin)
+                                .resolveAsync(resolutionContext).whenComplete(
+                                        new BiConsumer<Map<String, IdPAttribute>, Throwable>() {
+                                            @Override public void accept(final Map<String, IdPAttribute> result,
+                                                    final Throwable failure) {
+                                                completions.add(new Outcome(node, result, unwrap(failure)));
+                                            }
+                                        }).toCompletableFuture();
+                        tasks.add(resolution);
+                    } catch (final RuntimeException e) {
+                        completions.add(new Outcome(node, null, e));
+                    }
+                }
+            };
+        } else {
+            task = new Runnable() {
+                @Override public void run() {
+                    try {
+                        completions.add(new Outcome(node, plugin.resolve(resolutionContext), null));
+                    } catch (final ResolutionException | RuntimeException e) {
+                        completions.add(new Outcome(node, null, e));
+                    }
+                }
+            };
+        }
+        final FutureTask<Void> future = new FutureTask<>(task, null);
+        tasks.add(future);
+        try {
+            executor.execute(future);
+        } catch (final RejectedExecutionException e) {
+            log.debug("{} Executor rejected '{}', resolving it on the calling thread", logPrefix, plugin.getId());
+            future.run();
+        }
+    }
+
+    /**
+     * Recover the underlying failure of an asynchronous resolution.
+     *
+     * @param failure what the resolution completed with, if anything
+     *
+     * @return the underlying failure, or null
+     */
+    @Nullable private static Exception unwrap(@Nullable final Throwable failure) {
+        final Throwable cause =
+                failure instanceof CompletionException && null != failure.getCause() ? failure.getCause() : failure;
+        if (null == cause || cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        final ResolutionException wrapped = new ResolutionException("Asynchronous resolution failed");
+        wrapped.initCause(cause);
+        return wrapped;
+    }
+
+    /**
+     * Process the result of running a plugin.
+     *
+     * @param outcome what happened
+     *
+     * @throws ResolutionException if the plugin failed and that failure cannot be handled
+     */
+    private void handle(@Nonnull final Outcome outcome) throws ResolutionException {
+        final ResolverPlugin<?> plugin = outcome.node.plugin;
+
+        if (null != outcome.failure) {
+            if (plugin instanceof DataConnector && outcome.failure instanceof ResolutionException
+                    && null != ((DataConnector) plugin).getFailoverDataConnectorId()) {
+                log.debug("{} Data connector '{}' failed to resolve, invoking failover data connector '{}'."
+                        + "  Reason for failure:", logPrefix, plugin.getId(),
+                        ((DataConnector) plugin).getFailoverDataConnectorId(), outcome.failure);
+                failover(outcome.node);
+                return;
+            } else if (outcome.failure instanceof ResolutionException) {
+                throw (ResolutionException) outcome.failure;
+            }
+            throw (RuntimeException) outcome.failure;
+        }
+
+        if (plugin instanceof AttributeDefinition) {
+            final IdPAttribute resolvedAttribute = (IdPAttribute) outcome.result;
+            if (null == resolvedAttribute) {
+                log.debug("{} Attribute definition '{}' produced no attribute", logPrefix, plugin.getId());
+            } else {
+                log.debug("{} Attribute definition '{}' produced an attribute with {} values", logPrefix,
+                        plugin.getId(), resolvedAttribute.getValues().size());
+            }
+            workContext.recordAttributeDefinitionResolution((AttributeDefinition) plugin, resolvedAttribute);
+        } else {
+            @SuppressWarnings("unchecked") final Map<String, IdPAttribute> resolvedAttributes =
+                    (Map<String, IdPAttribute>) outcome.result;
+            if (null != resolvedAttributes) {
+                log.debug("{} Data connector '{}' resolved the following attributes: {}", logPrefix, plugin.getId(),
+                        resolvedAttributes.keySet());
+            } else {
+                log.debug("{} Data connector '{}' produced no attributes", logPrefix, plugin.getId());
+            }
+            workContext.recordDataConnectorResolution((DataConnector) plugin, resolvedAttributes);
+        }
+        complete(outcome.node);
+    }
+
+    /**
+     * Arrange for a failed data connector to be replaced by its failover connector.
+     *
+     * @param node the node of the failed connector
+     *
+     * @throws ResolutionException if the failover connector cannot be started
+     */
+    private void failover(@Nonnull final Node node) throws ResolutionException {
+        final DataConnector connector = (DataConnector) node.plugin;
+        final DataConnector failoverConnector = dataConnectors.get(connector.getFailoverDataConnectorId());
+        if (null == failoverConnector) {
+            log.debug("{} No data connector was registered with ID '{}', nothing to do", logPrefix,
+                    connector.getFailoverDataConnectorId());
+            complete(node);
+            return;
+        }
+
+        final Node failoverNode = require(failoverConnector);
+        if (failoverNode.done) {
+            workContext.recordFailoverResolution(connector, failoverConnector);
+            complete(node);
+            return;
+        }
+        failoverNode.failoverDependents.add(node);
+        if (!failoverNode.launched) {
+            startReady();
+        }
+    }
+
+    /**
+     * Mark a node as resolved, and release anything which was waiting for it.
+     *
+     * @param node the resolved node
+     *
+     * @throws ResolutionException if a released node cannot be started
+     */
+    private void complete(@Nonnull final Node node) throws ResolutionException {
+        node.done = true;
+        for (final Node waiting : node.failoverDependents) {
+            workContext.recordFailoverResolution((DataConnector) waiting.plugin, (DataConnector) node.plugin);
+            complete(waiting);
+        }
+        for (final Node dependent : node.dependents) {
+            dependent.pending--;
+            if (dependent.isReady()) {
+                launch(dependent);
+            }
+        }
+    }
+
+    /**
+     * Start every node which is ready but has not been started, either at the outset or following the late addition
+     * of a failover connector to the graph.
+     *
+     * @throws ResolutionException if a node cannot be started
+     */
+    private void startReady() throws ResolutionException {
+        for (final Node node : new ArrayList<>(nodes.values())) {
+            if (node.isReady()) {
+                launch(node);
+            }
+        }
+    }
+
+    /** The state of a single plugin within the resolution. */
+    private static final class Node {
+
+        /** The plugin. */
+        @Nonnull private final ResolverPlugin<?> plugin;
+
+        /** Nodes which depend on this one. */
+        @Nonnull private final List<Node> dependents;
+
+        /** Failed connectors which are waiting for this (failover) connector. */
+        @Nonnull private final List<Node> failoverDependents;
+
+        /** Number of dependencies not yet resolved. */
+        private int pending;
+
+        /** Whether the plugin has been started. */
+        private boolean launched;
+
+        /** Whether the plugin's result has been recorded. */
+        private boolean done;
+
+        /**
+         * Constructor.
+         *
+         * @param thePlugin the plugin
+         */
+        Node(@Nonnull final ResolverPlugin<?> thePlugin) {
+            plugin = thePlugin;
+            dependents = new ArrayList<>();
+            failoverDependents = new ArrayList<>();
+        }
+
+        /**
+         * Is this node ready to be started?
+         *
+         * @return whether all dependencies are resolved and the node is not yet started
+         */
+        boolean isReady() {
+            return !launched && !done && pending == 0;
+        }
+    }
+
+    /** The result of running a plugin, passed from the worker back to the coordinating thread. */
+    private static final class Outcome {
+
+        /** The node which was run. */
+        @Nonnull private final Node node;
+
+        /** What the plugin produced. */
+        @Nullable private final Object result;
+
+        /** What the plugin threw. */
+        @Nullable private final Exception failure;
+
+        /**
+         * Constructor.
+         *
+         * @param theNode the node which was run
+         * @param theResult what the plugin produced
+         * @param theFailure what the plugin threw
+         */
+        Outcome(@Nonnull final Node theNode, @Nullable final Object theResult, @Nullable final Exception theFailure) {
+            node = theNode;
+            result = theResult;
+            failure = theFailure;
+        }
+    }
+}
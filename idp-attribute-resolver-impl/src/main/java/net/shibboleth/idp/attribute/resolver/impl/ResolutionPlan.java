@@ -0,0 +1,234 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.idp.attribute.resolver.AttributeDefinition;
+import net.shibboleth.idp.attribute.resolver.DataConnector;
+import net.shibboleth.idp.attribute.resolver.DataConnectorEx;
+import net.shibboleth.idp.attribute.resolver.ResolverPlugin;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+
+/**
+ * The order in which the {@link ResolverPlugin}s are resolved in order to produce a given set of attributes.
+ *
+ * <p>
+ * The plugins are held in exactly the order that a depth first walk of the dependencies of the requested attribute
+ * definitions would visit them, so that executing the plan is indistinguishable from performing that walk.
+ * </p>
+ *
+ * <p>
+ * A {@link DataConnectorEx} may be skipped at resolution time (because it failed recently) in which case the walk
+ * would not have visited those of its dependencies first reached through it at that point. These dependencies form a
+ * contiguous run of steps immediately preceding the connector, and the plan records where each such run starts so
+ * that the resolver can detect this and fall back to walking the graph.
+ * </p>
+ */
+@Immutable
+final class ResolutionPlan {
+
+    /** The requested attribute definitions, in request order. */
+    @Nonnull @NonnullElements @Unmodifiable private final List<AttributeDefinition> definitions;
+
+    /** The IDs of the requested attribute definitions, in request order. */
+    @Nonnull @NonnullElements @Unmodifiable private final List<String> definitionIds;
+
+    /** Every plugin to resolve, in resolution order. */
+    @Nonnull @NonnullElements private final ResolverPlugin<?>[] steps;
+
+    /** Whether each step is a {@link DataConnector} (as opposed to an {@link AttributeDefinition}). */
+    @Nonnull private final boolean[] connectorSteps;
+
+    /**
+     * For each step, the indices of the {@link DataConnectorEx} steps whose exclusive dependencies start at that step,
+     * outermost first, or null if there are none.
+     */
+    @Nonnull private final int[][] guards;
+
+    /**
+     * Constructor.
+     *
+     * @param requested the requested attribute definitions
+     * @param requestedIds the IDs of the requested attribute definitions
+     * @param plugins the plugins in resolution order
+     * @param connectorGuards where the exclusive dependencies of each {@link DataConnectorEx} start
+     */
+    private ResolutionPlan(@Nonnull @NonnullElements final List<AttributeDefinition> requested,
+            @Nonnull @NonnullElements final List<String> requestedIds,
+            @Nonnull @NonnullElements final ResolverPlugin<?>[] plugins, @Nonnull final int[][] connectorGuards) {
+        definitions = requested;
+        definitionIds = requestedIds;
+        steps = plugins;
+        guards = connectorGuards;
+        connectorSteps = new boolean[plugins.length];
+        for (int i = 0; i < plugins.length; i++) {
+            connectorSteps[i] = plugins[i] instanceof DataConnector;
+        }
+    }
+
+    /**
+     * Get the requested attribute definitions, in request order.
+     *
+     * @return the definitions
+     */
+    @Nonnull @NonnullElements @Unmodifiable List<AttributeDefinition> getDefinitions() {
+        return definitions;
+    }
+
+    /**
+     * Get the IDs of the requested attribute definitions, in request order.
+     *
+     * @return the IDs
+     */
+    @Nonnull @NonnullElements @Unmodifiable List<String> getDefinitionIds() {
+        return definitionIds;
+    }
+
+    /**
+     * Get the number of steps in the plan.
+     *
+     * @return the number of steps
+     */
+    int size() {
+        return steps.length;
+    }
+
+    /**
+     * Get the plugin to resolve at the given step.
+     *
+     * @param index the step
+     *
+     * @return the plugin
+     */
+    @Nonnull ResolverPlugin<?> getStep(final int index) {
+        return steps[index];
+    }
+
+    /**
+     * Get whether the given step is a {@link DataConnector}.
+     *
+     * @param index the step
+     *
+     * @return true for a {@link DataConnector}, false for an {@link AttributeDefinition}
+     */
+    boolean isConnector(final int index) {
+        return connectorSteps[index];
+    }
+
+    /**
+     * Get the steps of any {@link DataConnectorEx}s whose exclusive dependencies start at the given step.
+     *
+     * @param index the step
+     *
+     * @return the steps of the connectors, outermost first, or null
+     */
+    @Nullable int[] getGuards(final int index) {
+        return guards[index];
+    }
+
+    /**
+     * Compile the plan for a set of requested attribute definitions.
+     *
+     * @param attributeIds the IDs of the requested attribute definitions
+     * @param attributeDefinitions all attribute definitions, indexed by ID
+     * @param dependencyGraph the plugins upon which each plugin depends
+     *
+     * @return the plan
+     */
+    @Nonnull static ResolutionPlan compile(@Nonnull @NonnullElements final Collection<String> attributeIds,
+            @Nonnull final Map<String, AttributeDefinition> attributeDefinitions,
+            @Nonnull final Map<ResolverPlugin<?>, List<ResolverPlugin<?>>> dependencyGraph) {
+
+        final List<AttributeDefinition> requested = new ArrayList<>(attributeIds.size());
+        final List<String> requestedIds = new ArrayList<>(attributeIds.size());
+        final List<ResolverPlugin<?>> order = new ArrayList<>();
+        final List<int[]> guardList = new ArrayList<>();
+        final Set<ResolverPlugin<?>> visited =
+                Collections.newSetFromMap(new IdentityHashMap<ResolverPlugin<?>, Boolean>());
+
+        for (final String attributeId : attributeIds) {
+            final AttributeDefinition definition = attributeDefinitions.get(attributeId);
+            if (null != definition) {
+                requested.add(definition);
+                requestedIds.add(attributeId);
+                visit(definition, dependencyGraph, visited, order, guardList);
+            }
+        }
+
+        return new ResolutionPlan(Collections.unmodifiableList(requested), Collections.unmodifiableList(requestedIds),
+                order.toArray(new ResolverPlugin<?>[order.size()]), guardList.toArray(new int[guardList.size()][]));
+    }
+
+    /**
+     * Add a plugin, preceded by any of its dependencies not already added, to the plan being built.
+     *
+     * @param plugin the plugin
+     * @param dependencyGraph the plugins upon which each plugin depends
+     * @param visited the plugins already added
+     * @param order the plugins, in resolution order
+     * @param guardList the guards for each step
+     */
+    private static void visit(@Nonnull final ResolverPlugin<?> plugin,
+            @Nonnull final Map<ResolverPlugin<?>, List<ResolverPlugin<?>>> dependencyGraph,
+            @Nonnull final Set<ResolverPlugin<?>> visited, @Nonnull final List<ResolverPlugin<?>> order,
+            @Nonnull final List<int[]> guardList) {
+        if (visited.contains(plugin)) {
+            return;
+        }
+
+        final int start = order.size();
+        final List<ResolverPlugin<?>> dependencies = dependencyGraph.get(plugin);
+        if (null != dependencies) {
+            for (final ResolverPlugin<?> dependency : dependencies) {
+                visit(dependency, dependencyGraph, visited, order, guardList);
+            }
+        }
+
+        visited.add(plugin);
+        order.add(plugin);
+        guardList.add(null);
+
+        final int index = order.size() - 1;
+        if (plugin instanceof DataConnectorEx && start < index) {
+            // Any connectors nested within us were completed first, so we go in front of their guards.
+            final int[] existing = guardList.get(start);
+            final int[] updated;
+            if (null == existing) {
+                updated = new int[] {index};
+            } else {
+                updated = new int[existing.length + 1];
+                System.arraycopy(existing, 0, updated, 1, existing.length);
+                updated[0] = index;
+            }
+            guardList.set(start, updated);
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver.dc.http.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.message.BasicHttpResponse;
+import org.opensaml.security.httpclient.HttpClientSecurityParameters;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.attribute.resolver.ResolutionException;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.dc.impl.ExecutableSearchBuilder;
+import net.shibboleth.idp.saml.impl.TestSources;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+/**
+ * Tests for conditional requests made by {@link HTTPDataConnector}, using searches which answer without a server.
+ */
+public class HTTPDataConnectorConditionalTest {
+
+    private HTTPDataConnector connector;
+
+    private AttributeResolutionContext context;
+
+    private int requests;
+
+    @BeforeMethod public void setUp() {
+        connector = new HTTPDataConnector();
+        connector.setId("HTTPConnector");
+        connector.setHttpClient(HttpClientBuilder.create().build());
+        final JSONResponseMappingStrategy mapping = new JSONResponseMappingStrategy();
+        mapping.setAttributePaths(Collections.singletonMap("uid", "uid"));
+        connector.setMappingStrategy(mapping);
+        connector.setEntityTagCacheSize(10);
+
+        context = TestSources.createResolutionContext(TestSources.PRINCIPAL_ID, TestSources.IDP_ENTITY_ID,
+                TestSources.SP_ENTITY_ID);
+        requests = 0;
+    }
+
+    /**
+     * Build a response carrying an entity tag, or a "304 Not Modified" response if that tag was sent.
+     * 
+     * @param principal the principal whose attributes are returned
+     * @param entityTag the entity tag sent, or null
+     * @return the response
+     */
+    private HttpResponse newResponse(final String principal, final String entityTag) {
+        requests++;
+        if ("\"v1\"".equals(entityTag)) {
+            return new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_NOT_MODIFIED, null);
+        }
+        final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, null);
+        response.setHeader(HttpHeaders.ETAG, "\"v1\"");
+        response.setEntity(new StringEntity("{\"uid\":\"" + principal + "\"}", ContentType.APPLICATION_JSON));
+        return response;
+    }
+
+    @Test public void resolveConditional() throws ComponentInitializationException, ResolutionException {
+        connector.setExecutableSearchBuilder(new ExecutableSearchBuilder<HTTPSearch>() {
+            public HTTPSearch build(final AttributeResolutionContext resolutionContext,
+                    final Map<String, List<IdPAttributeValue<?>>> dependencyAttributes) {
+                return new HTTPSearch() {
+                    public String getResultCacheKey() {
+                        return resolutionContext.getPrincipal();
+                    }
+
+                    public Map<String,IdPAttribute> execute(final HttpClient client,
+                            final HttpClientSecurityParameters securityParameters,
+                            final HTTPResponseMappingStrategy mappingStrategy) throws IOException {
+                        return execute(client, securityParameters, mappingStrategy, HttpClientContext.create(), null);
+                    }
+
+                    public Map<String,IdPAttribute> execute(final HttpClient client,
+                            final HttpClientSecurityParameters securityParameters,
+                            final HTTPResponseMappingStrategy mappingStrategy, final HttpClientContext clientContext,
+                            final String entityTag) throws IOException {
+                        return mappingStrategy.handleResponse(newResponse(getResultCacheKey(), entityTag));
+                    }
+                };
+            }
+        });
+        connector.initialize();
+
+        final Map<String,IdPAttribute> first = connector.resolve(context);
+        Assert.assertEquals(first.get("uid").getValues(),
+                Collections.singletonList(new StringAttributeValue(TestSources.PRINCIPAL_ID)));
+        Assert.assertEquals(connector.getNotModifiedCount(), 0);
+
+        final Map<String,IdPAttribute> second = connector.resolve(context);
+        Assert.assertEquals(second, first);
+        Assert.assertEquals(requests, 2);
+        Assert.assertEquals(connector.getResponseCount(), 2);
+        Assert.assertEquals(connector.getNotModifiedCount(), 1);
+    }
+
+    @Test public void resolveUnconditional() throws ComponentInitializationException, ResolutionException {
+        // A search written before conditional requests existed never sends an entity tag.
+        connector.setExecutableSearchBuilder(new ExecutableSearchBuilder<HTTPSearch>() {
+            public HTTPSearch build(final AttributeResolutionContext resolutionContext,
+                    final Map<String, List<IdPAttributeValue<?>>> dependencyAttributes) {
+                return new HTTPSearch() {
+                    public String getResultCacheKey() {
+                        return resolutionContext.getPrincipal();
+                    }
+
+                    public Map<String,IdPAttribute> execute(final HttpClient client,
+                            final HttpClientSecurityParameters securityParameters,
+                            final HTTPResponseMappingStrategy mappingStrategy) throws IOException {
+                        return mappingStrategy.handleResponse(newResponse(getResultCacheKey(), null));
+                    }
+                };
+            }
+        });
+        connector.initialize();
+
+        final Map<String,IdPAttribute> first = connector.resolve(context);
+        Assert.assertEquals(first.get("uid").getValues(),
+                Collections.singletonList(new StringAttributeValue(TestSources.PRINCIPAL_ID)));
+        Assert.assertEquals(connector.resolve(context), first);
+        Assert.assertEquals(requests, 2);
+        Assert.assertEquals(connector.getNotModifiedCount(), 0);
+    }
+
+}
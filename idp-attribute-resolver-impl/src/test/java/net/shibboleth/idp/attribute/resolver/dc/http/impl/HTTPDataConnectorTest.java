@@ -20,6 +20,9 @@ package net.shibboleth.idp.attribute.resolver.dc.http.impl;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.script.ScriptException;
 
@@ -240,6 +243,76 @@ public class HTTPDataConnectorTest {
         Assert.assertEquals(cache.iterator().next(), optional);
     }
     
+    @Test public void resolveAsync() throws ComponentInitializationException, ScriptException, InterruptedException,
+            ExecutionException {
+        final TemplatedURLBuilder builder = new TemplatedURLBuilder();
+        builder.setTemplateText(TEST_URL);
+        builder.setVelocityEngine(VelocityEngine.newVelocityEngine());
+        builder.initialize();
+        connector.setExecutableSearchBuilder(builder);
+        
+        final ScriptedResponseMappingStrategy mapping =
+                ScriptedResponseMappingStrategy.resourceScript(
+                        ResourceHelper.of(new ClassPathResource((TestSupport.isJavaV8OrLater() ? SCRIPT_PATH_V8 : SCRIPT_PATH) + "test.js")));
+        mapping.setLogPrefix(TEST_CONNECTOR_NAME + ":");
+        mapping.setAcceptStatuses(Collections.singleton(HttpStatus.SC_OK));
+        mapping.setAcceptTypes(Collections.singleton("application/json"));
+        connector.setMappingStrategy(mapping);
+        
+        final TestCache cache = new TestCache();
+        connector.setResultsCache(cache);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        connector.setAsyncExecutor(executor);
+        connector.initialize();
+
+        final AttributeResolutionContext context =
+                TestSources.createResolutionContext(TestSources.PRINCIPAL_ID, TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID);
+        
+        try {
+            final Map<String,IdPAttribute> attrs = connector.resolveAsync(context).toCompletableFuture().get();
+            Assert.assertEquals(attrs.size(), 2);
+            Assert.assertEquals(attrs.get("foo").getValues().get(0).getValue(), "foo1");
+            Assert.assertTrue(cache.size() == 1);
+            Assert.assertEquals(cache.iterator().next(), attrs);
+            
+            Assert.assertSame(connector.resolveAsync(context).toCompletableFuture().get(), attrs);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void resolveAsyncMissing() throws ComponentInitializationException, ScriptException,
+            InterruptedException {
+        final TemplatedURLBuilder builder = new TemplatedURLBuilder();
+        builder.setTemplateText("https://shibboleth.net/test.json");
+        builder.setVelocityEngine(VelocityEngine.newVelocityEngine());
+        builder.initialize();
+        connector.setExecutableSearchBuilder(builder);
+        
+        final ScriptedResponseMappingStrategy mapping =
+                ScriptedResponseMappingStrategy.resourceScript(
+                        ResourceHelper.of(new ClassPathResource((TestSupport.isJavaV8OrLater() ? SCRIPT_PATH_V8 : SCRIPT_PATH) + "test.js")));
+        mapping.setLogPrefix(TEST_CONNECTOR_NAME + ":");
+        mapping.setAcceptStatuses(Collections.singleton(HttpStatus.SC_OK));
+        connector.setMappingStrategy(mapping);
+
+        connector.initialize();
+        
+        final AttributeResolutionContext context =
+                TestSources.createResolutionContext(TestSources.PRINCIPAL_ID, TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID);
+        
+        try {
+            connector.resolveAsync(context).toCompletableFuture().get();
+            Assert.fail("Resolution should have failed");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ResolutionException);
+        }
+        Assert.assertTrue(connector.getLastFail() > 0);
+    }
+    
     @Test(enabled=false) public void testPOST() throws ComponentInitializationException, ResolutionException, ScriptException, IOException {
         final TemplatedBodyBuilder builder = new TemplatedBodyBuilder();
         builder.setURLTemplateText("https://shibboleth.net/cgi-bin/_frobnitz.cgi");
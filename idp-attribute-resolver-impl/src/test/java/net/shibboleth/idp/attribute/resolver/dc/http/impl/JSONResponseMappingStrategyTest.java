@@ -0,0 +1,124 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver.dc.http.impl;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+
+/**
+ * Tests for {@link JSONResponseMappingStrategy}.
+ */
+public class JSONResponseMappingStrategyTest {
+
+    private static final String PROFILE = "{\"id\":\"jdoe\",\"name\":{\"given\":\"John\",\"family\":\"Doe\"},"
+            + "\"emails\":[\"jdoe@example.org\",\"john@example.org\"],"
+            + "\"groups\":[{\"name\":\"staff\",\"id\":1},{\"name\":\"faculty\",\"id\":2}],"
+            + "\"photo\":{\"data\":\"AAAA\",\"name\":\"ignored\"},\"active\":true,\"manager\":null}";
+
+    private JSONResponseMappingStrategy strategy;
+
+    @BeforeMethod public void setUp() {
+        strategy = new JSONResponseMappingStrategy();
+        final Map<String,String> paths = new HashMap<>();
+        paths.put("uid", "id");
+        paths.put("givenName", "name.given");
+        paths.put("mail", "emails");
+        paths.put("group", "groups.name");
+        paths.put("groupId", "groups.id");
+        paths.put("active", "active");
+        paths.put("manager", "manager");
+        paths.put("missing", "name.middle");
+        strategy.setAttributePaths(paths);
+    }
+
+    private HttpResponse response(final int status, final String body, final ContentType type) {
+        final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+        response.setEntity(new StringEntity(body, type));
+        return response;
+    }
+
+    @Test public void map() throws IOException {
+        final Map<String,IdPAttribute> results =
+                strategy.handleResponse(response(HttpStatus.SC_OK, PROFILE, ContentType.APPLICATION_JSON));
+
+        Assert.assertEquals(results.size(), 6);
+        Assert.assertEquals(results.get("uid").getValues(),
+                Collections.singletonList(new StringAttributeValue("jdoe")));
+        Assert.assertEquals(results.get("givenName").getValues(),
+                Collections.singletonList(new StringAttributeValue("John")));
+        Assert.assertEquals(results.get("mail").getValues(), Arrays.asList(
+                new StringAttributeValue("jdoe@example.org"), new StringAttributeValue("john@example.org")));
+        Assert.assertEquals(results.get("group").getValues(), Arrays.asList(
+                new StringAttributeValue("staff"), new StringAttributeValue("faculty")));
+        Assert.assertEquals(results.get("groupId").getValues(), Arrays.asList(
+                new StringAttributeValue("1"), new StringAttributeValue("2")));
+        Assert.assertEquals(results.get("active").getValues(),
+                Collections.singletonList(new StringAttributeValue("true")));
+        Assert.assertFalse(results.containsKey("manager"));
+        Assert.assertFalse(results.containsKey("missing"));
+    }
+
+    @Test public void mapArray() throws IOException {
+        final Map<String,String> paths = new HashMap<>();
+        paths.put("name", "name");
+        strategy.setAttributePaths(paths);
+
+        final Map<String,IdPAttribute> results = strategy.handleResponse(response(HttpStatus.SC_OK,
+                "[{\"name\":\"foo\",\"values\":[\"foo1\"]},{\"name\":\"bar\",\"values\":[\"bar1\",\"bar2\"]}]",
+                ContentType.APPLICATION_JSON));
+
+        Assert.assertEquals(results.size(), 1);
+        Assert.assertEquals(results.get("name").getValues(), Arrays.asList(
+                new StringAttributeValue("foo"), new StringAttributeValue("bar")));
+    }
+
+    @Test(expectedExceptions = IOException.class) public void badStatus() throws IOException {
+        strategy.handleResponse(response(HttpStatus.SC_NOT_FOUND, PROFILE, ContentType.APPLICATION_JSON));
+    }
+
+    @Test(expectedExceptions = IOException.class) public void badType() throws IOException {
+        strategy.setAcceptTypes(Collections.singletonList("application/json"));
+        strategy.handleResponse(response(HttpStatus.SC_OK, PROFILE, ContentType.TEXT_PLAIN));
+    }
+
+    @Test(expectedExceptions = IOException.class) public void badLength() throws IOException {
+        strategy.setMaxLength(10);
+        strategy.handleResponse(response(HttpStatus.SC_OK, PROFILE, ContentType.APPLICATION_JSON));
+    }
+
+    @Test(expectedExceptions = IOException.class) public void malformed() throws IOException {
+        strategy.handleResponse(response(HttpStatus.SC_OK, "{\"id\":", ContentType.APPLICATION_JSON));
+    }
+
+}
@@ -0,0 +1,348 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver.dc.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.attribute.resolver.AbstractDataConnector;
+import net.shibboleth.idp.attribute.resolver.CircuitBreaker;
+import net.shibboleth.idp.attribute.resolver.CircuitBreaker.State;
+import net.shibboleth.idp.attribute.resolver.CircuitBreakerOpenException;
+import net.shibboleth.idp.attribute.resolver.ResolutionException;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
+import net.shibboleth.idp.attribute.resolver.dc.MappingStrategy;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.cache.CacheBuilder;
+
+/** Tests for {@link AbstractSearchDataConnector}. */
+public class AbstractSearchDataConnectorTest {
+
+    private CountingDataConnector connector;
+
+    private AttributeResolutionContext context;
+
+    @BeforeMethod public void setUp() {
+        connector = new CountingDataConnector();
+        connector.setId("Counting");
+        connector.setValidator(() -> {});
+        connector.setMappingStrategy(results -> null);
+        connector.setExecutableSearchBuilder((resolutionContext, dependencyAttributes) -> () -> "key");
+        connector.setResultsCache(CacheBuilder.newBuilder().<String, Map<String, IdPAttribute>>build());
+
+        context = new AttributeResolutionContext();
+        context.getSubcontext(AttributeResolverWorkContext.class, true);
+    }
+
+    @Test public void coalesceSearches() throws Exception {
+        connector.setCoalesceSearches(true);
+        connector.initialize();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Map<String, IdPAttribute>>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(() -> connector.resolve(context)));
+            }
+            Assert.assertTrue(connector.searching.await(10, TimeUnit.SECONDS));
+            // Give the other callers time to find the search in progress.
+            Thread.sleep(100);
+            connector.release.countDown();
+
+            for (final Future<Map<String, IdPAttribute>> result : results) {
+                Assert.assertEquals(result.get().get("count").getValues().get(0).getValue(), "1");
+            }
+            Assert.assertEquals(connector.count.get(), 1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void coalescedSearchTimeout() throws Exception {
+        connector.setCoalesceSearches(true);
+        connector.setCoalescedSearchTimeout(100);
+        connector.initialize();
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Map<String, IdPAttribute>> first = executor.submit(() -> connector.resolve(context));
+            Assert.assertTrue(connector.searching.await(10, TimeUnit.SECONDS));
+            try {
+                connector.resolve(context);
+                Assert.fail("Waiting for a hung search should time out");
+            } catch (final ResolutionException e) {
+                Assert.assertTrue(e.getMessage().contains("Timed out waiting for search"));
+            }
+
+            connector.release.countDown();
+            Assert.assertEquals(first.get().get("count").getValues().get(0).getValue(), "1");
+            Assert.assertEquals(connector.count.get(), 1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void coalesceAsyncSearches() throws Exception {
+        connector.setCoalesceSearches(true);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        connector.setAsyncExecutor(executor);
+        connector.initialize();
+
+        try {
+            final Future<Map<String, IdPAttribute>> first = connector.resolveAsync(context).toCompletableFuture();
+            Assert.assertTrue(connector.searching.await(10, TimeUnit.SECONDS));
+            final Future<Map<String, IdPAttribute>> second = connector.resolveAsync(context).toCompletableFuture();
+            connector.release.countDown();
+
+            Assert.assertSame(first.get(), second.get());
+            Assert.assertEquals(connector.count.get(), 1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void refreshAfterWrite() throws Exception {
+        connector.setCacheRefreshAfterWrite(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        connector.setAsyncExecutor(executor);
+        connector.release.countDown();
+        connector.initialize();
+
+        try {
+            final Map<String, IdPAttribute> original = connector.resolve(context);
+            Assert.assertEquals(connector.count.get(), 1);
+
+            Thread.sleep(50);
+            // The stale result is used while it is refreshed in the background.
+            Assert.assertSame(connector.resolve(context), original);
+            executor.submit(new Runnable() {
+                @Override public void run() {
+                }
+            }).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(connector.count.get(), 2);
+
+            final Map<String, IdPAttribute> refreshed = connector.resolve(context);
+            Assert.assertEquals(refreshed.get("count").getValues().get(0).getValue(), "2");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void refreshWithoutExecutor() throws ComponentInitializationException, ResolutionException,
+            InterruptedException {
+        connector.setCacheRefreshAfterWrite(1);
+        connector.release.countDown();
+        connector.initialize();
+
+        final Map<String, IdPAttribute> original = connector.resolve(context);
+        Thread.sleep(50);
+        // Nothing to refresh on, so the calling thread is not made to search.
+        Assert.assertSame(connector.resolve(context), original);
+        Assert.assertEquals(connector.count.get(), 1);
+    }
+
+    @Test public void noRefresh() throws ComponentInitializationException, ResolutionException,
+            InterruptedException {
+        connector.release.countDown();
+        connector.initialize();
+
+        final Map<String, IdPAttribute> original = connector.resolve(context);
+        Thread.sleep(50);
+        Assert.assertSame(connector.resolve(context), original);
+        Assert.assertEquals(connector.count.get(), 1);
+    }
+
+    @Test public void cacheHitWhileOpen() throws Exception {
+        final CircuitBreaker breaker = newBreaker(60000);
+        connector.setCircuitBreaker(breaker);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        connector.setAsyncExecutor(executor);
+        connector.release.countDown();
+        connector.initialize();
+
+        try {
+            final Map<String, IdPAttribute> cached = connector.resolve(context);
+            openBreaker(breaker);
+            Assert.assertFalse(AbstractDataConnector.isFailing(connector));
+
+            // Cached results are used without asking the breaker.
+            context.setAllowCachedResults(true);
+            Assert.assertSame(connector.resolve(context), cached);
+            Assert.assertSame(connector.resolveAsync(context).toCompletableFuture().get(), cached);
+            Assert.assertEquals(breaker.getPermittedCount(), 3);
+            Assert.assertEquals(breaker.getRejectedCount(), 0);
+
+            // But searches are still refused.
+            context.setAllowCachedResults(false);
+            try {
+                connector.resolve(context);
+                Assert.fail("Breaker should refuse the search");
+            } catch (final ResolutionException e) {
+                Assert.assertTrue(e.getMessage().contains("Circuit breaker is open"));
+            }
+            Assert.assertEquals(breaker.getRejectedCount(), 1);
+            Assert.assertEquals(connector.count.get(), 3);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void halfOpenProbe() throws Exception {
+        final CircuitBreaker breaker = newBreaker(1);
+        connector.setCircuitBreaker(breaker);
+        connector.release.countDown();
+        connector.initialize();
+
+        final Map<String, IdPAttribute> cached = connector.resolve(context);
+        openBreaker(breaker);
+        Thread.sleep(10);
+
+        context.setAllowCachedResults(true);
+        Assert.assertSame(connector.resolve(context), cached);
+        Assert.assertEquals(breaker.getState(), State.HALF_OPEN, "A cache hit is not a probe");
+
+        context.setAllowCachedResults(false);
+        connector.resolve(context);
+        Assert.assertEquals(breaker.getState(), State.CLOSED);
+        Assert.assertEquals(connector.count.get(), 4);
+    }
+
+    @Test public void refusalPropagated() throws Exception {
+        final CircuitBreaker breaker = newBreaker(60000);
+        connector.setCircuitBreaker(breaker);
+        connector.setPropagateResolutionExceptions(false);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        connector.setAsyncExecutor(executor);
+        connector.release.countDown();
+        connector.initialize();
+
+        try {
+            context.setAllowCachedResults(false);
+            connector.failing = true;
+            Assert.assertNull(connector.resolve(context), "Failure should not be propagated");
+            Assert.assertNull(connector.resolveAsync(context).toCompletableFuture().get(),
+                    "Failure should not be propagated");
+            Assert.assertEquals(breaker.getOpenCount(), 1);
+
+            // A refused search is propagated regardless, so that the resolver can fail over.
+            try {
+                connector.resolve(context);
+                Assert.fail("Breaker should refuse the search");
+            } catch (final CircuitBreakerOpenException e) {
+                // expected
+            }
+            try {
+                connector.resolveAsync(context).toCompletableFuture().get();
+                Assert.fail("Breaker should refuse the search");
+            } catch (final ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof CircuitBreakerOpenException);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Build an initialized breaker which opens after two failed calls.
+     * 
+     * @param openDuration how long the breaker stays open
+     * @return the breaker
+     * @throws ComponentInitializationException if initialization fails
+     */
+    private CircuitBreaker newBreaker(final long openDuration) throws ComponentInitializationException {
+        final CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setId("breaker");
+        breaker.setWindowSize(2);
+        breaker.setMinimumCalls(2);
+        breaker.setOpenDuration(openDuration);
+        breaker.setHalfOpenProbes(1);
+        breaker.initialize();
+        return breaker;
+    }
+
+    /**
+     * Open a breaker by failing two uncached searches.
+     * 
+     * @param breaker the connector's breaker
+     */
+    private void openBreaker(@Nonnull final CircuitBreaker breaker) {
+        context.setAllowCachedResults(false);
+        connector.failing = true;
+        for (int i = 0; i < 2; i++) {
+            try {
+                connector.resolve(context);
+                Assert.fail("Search should fail");
+            } catch (final ResolutionException e) {
+                // expected
+            }
+        }
+        connector.failing = false;
+        Assert.assertEquals(breaker.getOpenCount(), 1);
+    }
+
+    /** Connector which counts its searches, each of which blocks until released. */
+    private static class CountingDataConnector
+            extends AbstractSearchDataConnector<ExecutableSearch, MappingStrategy<Object>> {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        private final CountDownLatch searching = new CountDownLatch(1);
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private volatile boolean failing;
+
+        /** {@inheritDoc} */
+        @Override @Nullable protected Map<String, IdPAttribute> retrieveAttributes(
+                @Nonnull final ExecutableSearch executable) throws ResolutionException {
+            final int current = count.incrementAndGet();
+            searching.countDown();
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                throw new ResolutionException(e);
+            }
+            if (failing) {
+                throw new ResolutionException("Search failed");
+            }
+            final IdPAttribute attribute = new IdPAttribute("count");
+            attribute.setValues(Collections.singletonList(new StringAttributeValue(Integer.toString(current))));
+            return Collections.singletonMap(attribute.getId(), attribute);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver.dc.impl;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import net.shibboleth.idp.attribute.ByteAttributeValue;
+import net.shibboleth.idp.attribute.EmptyAttributeValue;
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.LocalizedStringAttributeValue;
+import net.shibboleth.idp.attribute.ScopedStringAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.attribute.XMLObjectAttributeValue;
+
+import org.opensaml.core.xml.schema.impl.XSStringBuilder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/** Tests for {@link AttributeMapSerializer}. */
+public class AttributeMapSerializerTest {
+
+    private final AttributeMapSerializer serializer = new AttributeMapSerializer();
+
+    @Test public void roundTrip() throws IOException {
+        final IdPAttribute first = new IdPAttribute("first");
+        first.setValues(Arrays.asList(new StringAttributeValue("one"), new ScopedStringAttributeValue("two", "scope"),
+                new LocalizedStringAttributeValue("three", Locale.FRENCH),
+                new LocalizedStringAttributeValue("four", null), new ByteAttributeValue(new byte[] {1, 2, 3}),
+                EmptyAttributeValue.NULL, EmptyAttributeValue.ZERO_LENGTH));
+        first.setDisplayNames(Collections.singletonMap(Locale.ENGLISH, "First"));
+        first.setDisplayDescriptions(Collections.singletonMap(Locale.GERMAN, "Erste"));
+        final IdPAttribute second = new IdPAttribute("second");
+
+        final Map<String, IdPAttribute> attributes = new LinkedHashMap<>();
+        attributes.put(first.getId(), first);
+        attributes.put(second.getId(), second);
+
+        final String serialized = serializer.serialize(attributes);
+        final Map<String, IdPAttribute> result = serializer.deserialize(1, "context", "key", serialized, null);
+
+        Assert.assertEquals(result.keySet(), attributes.keySet());
+        Assert.assertEquals(result.get("first").getValues(), first.getValues());
+        Assert.assertEquals(((ScopedStringAttributeValue) result.get("first").getValues().get(1)).getScope(),
+                "scope");
+        Assert.assertEquals(((LocalizedStringAttributeValue) result.get("first").getValues().get(2)).getValueLocale(),
+                Locale.FRENCH);
+        Assert.assertNull(((LocalizedStringAttributeValue) result.get("first").getValues().get(3)).getValueLocale());
+        Assert.assertEquals(result.get("first").getDisplayNames(), first.getDisplayNames());
+        Assert.assertEquals(result.get("first").getDisplayDescriptions(), first.getDisplayDescriptions());
+        Assert.assertTrue(result.get("second").getValues().isEmpty());
+    }
+
+    @Test public void empty() throws IOException {
+        final String serialized = serializer.serialize(Collections.<String, IdPAttribute>emptyMap());
+        Assert.assertTrue(serializer.deserialize(1, "context", "key", serialized, null).isEmpty());
+    }
+
+    @Test(expectedExceptions = IOException.class) public void unsupportedValue() throws IOException {
+        final IdPAttribute attribute = new IdPAttribute("xml");
+        attribute.setValues(Collections.singletonList(
+                new XMLObjectAttributeValue(new XSStringBuilder().buildObject("urn:test", "test", "t"))));
+        serializer.serialize(Collections.singletonMap(attribute.getId(), attribute));
+    }
+
+    @Test(expectedExceptions = IOException.class) public void truncated() throws IOException {
+        final IdPAttribute attribute = new IdPAttribute("attribute");
+        attribute.setValues(Collections.singletonList(new StringAttributeValue("value")));
+        final String serialized = serializer.serialize(Collections.singletonMap(attribute.getId(), attribute));
+        serializer.deserialize(1, "context", "key", serialized.substring(0, serialized.length() - 8), null);
+    }
+}
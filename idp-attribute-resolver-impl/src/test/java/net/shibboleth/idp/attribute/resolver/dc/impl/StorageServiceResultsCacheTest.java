@@ -0,0 +1,151 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.attribute.resolver.dc.impl;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.cache.CacheLoader;
+
+/** Tests for {@link StorageServiceResultsCache}. */
+public class StorageServiceResultsCacheTest {
+
+    private MemoryStorageService storageService;
+
+    private Map<String, IdPAttribute> result;
+
+    @BeforeMethod public void setUp() throws ComponentInitializationException {
+        storageService = new MemoryStorageService();
+        storageService.setId("test");
+        storageService.setCleanupInterval(0);
+        storageService.initialize();
+
+        final IdPAttribute attribute = new IdPAttribute("attribute");
+        attribute.setValues(Collections.singletonList(new StringAttributeValue("value")));
+        result = Collections.singletonMap(attribute.getId(), attribute);
+    }
+
+    private StorageServiceResultsCache newCache(final long localCacheSize) throws ComponentInitializationException {
+        return newCache(localCacheSize, 4 * 60 * 60 * 1000);
+    }
+
+    private StorageServiceResultsCache newCache(final long localCacheSize, final long timeToLive)
+            throws ComponentInitializationException {
+        final StorageServiceResultsCache cache = new StorageServiceResultsCache();
+        cache.setStorageService(storageService);
+        cache.setStorageContext("test");
+        cache.setLocalCacheSize(localCacheSize);
+        cache.setTimeToLive(timeToLive);
+        cache.initialize();
+        return cache;
+    }
+
+    @Test public void shared() throws ComponentInitializationException {
+        final StorageServiceResultsCache first = newCache(100);
+        final StorageServiceResultsCache second = newCache(0);
+
+        Assert.assertNull(second.getIfPresent("key"));
+        first.put("key", result);
+        Assert.assertSame(first.getIfPresent("key"), result);
+
+        final Map<String, IdPAttribute> shared = second.getIfPresent("key");
+        Assert.assertEquals(shared.keySet(), result.keySet());
+        Assert.assertEquals(shared.get("attribute").getValues(), result.get("attribute").getValues());
+        Assert.assertEquals(second.stats().hitCount(), 1);
+        Assert.assertEquals(second.stats().missCount(), 1);
+    }
+
+    @Test public void invalidate() throws ComponentInitializationException {
+        final StorageServiceResultsCache first = newCache(100);
+        final StorageServiceResultsCache second = newCache(100);
+
+        first.put("key", result);
+        Assert.assertNotNull(second.getIfPresent("key"));
+
+        second.invalidateAll();
+        Assert.assertEquals(second.size(), 0);
+        Assert.assertNotNull(second.getIfPresent("key"));
+
+        first.invalidate("key");
+        Assert.assertNull(first.getIfPresent("key"));
+    }
+
+    @Test public void tooLarge() throws ComponentInitializationException {
+        final StorageServiceResultsCache cache = new StorageServiceResultsCache();
+        cache.setStorageService(storageService);
+        cache.setLocalCacheSize(0);
+        cache.setMaximumValueSize(4);
+        cache.initialize();
+
+        cache.put("key", result);
+        Assert.assertNull(cache.getIfPresent("key"));
+    }
+
+    @Test public void localCopyExpiresWithRecord() throws ComponentInitializationException, InterruptedException {
+        final StorageServiceResultsCache first = newCache(0, 50);
+        final StorageServiceResultsCache second = newCache(100);
+
+        first.put("key", result);
+        Assert.assertNotNull(second.getIfPresent("key"));
+        Assert.assertEquals(second.size(), 1);
+
+        Thread.sleep(100);
+        Assert.assertNull(second.getIfPresent("key"), "Local copy outlived the storage record");
+    }
+
+    @Test public void nullLoader() throws Exception {
+        final StorageServiceResultsCache cache = newCache(100);
+        try {
+            cache.get("key", () -> null);
+            Assert.fail();
+        } catch (final CacheLoader.InvalidCacheLoadException e) {
+            // expected
+        }
+        Assert.assertNull(cache.getIfPresent("key"));
+
+        Assert.assertSame(cache.get("key", () -> result), result);
+        Assert.assertSame(cache.get("key", () -> null), result);
+    }
+
+    @Test public void asMap() throws ComponentInitializationException {
+        final StorageServiceResultsCache cache = newCache(100);
+        Assert.assertTrue(cache.asMap().isEmpty());
+
+        cache.put("key", result);
+        final ConcurrentMap<String, Map<String, IdPAttribute>> map = cache.asMap();
+        Assert.assertEquals(map.size(), 1);
+        Assert.assertSame(map.get("key"), result);
+        try {
+            map.remove("key");
+            Assert.fail();
+        } catch (final UnsupportedOperationException e) {
+            // expected
+        }
+        Assert.assertSame(cache.getIfPresent("key"), result);
+    }
+}
@@ -18,6 +18,8 @@
 package net.shibboleth.idp.attribute.resolver.dc.ldap.impl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -219,6 +221,94 @@ public class LDAPDataConnectorTest {
         resolveMulti(builder);
     }
 
+    @Test public void resolveBatch() throws ComponentInitializationException, ResolutionException {
+        final LDAPDataConnector connector = createLdapDataConnector(null, null);
+        connector.setBatchSize(2);
+        final TestCache cache = new TestCache();
+        connector.setResultsCache(cache);
+        connector.initialize();
+
+        final List<AttributeResolutionContext> contexts = new ArrayList<>();
+        for (final String principal : new String[] {TestSources.PRINCIPAL_ID, "PAUL_THE_PRINCIPAL", "NOBODY",
+                "PHILIP_THE_PRINCIPAL", TestSources.PRINCIPAL_ID.toLowerCase(),}) {
+            contexts.add(TestSources.createResolutionContext(principal, TestSources.IDP_ENTITY_ID,
+                    TestSources.SP_ENTITY_ID));
+        }
+        final List<Map<String, IdPAttribute>> results = connector.resolveBatch(contexts);
+
+        Assert.assertEquals(results.size(), 5);
+        Assert.assertEquals(results.get(0).get("uid").getValues(),
+                Collections.singletonList(new StringAttributeValue(TestSources.PRINCIPAL_ID)));
+        Assert.assertEquals(results.get(0).get("mail").getValues().size(), 2);
+        Assert.assertEquals(results.get(1).get("uid").getValues(),
+                Collections.singletonList(new StringAttributeValue("PAUL_THE_PRINCIPAL")));
+        Assert.assertNull(results.get(2));
+        Assert.assertEquals(results.get(3).get("uid").getValues(),
+                Collections.singletonList(new StringAttributeValue("PHILIP_THE_PRINCIPAL")));
+        Assert.assertEquals(results.get(4).get("uid").getValues(), results.get(0).get("uid").getValues());
+        Assert.assertEquals(cache.size(), 5);
+
+        // The same results come back from the cache.
+        final List<Map<String, IdPAttribute>> cached = connector.resolveBatch(contexts.subList(0, 2));
+        Assert.assertSame(cached.get(0), results.get(0));
+        Assert.assertSame(cached.get(1), results.get(1));
+    }
+
+    @Test public void resolveBatchCase() throws ComponentInitializationException, ResolutionException {
+        final LDAPDataConnector connector = createLdapDataConnector(null, null);
+        connector.initialize();
+
+        // Differing only by case, so searched individually; the directory ignores case, so both find the entry.
+        final List<Map<String, IdPAttribute>> results = connector.resolveBatch(Arrays.asList(
+                TestSources.createResolutionContext(TestSources.PRINCIPAL_ID, TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID),
+                TestSources.createResolutionContext(TestSources.PRINCIPAL_ID.toLowerCase(), TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID),
+                TestSources.createResolutionContext("paul_the_principal", TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID)));
+
+        Assert.assertEquals(results.get(0).get("uid").getValues(),
+                Collections.singletonList(new StringAttributeValue(TestSources.PRINCIPAL_ID)));
+        Assert.assertEquals(results.get(1).get("uid").getValues(), results.get(0).get("uid").getValues());
+        Assert.assertEquals(results.get(2).get("uid").getValues(),
+                Collections.singletonList(new StringAttributeValue("PAUL_THE_PRINCIPAL")));
+    }
+
+    @Test public void resolveBatchCaseIgnored() throws ComponentInitializationException, ResolutionException {
+        final LDAPDataConnector connector = createLdapDataConnector(null, null);
+        connector.setCaseIgnoreAttributes(Collections.singleton(" UID "));
+        connector.initialize();
+        Assert.assertEquals(connector.getCaseIgnoreAttributes(), Collections.singleton("uid"));
+
+        final List<Map<String, IdPAttribute>> results = connector.resolveBatch(Arrays.asList(
+                TestSources.createResolutionContext("peter_the_principal", TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID),
+                TestSources.createResolutionContext("paul_the_principal", TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID)));
+
+        Assert.assertEquals(results.get(0).get("uid").getValues(),
+                Collections.singletonList(new StringAttributeValue("PETER_THE_PRINCIPAL")));
+        Assert.assertEquals(results.get(1).get("uid").getValues(),
+                Collections.singletonList(new StringAttributeValue("PAUL_THE_PRINCIPAL")));
+    }
+
+    @Test public void resolveBatchNotCombinable() throws ComponentInitializationException, ResolutionException {
+        final LDAPDataConnector connector = createLdapDataConnector(
+                newParameterizedExecutableSearchFilterBuilder("(&(uid={principalName})(sn=Principal))"), null);
+        connector.initialize();
+
+        final List<Map<String, IdPAttribute>> results = connector.resolveBatch(Arrays.asList(
+                TestSources.createResolutionContext(TestSources.PRINCIPAL_ID, TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID),
+                TestSources.createResolutionContext("PAUL_THE_PRINCIPAL", TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID)));
+
+        Assert.assertEquals(results.get(0).get("uid").getValues(),
+                Collections.singletonList(new StringAttributeValue(TestSources.PRINCIPAL_ID)));
+        Assert.assertEquals(results.get(1).get("uid").getValues(),
+                Collections.singletonList(new StringAttributeValue("PAUL_THE_PRINCIPAL")));
+    }
+
     @Test public void resolveWithDepends() throws ComponentInitializationException, ResolutionException {
         final ParameterizedExecutableSearchFilterBuilder builder =
                 newParameterizedExecutableSearchFilterBuilder("(&(cn={principalName})(eduPersonAffiliation={affiliation[0]}))");
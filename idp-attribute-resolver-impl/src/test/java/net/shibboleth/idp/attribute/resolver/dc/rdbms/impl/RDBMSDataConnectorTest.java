@@ -17,8 +17,14 @@
 
 package net.shibboleth.idp.attribute.resolver.dc.rdbms.impl;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -232,6 +238,220 @@ public class RDBMSDataConnectorTest {
         Assert.assertEquals(query, "SELECT userid FROM people WHERE userid='McHale''s Navy'");
     }
 
+    @Test public void bindTemplate() throws ComponentInitializationException, ResolutionException {
+        final TemplatedExecutableStatementBuilder builder = new TemplatedExecutableStatementBuilder();
+        builder.setTemplateText("SELECT userid FROM people WHERE userid = ${resolutionContext.principal} AND affiliation IN (${affiliation})");
+        builder.setVelocityEngine(VelocityEngine.newVelocityEngine());
+        builder.setBindParameters(true);
+        builder.initialize();
+        final AttributeResolutionContext context =
+                TestSources.createResolutionContext("McHale's Navy", TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID);
+        final Map<String, List<IdPAttributeValue<?>>> dependsAttributes = new HashMap<>();
+        final List<IdPAttributeValue<?>> attributeValues = new ArrayList<>();
+        attributeValues.add(new StringAttributeValue("student"));
+        attributeValues.add(new StringAttributeValue("member"));
+        dependsAttributes.put("affiliation", attributeValues);
+        final ParameterizedExecutableStatement statement =
+                (ParameterizedExecutableStatement) builder.build(context, dependsAttributes);
+        Assert.assertEquals(statement.getSQL(), "SELECT userid FROM people WHERE userid = ? AND affiliation IN (?, ?)");
+        Assert.assertEquals(statement.getParameters(), Arrays.asList("McHale's Navy", "student", "member"));
+    }
+
+    @Test public void resolveBatch() throws ComponentInitializationException, ResolutionException {
+        final TemplatedExecutableStatementBuilder builder = new TemplatedExecutableStatementBuilder();
+        builder.setTemplateText("SELECT userid, name FROM groups WHERE userid = ${resolutionContext.principal}");
+        builder.setVelocityEngine(VelocityEngine.newVelocityEngine());
+        builder.setBindParameters(true);
+        builder.initialize();
+        final RDBMSDataConnector connector = createGroupRdbmsDataConnector(builder, null);
+        connector.setBatchKeyColumn("userid");
+        connector.setBatchSize(2);
+        final TestCache cache = new TestCache();
+        connector.setResultsCache(cache);
+        connector.initialize();
+
+        final List<AttributeResolutionContext> contexts = new ArrayList<>();
+        for (final String principal : new String[] {TestSources.PRINCIPAL_ID, "PAUL_THE_PRINCIPAL", "NOBODY",
+                TestSources.PRINCIPAL_ID,}) {
+            contexts.add(TestSources.createResolutionContext(principal, TestSources.IDP_ENTITY_ID,
+                    TestSources.SP_ENTITY_ID));
+        }
+        final List<Map<String, IdPAttribute>> results = connector.resolveBatch(contexts);
+
+        Assert.assertEquals(results.size(), 4);
+        Assert.assertEquals(results.get(0).get("USERID").getValues().size(), 2);
+        Assert.assertEquals(results.get(0).get("NAME").getValues().size(), 2);
+        Assert.assertTrue(results.get(0).get("NAME").getValues().contains(new StringAttributeValue("group1")));
+        Assert.assertTrue(results.get(0).get("NAME").getValues().contains(new StringAttributeValue("group2")));
+        Assert.assertNull(results.get(1));
+        Assert.assertNull(results.get(2));
+        Assert.assertEquals(results.get(3), results.get(0));
+
+        // The same results come back from the cache.
+        final List<Map<String, IdPAttribute>> cached = connector.resolveBatch(contexts.subList(0, 1));
+        Assert.assertSame(cached.get(0), results.get(0));
+    }
+
+    @Test public void resolveBatchFailedQuery() throws ComponentInitializationException, ResolutionException {
+        final TemplatedExecutableStatementBuilder builder = new TemplatedExecutableStatementBuilder();
+        builder.setTemplateText("SELECT userid, name FROM groups WHERE userid = ${resolutionContext.principal}");
+        builder.setVelocityEngine(VelocityEngine.newVelocityEngine());
+        builder.setBindParameters(true);
+        builder.initialize();
+        final RDBMSDataConnector connector = createGroupRdbmsDataConnector(builder, null);
+        connector.setDataSource(newBatchRefusingDataSource(datasource));
+        connector.setBatchKeyColumn("userid");
+        connector.initialize();
+
+        final List<Map<String, IdPAttribute>> results = connector.resolveBatch(Arrays.asList(
+                TestSources.createResolutionContext(TestSources.PRINCIPAL_ID, TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID),
+                TestSources.createResolutionContext("PAUL_THE_PRINCIPAL", TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID)));
+
+        Assert.assertEquals(results.get(0).get("NAME").getValues().size(), 2);
+        Assert.assertNull(results.get(1));
+    }
+
+    @Test public void resolveBatchCaseVariants() throws ComponentInitializationException, ResolutionException {
+        final TemplatedExecutableStatementBuilder builder = new TemplatedExecutableStatementBuilder();
+        builder.setTemplateText("SELECT userid, name FROM groups WHERE userid = ${resolutionContext.principal}");
+        builder.setVelocityEngine(VelocityEngine.newVelocityEngine());
+        builder.setBindParameters(true);
+        builder.initialize();
+        final RDBMSDataConnector connector = createGroupRdbmsDataConnector(builder, null);
+        final List<String> queries = new ArrayList<>();
+        connector.setDataSource(newRecordingDataSource(datasource, queries));
+        connector.setBatchKeyColumn("userid");
+        connector.initialize();
+
+        final List<Map<String, IdPAttribute>> results = connector.resolveBatch(Arrays.asList(
+                TestSources.createResolutionContext(TestSources.PRINCIPAL_ID, TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID),
+                TestSources.createResolutionContext(TestSources.PRINCIPAL_ID.toLowerCase(),
+                        TestSources.IDP_ENTITY_ID, TestSources.SP_ENTITY_ID),
+                TestSources.createResolutionContext("PAUL_THE_PRINCIPAL", TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID)));
+
+        // The case variant is kept out of the batch, which a case-insensitive collation would confuse.
+        Assert.assertEquals(queries.size(), 2);
+        Assert.assertTrue(queries.get(0).endsWith("= ?"));
+        Assert.assertTrue(queries.get(1).contains(" IN (?, ?)"));
+        Assert.assertEquals(results.get(0).get("NAME").getValues().size(), 2);
+        Assert.assertNull(results.get(1));
+        Assert.assertNull(results.get(2));
+    }
+
+    @Test public void combineStatements() {
+        final ParameterizedExecutableStatement equal =
+                new ParameterizedExecutableStatement("SELECT name FROM groups WHERE userid = ?",
+                        Collections.<Object>singletonList("a"), 5);
+        final ParameterizedExecutableStatement combined = ParameterizedExecutableStatement.combine(Arrays.asList(
+                equal, new ParameterizedExecutableStatement("SELECT name FROM groups WHERE userid = ?",
+                        Collections.<Object>singletonList("b"), 5)));
+        Assert.assertEquals(combined.getSQL(), "SELECT name FROM groups WHERE userid IN (?, ?)");
+        Assert.assertEquals(combined.getParameters(), Arrays.asList("a", "b"));
+
+        for (final String operator : new String[] {">=", "<=", "!=",}) {
+            final String sql = "SELECT name FROM groups WHERE userid " + operator + " ?";
+            Assert.assertNull(ParameterizedExecutableStatement.combine(Arrays.asList(
+                    new ParameterizedExecutableStatement(sql, Collections.<Object>singletonList("a"), 5),
+                    new ParameterizedExecutableStatement(sql, Collections.<Object>singletonList("b"), 5))),
+                    operator);
+        }
+    }
+
+    @Test public void resolveBatchNotAssignable() throws ComponentInitializationException, ResolutionException {
+        final TemplatedExecutableStatementBuilder builder = new TemplatedExecutableStatementBuilder();
+        builder.setTemplateText("SELECT userid, name FROM people WHERE userid = ${resolutionContext.principal}");
+        builder.setVelocityEngine(VelocityEngine.newVelocityEngine());
+        builder.setBindParameters(true);
+        builder.initialize();
+        final RDBMSDataConnector connector = createUserRdbmsDataConnector(builder, null);
+        connector.setBatchKeyColumn("name");
+        connector.initialize();
+
+        final List<Map<String, IdPAttribute>> results = connector.resolveBatch(Arrays.asList(
+                TestSources.createResolutionContext(TestSources.PRINCIPAL_ID, TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID),
+                TestSources.createResolutionContext("PAUL_THE_PRINCIPAL", TestSources.IDP_ENTITY_ID,
+                        TestSources.SP_ENTITY_ID)));
+
+        Assert.assertEquals(results.get(0).get("USERID").getValues(),
+                Collections.singletonList(new StringAttributeValue(TestSources.PRINCIPAL_ID)));
+        Assert.assertEquals(results.get(1).get("USERID").getValues(),
+                Collections.singletonList(new StringAttributeValue("PAUL_THE_PRINCIPAL")));
+    }
+
+    /**
+     * Wrap a data source so that any query containing an <code>IN</code> clause fails.
+     * 
+     * @param dataSource the data source to wrap
+     * @return the wrapped data source
+     */
+    private DataSource newBatchRefusingDataSource(@Nonnull final DataSource dataSource) {
+        return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {DataSource.class},
+                (proxy, method, args) -> {
+                    final Object result = invoke(dataSource, method, args);
+                    if (!(result instanceof Connection)) {
+                        return result;
+                    }
+                    final Connection connection = (Connection) result;
+                    return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+                            (connectionProxy, connectionMethod, connectionArgs) -> {
+                                if ("prepareStatement".equals(connectionMethod.getName())
+                                        && String.valueOf(connectionArgs[0]).contains(" IN (")) {
+                                    throw new SQLException("Batch query refused");
+                                }
+                                return invoke(connection, connectionMethod, connectionArgs);
+                            });
+                });
+    }
+
+    /**
+     * Wrap a data source so that the SQL of each statement prepared is recorded.
+     * 
+     * @param dataSource the data source to wrap
+     * @param queries where to record the SQL
+     * @return the wrapped data source
+     */
+    private DataSource newRecordingDataSource(@Nonnull final DataSource dataSource,
+            @Nonnull final List<String> queries) {
+        return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {DataSource.class},
+                (proxy, method, args) -> {
+                    final Object result = invoke(dataSource, method, args);
+                    if (!(result instanceof Connection)) {
+                        return result;
+                    }
+                    final Connection connection = (Connection) result;
+                    return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+                            (connectionProxy, connectionMethod, connectionArgs) -> {
+                                if ("prepareStatement".equals(connectionMethod.getName())) {
+                                    queries.add(String.valueOf(connectionArgs[0]));
+                                }
+                                return invoke(connection, connectionMethod, connectionArgs);
+                            });
+                });
+    }
+
+    /**
+     * Invoke a method, unwrapping any exception it throws.
+     * 
+     * @param target the object on which to invoke the method
+     * @param method the method
+     * @param args the arguments
+     * @return the result
+     * @throws Throwable whatever the method throws
+     */
+    private static Object invoke(final Object target, final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
     @Test public void resolve() throws ComponentInitializationException, ResolutionException {
         final RDBMSDataConnector connector = createUserRdbmsDataConnector(null, null);
         connector.initialize();
@@ -24,6 +24,12 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -39,6 +45,7 @@ import net.shibboleth.idp.attribute.IdPAttribute;
 import net.shibboleth.idp.attribute.IdPAttributeValue;
 import net.shibboleth.idp.attribute.StringAttributeValue;
 import net.shibboleth.idp.attribute.resolver.AbstractAttributeDefinition;
+import net.shibboleth.idp.attribute.resolver.AbstractDataConnector;
 import net.shibboleth.idp.attribute.resolver.AttributeDefinition;
 import net.shibboleth.idp.attribute.resolver.AttributeResolver;
 import net.shibboleth.idp.attribute.resolver.DataConnector;
@@ -51,6 +58,7 @@ import net.shibboleth.idp.attribute.resolver.ResolverDataConnectorDependency;
 import net.shibboleth.idp.attribute.resolver.ResolverPluginDependency;
 import net.shibboleth.idp.attribute.resolver.ad.impl.SimpleAttributeDefinition;
 import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
 import net.shibboleth.idp.authn.context.SubjectCanonicalizationContext;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import net.shibboleth.utilities.java.support.annotation.constraint.NullableElements;
@@ -902,6 +910,200 @@ public class AttributeResolverImplTest {
         Assert.assertEquals(resolver.canonicalize(null), "Principal");
     }
 
+    @Test public void resolveFromCachedPlan() throws Exception {
+        final IdPAttribute i0Val = new IdPAttribute("Ztr");
+        i0Val.setValues(Collections.singleton(new StringAttributeValue("value0")));
+        final IdPAttribute i1Val = new IdPAttribute("Atr");
+        i1Val.setValues(Collections.singleton(new StringAttributeValue("value1")));
+        final IdPAttribute i2Val = new IdPAttribute("Atr");
+        i2Val.setValues(Collections.singleton(new StringAttributeValue("value2")));
+
+        final MockDataConnector dc0 = new MockDataConnector("dc0", Collections.singletonMap("Ztr", i0Val));
+        dc0.initialize();
+        final MockDataConnector dc1 = new MockDataConnector("dc1", Collections.singletonMap("Atr", i1Val));
+        dc1.setDependencies(Collections.singleton((ResolverPluginDependency) new ResolverDataConnectorDependency("dc0")));
+        dc1.setFailoverDataConnectorId("dc2");
+        dc1.setNoRetryDelay(60000);
+        dc1.initialize();
+        final MockDataConnector dc2 = new MockDataConnector("dc2", Collections.singletonMap("Atr", i2Val));
+        dc2.initialize();
+
+        final SimpleAttributeDefinition ad1 = new SimpleAttributeDefinition();
+        ad1.setId("output1");
+        ad1.setSourceAttributeId("Atr");
+        ad1.setDependencies(Collections.singleton((ResolverPluginDependency) new ResolverDataConnectorDependency("dc1")));
+        ad1.initialize();
+
+        final SimpleAttributeDefinition ad2 = new SimpleAttributeDefinition();
+        ad2.setId("output2");
+        ad2.setSourceAttributeId("Ztr");
+        ad2.setDependencies(Collections.singleton((ResolverPluginDependency) new ResolverDataConnectorDependency("dc0")));
+        ad2.initialize();
+
+        final AttributeResolverImpl resolver = newAttributeResolverImpl("foo",
+                Arrays.asList((AttributeDefinition) ad1, ad2), Arrays.asList((DataConnector) dc0, dc1, dc2), null);
+        resolver.initialize();
+
+        AttributeResolutionContext context = new AttributeResolutionContext();
+        context.setRequestedIdPAttributeNames(Arrays.asList("output1", "output2"));
+        resolver.resolveAttributes(context);
+        Assert.assertEquals(context.getResolvedIdPAttributes().get("output1").getValues().iterator().next(),
+                new StringAttributeValue("value1"));
+        Assert.assertEquals(context.getResolvedIdPAttributes().get("output2").getValues().iterator().next(),
+                new StringAttributeValue("value0"));
+
+        dc1.setFailure(true);
+        context = new AttributeResolutionContext();
+        context.setRequestedIdPAttributeNames(Arrays.asList("output2", "output1"));
+        resolver.resolveAttributes(context);
+        Assert.assertEquals(context.getResolvedIdPAttributes().get("output1").getValues().iterator().next(),
+                new StringAttributeValue("value2"));
+
+        // dc1 is now skipped, but dc0 must still be resolved for output2.
+        context = new AttributeResolutionContext();
+        context.setRequestedIdPAttributeNames(Arrays.asList("output1", "output2"));
+        resolver.resolveAttributes(context);
+        Assert.assertEquals(context.getResolvedIdPAttributes().get("output1").getValues().iterator().next(),
+                new StringAttributeValue("value2"));
+        Assert.assertEquals(context.getResolvedIdPAttributes().get("output2").getValues().iterator().next(),
+                new StringAttributeValue("value0"));
+
+        context = new AttributeResolutionContext();
+        resolver.resolveAttributes(context);
+        Assert.assertEquals(context.getResolvedIdPAttributes().size(), 2);
+    }
+
+    @Test public void resolveInParallel() throws Exception {
+        final IdPAttribute i1Val = new IdPAttribute("Atr");
+        i1Val.setValues(Collections.singleton(new StringAttributeValue("value1")));
+        final IdPAttribute i2Val = new IdPAttribute("Btr");
+        i2Val.setValues(Collections.singleton(new StringAttributeValue("value2")));
+
+        // Neither connector can complete until both are running at the same time.
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final DataConnector dc1 =
+                new SlowDataConnector("dc1", Collections.singletonMap("Atr", i1Val), 10000, barrier);
+        final DataConnector dc2 =
+                new SlowDataConnector("dc2", Collections.singletonMap("Btr", i2Val), 10000, barrier);
+
+        final SimpleAttributeDefinition ad1 = new SimpleAttributeDefinition();
+        ad1.setId("output1");
+        ad1.setSourceAttributeId("Atr");
+        ad1.setDependencies(Collections.singleton((ResolverPluginDependency) new ResolverDataConnectorDependency("dc1")));
+        ad1.initialize();
+
+        final SimpleAttributeDefinition ad2 = new SimpleAttributeDefinition();
+        ad2.setId("output2");
+        ad2.setSourceAttributeId("Btr");
+        ad2.setDependencies(Collections.singleton((ResolverPluginDependency) new ResolverDataConnectorDependency("dc2")));
+        ad2.initialize();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final AttributeResolverImpl resolver = newAttributeResolverImpl("foo",
+                    Arrays.asList((AttributeDefinition) ad1, ad2), Arrays.asList(dc1, dc2), null);
+            resolver.setExecutor(executor);
+            resolver.initialize();
+
+            final AttributeResolutionContext context = new AttributeResolutionContext();
+            resolver.resolveAttributes(context);
+
+            Assert.assertEquals(context.getResolvedIdPAttributes().size(), 2);
+            Assert.assertEquals(context.getResolvedIdPAttributes().get("output1").getValues().iterator().next(),
+                    new StringAttributeValue("value1"));
+            Assert.assertEquals(context.getResolvedIdPAttributes().get("output2").getValues().iterator().next(),
+                    new StringAttributeValue("value2"));
+            Assert.assertNull(context.getSubcontext(AttributeResolverWorkContext.class));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void resolveInParallelFailover() throws Exception {
+        final IdPAttribute i1Val = new IdPAttribute("Atr");
+        i1Val.setValues(Collections.singleton(new StringAttributeValue("value1")));
+        final IdPAttribute i2Val = new IdPAttribute("Atr");
+        i2Val.setValues(Arrays.asList(new StringAttributeValue("value1"), new StringAttributeValue("value2")));
+
+        final MockDataConnector dc1 = new MockDataConnector("dc1", Collections.singletonMap("Atr", i1Val));
+        dc1.setFailoverDataConnectorId("dc2");
+        dc1.setNoRetryDelay(60000);
+        dc1.initialize();
+        final MockDataConnector dc2 = new MockDataConnector("dc2", Collections.singletonMap("Atr", i2Val));
+        dc2.initialize();
+
+        final SimpleAttributeDefinition ad = new SimpleAttributeDefinition();
+        ad.setId("output");
+        ad.setSourceAttributeId("Atr");
+        ad.setDependencies(Collections.singleton((ResolverPluginDependency) new ResolverDataConnectorDependency("dc1")));
+        ad.initialize();
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final AttributeResolverImpl resolver = newAttributeResolverImpl("foo",
+                    Collections.singleton((AttributeDefinition) ad), Arrays.asList((DataConnector) dc1, dc2), null);
+            resolver.setExecutor(executor);
+            resolver.initialize();
+
+            AttributeResolutionContext context = new AttributeResolutionContext();
+            resolver.resolveAttributes(context);
+            Assert.assertEquals(context.getResolvedIdPAttributes().get("output").getValues().size(), 1);
+
+            dc1.setFailure(true);
+            context = new AttributeResolutionContext();
+            resolver.resolveAttributes(context);
+            Assert.assertEquals(context.getResolvedIdPAttributes().get("output").getValues().size(), 2);
+
+            // Still inside the no retry window, so failover without calling dc1.
+            dc1.setFailure(false);
+            context = new AttributeResolutionContext();
+            resolver.resolveAttributes(context);
+            Assert.assertEquals(context.getResolvedIdPAttributes().get("output").getValues().size(), 2);
+
+            dc2.setFailure(true);
+            try {
+                resolver.resolveAttributes(new AttributeResolutionContext());
+                Assert.fail();
+            } catch (final ResolutionException e) {
+                // OK
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void resolveInParallelTimeout() throws Exception {
+        final DataConnector dc1 = new SlowDataConnector("dc1", null, 10000);
+
+        final MockAttributeDefinition ad1 = new MockAttributeDefinition("ad1", new IdPAttribute("test"));
+        ad1.setDependencies(Collections.singleton((ResolverPluginDependency) new ResolverDataConnectorDependency("dc1")));
+        ad1.initialize();
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final AttributeResolverImpl resolver = newAttributeResolverImpl("foo",
+                    Collections.singleton((AttributeDefinition) ad1), Collections.singleton(dc1), null);
+            resolver.setExecutor(executor);
+            resolver.setResolutionTimeout(100);
+            resolver.initialize();
+
+            try {
+                resolver.resolveAttributes(new AttributeResolutionContext());
+                Assert.fail();
+            } catch (final ResolutionException e) {
+                // OK
+            }
+
+            // The slow connector was cancelled, freeing the executor's only thread.
+            executor.submit(new Runnable() {
+                @Override public void run() {
+                }
+            }).get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     public static AttributeResolverImpl newAttributeResolverImpl(@Nonnull @NotEmpty final String resolverId,
             @Nullable @NullableElements final Collection<AttributeDefinition> definitions,
             @Nullable @NullableElements final Collection<DataConnector> connectors,
@@ -913,4 +1115,52 @@ public class AttributeResolverImplTest {
         result.setPrincipalDecoder(principalResolver);
         return result;
     }
-}
\ No newline at end of file
+
+    /**
+     * A data connector which takes a while to produce its values, or which waits for a number of other connectors to
+     * be resolving at the same time.
+     */
+    private static class SlowDataConnector extends AbstractDataConnector {
+
+        /** What to return. */
+        private final Map<String, IdPAttribute> values;
+
+        /** How long to take, or how long to wait at the barrier. */
+        private final long delay;
+
+        /** Barrier to wait at, if any. */
+        @Nullable private final CyclicBarrier barrier;
+
+        public SlowDataConnector(final String id, final Map<String, IdPAttribute> connectorValues, final long wait)
+                throws ComponentInitializationException {
+            this(id, connectorValues, wait, null);
+        }
+
+        public SlowDataConnector(final String id, final Map<String, IdPAttribute> connectorValues, final long wait,
+                @Nullable final CyclicBarrier rendezvous) throws ComponentInitializationException {
+            setId(id);
+            values = connectorValues;
+            delay = wait;
+            barrier = rendezvous;
+            initialize();
+        }
+
+        /** {@inheritDoc} */
+        @Override @Nullable protected Map<String, IdPAttribute> doDataConnectorResolve(
+                @Nonnull final AttributeResolutionContext resolutionContext,
+                @Nonnull final AttributeResolverWorkContext workContext) throws ResolutionException {
+            try {
+                if (barrier != null) {
+                    barrier.await(delay, TimeUnit.MILLISECONDS);
+                } else {
+                    Thread.sleep(delay);
+                }
+            } catch (final InterruptedException e) {
+                throw new ResolutionException(e);
+            } catch (final BrokenBarrierException | TimeoutException e) {
+                throw new ResolutionException("Connector " + getId() + " was not resolved in parallel", e);
+            }
+            return values;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import javax.annotation.Nonnull;
 import javax.xml.namespace.QName;
 
 import net.shibboleth.idp.attribute.resolver.AbstractDataConnector;
+import net.shibboleth.idp.attribute.resolver.dc.impl.AbstractSearchDataConnector;
 import net.shibboleth.idp.attribute.resolver.spring.BaseResolverPluginParser;
 import net.shibboleth.idp.attribute.resolver.spring.dc.impl.DataConnectorFactoryBean;
 import net.shibboleth.idp.attribute.resolver.spring.impl.AttributeResolverNamespaceHandler;
@@ -53,6 +54,21 @@ public abstract class AbstractDataConnectorParser extends BaseResolverPluginPars
     /** Delay in retrying failed connector. */
     @Nonnull @NotEmpty public static final String ATTR_NORETRYDELAY = "noRetryDelay";
 
+    /** Bean name of a {@link net.shibboleth.idp.attribute.resolver.CircuitBreaker} guarding the connector. */
+    @Nonnull @NotEmpty public static final String ATTR_CIRCUIT_BREAKER_REF = "circuitBreakerRef";
+
+    /** Bean name of an {@link java.util.concurrent.Executor} on which to run asynchronous searches. */
+    @Nonnull @NotEmpty public static final String ATTR_ASYNC_EXECUTOR_REF = "asyncExecutorRef";
+
+    /** Whether concurrent searches with the same cache key share a single query. */
+    @Nonnull @NotEmpty public static final String ATTR_COALESCE_SEARCHES = "coalesceSearches";
+
+    /** How long to wait for a search being run by another caller. */
+    @Nonnull @NotEmpty public static final String ATTR_COALESCED_SEARCH_TIMEOUT = "coalescedSearchTimeout";
+
+    /** Age after which a cached search result is refreshed in the background. */
+    @Nonnull @NotEmpty public static final String ATTR_CACHE_REFRESH_AFTER_WRITE = "cacheRefreshAfterWrite";
+
     /** semi colon separated resources to indicate external config. */
     @Nonnull @NotEmpty public static final String ATTR_SPRING_RESOURCE = "springResources";
 
@@ -135,6 +151,11 @@ public abstract class AbstractDataConnectorParser extends BaseResolverPluginPars
             builder.addPropertyValue("noRetryDelay", duration.getBeanDefinition());
         }
 
+        if (config.hasAttributeNS(null, ATTR_CIRCUIT_BREAKER_REF)) {
+            builder.addPropertyReference("circuitBreaker",
+                    StringSupport.trimOrNull(config.getAttributeNS(null, ATTR_CIRCUIT_BREAKER_REF)));
+        }
+
         if (isNative(config)) {
             // parse the configuration into a beanfactory and inject the resources as well
             builder.addPropertyValue("objectType", getNativeBeanClass());
@@ -170,11 +191,56 @@ public abstract class AbstractDataConnectorParser extends BaseResolverPluginPars
                 builder.addPropertyReference("beanPostProcessors", postProcessorsRef);
             }
         } else {
+            if (AbstractSearchDataConnector.class.isAssignableFrom(getNativeBeanClass())) {
+                parseSearchOptions(config, builder);
+            } else if (config.hasAttributeNS(null, ATTR_ASYNC_EXECUTOR_REF)
+                    || config.hasAttributeNS(null, ATTR_COALESCE_SEARCHES)
+                    || config.hasAttributeNS(null, ATTR_CACHE_REFRESH_AFTER_WRITE)) {
+                log.warn("{} Ignoring search options, data connector does not search a data source",
+                        getLogPrefix());
+            }
             doV2Parse(config, parserContext, builder);
         }
     }
     //CheckStyle: MethodLength|CyclomaticComplexity ON
 
+    /**
+     * Parse the attributes which apply only to connectors which search a data source.
+     * 
+     * @param config the XML element being parsed
+     * @param builder used to define the {@code BeanDefinition}
+     */
+    private void parseSearchOptions(@Nonnull final Element config, @Nonnull final BeanDefinitionBuilder builder) {
+        if (config.hasAttributeNS(null, ATTR_ASYNC_EXECUTOR_REF)) {
+            final String executorRef = StringSupport.trimOrNull(config.getAttributeNS(null, ATTR_ASYNC_EXECUTOR_REF));
+            log.debug("{} Asynchronous searches will run on {}", getLogPrefix(), executorRef);
+            builder.addPropertyReference("asyncExecutor", executorRef);
+        }
+
+        if (config.hasAttributeNS(null, ATTR_COALESCE_SEARCHES)) {
+            builder.addPropertyValue("coalesceSearches",
+                    StringSupport.trimOrNull(config.getAttributeNS(null, ATTR_COALESCE_SEARCHES)));
+        }
+
+        if (config.hasAttributeNS(null, ATTR_COALESCED_SEARCH_TIMEOUT)) {
+            final BeanDefinitionBuilder duration =
+                    BeanDefinitionBuilder.rootBeanDefinition(AbstractDataConnectorParser.class, "buildDuration");
+            duration.addConstructorArgValue(
+                    StringSupport.trimOrNull(config.getAttributeNS(null, ATTR_COALESCED_SEARCH_TIMEOUT)));
+            duration.addConstructorArgValue(1);
+            builder.addPropertyValue("coalescedSearchTimeout", duration.getBeanDefinition());
+        }
+
+        if (config.hasAttributeNS(null, ATTR_CACHE_REFRESH_AFTER_WRITE)) {
+            final BeanDefinitionBuilder duration =
+                    BeanDefinitionBuilder.rootBeanDefinition(AbstractDataConnectorParser.class, "buildDuration");
+            duration.addConstructorArgValue(
+                    StringSupport.trimOrNull(config.getAttributeNS(null, ATTR_CACHE_REFRESH_AFTER_WRITE)));
+            duration.addConstructorArgValue(1);
+            builder.addPropertyValue("cacheRefreshAfterWrite", duration.getBeanDefinition());
+        }
+    }
+
     /**
      * Parse the supplied {@link Element} as a legacy format and populate the supplied {@link BeanDefinitionBuilder} as
      * required.
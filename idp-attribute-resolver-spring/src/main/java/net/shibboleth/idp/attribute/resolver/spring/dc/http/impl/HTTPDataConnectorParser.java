@@ -116,6 +116,12 @@ public class HTTPDataConnectorParser extends AbstractDataConnectorParser {
             }
         }
         
+        final String entityTagCacheSize =
+                StringSupport.trimOrNull(config.getAttributeNS(null, "entityTagCacheSize"));
+        if (entityTagCacheSize != null) {
+            builder.addPropertyValue("entityTagCacheSize", entityTagCacheSize);
+        }
+
         final String validatorID = v2Parser.getBeanValidatorID();
         if (validatorID != null) {
             builder.addPropertyReference("validator", validatorID);
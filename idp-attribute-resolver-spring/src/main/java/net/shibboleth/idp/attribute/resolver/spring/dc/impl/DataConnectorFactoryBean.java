@@ -30,6 +30,7 @@ import javax.annotation.Nullable;
 
 import net.shibboleth.ext.spring.util.ApplicationContextBuilder;
 import net.shibboleth.idp.attribute.resolver.AbstractDataConnector;
+import net.shibboleth.idp.attribute.resolver.CircuitBreaker;
 import net.shibboleth.idp.attribute.resolver.spring.impl.AbstractResolverPluginFactoryBean;
 import net.shibboleth.utilities.java.support.annotation.Duration;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
@@ -86,6 +87,9 @@ public class DataConnectorFactoryBean extends AbstractResolverPluginFactoryBean<
     /** Data Connector property "noRetryDelay". */
     @Nullable @Duration private Long noRetryDelay;
 
+    /** Data Connector property "circuitBreaker". */
+    @Nullable private CircuitBreaker circuitBreaker;
+
     /**
      * Data Connector property "failoverDataConnectorId".
      * 
@@ -122,6 +126,24 @@ public class DataConnectorFactoryBean extends AbstractResolverPluginFactoryBean<
         noRetryDelay = delay;
     }
 
+    /**
+     * Data Connector property "circuitBreaker".
+     * 
+     * @return the value of property to set or null if never set
+     */
+    @Nullable public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Data Connector property "circuitBreaker".
+     * 
+     * @param breaker the value to set
+     */
+    public void setCircuitBreaker(@Nullable final CircuitBreaker breaker) {
+        circuitBreaker = breaker;
+    }
+
     /**
      * The resources to use.
      * 
@@ -242,6 +264,9 @@ public class DataConnectorFactoryBean extends AbstractResolverPluginFactoryBean<
         if (null != getNoRetryDelay()) {
             result.setNoRetryDelay(getNoRetryDelay());
         }
+        if (null != getCircuitBreaker()) {
+            result.setCircuitBreaker(getCircuitBreaker());
+        }
         setValues(result);
 
         appContext = new ApplicationContextBuilder()
@@ -107,6 +107,11 @@ public class RDBMSDataConnectorParser extends AbstractWarningDataConnectorParser
             builder.addPropertyValue("connectionReadOnly", connectionReadOnly);
         }
 
+        final String batchKeyColumn = v2Parser.getBatchKeyColumn();
+        if (batchKeyColumn != null) {
+            builder.addPropertyValue("batchKeyColumn", batchKeyColumn);
+        }
+
         final String mappingStrategyID = v2Parser.getBeanMappingStrategyID();
         if (mappingStrategyID != null) {
             builder.addPropertyReference("mappingStrategy", mappingStrategyID);
@@ -194,6 +199,15 @@ public class RDBMSDataConnectorParser extends AbstractWarningDataConnectorParser
             return AttributeSupport.getAttributeValue(configElement, new QName("readOnlyConnection"));
          }
 
+        /**
+         * Get the batchKeyColumn attribute value.
+         *
+         * @return the column identifying the principal each row answers when resolving in batches
+         */
+        @Nullable public String getBatchKeyColumn() {
+            return AttributeSupport.getAttributeValue(configElement, new QName("batchKeyColumn"));
+        }
+
         /**
          * Get the bean ID of an externally defined search builder.
          * 
@@ -222,6 +236,12 @@ public class RDBMSDataConnectorParser extends AbstractWarningDataConnectorParser
 
             templateBuilder.addPropertyValue("v2Compatibility", true);
 
+            final String bindParameters =
+                    AttributeSupport.getAttributeValue(configElement, new QName("bindParameters"));
+            if (bindParameters != null) {
+                templateBuilder.addPropertyValue("bindParameters", bindParameters);
+            }
+
             final String queryTimeout = AttributeSupport.getAttributeValue(configElement, new QName("queryTimeout"));
             if (queryTimeout != null) {
                 final BeanDefinitionBuilder duration =
@@ -18,6 +18,7 @@
 package net.shibboleth.idp.attribute.resolver.spring.impl;
 
 import java.util.Collection;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -34,6 +35,8 @@ import net.shibboleth.idp.attribute.resolver.DataConnector;
 import net.shibboleth.idp.attribute.resolver.impl.AttributeResolverImpl;
 import net.shibboleth.idp.saml.attribute.principalconnector.impl.PrincipalConnector;
 import net.shibboleth.idp.saml.attribute.principalconnector.impl.PrinicpalConnectorCanonicalizer;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
 import net.shibboleth.utilities.java.support.component.AbstractIdentifiableInitializableComponent;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.service.ServiceException;
@@ -53,6 +56,12 @@ public class AttributeResolverServiceStrategy extends AbstractIdentifiableInitia
     /** Whether to strip null attribute values. */
     private boolean stripNulls;
     
+    /** Optional executor used to resolve independent plugins concurrently. */
+    @Nullable private Executor executor;
+
+    /** How long to wait for a parallel resolution to complete. */
+    @Duration @Positive private long resolutionTimeout = 30 * 1000;
+
     /** Do we strip nulls from attribute values.
     * @return Returns whether to strip nulls from attribute values
     */
@@ -68,6 +77,24 @@ public class AttributeResolverServiceStrategy extends AbstractIdentifiableInitia
        stripNulls = doStripNulls;
    }
 
+    /**
+     * Set the executor used to resolve independent plugins concurrently.
+     * 
+     * @param exec the executor, or null to resolve plugins serially
+     */
+    public void setExecutor(@Nullable final Executor exec) {
+        executor = exec;
+    }
+
+    /**
+     * Set how long to wait for a parallel resolution to complete.
+     * 
+     * @param timeout the timeout in milliseconds
+     */
+    @Duration public void setResolutionTimeout(@Duration @Positive final long timeout) {
+        resolutionTimeout = timeout;
+    }
+
     /** {@inheritDoc} */
     @Override @Nullable public ServiceableComponent<AttributeResolver> apply(
             @Nullable final ApplicationContext appContext) {
@@ -90,6 +117,8 @@ public class AttributeResolverServiceStrategy extends AbstractIdentifiableInitia
         resolver.setPrincipalDecoder(pcc);
         resolver.setId(getId());
         resolver.setStripNulls(isStripNulls());
+        resolver.setExecutor(executor);
+        resolver.setResolutionTimeout(resolutionTimeout);
         resolver.setApplicationContext(appContext);
 
         try {
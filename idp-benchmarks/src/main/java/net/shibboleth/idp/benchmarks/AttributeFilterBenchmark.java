@@ -0,0 +1,166 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.attribute.filter.AttributeFilterException;
+import net.shibboleth.idp.attribute.filter.AttributeFilterPolicy;
+import net.shibboleth.idp.attribute.filter.AttributeRule;
+import net.shibboleth.idp.attribute.filter.Matcher;
+import net.shibboleth.idp.attribute.filter.context.AttributeFilterContext;
+import net.shibboleth.idp.attribute.filter.impl.AttributeFilterImpl;
+import net.shibboleth.idp.attribute.filter.matcher.impl.AttributeValueStringMatcher;
+import net.shibboleth.idp.attribute.filter.policyrule.filtercontext.impl.AttributeRequesterPolicyRule;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link AttributeFilterImpl#filterAttributes(AttributeFilterContext)}.
+ * 
+ * <p>
+ * As in a typical deployment, there is one policy per relying party, selected by
+ * {@link AttributeRequesterPolicyRule}, and each releases a few attributes, some with value matching. The request is
+ * from the relying party whose policy is last.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttributeFilterBenchmark {
+
+    /** Number of attributes to filter. */
+    private static final int ATTRIBUTES = 20;
+
+    /** Number of values of each attribute. */
+    private static final int VALUES = 5;
+
+    /** Number of attributes released by each policy. */
+    private static final int RELEASED = 5;
+
+    // Checkstyle: VisibilityModifier OFF
+    /** Number of policies. */
+    @Param({"10", "100", "1000"}) public int policies;
+    // Checkstyle: VisibilityModifier ON
+
+    /** The filter. */
+    private AttributeFilterImpl filter;
+
+    /** The attributes to filter. */
+    private List<IdPAttribute> attributes;
+
+    /** The requester. */
+    private String requester;
+
+    /**
+     * Build the filter.
+     * 
+     * @throws ComponentInitializationException if the filter cannot be built
+     */
+    @Setup public void setUp() throws ComponentInitializationException {
+        attributes = new ArrayList<>(ATTRIBUTES);
+        for (int i = 0; i < ATTRIBUTES; i++) {
+            final IdPAttribute attribute = new IdPAttribute("attribute" + i);
+            final List<IdPAttributeValue<?>> values = new ArrayList<>(VALUES);
+            for (int v = 0; v < VALUES; v++) {
+                values.add(new StringAttributeValue("value" + v));
+            }
+            attribute.setValues(values);
+            attributes.add(attribute);
+        }
+
+        final List<AttributeFilterPolicy> policyList = new ArrayList<>(policies);
+        for (int p = 0; p < policies; p++) {
+            final String entityID = "https://sp" + p + ".example.org/shibboleth";
+            final AttributeRequesterPolicyRule requirement = new AttributeRequesterPolicyRule();
+            requirement.setId("requirement" + p);
+            requirement.setMatchString(entityID);
+            requirement.initialize();
+
+            final List<AttributeRule> rules = new ArrayList<>(RELEASED);
+            for (int r = 0; r < RELEASED; r++) {
+                final AttributeRule rule = new AttributeRule();
+                rule.setId("rule" + p + "-" + r);
+                rule.setAttributeId("attribute" + ((p + r) % ATTRIBUTES));
+                if (r % 2 == 0) {
+                    rule.setMatcher(Matcher.MATCHES_ALL);
+                } else {
+                    final AttributeValueStringMatcher matcher = new AttributeValueStringMatcher();
+                    matcher.setId("matcher" + p + "-" + r);
+                    matcher.setMatchString("value" + (r % VALUES));
+                    matcher.initialize();
+                    rule.setMatcher(matcher);
+                }
+                rule.setIsDenyRule(false);
+                rule.initialize();
+                rules.add(rule);
+            }
+
+            final AttributeFilterPolicy policy = new AttributeFilterPolicy("policy" + p, requirement, rules);
+            policy.initialize();
+            policyList.add(policy);
+            requester = entityID;
+        }
+
+        filter = new AttributeFilterImpl("filter", policyList);
+        filter.initialize();
+    }
+
+    /** Discard the filter. */
+    @TearDown public void tearDown() {
+        filter.destroy();
+    }
+
+    /**
+     * Filter the attributes.
+     * 
+     * @return the context containing the filtered attributes
+     * 
+     * @throws AttributeFilterException if filtering fails
+     */
+    @Benchmark @Nonnull public AttributeFilterContext filter() throws AttributeFilterException {
+        final AttributeFilterContext context = new AttributeFilterContext();
+        context.setAttributeRecipientID(requester);
+        context.setPrefilteredIdPAttributes(attributes);
+        filter.filterAttributes(context);
+        return context;
+    }
+
+}
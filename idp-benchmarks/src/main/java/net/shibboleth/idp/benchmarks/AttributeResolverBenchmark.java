@@ -0,0 +1,154 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.attribute.resolver.AttributeDefinition;
+import net.shibboleth.idp.attribute.resolver.DataConnector;
+import net.shibboleth.idp.attribute.resolver.ResolutionException;
+import net.shibboleth.idp.attribute.resolver.ResolverAttributeDefinitionDependency;
+import net.shibboleth.idp.attribute.resolver.ResolverDataConnectorDependency;
+import net.shibboleth.idp.attribute.resolver.ResolverPluginDependency;
+import net.shibboleth.idp.attribute.resolver.ad.impl.SimpleAttributeDefinition;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.dc.impl.StaticDataConnector;
+import net.shibboleth.idp.attribute.resolver.impl.AttributeResolverImpl;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link AttributeResolverImpl#resolveAttributes(AttributeResolutionContext)} over an in-memory graph.
+ * 
+ * <p>
+ * A single {@link StaticDataConnector} supplies {@link #width} source attributes, each of which is passed along a
+ * chain of {@link #depth} {@link SimpleAttributeDefinition}s, the last of which is requested.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttributeResolverBenchmark {
+
+    /** Number of values of each source attribute. */
+    private static final int VALUES = 3;
+
+    // Checkstyle: VisibilityModifier OFF
+    /** Number of attribute definitions in each chain. */
+    @Param({"1", "4", "16"}) public int depth;
+
+    /** Number of chains. */
+    @Param({"10", "50"}) public int width;
+    // Checkstyle: VisibilityModifier ON
+
+    /** The resolver. */
+    private AttributeResolverImpl resolver;
+
+    /** IDs of the requested attributes. */
+    private List<String> requested;
+
+    /**
+     * Build the resolver.
+     * 
+     * @throws ComponentInitializationException if the resolver cannot be built
+     */
+    @Setup public void setUp() throws ComponentInitializationException {
+        final List<IdPAttribute> sources = new ArrayList<>(width);
+        for (int i = 0; i < width; i++) {
+            final IdPAttribute source = new IdPAttribute("source" + i);
+            final List<IdPAttributeValue<?>> values = new ArrayList<>(VALUES);
+            for (int v = 0; v < VALUES; v++) {
+                values.add(new StringAttributeValue("value" + v + "-of-source" + i));
+            }
+            source.setValues(values);
+            sources.add(source);
+        }
+
+        final StaticDataConnector connector = new StaticDataConnector();
+        connector.setId("static");
+        connector.setValues(sources);
+        connector.initialize();
+
+        final List<AttributeDefinition> definitions = new ArrayList<>(width * depth);
+        requested = new ArrayList<>(width);
+        for (int i = 0; i < width; i++) {
+            final ResolverDataConnectorDependency connectorDependency = new ResolverDataConnectorDependency("static");
+            connectorDependency.setAttributeNames(Collections.singleton("source" + i));
+            ResolverPluginDependency dependency = connectorDependency;
+            for (int j = 0; j < depth; j++) {
+                final String id = "attribute" + i + "-" + j;
+                final SimpleAttributeDefinition definition = new SimpleAttributeDefinition();
+                definition.setId(id);
+                definition.setDependencies(Collections.singleton(dependency));
+                definition.initialize();
+                definitions.add(definition);
+                dependency = new ResolverAttributeDefinitionDependency(id);
+            }
+            requested.add("attribute" + i + "-" + (depth - 1));
+        }
+
+        resolver = new AttributeResolverImpl();
+        resolver.setId("resolver");
+        resolver.setDataConnectors(Collections.<DataConnector>singletonList(connector));
+        resolver.setAttributeDefinitions(definitions);
+        resolver.initialize();
+    }
+
+    /** Discard the resolver. */
+    @TearDown public void tearDown() {
+        resolver.destroy();
+    }
+
+    /**
+     * Resolve the requested attributes.
+     * 
+     * @return the context containing the resolved attributes
+     * 
+     * @throws ResolutionException if resolution fails
+     */
+    @Benchmark @Nonnull public AttributeResolutionContext resolve() throws ResolutionException {
+        final AttributeResolutionContext context = new AttributeResolutionContext();
+        context.setRequestedIdPAttributeNames(requested);
+        resolver.resolveAttributes(context);
+        return context;
+    }
+
+}
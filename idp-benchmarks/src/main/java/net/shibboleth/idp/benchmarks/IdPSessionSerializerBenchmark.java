@@ -0,0 +1,175 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.benchmarks;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.idp.authn.AuthenticationResult;
+import net.shibboleth.idp.authn.principal.UsernamePrincipal;
+import net.shibboleth.idp.session.BasicSPSession;
+import net.shibboleth.idp.session.SPSession;
+import net.shibboleth.idp.session.SPSessionSerializerRegistry;
+import net.shibboleth.idp.session.impl.BasicSPSessionSerializer;
+import net.shibboleth.idp.session.impl.StorageBackedIdPSession;
+import net.shibboleth.idp.session.impl.StorageBackedIdPSessionSerializer;
+import net.shibboleth.idp.session.impl.StorageBackedSessionManager;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.net.CookieManager;
+import net.shibboleth.utilities.java.support.net.ThreadLocalHttpServletRequestProxy;
+import net.shibboleth.utilities.java.support.net.ThreadLocalHttpServletResponseProxy;
+import net.shibboleth.utilities.java.support.security.SecureRandomIdentifierGenerationStrategy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.storage.StorageSerializer;
+import org.opensaml.storage.impl.MemoryStorageService;
+
+/** Benchmarks {@link StorageBackedIdPSessionSerializer} in each direction. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdPSessionSerializerBenchmark {
+
+    /** Session creation time. */
+    private static final long INSTANT = 1378827849463L;
+
+    /** Session expiration time. */
+    private static final long EXPIRATION = INSTANT + 60 * 60 * 1000;
+
+    /** Number of authentication results in the session. */
+    private static final int RESULTS = 3;
+
+    // Checkstyle: VisibilityModifier OFF
+    /** Number of SP sessions in the session. */
+    @Param({"0", "5", "25"}) public int spSessions;
+    // Checkstyle: VisibilityModifier ON
+
+    /** Backing store of the manager. */
+    private MemoryStorageService storageService;
+
+    /** The manager. */
+    private StorageBackedSessionManager manager;
+
+    /** The serializer. */
+    private StorageBackedIdPSessionSerializer serializer;
+
+    /** The session to serialize. */
+    private StorageBackedIdPSession session;
+
+    /** The serialized session. */
+    private String serialized;
+
+    /**
+     * Build the serializer and session.
+     * 
+     * @throws ComponentInitializationException if the serializer cannot be built
+     * @throws IOException if the session cannot be serialized
+     */
+    @Setup public void setUp() throws ComponentInitializationException, IOException {
+        storageService = new MemoryStorageService();
+        storageService.setId("storage");
+        storageService.setCleanupInterval(0);
+        storageService.initialize();
+
+        final CookieManager cookieManager = new CookieManager();
+        cookieManager.setHttpServletRequest(new ThreadLocalHttpServletRequestProxy());
+        cookieManager.setHttpServletResponse(new ThreadLocalHttpServletResponseProxy());
+        cookieManager.initialize();
+
+        final SPSessionSerializerRegistry registry = new SPSessionSerializerRegistry();
+        final Map<Class<? extends SPSession>,StorageSerializer<? extends SPSession>> mappings =
+                Collections.<Class<? extends SPSession>,StorageSerializer<? extends SPSession>>singletonMap(
+                        BasicSPSession.class, new BasicSPSessionSerializer(0));
+        registry.setMappings(mappings);
+        registry.initialize();
+
+        manager = new StorageBackedSessionManager();
+        manager.setId("manager");
+        manager.setStorageService(storageService);
+        manager.setIDGenerator(new SecureRandomIdentifierGenerationStrategy());
+        manager.setHttpServletRequest(new ThreadLocalHttpServletRequestProxy());
+        manager.setHttpServletResponse(new ThreadLocalHttpServletResponseProxy());
+        manager.setCookieManager(cookieManager);
+        manager.setTrackSPSessions(true);
+        manager.setSPSessionSerializerRegistry(registry);
+        manager.initialize();
+
+        serializer = new StorageBackedIdPSessionSerializer(manager, null);
+        serializer.initialize();
+
+        session = new StorageBackedIdPSession(manager, "session", "jdoe", INSTANT);
+        session.doBindToAddress("192.168.1.1");
+        for (int i = 0; i < RESULTS; i++) {
+            session.doAddAuthenticationResult(new AuthenticationResult("authn/Flow" + i,
+                    new UsernamePrincipal("jdoe")));
+        }
+        for (int i = 0; i < spSessions; i++) {
+            session.doAddSPSession(new BasicSPSession("https://sp" + i + ".example.org/shibboleth", INSTANT,
+                    EXPIRATION));
+        }
+
+        serialized = serializer.serialize(session);
+    }
+
+    /** Discard the manager. */
+    @TearDown public void tearDown() {
+        manager.destroy();
+        storageService.destroy();
+    }
+
+    /**
+     * Serialize the session.
+     * 
+     * @return the serialized session
+     * 
+     * @throws IOException if serialization fails
+     */
+    @Benchmark @Nonnull public String serialize() throws IOException {
+        return serializer.serialize(session);
+    }
+
+    /**
+     * Deserialize the session.
+     * 
+     * @return the session
+     * 
+     * @throws IOException if deserialization fails
+     */
+    @Benchmark @Nonnull public StorageBackedIdPSession deserialize() throws IOException {
+        return serializer.deserialize(1, "session", "session", serialized, EXPIRATION);
+    }
+
+}
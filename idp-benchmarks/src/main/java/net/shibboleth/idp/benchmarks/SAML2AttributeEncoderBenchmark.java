@@ -0,0 +1,125 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.idp.attribute.AttributeEncodingException;
+import net.shibboleth.idp.attribute.ByteAttributeValue;
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.ScopedStringAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.saml.attribute.encoding.AbstractSAML2AttributeEncoder;
+import net.shibboleth.idp.saml.attribute.encoding.impl.SAML2ByteAttributeEncoder;
+import net.shibboleth.idp.saml.attribute.encoding.impl.SAML2ScopedStringAttributeEncoder;
+import net.shibboleth.idp.saml.attribute.encoding.impl.SAML2StringAttributeEncoder;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.core.config.InitializationException;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.saml.saml2.core.Attribute;
+
+/** Benchmarks the SAML 2 attribute encoders. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SAML2AttributeEncoderBenchmark {
+
+    // Checkstyle: VisibilityModifier OFF
+    /** Which encoder to use. */
+    @Param({"string", "scoped", "byte"}) public String encoding;
+
+    /** Number of values of the attribute. */
+    @Param({"1", "10"}) public int values;
+    // Checkstyle: VisibilityModifier ON
+
+    /** The encoder. */
+    private AbstractSAML2AttributeEncoder<?> encoder;
+
+    /** The attribute to encode. */
+    private IdPAttribute attribute;
+
+    /**
+     * Initialize OpenSAML and build the encoder.
+     * 
+     * @throws InitializationException if OpenSAML cannot be initialized
+     * @throws ComponentInitializationException if the encoder cannot be built
+     */
+    @Setup public void setUp() throws InitializationException, ComponentInitializationException {
+        InitializationService.initialize();
+
+        final List<IdPAttributeValue<?>> attributeValues = new ArrayList<>(values);
+        if ("string".equals(encoding)) {
+            encoder = new SAML2StringAttributeEncoder();
+            for (int v = 0; v < values; v++) {
+                attributeValues.add(new StringAttributeValue("member" + v));
+            }
+        } else if ("scoped".equals(encoding)) {
+            encoder = new SAML2ScopedStringAttributeEncoder();
+            for (int v = 0; v < values; v++) {
+                attributeValues.add(new ScopedStringAttributeValue("member" + v, "example.org"));
+            }
+        } else if ("byte".equals(encoding)) {
+            encoder = new SAML2ByteAttributeEncoder();
+            for (int v = 0; v < values; v++) {
+                attributeValues.add(new ByteAttributeValue(("member" + v).getBytes(StandardCharsets.UTF_8)));
+            }
+        } else {
+            throw new ComponentInitializationException("Unknown encoding " + encoding);
+        }
+        encoder.setName("urn:oid:1.3.6.1.4.1.5923.1.1.1.9");
+        encoder.setFriendlyName("eduPersonScopedAffiliation");
+        encoder.setNameFormat(Attribute.URI_REFERENCE);
+        encoder.initialize();
+
+        attribute = new IdPAttribute("affiliation");
+        attribute.setValues(attributeValues);
+    }
+
+    /**
+     * Encode the attribute.
+     * 
+     * @return the encoded attribute
+     * 
+     * @throws AttributeEncodingException if encoding fails
+     */
+    @Benchmark @Nonnull public Attribute encode() throws AttributeEncodingException {
+        return encoder.encode(attribute);
+    }
+
+}
@@ -0,0 +1,27 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * JMH microbenchmarks of the hot paths of attribute resolution, filtering and encoding and of session serialization.
+ * 
+ * <p>
+ * Build with <code>mvn -Pbenchmarks package</code> and run with <code>java -jar target/benchmarks.jar</code>, which
+ * accepts the usual JMH options and by default writes the results as JSON to <code>idp-benchmarks.json</code>.
+ * </p>
+ */
+
+package net.shibboleth.idp.benchmarks;
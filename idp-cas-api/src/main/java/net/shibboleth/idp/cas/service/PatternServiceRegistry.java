@@ -18,25 +18,29 @@
 package net.shibboleth.idp.cas.service;
 
 import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import net.shibboleth.ext.spring.service.AbstractServiceableComponent;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.component.IdentifiableComponent;
 import net.shibboleth.utilities.java.support.logic.Constraint;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * Service registry that evaluates a candidate service URL against one or more defined services, where each
  * definition contains a service URL regular expression pattern.
  *
+ * <p>The first definition in order whose pattern matches is used. Definitions are indexed by the literal prefix of
+ * their patterns, so that only those whose prefix a service URL starts with are evaluated, and the results of recent
+ * lookups are cached.</p>
+ *
  * <p>NOTE: This class will become an implementation component in the next major software version.</p>
  *
  * @author Marvin S. Addison
@@ -44,13 +48,20 @@ import org.slf4j.LoggerFactory;
 public class PatternServiceRegistry extends AbstractServiceableComponent<ServiceRegistry>
         implements IdentifiableComponent, ServiceRegistry {
 
-    /** Class logger. */
-    private final Logger log = LoggerFactory.getLogger(PatternServiceRegistry.class);
+    /** Default maximum number of service URLs for which to cache the result of a lookup. */
+    public static final long DEFAULT_CACHE_SIZE = 1000;
+
+    /** Index of service definitions by pattern. */
+    @Nonnull
+    private ServicePatternIndex index = new ServicePatternIndex(Collections.<ServiceDefinition>emptyList());
+
+    /** Maximum number of service URLs for which to cache the result of a lookup. */
+    @NonNegative
+    private long cacheSize = DEFAULT_CACHE_SIZE;
 
-    /** Map of service definitions to compiled patterns. */
+    /** Result of recent lookups, by service URL. */
     @Nonnull
-    @NonnullElements
-    private Map<ServiceDefinition, Pattern> definitions = Collections.emptyMap();
+    private Cache<String, Optional<Service>> cache = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
 
     @Override
     public void setId(@Nonnull final String componentId) {
@@ -65,11 +76,19 @@ public class PatternServiceRegistry extends AbstractServiceableComponent<Service
      */
     public void setDefinitions(@Nonnull @NonnullElements final List<ServiceDefinition> serviceDefinitions) {
         Constraint.noNullItems(serviceDefinitions, "Definitions cannot be null or contain null items");
-        // Preserve order of services in map
-        definitions = new LinkedHashMap<>(serviceDefinitions.size());
-        for (final ServiceDefinition definition : serviceDefinitions) {
-            definitions.put(definition, Pattern.compile(definition.getId()));
-        }
+        index = new ServicePatternIndex(serviceDefinitions);
+        cache.invalidateAll();
+    }
+
+    /**
+     * Sets the maximum number of service URLs for which to cache the result of a lookup. Default is
+     * {@value #DEFAULT_CACHE_SIZE}.
+     *
+     * @param size maximum number of results to cache, 0 disables caching
+     */
+    public void setCacheSize(@NonNegative final long size) {
+        cacheSize = Constraint.isGreaterThanOrEqual(0, size, "Cache size must be non-negative");
+        cache = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
     }
 
     @Nonnull
@@ -82,14 +101,14 @@ public class PatternServiceRegistry extends AbstractServiceableComponent<Service
     @Nullable
     public Service lookup(@Nonnull final String serviceURL) {
         Constraint.isNotNull(serviceURL, "Service URL cannot be null");
-        for (final ServiceDefinition def : definitions.keySet()) {
-            log.debug("Evaluating whether {} matches {}", serviceURL, def);
-            if (definitions.get(def).matcher(serviceURL).matches()) {
-                log.debug("Found match");
-                return new Service(serviceURL, def.getGroup(), def.isAuthorizedToProxy(),
-                        def.isSingleLogoutParticipant());
-            }
+        final Optional<Service> cached = cache.getIfPresent(serviceURL);
+        if (cached != null) {
+            return cached.orNull();
         }
-        return null;
+        final ServiceDefinition def = index.lookup(serviceURL);
+        final Service service = def == null ? null : new Service(serviceURL, def.getGroup(),
+                def.isAuthorizedToProxy(), def.isSingleLogoutParticipant());
+        cache.put(serviceURL, Optional.fromNullable(service));
+        return service;
     }
 }
@@ -0,0 +1,323 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.cas.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index over an ordered list of {@link ServiceDefinition}s that finds the first definition whose pattern matches a
+ * service URL without evaluating every pattern.
+ *
+ * <p>The literal text that every URL matched by a pattern must start with is extracted from the pattern, and the
+ * definitions are indexed by that prefix in a trie. A lookup walks the URL through the trie to collect the
+ * definitions whose prefix it starts with, together with those that have no literal prefix, and evaluates only
+ * those, in definition order. A pattern that is entirely literal is matched by string comparison rather than by
+ * the regular expression engine.</p>
+ */
+@Immutable
+final class ServicePatternIndex {
+
+    /** Characters that end the literal prefix of a pattern. */
+    private static final String METACHARACTERS = ".[]{}()*+?|^$";
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(ServicePatternIndex.class);
+
+    /** The definitions, in order. */
+    @Nonnull @NonnullElements private final ServiceDefinition[] definitions;
+
+    /** The compiled pattern of each definition. */
+    @Nonnull @NonnullElements private final Pattern[] patterns;
+
+    /** The only URL matched by each definition, or null if its pattern is not entirely literal. */
+    @Nonnull private final String[] literals;
+
+    /** Root of the trie of literal prefixes, holding the definitions without one. */
+    @Nonnull private final Node root;
+
+    /**
+     * Constructor.
+     *
+     * @param serviceDefinitions the definitions, in order
+     */
+    ServicePatternIndex(@Nonnull @NonnullElements final List<ServiceDefinition> serviceDefinitions) {
+        final int size = serviceDefinitions.size();
+        definitions = serviceDefinitions.toArray(new ServiceDefinition[size]);
+        patterns = new Pattern[size];
+        literals = new String[size];
+
+        final NodeBuilder builder = new NodeBuilder();
+        for (int i = 0; i < size; i++) {
+            final String regex = definitions[i].getId();
+            patterns[i] = Pattern.compile(regex);
+            final StringBuilder prefix = new StringBuilder();
+            if (!hasTopLevelAlternation(regex) && extractLiteralPrefix(regex, prefix)) {
+                literals[i] = prefix.toString();
+            }
+            builder.add(prefix, i);
+        }
+        root = builder.build();
+    }
+
+    /**
+     * Find the first definition whose pattern matches a service URL.
+     *
+     * @param serviceURL the service URL
+     *
+     * @return the first matching definition, or null
+     */
+    @Nullable ServiceDefinition lookup(@Nonnull final String serviceURL) {
+        int[] candidates = root.definitions;
+        int count = candidates.length;
+        Node node = root;
+        for (int i = 0; i < serviceURL.length() && node != null; i++) {
+            node = node.getChild(serviceURL.charAt(i));
+            if (node != null && node.definitions.length > 0) {
+                if (candidates == root.definitions || count + node.definitions.length > candidates.length) {
+                    candidates = Arrays.copyOf(candidates, Math.max(2 * candidates.length,
+                            count + node.definitions.length));
+                }
+                System.arraycopy(node.definitions, 0, candidates, count, node.definitions.length);
+                count += node.definitions.length;
+            }
+        }
+        if (candidates != root.definitions) {
+            Arrays.sort(candidates, 0, count);
+        }
+
+        for (int i = 0; i < count; i++) {
+            final int index = candidates[i];
+            log.debug("Evaluating whether {} matches {}", serviceURL, definitions[index]);
+            final boolean matches = literals[index] != null ? literals[index].equals(serviceURL)
+                    : patterns[index].matcher(serviceURL).matches();
+            if (matches) {
+                log.debug("Found match");
+                return definitions[index];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determine whether a pattern contains an alternation that is not enclosed in a group, in which case it has
+     * no literal prefix.
+     *
+     * @param regex the pattern
+     *
+     * @return true iff the pattern contains a top-level alternation
+     */
+    static boolean hasTopLevelAlternation(@Nonnull final String regex) {
+        int groupDepth = 0;
+        int classDepth = 0;
+        int i = 0;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+                    final int close = regex.indexOf("\\E", i + 2);
+                    i = close < 0 ? regex.length() : close + 2;
+                } else {
+                    i += 2;
+                }
+                continue;
+            }
+            if (c == '[') {
+                classDepth++;
+                // A closing bracket at the start of a character class is literal.
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (c == ']' && classDepth > 0) {
+                classDepth--;
+            } else if (classDepth == 0) {
+                if (c == '(') {
+                    groupDepth++;
+                } else if (c == ')') {
+                    groupDepth--;
+                } else if (c == '|' && groupDepth <= 0) {
+                    return true;
+                }
+            }
+            i++;
+        }
+        return false;
+    }
+
+    /**
+     * Extract the literal text that every string matched by a pattern must start with. The pattern must not
+     * contain a top-level alternation.
+     *
+     * @param regex the pattern
+     * @param prefix receives the literal prefix
+     *
+     * @return true iff the pattern is entirely literal, and so matches only the prefix
+     */
+    static boolean extractLiteralPrefix(@Nonnull final String regex, @Nonnull final StringBuilder prefix) {
+        final int end = regex.length();
+        int i = 0;
+        if (i < end && regex.charAt(i) == '^') {
+            i++;
+        }
+        while (i < end) {
+            final char c = regex.charAt(i);
+            final String atom;
+            if (c == '\\') {
+                if (i + 1 >= end) {
+                    return false;
+                }
+                final char escaped = regex.charAt(i + 1);
+                if (escaped == 'Q') {
+                    final int close = regex.indexOf("\\E", i + 2);
+                    atom = close < 0 ? regex.substring(i + 2) : regex.substring(i + 2, close);
+                    i = close < 0 ? end : close + 2;
+                } else if (Character.isLetterOrDigit(escaped)) {
+                    // A character class, boundary, back reference or other construct.
+                    return false;
+                } else {
+                    atom = String.valueOf(escaped);
+                    i += 2;
+                }
+            } else if (c == '$' && i == end - 1) {
+                return true;
+            } else if (METACHARACTERS.indexOf(c) >= 0) {
+                return false;
+            } else {
+                atom = String.valueOf(c);
+                i++;
+            }
+
+            // A quantifier applies only to the last character of the atom.
+            if (i < end && !atom.isEmpty()) {
+                final char next = regex.charAt(i);
+                if (next == '+') {
+                    prefix.append(atom);
+                    return false;
+                } else if (next == '*' || next == '?' || next == '{') {
+                    prefix.append(atom, 0, atom.length() - 1);
+                    return false;
+                }
+            }
+            prefix.append(atom);
+        }
+        return true;
+    }
+
+    /** Node of the trie of literal prefixes. */
+    private static final class Node {
+
+        /** The definitions whose prefix ends at this node, in order. */
+        @Nonnull private final int[] definitions;
+
+        /** The characters labelling the child nodes, in ascending order. */
+        @Nonnull private final char[] labels;
+
+        /** The child nodes. */
+        @Nonnull private final Node[] children;
+
+        /**
+         * Constructor.
+         *
+         * @param defs the definitions whose prefix ends at this node
+         * @param childLabels the characters labelling the child nodes, in ascending order
+         * @param childNodes the child nodes
+         */
+        Node(@Nonnull final int[] defs, @Nonnull final char[] childLabels, @Nonnull final Node[] childNodes) {
+            definitions = defs;
+            labels = childLabels;
+            children = childNodes;
+        }
+
+        /**
+         * Get the child node labelled with a character.
+         *
+         * @param c the character
+         *
+         * @return the child node, or null
+         */
+        @Nullable Node getChild(final char c) {
+            final int index = Arrays.binarySearch(labels, c);
+            return index >= 0 ? children[index] : null;
+        }
+    }
+
+    /** Builder for a {@link Node}. */
+    private static final class NodeBuilder {
+
+        /** The definitions whose prefix ends at this node, in order. */
+        @Nonnull private final List<Integer> definitions = new ArrayList<>();
+
+        /** The child nodes, by label. */
+        @Nonnull private final Map<Character, NodeBuilder> children = new TreeMap<>();
+
+        /**
+         * Add a definition below this node.
+         *
+         * @param prefix the remaining literal prefix of the definition
+         * @param index the index of the definition
+         */
+        void add(@Nonnull final CharSequence prefix, final int index) {
+            NodeBuilder node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                NodeBuilder child = node.children.get(prefix.charAt(i));
+                if (child == null) {
+                    child = new NodeBuilder();
+                    node.children.put(prefix.charAt(i), child);
+                }
+                node = child;
+            }
+            node.definitions.add(index);
+        }
+
+        /**
+         * Build the node.
+         *
+         * @return the node
+         */
+        @Nonnull Node build() {
+            final int[] defs = new int[definitions.size()];
+            for (int i = 0; i < defs.length; i++) {
+                defs[i] = definitions.get(i);
+            }
+            final char[] labels = new char[children.size()];
+            final Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (final Map.Entry<Character, NodeBuilder> entry : children.entrySet()) {
+                labels[i] = entry.getKey();
+                nodes[i] = entry.getValue().build();
+                i++;
+            }
+            return new Node(defs, labels, nodes);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.cas.flow.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.idp.cas.ticket.TicketService;
+import net.shibboleth.idp.cas.ticket.impl.AbstractTicketService;
+import net.shibboleth.idp.profile.AbstractProfileAction;
+import net.shibboleth.idp.session.IdPSession;
+import net.shibboleth.idp.session.context.SessionContext;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+import org.opensaml.messaging.context.navigate.ChildContextLookup;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+
+/**
+ * Removes the proxy-granting tickets belonging to the {@link IdPSession} in the {@link SessionContext}, typically
+ * once the session has been destroyed during logout.
+ *
+ * <p>This has no effect unless the ticket service is an {@link AbstractTicketService} that indexes proxy-granting
+ * tickets by session. Failure to remove the tickets is logged, since they expire in any case.</p>
+ *
+ * @event {@link org.opensaml.profile.action.EventIds#PROCEED_EVENT_ID}
+ */
+public class DestroyProxyGrantingTicketsAction extends AbstractProfileAction {
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(DestroyProxyGrantingTicketsAction.class);
+
+    /** Lookup function for SessionContext. */
+    @Nonnull private Function<ProfileRequestContext,SessionContext> sessionContextLookupStrategy;
+
+    /** Ticket service holding the proxy-granting tickets. */
+    @Nullable private AbstractTicketService ticketService;
+
+    /** IdP session whose tickets are to be removed. */
+    @Nullable private IdPSession idpSession;
+
+    /** Constructor. */
+    public DestroyProxyGrantingTicketsAction() {
+        sessionContextLookupStrategy = new ChildContextLookup<>(SessionContext.class);
+    }
+
+    /**
+     * Set the lookup strategy for the SessionContext to access.
+     *
+     * @param strategy lookup strategy
+     */
+    public void setSessionContextLookupStrategy(
+            @Nonnull final Function<ProfileRequestContext,SessionContext> strategy) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        sessionContextLookupStrategy = Constraint.isNotNull(strategy,
+                "SessionContext lookup strategy cannot be null");
+    }
+
+    /**
+     * Set the ticket service holding the proxy-granting tickets.
+     *
+     * @param service ticket service, ignored unless it is an {@link AbstractTicketService}
+     */
+    public void setTicketService(@Nullable final TicketService service) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        ticketService = service instanceof AbstractTicketService ? (AbstractTicketService) service : null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        if (ticketService == null || !ticketService.isSessionIndex()) {
+            return false;
+        }
+
+        final SessionContext sessionCtx = sessionContextLookupStrategy.apply(profileRequestContext);
+        idpSession = sessionCtx != null ? sessionCtx.getIdPSession() : null;
+        if (idpSession == null) {
+            log.debug("{} No IdP session found, nothing to do", getLogPrefix());
+            return false;
+        }
+
+        return super.doPreExecute(profileRequestContext);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        try {
+            final int removed = ticketService.removeProxyGrantingTickets(idpSession.getId());
+            log.debug("{} Removed {} proxy-granting tickets for session {}", getLogPrefix(), removed,
+                    idpSession.getId());
+        } catch (final RuntimeException e) {
+            log.warn("{} Error removing proxy-granting tickets for session {}", getLogPrefix(), idpSession.getId(),
+                    e);
+        }
+    }
+
+}
@@ -23,20 +23,26 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import com.google.common.base.Predicate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import net.shibboleth.idp.cas.config.impl.AbstractProtocolConfiguration;
 import net.shibboleth.idp.cas.config.impl.LoginConfiguration;
 import net.shibboleth.idp.cas.config.impl.ProxyConfiguration;
 import net.shibboleth.idp.cas.service.Service;
 import net.shibboleth.idp.cas.service.ServiceRegistry;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.logic.Constraint;
 import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
 import net.shibboleth.utilities.java.support.resolver.ResolverException;
+import org.joda.time.DateTime;
 import org.opensaml.core.xml.XMLObject;
 import org.opensaml.saml.criterion.EndpointCriterion;
 import org.opensaml.saml.criterion.EntityRoleCriterion;
 import org.opensaml.saml.criterion.ProtocolCriterion;
 import org.opensaml.saml.criterion.StartsWithLocationCriterion;
 import org.opensaml.saml.metadata.resolver.MetadataResolver;
+import org.opensaml.saml.metadata.resolver.RefreshableMetadataResolver;
 import org.opensaml.saml.saml2.metadata.AssertionConsumerService;
 import org.opensaml.saml.saml2.metadata.Endpoint;
 import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
@@ -74,6 +80,12 @@ import org.slf4j.LoggerFactory;
  * </ol>
  * See the <a href="https://wiki.shibboleth.net/confluence/x/BQfKAg">SAML metadata profile for CAS</a> for the full
  * specification.
+ * <p>
+ * If the metadata resolver is a {@link RefreshableMetadataResolver}, the result of looking up each service URL,
+ * including that nothing or more than one service was found, is cached under the exact URL. Cached results are
+ * tagged with {@link RefreshableMetadataResolver#getLastUpdate()} at the time they were resolved, and are resolved
+ * again on their next use once metadata has been updated.
+ * </p>
  *
  * @author Marvin S. Addison
  */
@@ -94,10 +106,18 @@ public class MetadataServiceRegistry implements ServiceRegistry {
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(MetadataServiceRegistry.class);
 
+    /** Default maximum number of service URLs to remember the result of looking up. */
+    public static final long DEFAULT_CACHE_SIZE = 1000;
+
     /** SAML metadata resolver. */
     @Nonnull
     private final MetadataResolver metadataResolver;
 
+    /** Results of looking up services, by service URL. */
+    @Nonnull
+    private Cache<String, CachedService> serviceCache =
+            CacheBuilder.newBuilder().maximumSize(DEFAULT_CACHE_SIZE).build();
+
 
     /**
      * Create a new instance that queries the given metadata resolver.
@@ -108,9 +128,47 @@ public class MetadataServiceRegistry implements ServiceRegistry {
         metadataResolver = resolver;
     }
 
+    /**
+     * Sets the maximum number of service URLs to remember the result of looking up. Default is
+     * {@value #DEFAULT_CACHE_SIZE}.
+     *
+     * @param size maximum number of service URLs, 0 disables caching
+     */
+    public void setCacheSize(@NonNegative final long size) {
+        serviceCache = CacheBuilder.newBuilder()
+                .maximumSize(Constraint.isGreaterThanOrEqual(0, size, "Cache size must be non-negative"))
+                .build();
+    }
+
     @Nullable
     @Override
     public Service lookup(@Nonnull String serviceURL) {
+        final DateTime lastUpdate = metadataResolver instanceof RefreshableMetadataResolver
+                ? ((RefreshableMetadataResolver) metadataResolver).getLastUpdate() : null;
+        if (lastUpdate == null) {
+            // No way to tell when metadata changes, so nothing can be cached.
+            return resolve(serviceURL);
+        }
+
+        final CachedService cached = serviceCache.getIfPresent(serviceURL);
+        if (cached != null && lastUpdate.equals(cached.lastUpdate)) {
+            return cached.create();
+        }
+
+        final Service service = resolve(serviceURL);
+        serviceCache.put(serviceURL, new CachedService(lastUpdate, service));
+        return service;
+    }
+
+    /**
+     * Query metadata for the CAS service with the given URL.
+     *
+     * @param serviceURL CAS service URL.
+     *
+     * @return CAS service, or null if none was found.
+     */
+    @Nullable
+    private Service resolve(@Nonnull final String serviceURL) {
         try {
             final List<EntityDescriptor> entities = Lists.newArrayList(metadataResolver.resolve(criteria(serviceURL)));
             if (entities.size() > 1) {
@@ -188,6 +246,42 @@ public class MetadataServiceRegistry implements ServiceRegistry {
         return false;
     }
 
+    /** The result of looking up a service URL. */
+    private static final class CachedService {
+
+        /** Metadata update instant at which the service URL was looked up. */
+        @Nonnull private final DateTime lastUpdate;
+
+        /** Service created when the service URL was looked up, or null if none was found. */
+        @Nullable private final Service template;
+
+        /**
+         * Constructor.
+         *
+         * @param update metadata update instant at which the service URL was looked up
+         * @param service service created when the service URL was looked up, or null if none was found
+         */
+        CachedService(@Nonnull final DateTime update, @Nullable final Service service) {
+            lastUpdate = update;
+            template = service;
+        }
+
+        /**
+         * Create a copy of the service found, since services are mutable.
+         *
+         * @return CAS service, or null if none was found.
+         */
+        @Nullable Service create() {
+            if (template == null) {
+                return null;
+            }
+            final Service service = new Service(template.getName(), template.getGroup(),
+                    template.isAuthorizedToProxy(), template.isSingleLogoutParticipant());
+            service.setEntityDescriptor(template.getEntityDescriptor());
+            return service;
+        }
+    }
+
     /**
      * Predicate defines CAS login endpoints so that the metadata index on endpoints can be scoped to the smallest
      * set needed to support CAS entities in SAML metadata.
@@ -18,8 +18,12 @@
 package net.shibboleth.idp.cas.ticket.impl;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -40,12 +44,19 @@ import org.joda.time.Instant;
 import org.opensaml.storage.StorageRecord;
 import org.opensaml.storage.StorageSerializer;
 import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Abstract base class for ticket services that rely on {@link StorageService} for ticket storage.
  *
+ * <p>Proxy-granting tickets may optionally be indexed by the IdP session to which they belong, in a single record
+ * per session listing the IDs and expiration of its tickets. This allows all of the tickets of a session to be
+ * removed together with {@link #removeProxyGrantingTickets(String)} when the session is destroyed, rather than
+ * lingering until they expire. Expired entries are pruned whenever the record is updated, and the record itself
+ * expires with the last of its tickets.</p>
+ *
  * @author Marvin S. Addison
  * @since 3.3.0
  */
@@ -67,6 +78,18 @@ public abstract class AbstractTicketService implements TicketServiceEx {
     /** Proxy granting ticket serializer. */
     private static final ProxyGrantingTicketSerializer PGT_SERIALIZER = new ProxyGrantingTicketSerializer();
 
+    /** Storage context of the index of proxy-granting tickets by IdP session. */
+    private static final String SESSION_INDEX_CONTEXT = ValidateConfiguration.PROFILE_ID + "/sessions";
+
+    /** Number of attempts to make to update a session index record. */
+    private static final int SESSION_INDEX_ATTEMPTS = 10;
+
+    /** Delimiter between the entries of a session index record. */
+    private static final char ENTRY_DELIMITER = ',';
+
+    /** Delimiter between the ticket ID and expiration of a session index record entry. */
+    private static final char EXPIRATION_DELIMITER = '!';
+
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(AbstractTicketService.class);
 
@@ -74,6 +97,21 @@ public abstract class AbstractTicketService implements TicketServiceEx {
     @Nonnull
     private final StorageService storageService;
 
+    /** Whether to index proxy-granting tickets by IdP session. */
+    private boolean sessionIndex;
+
+    /** Number of proxy-granting tickets created. */
+    @Nonnull
+    private final AtomicLong pgtCreatedCount = new AtomicLong();
+
+    /** Number of proxy-granting tickets removed, individually or by session. */
+    @Nonnull
+    private final AtomicLong pgtRemovedCount = new AtomicLong();
+
+    /** Number of expired proxy-granting tickets pruned from session index records. */
+    @Nonnull
+    private final AtomicLong pgtExpiredCount = new AtomicLong();
+
 
     static {
         CONTEXT_CLASS_MAP.put(ServiceTicket.class, LoginConfiguration.PROFILE_ID);
@@ -93,6 +131,52 @@ public abstract class AbstractTicketService implements TicketServiceEx {
         this.storageService = Constraint.isNotNull(service, "StorageService cannot be null.");
     }
 
+    /**
+     * Sets whether to index proxy-granting tickets by the IdP session to which they belong, so that they can be
+     * removed by session. Default is false.
+     *
+     * @param flag flag to set
+     */
+    public void setSessionIndex(final boolean flag) {
+        sessionIndex = flag;
+    }
+
+    /**
+     * Get whether proxy-granting tickets are indexed by IdP session.
+     *
+     * @return true iff proxy-granting tickets are indexed by IdP session
+     */
+    public boolean isSessionIndex() {
+        return sessionIndex;
+    }
+
+    /**
+     * Get the number of proxy-granting tickets created by this service.
+     *
+     * @return number of tickets created
+     */
+    public long getProxyGrantingTicketsCreated() {
+        return pgtCreatedCount.get();
+    }
+
+    /**
+     * Get the number of proxy-granting tickets removed by this service, individually or by session.
+     *
+     * @return number of tickets removed
+     */
+    public long getProxyGrantingTicketsRemoved() {
+        return pgtRemovedCount.get();
+    }
+
+    /**
+     * Get the number of expired proxy-granting tickets pruned from the session index by this service.
+     *
+     * @return number of expired tickets pruned
+     */
+    public long getProxyGrantingTicketsExpired() {
+        return pgtExpiredCount.get();
+    }
+
     @Override
     @Nonnull
     public ServiceTicket createServiceTicket(
@@ -117,7 +201,7 @@ public abstract class AbstractTicketService implements TicketServiceEx {
                 Constraint.isNotNull(expiry, "Expiry cannot be null"),
                 null);
         pgt.setTicketState(serviceTicket.getTicketState());
-        store(pgt);
+        storeProxyGrantingTicket(pgt);
         return pgt;
     }
 
@@ -134,7 +218,7 @@ public abstract class AbstractTicketService implements TicketServiceEx {
                 Constraint.isNotNull(expiry, "Expiry cannot be null"),
                 proxyTicket.getPgtId());
         pgt.setTicketState(proxyTicket.getTicketState());
-        store(pgt);
+        storeProxyGrantingTicket(pgt);
         return pgt;
     }
 
@@ -150,9 +234,79 @@ public abstract class AbstractTicketService implements TicketServiceEx {
     public ProxyGrantingTicket removeProxyGrantingTicket(@Nonnull final String id) {
         Constraint.isNotNull(id, "Id cannot be null");
         final ProxyGrantingTicket pgt = delete(id, ProxyGrantingTicket.class);
+        if (pgt != null) {
+            pgtRemovedCount.incrementAndGet();
+        }
         return pgt;
     }
 
+    /**
+     * Removes all proxy-granting tickets belonging to an IdP session. This has no effect unless proxy-granting
+     * tickets are indexed by session.
+     *
+     * @param sessionId IdP session ID.
+     *
+     * @return Number of tickets removed.
+     */
+    public int removeProxyGrantingTickets(@Nonnull final String sessionId) {
+        Constraint.isNotNull(sessionId, "Session ID cannot be null");
+        if (!sessionIndex) {
+            return 0;
+        }
+        final String context = context(ProxyGrantingTicket.class);
+        int removed = 0;
+        try {
+            final StorageRecord<?> record = storageService.read(SESSION_INDEX_CONTEXT, sessionId);
+            if (record == null) {
+                log.debug("No proxy-granting tickets indexed for session {}", sessionId);
+                return 0;
+            }
+            for (final String id : parseSessionIndexEntries(record.getValue()).keySet()) {
+                if (storageService.delete(context, id)) {
+                    removed++;
+                }
+            }
+            storageService.delete(SESSION_INDEX_CONTEXT, sessionId);
+        } catch (final IOException e) {
+            throw new RuntimeException("Error removing proxy-granting tickets for session " + sessionId, e);
+        }
+        log.debug("Removed {} proxy-granting tickets for session {}", removed, sessionId);
+        pgtRemovedCount.addAndGet(removed);
+        return removed;
+    }
+
+    /**
+     * Counts the unexpired proxy-granting tickets indexed against an IdP session. This is always zero unless
+     * proxy-granting tickets are indexed by session, and may include tickets that have since been removed
+     * individually.
+     *
+     * @param sessionId IdP session ID.
+     *
+     * @return Number of tickets.
+     */
+    public int countProxyGrantingTickets(@Nonnull final String sessionId) {
+        Constraint.isNotNull(sessionId, "Session ID cannot be null");
+        if (!sessionIndex) {
+            return 0;
+        }
+        try {
+            final StorageRecord<?> record = storageService.read(SESSION_INDEX_CONTEXT, sessionId);
+            if (record == null) {
+                return 0;
+            }
+            final long now = System.currentTimeMillis();
+            int count = 0;
+            for (final Long expiration : parseSessionIndexEntries(record.getValue()).values()) {
+                if (expiration > now) {
+                    count++;
+                }
+            }
+            return count;
+        } catch (final IOException e) {
+            throw new RuntimeException("Error reading proxy-granting tickets for session " + sessionId, e);
+        }
+    }
+
     /**
      * Gets the storage service context name for the given ticket type.
      *
@@ -176,6 +330,119 @@ public abstract class AbstractTicketService implements TicketServiceEx {
         return (StorageSerializer<T>) SERIALIZER_MAP.get(clazz);
     }
 
+    /**
+     * Stores the given proxy-granting ticket in the storage service and indexes it by session if required.
+     *
+     * @param pgt Proxy-granting ticket to store.
+     */
+    protected void storeProxyGrantingTicket(@Nonnull final ProxyGrantingTicket pgt) {
+        store(pgt);
+        pgtCreatedCount.incrementAndGet();
+        if (sessionIndex && pgt.getSessionId() != null) {
+            indexBySession(pgt, SESSION_INDEX_ATTEMPTS);
+        }
+    }
+
+    /**
+     * Insert or update the session index record for the session to which a proxy-granting ticket belongs.
+     *
+     * <p>Failure to maintain the index is logged but does not prevent the ticket from being used.</p>
+     *
+     * @param pgt Proxy-granting ticket to index.
+     * @param attempts Number of times to retry operation in the event of a synchronization issue.
+     */
+    private void indexBySession(@Nonnull final ProxyGrantingTicket pgt, final int attempts) {
+        if (attempts <= 0) {
+            log.error("Exceeded retry attempts while indexing {} by session", pgt);
+            return;
+        }
+        final String sessionId = pgt.getSessionId();
+        final long expiration = pgt.getExpirationInstant().getMillis();
+        try {
+            final StorageRecord<?> record = storageService.read(SESSION_INDEX_CONTEXT, sessionId);
+            if (record == null) {
+                if (!storageService.create(SESSION_INDEX_CONTEXT, sessionId,
+                        formatSessionIndexEntries(Collections.singletonMap(pgt.getId(), expiration)), expiration)) {
+                    log.debug("Session index record appeared, retrying as update");
+                    indexBySession(pgt, attempts - 1);
+                }
+                return;
+            }
+
+            final Map<String, Long> entries = parseSessionIndexEntries(record.getValue());
+            final long now = System.currentTimeMillis();
+            long maxExpiration = expiration;
+            int expired = 0;
+            final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final long entryExpiration = iterator.next().getValue();
+                if (entryExpiration <= now) {
+                    iterator.remove();
+                    expired++;
+                } else {
+                    maxExpiration = Math.max(maxExpiration, entryExpiration);
+                }
+            }
+            entries.put(pgt.getId(), expiration);
+            if (storageService.updateWithVersion(record.getVersion(), SESSION_INDEX_CONTEXT, sessionId,
+                    formatSessionIndexEntries(entries), maxExpiration) == null) {
+                log.debug("Session index record disappeared, retrying as insert");
+                indexBySession(pgt, attempts - 1);
+            } else {
+                pgtExpiredCount.addAndGet(expired);
+            }
+        } catch (final VersionMismatchException e) {
+            log.debug("Session index record was updated between read/update, retrying");
+            indexBySession(pgt, attempts - 1);
+        } catch (final IOException e) {
+            log.error("Exception indexing {} by session {}", pgt, sessionId, e);
+        }
+    }
+
+    /**
+     * Parse the entries of a session index record.
+     *
+     * @param value Record value.
+     *
+     * @return Expiration of each ticket, by ticket ID, in record order.
+     */
+    @Nonnull
+    private static Map<String, Long> parseSessionIndexEntries(@Nonnull final String value) {
+        final Map<String, Long> entries = new LinkedHashMap<>();
+        int start = 0;
+        while (start < value.length()) {
+            int end = value.indexOf(ENTRY_DELIMITER, start);
+            if (end < 0) {
+                end = value.length();
+            }
+            final int delimiter = value.lastIndexOf(EXPIRATION_DELIMITER, end - 1);
+            if (delimiter >= start) {
+                entries.put(value.substring(start, delimiter), Long.valueOf(value.substring(delimiter + 1, end)));
+            }
+            start = end + 1;
+        }
+        return entries;
+    }
+
+    /**
+     * Format the entries of a session index record.
+     *
+     * @param entries Expiration of each ticket, by ticket ID.
+     *
+     * @return Record value.
+     */
+    @Nonnull
+    private static String formatSessionIndexEntries(@Nonnull final Map<String, Long> entries) {
+        final StringBuilder builder = new StringBuilder(entries.size() * 64);
+        for (final Map.Entry<String, Long> entry : entries.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(ENTRY_DELIMITER);
+            }
+            builder.append(entry.getKey()).append(EXPIRATION_DELIMITER).append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
     /**
      * Stores the given ticket in the storage service.
      *
@@ -0,0 +1,234 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.cas.ticket.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.ParameterName;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node-local, bounded record of consumed ticket IDs, used to enforce one-time use of tickets that have no backing
+ * store.
+ *
+ * <p>Each ID is held until the expiration instant of its ticket, after which the ticket is rejected regardless.
+ * Expiration is driven by a hashed time wheel: an ID is placed in the slot covering its expiration instant and slots
+ * are swept as time passes, so the cost of expiry is proportional to the number of IDs expiring rather than to the
+ * size of the set. IDs expiring more than one revolution of the wheel ahead are simply carried over when their slot
+ * is swept early.</p>
+ *
+ * <p>When the set is full, the IDs in the slot closest to expiry are evicted to make room, since those tickets have
+ * the shortest remaining window in which they could be replayed.</p>
+ *
+ * @since 3.4.0
+ */
+@ThreadSafe
+public class ConsumedTicketCache {
+
+    /** Default maximum number of IDs held. */
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    /** Default duration covered by each slot of the time wheel, in milliseconds. */
+    @Duration public static final long DEFAULT_RESOLUTION = 1000;
+
+    /** Number of slots in the time wheel. */
+    private static final int WHEEL_SIZE = 64;
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(ConsumedTicketCache.class);
+
+    /** Maximum number of IDs held. */
+    @Positive private final int capacity;
+
+    /** Duration covered by each slot of the time wheel, in milliseconds. */
+    @Positive @Duration private final long resolution;
+
+    /** Expiration instant of each consumed ticket ID. */
+    @Nonnull @GuardedBy("this") private final Map<String, Long> consumed;
+
+    /** Consumed ticket IDs, by time wheel slot. */
+    @Nonnull @GuardedBy("this") private final List<List<String>> wheel;
+
+    /** The last tick swept from the time wheel. */
+    @GuardedBy("this") private long sweptTick;
+
+    /** Constructor. */
+    public ConsumedTicketCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_RESOLUTION);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries maximum number of IDs held
+     * @param tick duration covered by each slot of the time wheel, in milliseconds
+     */
+    public ConsumedTicketCache(@Positive @ParameterName(name="capacity") final int maxEntries,
+            @Positive @Duration @ParameterName(name="resolution") final long tick) {
+        capacity = (int) Constraint.isGreaterThan(0, maxEntries, "Capacity must be greater than 0");
+        resolution = Constraint.isGreaterThan(0, tick, "Resolution must be greater than 0");
+        consumed = new HashMap<>();
+        wheel = new ArrayList<>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayList<String>());
+        }
+        sweptTick = System.currentTimeMillis() / resolution - 1;
+    }
+
+    /**
+     * Get the maximum number of IDs held.
+     *
+     * @return maximum number of IDs held
+     */
+    @Positive public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the duration covered by each slot of the time wheel.
+     *
+     * @return duration in milliseconds
+     */
+    @Positive @Duration public long getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Get the number of IDs currently held, including any that have expired but not yet been swept.
+     *
+     * @return number of IDs held
+     */
+    public synchronized int size() {
+        return consumed.size();
+    }
+
+    /**
+     * Get whether a ticket has been consumed.
+     *
+     * <p>This is a cheap check that allows a replayed ticket to be rejected before any work is done to decode it.</p>
+     *
+     * @param id ticket ID
+     *
+     * @return true iff the ticket has been consumed and has not yet expired
+     */
+    public synchronized boolean isConsumed(@Nonnull final String id) {
+        final Long expiration = consumed.get(id);
+        return expiration != null && expiration > System.currentTimeMillis();
+    }
+
+    /**
+     * Record that a ticket has been consumed.
+     *
+     * @param id ticket ID
+     * @param expiration expiration instant of the ticket, in milliseconds since the epoch
+     *
+     * @return true if the ticket had not already been consumed, false if this is a replay
+     */
+    public synchronized boolean consume(@Nonnull final String id, final long expiration) {
+        final long now = System.currentTimeMillis();
+        sweep(now);
+
+        final Long existing = consumed.get(id);
+        if (existing != null && existing > now) {
+            return false;
+        } else if (expiration <= now) {
+            // An expired ticket is rejected regardless, there is nothing to record.
+            return true;
+        }
+
+        while (consumed.size() >= capacity) {
+            evict();
+        }
+        consumed.put(id, expiration);
+        wheel.get(slot(expiration)).add(id);
+        return true;
+    }
+
+    /**
+     * Sweep every slot of the time wheel covering a tick that has fully elapsed.
+     *
+     * @param now the current time
+     */
+    @GuardedBy("this") private void sweep(final long now) {
+        final long tick = now / resolution - 1;
+        if (tick <= sweptTick) {
+            return;
+        }
+
+        // If we have fallen more than a revolution behind, sweeping each slot once is sufficient.
+        for (long t = Math.max(sweptTick + 1, tick - WHEEL_SIZE + 1); t <= tick; t++) {
+            final int index = (int) (t % WHEEL_SIZE);
+            final List<String> ids = wheel.get(index);
+            if (!ids.isEmpty()) {
+                wheel.set(index, new ArrayList<String>());
+                for (final String id : ids) {
+                    final Long expiration = consumed.get(id);
+                    if (expiration == null) {
+                        continue;
+                    } else if (expiration <= now) {
+                        consumed.remove(id);
+                    } else {
+                        wheel.get(slot(expiration)).add(id);
+                    }
+                }
+            }
+        }
+        sweptTick = tick;
+    }
+
+    /** Evict the IDs in the next slot of the time wheel to expire. */
+    @GuardedBy("this") private void evict() {
+        for (long t = sweptTick + 1; t <= sweptTick + WHEEL_SIZE; t++) {
+            final int index = (int) (t % WHEEL_SIZE);
+            final List<String> ids = wheel.get(index);
+            if (!ids.isEmpty()) {
+                wheel.set(index, new ArrayList<String>());
+                for (final String id : ids) {
+                    consumed.remove(id);
+                }
+                log.warn("Consumed ticket cache is full, evicted {} entries closest to expiry", ids.size());
+                return;
+            }
+        }
+
+        // Every held ID is in some slot, so this is not expected.
+        consumed.clear();
+    }
+
+    /**
+     * Get the time wheel slot covering an instant.
+     *
+     * @param instant the instant
+     *
+     * @return the slot index
+     */
+    private int slot(final long instant) {
+        return (int) ((instant / resolution) % WHEEL_SIZE);
+    }
+}
@@ -17,6 +17,9 @@
 
 package net.shibboleth.idp.cas.ticket.impl;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -25,12 +28,16 @@ import net.shibboleth.idp.cas.ticket.ProxyTicket;
 import net.shibboleth.idp.cas.ticket.ServiceTicket;
 import net.shibboleth.idp.cas.ticket.Ticket;
 import net.shibboleth.idp.cas.ticket.TicketState;
+import net.shibboleth.idp.cas.ticket.serialization.impl.AbstractCompactTicketSerializer;
+import net.shibboleth.idp.cas.ticket.serialization.impl.CompactProxyTicketSerializer;
+import net.shibboleth.idp.cas.ticket.serialization.impl.CompactServiceTicketSerializer;
 import net.shibboleth.utilities.java.support.annotation.ParameterName;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 import net.shibboleth.utilities.java.support.security.DataSealer;
 
 import org.joda.time.Instant;
+import org.opensaml.storage.StorageSerializer;
 import org.opensaml.storage.StorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,16 +51,24 @@ import org.slf4j.LoggerFactory;
  *     <li>Proxy-granting tickets are persisted using a {@link StorageService}.</li>
  * </ol>
  *
- * <p><strong>NOTE:</strong> The service tickets and proxy tickets produced by this component do not support one-time
- * use. More precisely, {@link #removeServiceTicket(String)} and {@link #removeProxyTicket(String)} simply return a
- * decoded ticket and do not invalidate the ticket in any way. Since there is no backing store for those types of
- * tickets, they can be reused until one of the following conditions is met:
+ * <p><strong>NOTE:</strong> By default the service tickets and proxy tickets produced by this component do not
+ * support one-time use. More precisely, {@link #removeServiceTicket(String)} and {@link #removeProxyTicket(String)}
+ * simply return a decoded ticket and do not invalidate the ticket in any way. Since there is no backing store for
+ * those types of tickets, they can be reused until one of the following conditions is met:
  *
  * <ol>
  *     <li>The value of {@link Ticket#getExpirationInstant()} is exceeded.</li>
  *     <li>The {@link DataSealer} key used to encrypt data is revoked.</li>
  * </ol>
  *
+ * <p>If a {@link ConsumedTicketCache} is set, each ticket is recorded in it when first removed and is rejected if
+ * presented again. The cache is local to the node, so one-time use is only enforced across a cluster if a ticket is
+ * always validated by the node that first validates it.</p>
+ *
+ * <p>Ticket data may optionally be serialized in the compact form implemented by
+ * {@link AbstractCompactTicketSerializer}, which is cheaper to produce and consume than JSON. Tickets are decoded
+ * from either form regardless of this setting.</p>
+ *
  * @author Marvin S. Addison
  * @since 3.3.0
  */
@@ -68,6 +83,10 @@ public class EncodingTicketService extends AbstractTicketService {
     /** Non-null marker value for unused ServiceTicket#id field and storage context name. */
     private static final String NOT_USED = "na";
 
+    /** Map of ticket classes to compact serializers. */
+    private static final Map<Class<? extends Ticket>, StorageSerializer<? extends Ticket>> COMPACT_SERIALIZER_MAP =
+            new HashMap<>();
+
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(EncodingTicketService.class);
 
@@ -83,6 +102,18 @@ public class EncodingTicketService extends AbstractTicketService {
     @NotEmpty
     private String proxyTicketPrefix = PROXY_TICKET_PREFIX;
 
+    /** Record of consumed tickets used to enforce one-time use. */
+    @Nullable
+    private ConsumedTicketCache consumedTicketCache;
+
+    /** Whether to serialize ticket data in compact form. */
+    private boolean compactEncoding;
+
+
+    static {
+        COMPACT_SERIALIZER_MAP.put(ServiceTicket.class, new CompactServiceTicketSerializer());
+        COMPACT_SERIALIZER_MAP.put(ProxyTicket.class, new CompactProxyTicketSerializer());
+    }
 
     /**
      * Creates a new instance.
@@ -114,6 +145,27 @@ public class EncodingTicketService extends AbstractTicketService {
         proxyTicketPrefix = Constraint.isNotEmpty(prefix, "Prefix cannot be null or empty");
     }
 
+    /**
+     * Sets the record of consumed tickets used to enforce one-time use. Default is none, which allows a ticket to be
+     * removed any number of times until it expires.
+     *
+     * @param cache consumed ticket cache
+     */
+    public void setConsumedTicketCache(@Nullable final ConsumedTicketCache cache) {
+        consumedTicketCache = cache;
+    }
+
+    /**
+     * Sets whether to serialize ticket data in compact form rather than JSON. Default is false.
+     *
+     * <p>This should only be enabled once every node validating tickets is able to decode the compact form.</p>
+     *
+     * @param flag flag to set
+     */
+    public void setCompactEncoding(final boolean flag) {
+        compactEncoding = flag;
+    }
+
     @Override
     @Nonnull
     public ServiceTicket createServiceTicket(
@@ -176,7 +228,7 @@ public class EncodingTicketService extends AbstractTicketService {
         final String opaque;
         try {
             opaque = dataSealer.wrap(
-                    serializer(ticketClass).serialize(ticket), ticket.getExpirationInstant().getMillis());
+                    encoder(ticketClass).serialize(ticket), ticket.getExpirationInstant().getMillis());
         } catch (final Exception e) {
             throw new RuntimeException("Ticket encoding failed", e);
         }
@@ -194,13 +246,65 @@ public class EncodingTicketService extends AbstractTicketService {
      * @return decoded ticket
      */
     private <T extends Ticket> T decode(final Class<T> ticketClass, final String id, final String prefix) {
+        if (consumedTicketCache != null && consumedTicketCache.isConsumed(id)) {
+            log.warn("Rejecting ticket {} which has already been used", id);
+            return null;
+        }
+        final T ticket;
         try {
             final String decrypted = dataSealer.unwrap(id.substring(prefix.length() + 1));
-            return serializer(ticketClass).deserialize(0, NOT_USED, id, decrypted, 0L);
+            ticket = decoder(ticketClass, decrypted).deserialize(0, NOT_USED, id, decrypted, 0L);
         } catch (final Exception e) {
             log.warn("Ticket decoding failed with error: " + e.getMessage());
             log.debug("Ticket decoding failed", e);
+            return null;
         }
-        return null;
+        // Only genuine tickets are recorded, so the cache cannot be flooded with arbitrary IDs.
+        if (consumedTicketCache != null
+                && !consumedTicketCache.consume(id, ticket.getExpirationInstant().getMillis())) {
+            log.warn("Rejecting ticket {} which has already been used", id);
+            return null;
+        }
+        return ticket;
+    }
+
+    /**
+     * Get the serializer with which to encode a ticket.
+     *
+     * @param ticketClass class of ticket
+     * @param <T> type of ticket
+     *
+     * @return serializer
+     */
+    @Nonnull private <T extends Ticket> StorageSerializer<T> encoder(@Nonnull final Class<T> ticketClass) {
+        return compactEncoding ? compactSerializer(ticketClass) : serializer(ticketClass);
+    }
+
+    /**
+     * Get the serializer with which to decode a ticket.
+     *
+     * @param ticketClass class of ticket
+     * @param serialized serialized ticket data
+     * @param <T> type of ticket
+     *
+     * @return serializer
+     */
+    @Nonnull private <T extends Ticket> StorageSerializer<T> decoder(@Nonnull final Class<T> ticketClass,
+            @Nonnull final String serialized) {
+        return AbstractCompactTicketSerializer.isCompact(serialized)
+                ? compactSerializer(ticketClass) : serializer(ticketClass);
+    }
+
+    /**
+     * Get the compact serializer for a ticket class.
+     *
+     * @param clazz class of ticket
+     * @param <T> type of ticket
+     *
+     * @return serializer
+     */
+    @SuppressWarnings("unchecked")
+    @Nonnull private static <T extends Ticket> StorageSerializer<T> compactSerializer(@Nonnull final Class<T> clazz) {
+        return (StorageSerializer<T>) COMPACT_SERIALIZER_MAP.get(clazz);
     }
 }
@@ -0,0 +1,260 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.cas.ticket.serialization.impl;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.idp.cas.ticket.Ticket;
+import net.shibboleth.idp.cas.ticket.TicketState;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.joda.time.Instant;
+import org.opensaml.storage.StorageSerializer;
+
+/**
+ * Base class for ticket serializers that use a compact, length-prefixed serialization strategy.
+ *
+ * <p>The serialized form starts with {@link #FORMAT_PREFIX}, followed by the fields of the ticket in a fixed order.
+ * Text fields are written as a decimal length, a colon and the characters of the field; numeric fields are written
+ * as text in radix 36; flags are written as a single character. The format needs no escaping and is read in a single
+ * pass without any intermediate object model, which makes it considerably cheaper to produce and consume than the
+ * JSON form written by {@link AbstractTicketSerializer}. Since a JSON object can never start with the prefix, the
+ * two forms can be told apart with {@link #isCompact(String)}.</p>
+ *
+ * @param <T> type of ticket
+ */
+public abstract class AbstractCompactTicketSerializer<T extends Ticket> implements StorageSerializer<T> {
+
+    /** Prefix identifying (and versioning) the compact form. */
+    @Nonnull @NotEmpty public static final String FORMAT_PREFIX = "~1";
+
+    /** Separator between the length and the characters of a text field. */
+    private static final char LENGTH_DELIMITER = ':';
+
+    /** Radix of numeric fields. */
+    private static final int RADIX = Character.MAX_RADIX;
+
+    /** Character representing a set flag. */
+    private static final char FLAG_SET = '1';
+
+    /** Character representing a clear flag. */
+    private static final char FLAG_CLEAR = '0';
+
+    @Override
+    public void initialize() throws ComponentInitializationException {}
+
+    @Override
+    public boolean isInitialized() {
+        return true;
+    }
+
+    @Override
+    @Nonnull
+    public String serialize(@Nonnull final T ticket) throws IOException {
+        final StringBuilder buffer = new StringBuilder(128).append(FORMAT_PREFIX);
+        writeField(buffer, ticket.getService());
+        writeNumber(buffer, ticket.getExpirationInstant().getMillis());
+        final TicketState state = ticket.getTicketState();
+        writeFlag(buffer, state != null);
+        if (state != null) {
+            writeField(buffer, state.getSessionId());
+            writeField(buffer, state.getPrincipalName());
+            writeNumber(buffer, state.getAuthenticationInstant().getMillis());
+            writeField(buffer, state.getAuthenticationMethod());
+        }
+        serializeInternal(buffer, ticket);
+        return buffer.toString();
+    }
+
+    @Override
+    @Nonnull
+    public T deserialize(
+            final long version,
+            @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key,
+            @Nonnull @NotEmpty final String value,
+            @Nullable final Long expiration) throws IOException {
+
+        if (!isCompact(value)) {
+            throw new IOException("Serialized ticket is not in compact form");
+        }
+        try {
+            final FieldReader reader = new FieldReader(value, FORMAT_PREFIX.length());
+            final String service = reader.nextField();
+            final Instant expiry = new Instant(reader.nextNumber());
+            final TicketState state;
+            if (reader.nextFlag()) {
+                state = new TicketState(
+                        reader.nextField(),
+                        reader.nextField(),
+                        new Instant(reader.nextNumber()),
+                        reader.nextField());
+            } else {
+                state = null;
+            }
+            final T ticket = createTicket(reader, key, service, expiry);
+            if (reader.hasRemaining()) {
+                throw new IOException("Unexpected trailing data in serialized ticket");
+            }
+            ticket.setTicketState(state);
+            return ticket;
+        } catch (final IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Exception deserializing ticket", e);
+        }
+    }
+
+    /**
+     * Get whether a serialized ticket is in the compact form.
+     *
+     * @param value serialized ticket
+     *
+     * @return true iff the value was produced by a subclass of this class
+     */
+    public static boolean isCompact(@Nullable final String value) {
+        return value != null && value.startsWith(FORMAT_PREFIX);
+    }
+
+    /**
+     * Create a ticket.
+     *
+     * @param reader reader positioned at the first field written by {@link #serializeInternal(StringBuilder, Ticket)}
+     * @param id ticket ID
+     * @param service service that requested the ticket
+     * @param expiry expiration instant
+     *
+     * @return the newly created ticket
+     */
+    protected abstract T createTicket(
+            @Nonnull final FieldReader reader,
+            @Nonnull final String id,
+            @Nonnull final String service,
+            @Nonnull final Instant expiry);
+
+    /**
+     * Serialize the fields specific to a type of ticket.
+     *
+     * @param buffer buffer to write to
+     * @param ticket ticket
+     */
+    protected abstract void serializeInternal(@Nonnull final StringBuilder buffer, @Nonnull final T ticket);
+
+    /**
+     * Write a text field.
+     *
+     * @param buffer buffer to write to
+     * @param value field value
+     */
+    protected static void writeField(@Nonnull final StringBuilder buffer, @Nonnull final String value) {
+        buffer.append(value.length()).append(LENGTH_DELIMITER).append(value);
+    }
+
+    /**
+     * Write a numeric field.
+     *
+     * @param buffer buffer to write to
+     * @param value field value
+     */
+    protected static void writeNumber(@Nonnull final StringBuilder buffer, final long value) {
+        writeField(buffer, Long.toString(value, RADIX));
+    }
+
+    /**
+     * Write a flag.
+     *
+     * @param buffer buffer to write to
+     * @param value field value
+     */
+    protected static void writeFlag(@Nonnull final StringBuilder buffer, final boolean value) {
+        buffer.append(value ? FLAG_SET : FLAG_CLEAR);
+    }
+
+    /** Reads the fields of a serialized ticket in turn. */
+    protected static final class FieldReader {
+
+        /** Serialized ticket. */
+        @Nonnull private final String value;
+
+        /** Position of the next field. */
+        private int position;
+
+        /**
+         * Constructor.
+         *
+         * @param serialized serialized ticket
+         * @param start position of the first field
+         */
+        FieldReader(@Nonnull final String serialized, final int start) {
+            value = serialized;
+            position = start;
+        }
+
+        /**
+         * Read a text field.
+         *
+         * @return field value
+         */
+        @Nonnull public String nextField() {
+            final int delimiter = value.indexOf(LENGTH_DELIMITER, position);
+            if (delimiter < 0) {
+                throw new IllegalArgumentException("Missing field length delimiter at position " + position);
+            }
+            final int length = Integer.parseInt(value.substring(position, delimiter));
+            if (length < 0) {
+                throw new IllegalArgumentException("Negative field length at position " + position);
+            }
+            position = delimiter + 1 + length;
+            return value.substring(delimiter + 1, position);
+        }
+
+        /**
+         * Read a numeric field.
+         *
+         * @return field value
+         */
+        public long nextNumber() {
+            return Long.parseLong(nextField(), RADIX);
+        }
+
+        /**
+         * Read a flag.
+         *
+         * @return field value
+         */
+        public boolean nextFlag() {
+            final char c = value.charAt(position++);
+            if (c == FLAG_SET) {
+                return true;
+            } else if (c == FLAG_CLEAR) {
+                return false;
+            }
+            throw new IllegalArgumentException("Invalid flag at position " + (position - 1));
+        }
+
+        /**
+         * Get whether any data remains to be read.
+         *
+         * @return true iff data remains
+         */
+        public boolean hasRemaining() {
+            return position < value.length();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.cas.service;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for {@link PatternServiceRegistry}.
+ */
+public class PatternServiceRegistryTest {
+
+    @Test
+    public void testFirstMatchWins() {
+        final PatternServiceRegistry registry = newRegistry(
+                "https://app\\.example\\.org/admin/.*",
+                "https://.*\\.example\\.org/.*",
+                "https://app\\.example\\.org/.*",
+                "https://exact\\.example\\.org/login",
+                "^https://(a|b)\\.example\\.com/.*$",
+                "http://legacy\\.example\\.org/.*|https://legacy\\.example\\.org/.*",
+                "(?i)https://upper\\.example\\.net/.*");
+
+        assertEquals(registry.lookup("https://app.example.org/admin/x").getGroup(), "group0");
+        assertEquals(registry.lookup("https://app.example.org/home").getGroup(), "group1");
+        assertEquals(registry.lookup("https://exact.example.org/login").getGroup(), "group1");
+        assertEquals(registry.lookup("https://b.example.com/x").getGroup(), "group4");
+        assertEquals(registry.lookup("http://legacy.example.org/x").getGroup(), "group5");
+        assertEquals(registry.lookup("HTTPS://UPPER.EXAMPLE.NET/x").getGroup(), "group6");
+        assertNull(registry.lookup("https://c.example.com/x"));
+        assertNull(registry.lookup("https://app.example.org"));
+    }
+
+    @Test
+    public void testLiteralPattern() {
+        final PatternServiceRegistry registry = newRegistry("https://exact\\.example\\.org/login$");
+        final Service service = registry.lookup("https://exact.example.org/login");
+        assertNotNull(service);
+        assertEquals(service.getName(), "https://exact.example.org/login");
+        assertNull(registry.lookup("https://exact.example.org/login/"));
+        assertNull(registry.lookup("https://exactXexample.org/login"));
+    }
+
+    @Test
+    public void testCacheInvalidatedByDefinitions() {
+        final PatternServiceRegistry registry = newRegistry("https://a\\.example\\.org/.*");
+        assertNotNull(registry.lookup("https://a.example.org/x"));
+        assertNull(registry.lookup("https://b.example.org/x"));
+        registry.setDefinitions(Arrays.asList(new ServiceDefinition("https://b\\.example\\.org/.*")));
+        assertNull(registry.lookup("https://a.example.org/x"));
+        assertNotNull(registry.lookup("https://b.example.org/x"));
+    }
+
+    @Test
+    public void testLiteralPrefix() {
+        assertPrefix("https://a\\.example\\.org/.*", "https://a.example.org/", false);
+        assertPrefix("^https://a\\.b/x$", "https://a.b/x", true);
+        assertPrefix("\\Qhttps://a.b/\\E.*", "https://a.b/", false);
+        assertPrefix("https://ab?c", "https://a", false);
+        assertPrefix("https://ab+c", "https://ab", false);
+        assertPrefix("https://ab{2}", "https://a", false);
+        assertPrefix("https://a\\d", "https://a", false);
+        assertPrefix("(?i)https://a", "", false);
+        assertTrue(ServicePatternIndex.hasTopLevelAlternation("https://a|https://b"));
+        assertFalse(ServicePatternIndex.hasTopLevelAlternation("https://(a|b)"));
+        assertFalse(ServicePatternIndex.hasTopLevelAlternation("https://[|]"));
+        assertFalse(ServicePatternIndex.hasTopLevelAlternation("https://[]|]"));
+        assertFalse(ServicePatternIndex.hasTopLevelAlternation("https://\\|"));
+        assertTrue(ServicePatternIndex.hasTopLevelAlternation("https://[a]|b]"));
+    }
+
+    private void assertPrefix(final String regex, final String expected, final boolean literal) {
+        final StringBuilder prefix = new StringBuilder();
+        assertEquals(ServicePatternIndex.extractLiteralPrefix(regex, prefix), literal);
+        assertEquals(prefix.toString(), expected);
+    }
+
+    private PatternServiceRegistry newRegistry(final String... patterns) {
+        final ServiceDefinition[] definitions = new ServiceDefinition[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            definitions[i] = new ServiceDefinition(patterns[i]);
+            definitions[i].setGroup("group" + i);
+        }
+        final PatternServiceRegistry registry = new PatternServiceRegistry();
+        registry.setDefinitions(Arrays.asList(definitions));
+        return registry;
+    }
+}
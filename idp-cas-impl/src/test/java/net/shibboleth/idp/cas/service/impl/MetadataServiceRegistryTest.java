@@ -17,18 +17,27 @@
 
 package net.shibboleth.idp.cas.service.impl;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Timer;
 
 import net.shibboleth.ext.spring.resource.ResourceHelper;
 import net.shibboleth.idp.cas.service.Service;
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
 import net.shibboleth.utilities.java.support.resource.Resource;
+import org.joda.time.DateTime;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.opensaml.core.config.InitializationException;
 import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.criterion.EntityIdCriterion;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.criterion.EndpointCriterion;
+import org.opensaml.saml.metadata.resolver.RefreshableMetadataResolver;
 import org.opensaml.saml.metadata.resolver.impl.ResourceBackedMetadataResolver;
 import org.opensaml.saml.metadata.resolver.index.MetadataIndex;
 import org.opensaml.saml.metadata.resolver.index.impl.EndpointMetadataIndex;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.springframework.core.io.ClassPathResource;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
@@ -36,6 +45,8 @@ import org.testng.annotations.BeforeSuite;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
 import static org.testng.Assert.*;
 
 /**
@@ -105,4 +116,66 @@ public class MetadataServiceRegistryTest {
             assertEquals(actual.isSingleLogoutParticipant(), expected.isSingleLogoutParticipant());
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCachedLookup() throws Exception {
+        final RefreshableMetadataResolver resolver = mock(RefreshableMetadataResolver.class);
+        when(resolver.getLastUpdate()).thenReturn(new DateTime(1000));
+        when(resolver.resolve(any(CriteriaSet.class))).thenAnswer(new Answer<Iterable<EntityDescriptor>>() {
+            public Iterable<EntityDescriptor> answer(final InvocationOnMock invocation) throws Throwable {
+                return metadataResolver.resolve((CriteriaSet) invocation.getArguments()[0]);
+            }
+        });
+        final MetadataServiceRegistry registry = new MetadataServiceRegistry(resolver);
+
+        final Service s1 = registry.lookup("https://alpha.example.org/a/b/");
+        assertNotNull(s1);
+        // Served from the cache
+        final Service s2 = registry.lookup("https://alpha.example.org/a/b/");
+        assertNotNull(s2);
+        assertNotSame(s2, s1);
+        assertEquals(s2.getName(), s1.getName());
+        assertEquals(s2.getGroup(), s1.getGroup());
+        assertTrue(s2.isAuthorizedToProxy());
+        assertTrue(s2.isSingleLogoutParticipant());
+        assertSame(s2.getEntityDescriptor(), s1.getEntityDescriptor());
+        assertNull(registry.lookup("https://alpha.dev.example.org"));
+        assertNull(registry.lookup("https://alpha.dev.example.org"));
+        verify(resolver, times(2)).resolve(any(CriteriaSet.class));
+
+        // Metadata update causes cached results to be resolved again
+        when(resolver.getLastUpdate()).thenReturn(new DateTime(2000));
+        assertNotNull(registry.lookup("https://alpha.example.org/a/b/"));
+        assertNull(registry.lookup("https://alpha.dev.example.org"));
+        assertNotNull(registry.lookup("https://alpha.example.org/a/b/"));
+        verify(resolver, times(4)).resolve(any(CriteriaSet.class));
+    }
+
+    @Test
+    public void testCachedAmbiguousLookup() throws Exception {
+        final EntityDescriptor alpha =
+                metadataResolver.resolveSingle(new CriteriaSet(new EntityIdCriterion("https://alpha.example.org/")));
+        final EntityDescriptor beta =
+                metadataResolver.resolveSingle(new CriteriaSet(new EntityIdCriterion("https://beta.example.org/")));
+        final RefreshableMetadataResolver resolver = mock(RefreshableMetadataResolver.class);
+        when(resolver.getLastUpdate()).thenReturn(new DateTime(1000));
+        when(resolver.resolve(any(CriteriaSet.class))).thenAnswer(new Answer<Iterable<EntityDescriptor>>() {
+            public Iterable<EntityDescriptor> answer(final InvocationOnMock invocation) throws Throwable {
+                final String location = ((CriteriaSet) invocation.getArguments()[0])
+                        .get(EndpointCriterion.class).getEndpoint().getLocation();
+                // Both entities have a login location that /app/ URLs start with, but only one has a shorter one.
+                if (location.startsWith("https://gamma.example.org/app/")) {
+                    return Arrays.asList(alpha, beta);
+                }
+                return Collections.singletonList(alpha);
+            }
+        });
+        final MetadataServiceRegistry registry = new MetadataServiceRegistry(resolver);
+
+        assertNotNull(registry.lookup("https://gamma.example.org/"));
+        // Multiple results, whether or not one of the entities has been cached for another URL
+        assertNull(registry.lookup("https://gamma.example.org/app/x"));
+        assertNull(registry.lookup("https://gamma.example.org/app/x"));
+        verify(resolver, times(2)).resolve(any(CriteriaSet.class));
+    }
+}
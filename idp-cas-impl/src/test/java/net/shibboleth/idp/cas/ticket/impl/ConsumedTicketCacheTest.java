@@ -0,0 +1,75 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.cas.ticket.impl;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for {@link ConsumedTicketCache}.
+ */
+public class ConsumedTicketCacheTest {
+
+    @Test
+    public void testConsume() {
+        final ConsumedTicketCache cache = new ConsumedTicketCache();
+        final long expiration = System.currentTimeMillis() + 60000;
+        assertFalse(cache.isConsumed("ST-1"));
+        assertTrue(cache.consume("ST-1", expiration));
+        assertTrue(cache.isConsumed("ST-1"));
+        assertFalse(cache.consume("ST-1", expiration));
+        assertTrue(cache.consume("ST-2", expiration));
+        assertEquals(cache.size(), 2);
+    }
+
+    @Test
+    public void testExpiredTicketNotRecorded() {
+        final ConsumedTicketCache cache = new ConsumedTicketCache();
+        assertTrue(cache.consume("ST-1", System.currentTimeMillis() - 1));
+        assertFalse(cache.isConsumed("ST-1"));
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        final ConsumedTicketCache cache = new ConsumedTicketCache(100, 10);
+        assertTrue(cache.consume("ST-1", System.currentTimeMillis() + 50));
+        assertTrue(cache.consume("ST-2", System.currentTimeMillis() + 60000));
+        Thread.sleep(100);
+        assertFalse(cache.isConsumed("ST-1"));
+        assertTrue(cache.consume("ST-3", System.currentTimeMillis() + 60000));
+        assertEquals(cache.size(), 2);
+        assertTrue(cache.isConsumed("ST-2"));
+    }
+
+    @Test
+    public void testEvictClosestToExpiry() {
+        final ConsumedTicketCache cache = new ConsumedTicketCache(3, 1000);
+        final long now = System.currentTimeMillis();
+        assertTrue(cache.consume("ST-1", now + 30000));
+        assertTrue(cache.consume("ST-2", now + 5000));
+        assertTrue(cache.consume("ST-3", now + 20000));
+        assertTrue(cache.consume("ST-4", now + 10000));
+        assertEquals(cache.size(), 3);
+        assertFalse(cache.isConsumed("ST-2"));
+        assertTrue(cache.isConsumed("ST-1"));
+        assertTrue(cache.isConsumed("ST-3"));
+        assertTrue(cache.isConsumed("ST-4"));
+    }
+}
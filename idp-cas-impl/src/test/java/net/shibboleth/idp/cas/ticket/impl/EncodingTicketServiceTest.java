@@ -47,6 +47,8 @@ public class EncodingTicketServiceTest {
 
     private EncodingTicketService ticketService;
 
+    private DataSealer sealer;
+
     private IdentifierGenerationStrategy sessionIdGenerator = new RandomIdentifierGenerationStrategy(32);
 
     private IdentifierGenerationStrategy pgtIdGenerator = new TicketIdentifierGenerationStrategy("PGT", 32);
@@ -72,7 +74,7 @@ public class EncodingTicketServiceTest {
         strategy.setKeyPassword("password");
         strategy.initialize();
         final Base32 codec = new Base32(0, null, false, (byte) '-');
-        final DataSealer sealer = new DataSealer();
+        sealer = new DataSealer();
         sealer.setKeyStrategy(strategy);
         sealer.setRandom(secureRandom);
         sealer.setEncoder(codec);
@@ -163,6 +165,58 @@ public class EncodingTicketServiceTest {
         assertNull(ticketService.removeProxyTicket("PT-123"));
     }
 
+    @Test
+    public void testOneTimeUse() throws Exception {
+        final EncodingTicketService service = new EncodingTicketService(new MemoryStorageService(), sealer);
+        service.setConsumedTicketCache(new ConsumedTicketCache());
+        final ServiceTicket st1 = service.createServiceTicket(
+                String.valueOf(System.currentTimeMillis()),
+                new Instant().plus(5000),
+                "https://www.example.com/s3/",
+                newState("fitzgerald"),
+                false);
+        assertNotNull(service.removeServiceTicket(st1.getId()));
+        assertNull(service.removeServiceTicket(st1.getId()));
+
+        final ProxyGrantingTicket pgt = newPGT(newState("fitzgerald"), "https://www.example.com/s3/");
+        final ProxyTicket pt1 = service.createProxyTicket(
+                String.valueOf(System.currentTimeMillis()),
+                new Instant().plus(5000),
+                pgt,
+                "https://www.example.com/s4/");
+        assertNotNull(service.removeProxyTicket(pt1.getId()));
+        assertNull(service.removeProxyTicket(pt1.getId()));
+
+        // Invalid tickets are not recorded
+        assertNull(service.removeServiceTicket("ST-abc123"));
+        assertNull(service.removeServiceTicket("ST-abc123"));
+    }
+
+    @Test
+    public void testCompactEncoding() throws Exception {
+        final EncodingTicketService compactService = new EncodingTicketService(new MemoryStorageService(), sealer);
+        compactService.setCompactEncoding(true);
+        final TicketState state = newState("gwendolyn");
+        final String service = "https://www.example.com/s5/";
+        final Instant expiry = new Instant().plus(5000);
+        final ServiceTicket st1 = compactService.createServiceTicket(
+                String.valueOf(System.currentTimeMillis()), expiry, service, state, true);
+        final ServiceTicket json = ticketService.createServiceTicket(
+                String.valueOf(System.currentTimeMillis()), expiry, service, state, true);
+
+        // Either form is decoded regardless of the encoding in use
+        for (final EncodingTicketService decoder : new EncodingTicketService[] {compactService, ticketService}) {
+            for (final ServiceTicket st : new ServiceTicket[] {st1, json}) {
+                final ServiceTicket st2 = decoder.removeServiceTicket(st.getId());
+                assertNotNull(st2);
+                assertEquals(st2.getExpirationInstant(), expiry);
+                assertEquals(st2.getService(), service);
+                assertTrue(st2.isRenew());
+                assertEquals(st2.getTicketState(), state);
+            }
+        }
+    }
+
     private TicketState newState(final String principal) {
         return new TicketState(sessionIdGenerator.generateIdentifier(), principal, new Instant(), "authn/Password");
     }
@@ -98,6 +98,50 @@ public class SimpleTicketServiceTest {
         assertNull(ticketService.removeProxyTicket(pt.getId()));
     }
 
+    @Test
+    public void testRemoveProxyGrantingTicketsBySession() throws Exception {
+        final MemoryStorageService ss = new MemoryStorageService();
+        ss.setId("shibboleth.StorageService");
+        ss.initialize();
+        final SimpleTicketService indexedService = new SimpleTicketService(ss);
+        indexedService.setSessionIndex(true);
+
+        final TicketState state = new TicketState("ANOTHER_SESSION", "alice", Instant.now(), "Password");
+        final ServiceTicket st = indexedService.createServiceTicket(
+                new TicketIdentifierGenerationStrategy("ST", 25).generateIdentifier(), expiry(), TEST_SERVICE, state,
+                false);
+        final ProxyGrantingTicket pgt1 = indexedService.createProxyGrantingTicket(
+                new TicketIdentifierGenerationStrategy("PGT", 50).generateIdentifier(), expiry(), st);
+        final ProxyTicket pt = indexedService.createProxyTicket(
+                new TicketIdentifierGenerationStrategy("PT", 25).generateIdentifier(), expiry(), pgt1, TEST_SERVICE);
+        final ProxyGrantingTicket pgt2 = indexedService.createProxyGrantingTicket(
+                new TicketIdentifierGenerationStrategy("PGT", 50).generateIdentifier(), expiry(), pt);
+        final ProxyGrantingTicket expired = indexedService.createProxyGrantingTicket(
+                new TicketIdentifierGenerationStrategy("PGT", 50).generateIdentifier(),
+                DateTime.now().plusMillis(50).toInstant(), st);
+        Thread.sleep(100);
+        final ProxyGrantingTicket pgt3 = indexedService.createProxyGrantingTicket(
+                new TicketIdentifierGenerationStrategy("PGT", 50).generateIdentifier(), expiry(), st);
+        assertNull(indexedService.fetchProxyGrantingTicket(expired.getId()));
+        assertEquals(indexedService.getProxyGrantingTicketsCreated(), 4);
+        assertEquals(indexedService.getProxyGrantingTicketsExpired(), 1);
+        assertEquals(indexedService.countProxyGrantingTickets(state.getSessionId()), 3);
+        assertEquals(indexedService.countProxyGrantingTickets(TEST_SESSION_ID), 0);
+
+        assertEquals(indexedService.removeProxyGrantingTickets(state.getSessionId()), 3);
+        assertNull(indexedService.fetchProxyGrantingTicket(pgt1.getId()));
+        assertNull(indexedService.fetchProxyGrantingTicket(pgt2.getId()));
+        assertNull(indexedService.fetchProxyGrantingTicket(pgt3.getId()));
+        assertEquals(indexedService.countProxyGrantingTickets(state.getSessionId()), 0);
+        assertEquals(indexedService.removeProxyGrantingTickets(state.getSessionId()), 0);
+        assertEquals(indexedService.getProxyGrantingTicketsRemoved(), 3);
+
+        // Without the index nothing is removed by session
+        final ProxyGrantingTicket pgt = createProxyGrantingTicket();
+        assertEquals(ticketService.removeProxyGrantingTickets(TEST_SESSION_ID), 0);
+        assertNotNull(ticketService.fetchProxyGrantingTicket(pgt.getId()));
+    }
+
     private ServiceTicket createServiceTicket() {
         return ticketService.createServiceTicket(
                 new TicketIdentifierGenerationStrategy("ST", 25).generateIdentifier(),
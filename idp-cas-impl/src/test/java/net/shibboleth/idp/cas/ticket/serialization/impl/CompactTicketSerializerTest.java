@@ -0,0 +1,102 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.cas.ticket.serialization.impl;
+
+import java.io.IOException;
+
+import net.shibboleth.idp.cas.ticket.ProxyTicket;
+import net.shibboleth.idp.cas.ticket.ServiceTicket;
+import net.shibboleth.idp.cas.ticket.TicketState;
+import org.joda.time.Instant;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit test for {@link CompactServiceTicketSerializer} and {@link CompactProxyTicketSerializer}.
+ */
+public class CompactTicketSerializerTest {
+
+    private CompactServiceTicketSerializer stSerializer = new CompactServiceTicketSerializer();
+
+    private CompactProxyTicketSerializer ptSerializer = new CompactProxyTicketSerializer();
+
+    @Test
+    public void testServiceTicketWithoutTicketState() throws Exception {
+        final ServiceTicket st1 = new ServiceTicket(
+                "ST-0123456789-616ea1550eef862761e5931bdccaaba0",
+                "https://nobody.example.org",
+                Instant.now(),
+                false);
+        final String serialized = stSerializer.serialize(st1);
+        assertTrue(AbstractCompactTicketSerializer.isCompact(serialized));
+        final ServiceTicket st2 = stSerializer.deserialize(1, "notused", st1.getId(), serialized, null);
+        assertEquals(st2.getId(), st1.getId());
+        assertEquals(st2.getService(), st1.getService());
+        assertEquals(st2.getExpirationInstant(), st1.getExpirationInstant());
+        assertEquals(st2.isRenew(), st1.isRenew());
+        assertNull(st2.getTicketState());
+    }
+
+    @Test
+    public void testServiceTicketWithTicketState() throws Exception {
+        // Delimiter characters within fields must survive the round trip.
+        final ServiceTicket st1 = new ServiceTicket(
+                "ST-0123456789-e6342d467a4414e599aa3c323528e96f",
+                "https://nobody.example.org/a:b?c=1:2",
+                Instant.now(),
+                true);
+        st1.setTicketState(new TicketState("idpsess-d2db22058dc178d3b917363859e", "12:bob", Instant.now(), ""));
+        final String serialized = stSerializer.serialize(st1);
+        assertTrue(serialized.length() < new ServiceTicketSerializer().serialize(st1).length());
+        final ServiceTicket st2 = stSerializer.deserialize(1, "notused", st1.getId(), serialized, null);
+        assertEquals(st2.getService(), st1.getService());
+        assertEquals(st2.getExpirationInstant(), st1.getExpirationInstant());
+        assertTrue(st2.isRenew());
+        assertEquals(st2.getTicketState(), st1.getTicketState());
+    }
+
+    @Test
+    public void testProxyTicket() throws Exception {
+        final ProxyTicket pt1 = new ProxyTicket(
+                "PT-0123456789-1b4f1d8dbf1cdba8a46d6b8ab1ad0cb5",
+                "https://proxied.example.org",
+                Instant.now(),
+                "PGT-0123456789-c3fa4a0bb1ad36c7fd08b4bc7ae5ab6e");
+        pt1.setTicketState(new TicketState("idpsess-d2db22058dc178d3b917363859e", "bob", Instant.now(), "Password"));
+        final String serialized = ptSerializer.serialize(pt1);
+        final ProxyTicket pt2 = ptSerializer.deserialize(1, "notused", pt1.getId(), serialized, null);
+        assertEquals(pt2.getService(), pt1.getService());
+        assertEquals(pt2.getExpirationInstant(), pt1.getExpirationInstant());
+        assertEquals(pt2.getPgtId(), pt1.getPgtId());
+        assertEquals(pt2.getTicketState(), pt1.getTicketState());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testRejectJSON() throws Exception {
+        final ServiceTicket st = new ServiceTicket("ST-1", "https://nobody.example.org", Instant.now(), true);
+        stSerializer.deserialize(1, "notused", st.getId(), new ServiceTicketSerializer().serialize(st), null);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testRejectTruncated() throws Exception {
+        final ServiceTicket st = new ServiceTicket("ST-1", "https://nobody.example.org", Instant.now(), true);
+        final String serialized = stSerializer.serialize(st);
+        stSerializer.deserialize(1, "notused", st.getId(), serialized.substring(0, serialized.length() - 5), null);
+    }
+}
@@ -19,11 +19,19 @@ package net.shibboleth.idp.consent.flow.storage.impl;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.AbstractMap;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -34,6 +42,7 @@ import net.shibboleth.idp.profile.context.ProfileInterceptorContext;
 import net.shibboleth.idp.profile.interceptor.ProfileInterceptorResult;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
 import net.shibboleth.utilities.java.support.collection.Pair;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
@@ -42,6 +51,7 @@ import net.shibboleth.utilities.java.support.logic.Constraint;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.opensaml.storage.StorageRecord;
 import org.opensaml.storage.StorageSerializer;
+import org.opensaml.storage.VersionMismatchException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,12 +63,27 @@ import com.google.common.base.Function;
  * To facilitate lookup of all storage keys for a storage context, an index record is maintained containing the storage
  * keys for the context. Because storage records may expire, the index record may contain keys which no longer exist in
  * the storage service.
+ * 
+ * <p>The index may optionally be divided across a number of shard records, see {@link #setStorageIndexShards(int)},
+ * so that adding or removing a key only rewrites the one small record the key belongs to.</p>
  */
 public class AbstractConsentIndexedStorageAction extends AbstractConsentStorageAction {
 
     /** Default storage key for the storage index record. */
     @Nonnull @NotEmpty public static final String DEFAULT_STORAGE_INDEX_KEY = "_key_idx";
 
+    /** Separator between the storage index key and the shard number in the storage key of a shard record. */
+    @Nonnull @NotEmpty public static final String STORAGE_INDEX_SHARD_SEPARATOR = ":";
+
+    /** Prefix of the entry in the index record which records the number of shards in use. */
+    private static final char STORAGE_INDEX_SHARDS_PREFIX = '#';
+
+    /** Separator between the expiration of a storage record and its storage key in an entry of a sharded index. */
+    private static final char STORAGE_INDEX_EXPIRATION_SEPARATOR = '!';
+
+    /** Number of attempts to make when an index record is modified concurrently. */
+    private static final int INDEX_UPDATE_ATTEMPTS = 10;
+
     /** Class logger. */
     @Nonnull private final Logger log = LoggerFactory.getLogger(AbstractConsentIndexedStorageAction.class);
 
@@ -74,10 +99,17 @@ public class AbstractConsentIndexedStorageAction extends AbstractConsentStorageA
     /** Storage keys serializer used to serialize the value of the storage key index record. */
     @Nonnull private StorageSerializer<Collection<String>> storageKeysSerializer;
 
+    /** Number of shard records the index is divided across. */
+    @Positive private int storageIndexShards;
+
+    /** Number of shards recorded in the index record when last read or written, or 0 if not yet read. */
+    private int recordedIndexShards;
+
     /** Constructor. */
     public AbstractConsentIndexedStorageAction() {
         super();
         setStorageKeysSerializer(new CollectionSerializer());
+        storageIndexShards = 1;
     }
 
     /**
@@ -124,6 +156,37 @@ public class AbstractConsentIndexedStorageAction extends AbstractConsentStorageA
         storageKeysStrategy = Constraint.isNotNull(strategy, "Storage keys strategy cannot be null");
     }
 
+    /**
+     * Get the number of shard records the index is divided across.
+     * 
+     * @return the number of shard records
+     */
+    @Positive public int getStorageIndexShards() {
+        return storageIndexShards;
+    }
+
+    /**
+     * Set the number of shard records the index is divided across. Defaults to 1.
+     * 
+     * <p>With a single shard, the index is the one record named by the storage index key. Otherwise each storage
+     * key is assigned to one of the shard records by its hash, and the shard records are named by appending
+     * {@link #STORAGE_INDEX_SHARD_SEPARATOR} and the shard number to the storage index key, except for the first
+     * shard record which is the index record itself. Keys in an index record written before sharding was enabled
+     * therefore continue to be read and removed along with the first shard.</p>
+     * 
+     * <p>The largest number of shards used is recorded in the index record, and that many shard records are always
+     * read, so the value may be lowered or raised without orphaning keys; every action maintaining a given index
+     * should nevertheless use the same value, as keys are looked for outside their own shard record only when they
+     * are not found in it.</p>
+     * 
+     * @param shards the number of shard records
+     */
+    public void setStorageIndexShards(@Positive final int shards) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        storageIndexShards = (int) Constraint.isGreaterThan(0, shards, "Number of shards must be greater than 0");
+    }
+
     /** {@inheritDoc} */
     @Override protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
@@ -145,6 +208,7 @@ public class AbstractConsentIndexedStorageAction extends AbstractConsentStorageA
             return false;
         }
 
+        recordedIndexShards = 0;
         storageIndexKey = storageIndexKeyLookupStrategy.apply(profileRequestContext);
         log.trace("{} Storage index key '{}'", getLogPrefix(), storageIndexKey);
         if (storageIndexKey == null) {
@@ -165,24 +229,184 @@ public class AbstractConsentIndexedStorageAction extends AbstractConsentStorageA
     }
 
     /**
-     * Get the storage keys from the storage index record.
+     * Get the storage key of the index record which the given storage key belongs to.
+     * 
+     * @param storageKey the storage key
+     * @return the storage key of the index record or shard record
+     */
+    @Nonnull protected String getStorageIndexKey(@Nonnull final String storageKey) {
+        return getStorageIndexKey(getStorageIndexShard(storageKey));
+    }
+
+    /**
+     * Get the storage key of a shard record of the index.
+     * 
+     * <p>The first shard record is the index record itself, so that keys in an index record written before
+     * sharding was enabled are read along with it.</p>
      * 
-     * @return the storage keys from the storage index record
+     * @param shard the shard number
+     * @return the storage key of the shard record
+     */
+    @Nonnull private String getStorageIndexKey(final int shard) {
+        if (shard == 0) {
+            return getStorageIndexKey();
+        }
+        return getStorageIndexKey() + STORAGE_INDEX_SHARD_SEPARATOR + shard;
+    }
+
+    /**
+     * Get the shard record of the index which a storage key is added to.
+     * 
+     * @param storageKey the storage key
+     * @return the shard number
+     */
+    private int getStorageIndexShard(@Nonnull final String storageKey) {
+        return storageIndexShards == 1 ? 0 : Math.floorMod(storageKey.hashCode(), storageIndexShards);
+    }
+
+    /**
+     * Get the storage keys from the storage index record(s).
+     * 
+     * @return the storage keys from the storage index record(s)
      * @throws IOException if errors occur in the read process
      */
     @Nonnull @NonnullElements protected List<String> getStorageKeysFromIndex() throws IOException {
 
-        final StorageRecord storageRecord = getStorageService().read(getStorageContext(), getStorageIndexKey());
+        final LinkedHashSet<String> keys = new LinkedHashSet<>();
+        for (final IndexRecord indexRecord : readStorageIndex()) {
+            keys.addAll(indexRecord.entries.keySet());
+        }
 
+        return new ArrayList<>(keys);
+    }
+
+    /**
+     * Read every record making up the index: the index record, and any other shard records up to the larger of
+     * the number of shards configured and the number recorded in the index record.
+     * 
+     * @return the index records, in shard order
+     * @throws IOException if errors occur in the read process
+     */
+    @Nonnull @NonnullElements private List<IndexRecord> readStorageIndex() throws IOException {
+        final IndexRecord first = readIndexRecord(0);
+        final int shards = Math.max(storageIndexShards, first.shards);
+        final List<IndexRecord> index = new ArrayList<>(shards);
+        index.add(first);
+        for (int shard = 1; shard < shards; shard++) {
+            index.add(readIndexRecord(shard));
+        }
+        return index;
+    }
+
+    /**
+     * Read a record of the index.
+     * 
+     * <p>Entries known to have expired are omitted. Reading the index record also notes the number of shards
+     * recorded in it.</p>
+     * 
+     * @param shard the shard number
+     * @return the record, which may not exist
+     * @throws IOException if errors occur in the read process
+     */
+    @Nonnull private IndexRecord readIndexRecord(final int shard) throws IOException {
+        final String indexKey = getStorageIndexKey(shard);
+        final StorageRecord storageRecord = getStorageService().read(getStorageContext(), indexKey);
         log.debug("{} Read storage record '{}' with context '{}' and key '{}'", getLogPrefix(), storageRecord,
-                getStorageContext(), getStorageIndexKey());
+                getStorageContext(), indexKey);
+
+        final long now = System.currentTimeMillis();
+        final LinkedHashMap<String, Long> entries = new LinkedHashMap<>();
+        int shards = 0;
+        if (storageRecord != null) {
+            for (final String entry : getStorageKeys(storageRecord, indexKey)) {
+                if (shard == 0 && entry.length() > 1 && entry.charAt(0) == STORAGE_INDEX_SHARDS_PREFIX) {
+                    try {
+                        shards = Integer.parseInt(entry.substring(1));
+                        continue;
+                    } catch (final NumberFormatException e) {
+                        // A storage key which happens to begin with the prefix.
+                    }
+                }
+                String key = entry;
+                Long expiration = null;
+                final int separator = entry.indexOf(STORAGE_INDEX_EXPIRATION_SEPARATOR);
+                if (separator > 0) {
+                    try {
+                        expiration = Long.valueOf(entry.substring(0, separator));
+                        key = entry.substring(separator + 1);
+                    } catch (final NumberFormatException e) {
+                        // A storage key which happens to contain the separator.
+                    }
+                }
+                if (expiration == null || expiration > now) {
+                    entries.put(key, expiration);
+                }
+            }
+        }
+
+        if (shard == 0) {
+            recordedIndexShards = Math.max(1, shards);
+        }
+        return new IndexRecord(shard, storageRecord, entries, shards);
+    }
 
-        if (storageRecord == null) {
-            return Collections.emptyList();
+    /**
+     * Replace the entries in a record of the index, provided it has not been modified since it was read.
+     * 
+     * <p>Once the index is sharded, each entry records the expiration of its storage record if known, and the
+     * index record records the number of shards.</p>
+     * 
+     * @param indexRecord the record as read
+     * @param entries the new entries
+     * @return true if the record was written, false if it was modified, created or deleted since it was read
+     * @throws IOException if an error occurs writing to the storage service
+     */
+    private boolean writeIndexRecord(@Nonnull final IndexRecord indexRecord,
+            @Nonnull final Map<String, Long> entries) throws IOException {
+        final int shards = Math.max(storageIndexShards, indexRecord.shards);
+        final boolean sharded = indexRecord.shard != 0 || shards > 1;
+
+        final List<String> values = new ArrayList<>(entries.size() + 1);
+        if (indexRecord.shard == 0 && shards > 1) {
+            values.add(STORAGE_INDEX_SHARDS_PREFIX + Integer.toString(shards));
+        }
+        for (final Map.Entry<String, Long> entry : entries.entrySet()) {
+            if (sharded && entry.getValue() != null) {
+                values.add(entry.getValue().toString() + STORAGE_INDEX_EXPIRATION_SEPARATOR + entry.getKey());
+            } else {
+                values.add(entry.getKey());
+            }
         }
 
-        return new ArrayList<>((Collection<String>) storageRecord.getValue(getStorageKeysSerializer(),
-                getStorageContext(), getStorageIndexKey()));
+        final String indexKey = getStorageIndexKey(indexRecord.shard);
+        final boolean written;
+        if (indexRecord.storageRecord == null) {
+            written = getStorageService().create(getStorageContext(), indexKey, values, storageKeysSerializer, null);
+            if (!written) {
+                log.debug("{} Storage index record '{}' appeared, retrying", getLogPrefix(), indexKey);
+            }
+        } else {
+            written = updateStorageIndex(indexRecord.storageRecord, indexKey, values);
+        }
+        if (written && indexRecord.shard == 0) {
+            recordedIndexShards = shards;
+        }
+        return written;
+    }
+
+    /**
+     * Record the number of shards configured in the index record, unless it already records at least as many, so
+     * that every shard record which may be written is read even if the number is later lowered.
+     * 
+     * @return true if the number of shards is recorded, false if the index record was modified concurrently
+     * @throws IOException if an error occurs reading from or writing to the storage service
+     */
+    private boolean recordIndexShards() throws IOException {
+        if (recordedIndexShards >= storageIndexShards) {
+            return true;
+        }
+        final IndexRecord first = readIndexRecord(0);
+        return first.shards >= storageIndexShards || writeIndexRecord(first, first.entries);
     }
 
     /**
@@ -193,26 +417,46 @@ public class AbstractConsentIndexedStorageAction extends AbstractConsentStorageA
      * @throws IOException if an error occurs writing to the storage service
      */
     protected boolean addKeyToStorageIndex(@Nonnull final String keyToAdd) throws IOException {
+        return addKeyToStorageIndex(keyToAdd, null);
+    }
 
-        final StorageRecord storageRecord = getStorageService().read(getStorageContext(), getStorageIndexKey());
-        log.debug("{} Read storage record '{}' with context '{}' and key '{}'", getLogPrefix(), storageRecord,
-                getStorageContext(), getStorageIndexKey());
+    /**
+     * Add a storage key to the index storage record.
+     * 
+     * @param keyToAdd storage key to add to the index storage record
+     * @param expiration expiration of the storage record, or null if unknown
+     * @return true if key addition succeeded, false otherwise
+     * @throws IOException if an error occurs writing to the storage service
+     */
+    protected boolean addKeyToStorageIndex(@Nonnull final String keyToAdd, @Nullable final Long expiration)
+            throws IOException {
 
-        if (storageRecord == null) {
-            log.debug("{} Creating storage index with key '{}'", getLogPrefix(), keyToAdd);
-            return getStorageService().create(getStorageContext(), getStorageIndexKey(),
-                    Collections.singletonList(keyToAdd), storageKeysSerializer, null);
-        } else {
-            final LinkedHashSet<String> keys = new LinkedHashSet<>(getStorageKeysFromIndex());
-            if (keys.add(keyToAdd)) {
-                log.debug("{} Updating storage index by adding key '{}'", getLogPrefix(), keyToAdd);
-                return getStorageService().update(getStorageContext(), getStorageIndexKey(), keys,
-                        storageKeysSerializer, null);
-            } else {
+        final int shard = getStorageIndexShard(keyToAdd);
+
+        // Read / create or update loop until we succeed or exhaust attempts.
+        for (int attempt = 0; attempt < INDEX_UPDATE_ATTEMPTS; attempt++) {
+            if (shard != 0 && !recordIndexShards()) {
+                continue;
+            }
+
+            final IndexRecord indexRecord = readIndexRecord(shard);
+            if (indexRecord.entries.containsKey(keyToAdd) && (indexRecord.shard == 0 && recordedIndexShards == 1
+                    || Objects.equals(indexRecord.entries.get(keyToAdd), expiration))) {
                 log.debug("{} Storage key '{}' already indexed, nothing to do", getLogPrefix(), keyToAdd);
                 return false;
             }
+
+            final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(indexRecord.entries);
+            entries.remove(keyToAdd);
+            entries.put(keyToAdd, expiration);
+            log.debug("{} Updating storage index by adding key '{}'", getLogPrefix(), keyToAdd);
+            if (writeIndexRecord(indexRecord, entries)) {
+                return true;
+            }
         }
+
+        log.error("{} Exhausted retry attempts adding key '{}' to storage index", getLogPrefix(), keyToAdd);
+        return false;
     }
 
     /**
@@ -224,25 +468,108 @@ public class AbstractConsentIndexedStorageAction extends AbstractConsentStorageA
      */
     protected boolean removeKeyFromStorageIndex(@Nonnull final String keyToRemove) throws IOException {
 
-        final StorageRecord storageRecord = getStorageService().read(getStorageContext(), getStorageIndexKey());
-        log.debug("{} Read storage record '{}' with context '{}' and key '{}'", getLogPrefix(), storageRecord,
-                getStorageContext(), getStorageIndexKey());
+        final int shard = getStorageIndexShard(keyToRemove);
+        if (removeKeysFromIndexRecord(shard, Collections.singleton(keyToRemove))) {
+            return true;
+        }
 
-        if (storageRecord == null) {
-            log.debug("{} No storage record exists with context '{}' and key '{}', nothing to do", getLogPrefix(),
-                    getStorageContext(), getStorageIndexKey());
-            return false;
-        } else {
-            final LinkedHashSet<String> keys = new LinkedHashSet<>(getStorageKeysFromIndex());
-            if (keys.remove(keyToRemove)) {
-                log.debug("{} Updating storage index by removing key '{}'", getLogPrefix(), keyToRemove);
-                return getStorageService().update(getStorageContext(), storageIndexKey, keys, storageKeysSerializer,
-                        null);
-            } else {
-                log.debug("{} Storage key '{}' not indexed, nothing to do", getLogPrefix(), keyToRemove);
+        // The key may be in the index record if written before sharding was enabled, or in any shard record if
+        // the number of shards has changed.
+        final int shards = Math.max(storageIndexShards, recordedIndexShards);
+        for (int other = 0; other < shards; other++) {
+            if (other != shard && removeKeysFromIndexRecord(other, Collections.singleton(keyToRemove))) {
+                return true;
+            }
+        }
+        log.debug("{} Storage key '{}' not indexed, nothing to do", getLogPrefix(), keyToRemove);
+        return false;
+    }
+
+    /**
+     * Remove storage keys from a particular record of the index.
+     * 
+     * @param shard the shard number of the record
+     * @param keysToRemove storage keys to remove from the record
+     * @return true if any key was removed, false otherwise
+     * @throws IOException if an error occurs writing to the storage service
+     */
+    private boolean removeKeysFromIndexRecord(final int shard,
+            @Nonnull @NonnullElements final Collection<String> keysToRemove) throws IOException {
+        return updateIndexRecord(shard, keysToRemove, Collections.<String, Long> emptyMap());
+    }
+
+    /**
+     * Remove storage keys from a particular record of the index, and record the expiration of the storage records
+     * of entries which do not yet record one.
+     * 
+     * @param shard the shard number of the record
+     * @param keysToRemove storage keys to remove from the record
+     * @param expirations expirations of storage records to record, by storage key
+     * @return true if the record was modified, false otherwise
+     * @throws IOException if an error occurs writing to the storage service
+     */
+    private boolean updateIndexRecord(final int shard, @Nonnull @NonnullElements final Collection<String> keysToRemove,
+            @Nonnull final Map<String, Long> expirations) throws IOException {
+
+        // Read / update loop until we succeed or exhaust attempts.
+        for (int attempt = 0; attempt < INDEX_UPDATE_ATTEMPTS; attempt++) {
+            final IndexRecord indexRecord = readIndexRecord(shard);
+            final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(indexRecord.entries);
+            boolean modified = entries.keySet().removeAll(keysToRemove);
+            for (final Map.Entry<String, Long> entry : entries.entrySet()) {
+                if (entry.getValue() == null && expirations.get(entry.getKey()) != null) {
+                    entry.setValue(expirations.get(entry.getKey()));
+                    modified = true;
+                }
+            }
+            if (!modified) {
                 return false;
             }
+            log.debug("{} Updating storage index by removing keys '{}'", getLogPrefix(), keysToRemove);
+            if (writeIndexRecord(indexRecord, entries)) {
+                return true;
+            }
         }
+
+        log.error("{} Exhausted retry attempts removing keys '{}' from storage index", getLogPrefix(), keysToRemove);
+        return false;
+    }
+
+    /**
+     * Deserialize the storage keys in an index record.
+     * 
+     * @param storageRecord the index record
+     * @param indexKey storage key of the index record
+     * @return the storage keys
+     * @throws IOException if the record cannot be deserialized
+     */
+    @Nonnull @NonnullElements private Collection<String> getStorageKeys(@Nonnull final StorageRecord storageRecord,
+            @Nonnull final String indexKey) throws IOException {
+        return (Collection<String>) storageRecord.getValue(getStorageKeysSerializer(), getStorageContext(), indexKey);
+    }
+
+    /**
+     * Replace the storage keys in an index record, provided it has not been modified since it was read.
+     * 
+     * @param storageRecord the index record as read
+     * @param indexKey storage key of the index record
+     * @param keys the new storage keys
+     * @return true if the record was updated, false if it was modified or deleted since it was read
+     * @throws IOException if an error occurs writing to the storage service
+     */
+    private boolean updateStorageIndex(@Nonnull final StorageRecord storageRecord, @Nonnull final String indexKey,
+            @Nonnull @NonnullElements final Collection<String> keys) throws IOException {
+        try {
+            if (getStorageService().updateWithVersion(storageRecord.getVersion(), getStorageContext(), indexKey, keys,
+                    storageKeysSerializer, null) != null) {
+                return true;
+            }
+            log.debug("{} Storage index record '{}' disappeared, retrying", getLogPrefix(), indexKey);
+        } catch (final VersionMismatchException e) {
+            log.debug("{} Storage index record '{}' was updated between read/update, retrying", getLogPrefix(),
+                    indexKey);
+        }
+        return false;
     }
 
 //CheckStyle: ReturnCount OFF
@@ -255,6 +582,9 @@ public class AbstractConsentIndexedStorageAction extends AbstractConsentStorageA
      * {@link #setStorageKeysStrategy(Function)}. By default, records are deleted on a first-in-first-out basis,
      * meaning the oldest storage records are deleted first.</p>
      * 
+     * <p>A sharded index does not record the order in which keys were added, so its keys are instead ordered by
+     * the expiration of their records, see {@link #compactStorageIndex(List, Map)}.</p>
+     * 
      * @param profileRequestContext the profile request context
      * 
      * @throws IOException if an error occurs writing to the storage service
@@ -273,7 +603,13 @@ public class AbstractConsentIndexedStorageAction extends AbstractConsentStorageA
             return;
         }
 
-        List<String> keys = getStorageKeysFromIndex();
+        final List<IndexRecord> index = readStorageIndex();
+        final LinkedHashMap<String, Long> expirations = new LinkedHashMap<>();
+        for (final IndexRecord indexRecord : index) {
+            expirations.putAll(indexRecord.entries);
+        }
+
+        List<String> keys = new ArrayList<>(expirations.keySet());
 
         if (keys.size() < maxStoredRecords) {
             log.debug("{} Will not prune storage records, number of keys '{}' is less than max number of records '{}'",
@@ -281,6 +617,15 @@ public class AbstractConsentIndexedStorageAction extends AbstractConsentStorageA
             return;
         }
 
+        if (index.size() > 1) {
+            keys = compactStorageIndex(index, expirations);
+            if (keys.size() < maxStoredRecords) {
+                log.debug("{} Will not prune storage records, number of live keys '{}' is less than max number of "
+                        + "records '{}'", getLogPrefix(), keys.size(), maxStoredRecords);
+                return;
+            }
+        }
+
         if (storageKeysStrategy != null) {
             final List<String> sortedKeys = storageKeysStrategy.apply(new Pair(profileRequestContext, keys));
             if (sortedKeys != null) {
@@ -291,6 +636,7 @@ public class AbstractConsentIndexedStorageAction extends AbstractConsentStorageA
         int numberOfKeys = keys.size();
 
         final Iterator<String> keysIterator = keys.iterator();
+        final Set<String> keysToRemove = new HashSet<>();
 
         while (keysIterator.hasNext() && numberOfKeys >= maxStoredRecords) {
 
@@ -306,12 +652,83 @@ public class AbstractConsentIndexedStorageAction extends AbstractConsentStorageA
                 numberOfKeys--;
             }
 
-            log.debug("{} Removing key '{}' from storage index", getLogPrefix(), keyToDelete);
-            removeKeyFromStorageIndex(keyToDelete);
+            keysToRemove.add(keyToDelete);
+        }
+
+        // Each index record is rewritten at most once, however many of its keys were pruned.
+        for (final IndexRecord indexRecord : index) {
+            if (!Collections.disjoint(indexRecord.entries.keySet(), keysToRemove)) {
+                log.debug("{} Removing keys '{}' from storage index", getLogPrefix(), keysToRemove);
+                removeKeysFromIndexRecord(indexRecord.shard, keysToRemove);
+            }
         }
     }
   //CheckStyle: ReturnCount ON
 
+    /**
+     * Remove the keys of storage records which no longer exist from a sharded index, and order the remaining keys
+     * by the expiration of their records, earliest first.
+     * 
+     * <p>Entries record the expiration of their storage records, and those which have expired were omitted when
+     * the index was read, so only the storage records of entries without one, such as those written before the
+     * index was sharded, are read. Their expirations are then recorded so that they are not read again.</p>
+     * 
+     * <p>Consent records expire a fixed lifetime after they are last written, so this is the order in which they
+     * were last written.</p>
+     * 
+     * @param index the records of the index
+     * @param expirations the storage keys from the index, mapped to the expiration of their records if known
+     * @return the storage keys whose records exist, earliest expiring first
+     * @throws IOException if an error occurs reading from or writing to the storage service
+     */
+    @Nonnull @NonnullElements private List<String> compactStorageIndex(
+            @Nonnull @NonnullElements final List<IndexRecord> index,
+            @Nonnull final Map<String, Long> expirations) throws IOException {
+
+        final List<Map.Entry<String, Long>> liveKeys = new ArrayList<>(expirations.size());
+        for (final IndexRecord indexRecord : index) {
+            final List<String> missingKeys = new ArrayList<>();
+            final Map<String, Long> readExpirations = new HashMap<>();
+            for (final Map.Entry<String, Long> entry : indexRecord.entries.entrySet()) {
+                if (entry.getValue() != null) {
+                    liveKeys.add(entry);
+                    continue;
+                }
+                final StorageRecord storageRecord = getStorageService().read(getStorageContext(), entry.getKey());
+                if (storageRecord == null) {
+                    log.debug("{} Removing key '{}' of missing storage record from storage index", getLogPrefix(),
+                            entry.getKey());
+                    missingKeys.add(entry.getKey());
+                } else {
+                    liveKeys.add(new AbstractMap.SimpleEntry<>(entry.getKey(), storageRecord.getExpiration()));
+                    if (storageRecord.getExpiration() != null) {
+                        readExpirations.put(entry.getKey(), storageRecord.getExpiration());
+                    }
+                }
+            }
+            if (!missingKeys.isEmpty() || !readExpirations.isEmpty()) {
+                updateIndexRecord(indexRecord.shard, missingKeys, readExpirations);
+            }
+        }
+
+        Collections.sort(liveKeys, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(final Map.Entry<String, Long> o1, final Map.Entry<String, Long> o2) {
+                if (o1.getValue() == null) {
+                    return o2.getValue() == null ? 0 : 1;
+                } else if (o2.getValue() == null) {
+                    return -1;
+                }
+                return o1.getValue().compareTo(o2.getValue());
+            }
+        });
+
+        final LinkedHashSet<String> sortedKeys = new LinkedHashSet<>(liveKeys.size());
+        for (final Map.Entry<String, Long> liveKey : liveKeys) {
+            sortedKeys.add(liveKey.getKey());
+        }
+        return new ArrayList<>(sortedKeys);
+    }
+
     /**
      * Store a profile interceptor result.
      * 
@@ -360,6 +777,38 @@ public class AbstractConsentIndexedStorageAction extends AbstractConsentStorageA
 
         storeResult(result);
 
-        addKeyToStorageIndex(result.getStorageKey());
+        addKeyToStorageIndex(result.getStorageKey(), result.getStorageExpiration());
+    }
+
+    /** A record of the index as read from storage. */
+    private static final class IndexRecord {
+
+        /** Shard number of the record. */
+        private final int shard;
+
+        /** The storage record, or null if it does not exist. */
+        @Nullable private final StorageRecord storageRecord;
+
+        /** The storage keys in the record, mapped to the expiration of their records if known. */
+        @Nonnull private final Map<String, Long> entries;
+
+        /** Number of shards recorded in the record, or 0 if none. */
+        private final int shards;
+
+        /**
+         * Constructor.
+         * 
+         * @param shardNumber shard number of the record
+         * @param record the storage record, or null if it does not exist
+         * @param keys the storage keys in the record, mapped to the expiration of their records if known
+         * @param shardCount number of shards recorded in the record, or 0 if none
+         */
+        IndexRecord(final int shardNumber, @Nullable final StorageRecord record, @Nonnull final Map<String, Long> keys,
+                final int shardCount) {
+            shard = shardNumber;
+            storageRecord = record;
+            entries = keys;
+            shards = shardCount;
+        }
     }
 }
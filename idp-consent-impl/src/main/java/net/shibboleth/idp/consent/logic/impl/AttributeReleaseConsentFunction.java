@@ -29,6 +29,7 @@ import net.shibboleth.idp.attribute.IdPAttribute;
 import net.shibboleth.idp.attribute.IdPAttributeValue;
 import net.shibboleth.idp.consent.context.impl.AttributeReleaseContext;
 import net.shibboleth.idp.consent.context.impl.ConsentContext;
+import net.shibboleth.idp.consent.flow.ar.impl.AttributeReleaseFlowDescriptor;
 import net.shibboleth.idp.consent.flow.impl.ConsentFlowDescriptor;
 import net.shibboleth.idp.consent.impl.Consent;
 import net.shibboleth.utilities.java.support.logic.Constraint;
@@ -55,8 +56,11 @@ public class AttributeReleaseConsentFunction implements Function<ProfileRequestC
     /** Strategy used to find the {@link AttributeReleaseContext} from the {@link ProfileRequestContext}. */
     @Nonnull private Function<ProfileRequestContext, AttributeReleaseContext> attributeReleaseContextLookupStrategy;
 
-    /** Function used to compute the hash of an attribute's values. */
-    @Nonnull private Function<Collection<IdPAttributeValue<?>>, String> attributeValuesHashFunction;
+    /** Function used to compute the hash of an attribute's values, if not the flow descriptor's. */
+    @Nullable private Function<Collection<IdPAttributeValue<?>>, String> attributeValuesHashFunction;
+
+    /** Function used to compute the hash of an attribute's values if no other is available. */
+    @Nonnull private final AttributeValuesHashFunction defaultAttributeValuesHashFunction;
 
     /** Constructor. */
     public AttributeReleaseConsentFunction() {
@@ -64,7 +68,7 @@ public class AttributeReleaseConsentFunction implements Function<ProfileRequestC
         consentFlowDescriptorLookupStrategy =
                 new FlowDescriptorLookupFunction<>(ConsentFlowDescriptor.class);
         attributeReleaseContextLookupStrategy = new ChildContextLookup<>(AttributeReleaseContext.class, false);
-        attributeValuesHashFunction = new AttributeValuesHashFunction();
+        defaultAttributeValuesHashFunction = new AttributeValuesHashFunction();
     }
 
     /**
@@ -102,6 +106,9 @@ public class AttributeReleaseConsentFunction implements Function<ProfileRequestC
     /**
      * Set the function used to compute the hash of an attribute's values.
      * 
+     * <p>If not set, the function supplied by an {@link AttributeReleaseFlowDescriptor} is used, or an
+     * {@link AttributeValuesHashFunction} for any other flow descriptor.</p>
+     * 
      * @param function the function used to compute the hash of an attribute's values
      */
     public void setAttributeValuesHashFunction(
@@ -133,13 +140,15 @@ public class AttributeReleaseConsentFunction implements Function<ProfileRequestC
         final Map<String, Consent> currentConsents = new LinkedHashMap<>();
 
         final Map<String, IdPAttribute> consentableAttributes = attributeReleaseContext.getConsentableAttributes();
+        final Map<String, String> hashes =
+                consentFlowDescriptor.compareValues() ? getHashes(consentFlowDescriptor, consentableAttributes) : null;
         for (final IdPAttribute attribute : consentableAttributes.values()) {
 
             final Consent consent = new Consent();
             consent.setId(attribute.getId());
 
-            if (consentFlowDescriptor.compareValues()) {
-                consent.setValue(attributeValuesHashFunction.apply(attribute.getValues()));
+            if (hashes != null) {
+                consent.setValue(hashes.get(attribute.getId()));
             }
 
             // Remember previous choice.
@@ -160,4 +169,42 @@ public class AttributeReleaseConsentFunction implements Function<ProfileRequestC
         return currentConsents;
     }
 
+    /**
+     * Compute the hash of the values of each attribute.
+     * 
+     * <p>The hash is carried with the attribute, so it is computed once however many times the attribute's values
+     * are compared with those previously consented to.</p>
+     * 
+     * @param consentFlowDescriptor the consent flow descriptor
+     * @param attributes the attributes, keyed by ID
+     * 
+     * @return the hash of each attribute's values keyed by attribute ID, omitting any attribute without a hash
+     */
+    @Nonnull private Map<String, String> getHashes(@Nonnull final ConsentFlowDescriptor consentFlowDescriptor,
+            @Nonnull final Map<String, IdPAttribute> attributes) {
+
+        Function<Collection<IdPAttributeValue<?>>, String> hashFunction = attributeValuesHashFunction;
+        if (hashFunction == null) {
+            if (consentFlowDescriptor instanceof AttributeReleaseFlowDescriptor) {
+                hashFunction = ((AttributeReleaseFlowDescriptor) consentFlowDescriptor)
+                        .getAttributeValuesHashFunction();
+            } else {
+                hashFunction = defaultAttributeValuesHashFunction;
+            }
+        }
+
+        if (hashFunction instanceof AttributeValuesHashFunction) {
+            return ((AttributeValuesHashFunction) hashFunction).applyAll(attributes.values());
+        }
+
+        final Map<String, String> hashes = new LinkedHashMap<>(attributes.size());
+        for (final IdPAttribute attribute : attributes.values()) {
+            final String hash = attribute.getValuesHash(hashFunction);
+            if (hash != null) {
+                hashes.put(attribute.getId(), hash);
+            }
+        }
+        return hashes;
+    }
+
 }
@@ -14,25 +14,29 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package net.shibboleth.idp.consent.logic.impl;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import net.shibboleth.idp.attribute.IdPAttribute;
 import net.shibboleth.idp.attribute.IdPAttributeValue;
 import net.shibboleth.idp.attribute.ScopedStringAttributeValue;
 import net.shibboleth.idp.attribute.XMLObjectAttributeValue;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.NullableElements;
 import net.shibboleth.utilities.java.support.xml.SerializeSupport;
 
 import org.cryptacular.util.CodecUtil;
-import org.cryptacular.util.HashUtil;
 import org.opensaml.core.xml.io.MarshallingException;
 import org.opensaml.core.xml.util.XMLObjectSupport;
 import org.opensaml.saml.saml2.core.NameIDType;
@@ -42,6 +46,8 @@ import org.slf4j.LoggerFactory;
 import com.google.common.base.Function;
 import com.google.common.base.Predicates;
 import com.google.common.collect.Collections2;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 /**
  * Function to calculate the hash of the values of an IdP attribute.
@@ -49,16 +55,101 @@ import com.google.common.collect.Collections2;
  * Returns <code>null</code> for a <code>null</code> input or empty collection of IdP attribute values.
  * <code>Null</code> IdP attribute values are ignored.
  * 
- * The hash returned is the Base64 encoded representation of the SHA-256 digest.
+ * The hash returned is the Base64 encoded representation of the SHA-256 digest, or optionally of a non-cryptographic
+ * fingerprint.
  */
 public class AttributeValuesHashFunction implements Function<Collection<IdPAttributeValue<?>>, String> {
 
+    /** Stand-in for a value whose hash input is <code>null</code>. */
+    @Nonnull private static final Object NULL_INPUT = new Object();
+
     /** Class logger. */
     @Nonnull private final Logger log = LoggerFactory.getLogger(AttributeValuesHashFunction.class);
 
+    /** Whether to compute a non-cryptographic fingerprint rather than a SHA-256 digest. */
+    private boolean fingerprint;
+
+    /**
+     * Set whether to compute a non-cryptographic fingerprint rather than a SHA-256 digest.
+     * 
+     * <p>A fingerprint is much cheaper to compute and is sufficient to detect that the values have changed, but is
+     * not suitable if the hash must not reveal whether the values match a guess. Changing this setting changes
+     * every hash, so previously stored hashes will no longer match.</p>
+     * 
+     * @param flag flag to set
+     */
+    public void setFingerprint(final boolean flag) {
+        fingerprint = flag;
+    }
+
     /** {@inheritDoc} */
     @Override
     @Nullable public String apply(@Nullable @NullableElements final Collection<IdPAttributeValue<?>> input) {
+        return apply(input, null, null);
+    }
+
+    /**
+     * Calculate the hash of the values of each of a collection of IdP attributes.
+     * 
+     * <p>This is equivalent to applying the function to the values of each attribute in turn, but reuses the
+     * digest and buffers across attributes. A subclass which changes how values are hashed must override this
+     * method too.</p>
+     * 
+     * <p>Each hash is carried with its attribute, see {@link IdPAttribute#getValuesHash(Object, Function)}, so the
+     * values of an attribute are hashed by this function at most once unless they are replaced.</p>
+     * 
+     * @param attributes the IdP attributes
+     * 
+     * @return the hash of each attribute's values keyed by attribute ID, omitting any attribute whose hash is
+     *         <code>null</code>
+     */
+    @Nonnull @NonnullElements public Map<String, String> applyAll(
+            @Nonnull @NonnullElements final Collection<IdPAttribute> attributes) {
+
+        final Map<String, String> hashes = new LinkedHashMap<>(attributes.size());
+        final Function<Collection<IdPAttributeValue<?>>, String> batch =
+                new Function<Collection<IdPAttributeValue<?>>, String>() {
+
+            /** Buffer reused across attributes. */
+            @Nonnull private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+            /** Digest reused across attributes, created when first needed. */
+            @Nullable private MessageDigest digest;
+
+            @Override
+            @Nullable public String apply(@Nullable @NullableElements final Collection<IdPAttributeValue<?>> input) {
+                if (digest == null && !fingerprint) {
+                    try {
+                        digest = MessageDigest.getInstance("SHA-256");
+                    } catch (final NoSuchAlgorithmException e) {
+                        // Reported for each attribute.
+                    }
+                }
+                return AttributeValuesHashFunction.this.apply(input, buffer, digest);
+            }
+        };
+
+        for (final IdPAttribute attribute : attributes) {
+            final String hash = attribute.getValuesHash(this, batch);
+            if (hash != null) {
+                hashes.put(attribute.getId(), hash);
+            }
+        }
+
+        return hashes;
+    }
+
+    /**
+     * Calculate the hash of a collection of IdP attribute values.
+     * 
+     * @param input the IdP attribute values
+     * @param buffer buffer to reuse, if any
+     * @param digest digest to reuse, if any
+     * 
+     * @return the hash, or <code>null</code>
+     */
+    @Nullable private String apply(@Nullable @NullableElements final Collection<IdPAttributeValue<?>> input,
+            @Nullable final ByteArrayOutputStream buffer, @Nullable final MessageDigest digest) {
 
         if (input == null) {
             return null;
@@ -71,40 +162,106 @@ public class AttributeValuesHashFunction implements Function<Collection<IdPAttri
         }
 
         try {
-            final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            final ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
-
-            for (final IdPAttributeValue value : filteredInput) {
-                if (value instanceof ScopedStringAttributeValue) {
-                    objectOutputStream.writeObject(((ScopedStringAttributeValue) value).getValue() + '@'
-                            + ((ScopedStringAttributeValue) value).getScope());
-                } else if (value instanceof XMLObjectAttributeValue) {
-                    if (value.getValue() instanceof NameIDType) {
-                        objectOutputStream.writeObject(((NameIDType) value.getValue()).getValue());
-                    } else {
-                        try {
-                            objectOutputStream.writeObject(SerializeSupport.nodeToString(
-                                    XMLObjectSupport.marshall(((XMLObjectAttributeValue) value).getValue())));
-                        } catch (final MarshallingException e) {
-                            log.error("Error while marshalling XMLObject value", e);
-                            return null;
-                        }
-                    }
-                } else if (value.getValue() != null) {
-                    objectOutputStream.writeObject(value.getValue());
+            if (fingerprint) {
+                return fingerprint(filteredInput);
+            }
+            return digest(filteredInput, buffer != null ? buffer : new ByteArrayOutputStream(),
+                    digest != null ? digest : MessageDigest.getInstance("SHA-256"));
+        } catch (final MarshallingException e) {
+            log.error("Error while marshalling XMLObject value", e);
+            return null;
+        } catch (final IOException e) {
+            log.error("Error while converting attribute values into a byte array", e);
+            return null;
+        } catch (final NoSuchAlgorithmException e) {
+            log.error("SHA-256 digest algorithm is not supported", e);
+            return null;
+        }
+    }
+
+    /**
+     * Calculate the SHA-256 digest of the serialized form of the IdP attribute values.
+     * 
+     * @param values the IdP attribute values
+     * @param buffer buffer to serialize the values into
+     * @param digest SHA-256 digest
+     * 
+     * @return the Base64 encoded digest
+     * 
+     * @throws MarshallingException if an XMLObject value cannot be marshalled
+     * @throws IOException if the values cannot be serialized
+     */
+    @Nonnull private String digest(@Nonnull @NonnullElements final Collection<IdPAttributeValue<?>> values,
+            @Nonnull final ByteArrayOutputStream buffer, @Nonnull final MessageDigest digest)
+                    throws MarshallingException, IOException {
+
+        buffer.reset();
+        try (final ObjectOutputStream objectOutputStream = new ObjectOutputStream(buffer)) {
+            for (final IdPAttributeValue value : values) {
+                final Object hashInput = getHashInput(value);
+                if (hashInput == NULL_INPUT) {
+                    objectOutputStream.writeObject(null);
+                } else if (hashInput != null) {
+                    objectOutputStream.writeObject(hashInput);
                 }
             }
+        }
 
-            objectOutputStream.flush();
-            objectOutputStream.close();
-            byteArrayOutputStream.close();
+        return CodecUtil.b64(digest.digest(buffer.toByteArray()));
+    }
 
-            return CodecUtil.b64(HashUtil.sha256(byteArrayOutputStream.toByteArray()));
+    /**
+     * Calculate a non-cryptographic fingerprint of the IdP attribute values.
+     * 
+     * @param values the IdP attribute values
+     * 
+     * @return the Base64 encoded fingerprint
+     * 
+     * @throws MarshallingException if an XMLObject value cannot be marshalled
+     */
+    @Nonnull private String fingerprint(@Nonnull @NonnullElements final Collection<IdPAttributeValue<?>> values)
+            throws MarshallingException {
 
-        } catch (final IOException e) {
-            log.error("Error while converting attribute values into a byte array", e);
-            return null;
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (final IdPAttributeValue value : values) {
+            final Object hashInput = getHashInput(value);
+            if (hashInput == NULL_INPUT) {
+                hasher.putInt(-1);
+            } else if (hashInput instanceof byte[]) {
+                hasher.putInt(((byte[]) hashInput).length).putBytes((byte[]) hashInput);
+            } else if (hashInput != null) {
+                final String s = hashInput.toString();
+                hasher.putInt(s.length()).putUnencodedChars(s);
+            }
+        }
+
+        return CodecUtil.b64(hasher.hash().asBytes());
+    }
+
+    /**
+     * Get the object representing an IdP attribute value in the hash.
+     * 
+     * @param value the IdP attribute value
+     * 
+     * @return the object, {@link #NULL_INPUT} to represent <code>null</code>, or <code>null</code> to skip the value
+     * 
+     * @throws MarshallingException if an XMLObject value cannot be marshalled
+     */
+    @Nullable private Object getHashInput(@Nonnull final IdPAttributeValue value) throws MarshallingException {
+        if (value instanceof ScopedStringAttributeValue) {
+            return ((ScopedStringAttributeValue) value).getValue() + '@'
+                    + ((ScopedStringAttributeValue) value).getScope();
+        } else if (value instanceof XMLObjectAttributeValue) {
+            if (value.getValue() instanceof NameIDType) {
+                final String nameID = ((NameIDType) value.getValue()).getValue();
+                return nameID != null ? nameID : NULL_INPUT;
+            } else {
+                return SerializeSupport.nodeToString(
+                        XMLObjectSupport.marshall(((XMLObjectAttributeValue) value).getValue()));
+            }
+        } else {
+            return value.getValue();
         }
     }
     
-}
\ No newline at end of file
+}
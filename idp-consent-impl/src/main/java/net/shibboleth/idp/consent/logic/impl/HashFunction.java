@@ -24,16 +24,32 @@ import org.cryptacular.util.CodecUtil;
 import org.cryptacular.util.HashUtil;
 
 import com.google.common.base.Function;
+import com.google.common.hash.Hashing;
 
 /**
  * Function whose output value is a hash of the input value.
  * 
  * Returns <code>null</code> for a <code>null</code> input.
  * 
- * The hash returned is the Base64 encoded representation of the SHA-256 digest.
+ * The hash returned is the Base64 encoded representation of the SHA-256 digest, or optionally of a non-cryptographic
+ * fingerprint.
  */
 public class HashFunction implements Function<String, String> {
 
+    /** Whether to compute a non-cryptographic fingerprint rather than a SHA-256 digest. */
+    private boolean fingerprint;
+
+    /**
+     * Set whether to compute a non-cryptographic fingerprint rather than a SHA-256 digest.
+     * 
+     * <p>Changing this setting changes every hash, so previously stored hashes will no longer match.</p>
+     * 
+     * @param flag flag to set
+     */
+    public void setFingerprint(final boolean flag) {
+        fingerprint = flag;
+    }
+
     /** {@inheritDoc} */
     @Override
     @Nullable public String apply(@Nonnull final String input) {
@@ -42,6 +58,10 @@ public class HashFunction implements Function<String, String> {
             return null;
         }
 
+        if (fingerprint) {
+            return CodecUtil.b64(Hashing.murmur3_128().hashUnencodedChars(input).asBytes());
+        }
+
         return CodecUtil.b64(HashUtil.sha256(input));
     }
 }
@@ -20,6 +20,7 @@ package net.shibboleth.idp.consent.flow.storage.impl;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -44,10 +45,15 @@ import org.testng.annotations.Test;
 public class CreateResultTest extends AbstractConsentIndexedStorageActionTest {
 
     protected CreateResult buildAction(@Nonnull final String key) throws Exception {
+        return buildAction(key, 1);
+    }
+
+    protected CreateResult buildAction(@Nonnull final String key, final int shards) throws Exception {
         final CreateResult action = new CreateResult();
         action.setStorageContextLookupStrategy(FunctionSupport.<ProfileRequestContext, String> constant("context"));
         action.setStorageKeyLookupStrategy(FunctionSupport.<ProfileRequestContext, String> constant(key));
         action.setStorageIndexKeyLookupStrategy(FunctionSupport.<ProfileRequestContext, String> constant("_index"));
+        action.setStorageIndexShards(shards);
         action.initialize();
         return action;
     }
@@ -208,4 +214,65 @@ public class CreateResultTest extends AbstractConsentIndexedStorageActionTest {
         }
         Assert.assertEquals(readStorageKeysFromIndex(), keys);
     }
+
+    @Test public void testShardedIndex() throws Exception {
+        descriptor.setExpandedNumberOfStoredRecords(3);
+        descriptor.setMaximumNumberOfStoredRecords(3);
+
+        final ConsentContext consentCtx = prc.getSubcontext(ConsentContext.class);
+        consentCtx.getCurrentConsents().putAll(ConsentTestingSupport.newConsentMap());
+
+        // An index record written before sharding, including a key whose record no longer exists.
+        getMemoryStorageService().create("context", "_index", Arrays.asList("gone", "key1"),
+                ((AbstractConsentIndexedStorageAction) action).getStorageKeysSerializer(), null);
+
+        ActionTestingSupport.assertProceedEvent(buildAction("key1", 4).execute(src));
+        final CreateResult action2 = buildAction("key2", 4);
+        ActionTestingSupport.assertProceedEvent(action2.execute(src));
+
+        Assert.assertEquals(new HashSet<>(action2.getStorageKeysFromIndex()),
+                new HashSet<>(Arrays.asList("gone", "key1", "key2")));
+        Assert.assertEquals(action2.getStorageIndexKey("key2"), "_index:" + Math.floorMod("key2".hashCode(), 4));
+        Assert.assertNotNull(getMemoryStorageService().read("context", action2.getStorageIndexKey("key2")));
+
+        // The missing record is compacted away rather than counting towards the maximum.
+        final CreateResult action3 = buildAction("key3", 4);
+        ActionTestingSupport.assertProceedEvent(action3.execute(src));
+        Assert.assertEquals(new HashSet<>(action3.getStorageKeysFromIndex()),
+                new HashSet<>(Arrays.asList("key1", "key2", "key3")));
+
+        // The oldest record is pruned, including from the entry in the index record written before sharding.
+        final CreateResult action4 = buildAction("key4", 4);
+        ActionTestingSupport.assertProceedEvent(action4.execute(src));
+        Assert.assertNull(getMemoryStorageService().read("context", "key1"));
+        Assert.assertEquals(new HashSet<>(action4.getStorageKeysFromIndex()),
+                new HashSet<>(Arrays.asList("key2", "key3", "key4")));
+
+        // The index record is the first shard, and records the number of shards.
+        Assert.assertEquals(action4.getStorageIndexKey("key3"), "_index");
+        Assert.assertTrue(readStorageKeysFromIndex().contains("#4"));
+    }
+
+    @Test public void testLoweredIndexShards() throws Exception {
+        descriptor.setExpandedNumberOfStoredRecords(0);
+        descriptor.setMaximumNumberOfStoredRecords(0);
+
+        final ConsentContext consentCtx = prc.getSubcontext(ConsentContext.class);
+        consentCtx.getCurrentConsents().putAll(ConsentTestingSupport.newConsentMap());
+
+        for (final String key : Arrays.asList("key1", "key2", "key3", "key4")) {
+            ActionTestingSupport.assertProceedEvent(buildAction(key, 4).execute(src));
+        }
+
+        // Every shard is still read once the number of shards is lowered.
+        final CreateResult action5 = buildAction("key5", 1);
+        ActionTestingSupport.assertProceedEvent(action5.execute(src));
+        Assert.assertEquals(new HashSet<>(action5.getStorageKeysFromIndex()),
+                new HashSet<>(Arrays.asList("key1", "key2", "key3", "key4", "key5")));
+
+        // Keys outside their shard under the new number are still removed.
+        Assert.assertTrue(action5.removeKeyFromStorageIndex("key2"));
+        Assert.assertEquals(new HashSet<>(action5.getStorageKeysFromIndex()),
+                new HashSet<>(Arrays.asList("key1", "key3", "key4", "key5")));
+    }
 }
@@ -17,6 +17,7 @@
 
 package net.shibboleth.idp.consent.logic.impl;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -239,4 +240,32 @@ public class AttributeReleaseConsentFunctionTest {
         Assert.assertEquals(function.apply(prc), expected);
     }
 
+    @Test public void testHashFunctionSubclass() {
+        prc.addSubcontext(new ConsentContext());
+        final AttributeReleaseContext arc = new AttributeReleaseContext();
+        arc.getConsentableAttributes().putAll(ConsentTestingSupport.newAttributeMap());
+        prc.addSubcontext(arc);
+        setUpDescriptor(true);
+
+        function.setAttributeValuesHashFunction(new AttributeValuesHashFunction() {
+            @Override public Map<String, String> applyAll(final Collection<IdPAttribute> attributes) {
+                final Map<String, String> hashes = new HashMap<>();
+                for (final IdPAttribute attribute : attributes) {
+                    hashes.put(attribute.getId(), "hash");
+                }
+                return hashes;
+            }
+        });
+
+        final Map<String, Consent> expected = new HashMap<>();
+        for (final IdPAttribute attr : ConsentTestingSupport.newAttributeMap().values()) {
+            final Consent consent = new Consent();
+            consent.setId(attr.getId());
+            consent.setValue("hash");
+            expected.put(consent.getId(), consent);
+        }
+
+        Assert.assertEquals(function.apply(prc), expected);
+    }
+
 }
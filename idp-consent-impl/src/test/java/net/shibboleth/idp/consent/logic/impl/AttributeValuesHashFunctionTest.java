@@ -20,7 +20,9 @@ package net.shibboleth.idp.consent.logic.impl;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
+import net.shibboleth.idp.attribute.IdPAttribute;
 import net.shibboleth.idp.attribute.IdPAttributeValue;
 import net.shibboleth.idp.consent.impl.ConsentTestingSupport;
 
@@ -28,6 +30,8 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.google.common.base.Functions;
+
 /** {@link AttributeValuesHashFunction} unit test. */
 public class AttributeValuesHashFunctionTest {
 
@@ -61,4 +65,42 @@ public class AttributeValuesHashFunctionTest {
         Assert.assertEquals(hash, "xxuA06hGJ1DcJ4JSaWiBXXGfcRr6oxHM5jaURXBBnbA=");
     }
 
+    @Test public void testApplyAll() {
+        final Map<String, IdPAttribute> attributes = ConsentTestingSupport.newAttributeMap();
+        final IdPAttribute empty = new IdPAttribute("empty");
+        attributes.put(empty.getId(), empty);
+
+        final Map<String, String> hashes = function.applyAll(attributes.values());
+        Assert.assertEquals(hashes.size(), 3);
+        Assert.assertFalse(hashes.containsKey("empty"));
+        for (final Map.Entry<String, String> entry : hashes.entrySet()) {
+            Assert.assertEquals(entry.getValue(), function.apply(attributes.get(entry.getKey()).getValues()));
+        }
+    }
+
+    @Test public void testHashCarriedWithAttribute() {
+        final IdPAttribute attribute = ConsentTestingSupport.newAttributeMap().get("attribute1");
+        Assert.assertEquals(function.applyAll(Collections.singleton(attribute)).get("attribute1"),
+                "yePBj0hcjLihhDtDb//R/ymyw2CHZAUreX/4RupmSXM=");
+        Assert.assertEquals(attribute.getValuesHash(function, Functions.<String> constant("other")),
+                "yePBj0hcjLihhDtDb//R/ymyw2CHZAUreX/4RupmSXM=");
+
+        attribute.setValues(ConsentTestingSupport.newAttributeMap().get("attribute2").getValues());
+        Assert.assertEquals(function.applyAll(Collections.singleton(attribute)).get("attribute1"),
+                "xxuA06hGJ1DcJ4JSaWiBXXGfcRr6oxHM5jaURXBBnbA=");
+    }
+
+    @Test public void testFingerprint() {
+        function.setFingerprint(true);
+        final String hash = function.apply(ConsentTestingSupport.newAttributeMap().get("attribute2").getValues());
+        Assert.assertNotNull(hash);
+        Assert.assertNotEquals(hash, "xxuA06hGJ1DcJ4JSaWiBXXGfcRr6oxHM5jaURXBBnbA=");
+        Assert.assertEquals(function.apply(ConsentTestingSupport.newAttributeMap().get("attribute2").getValues()),
+                hash);
+        Assert.assertNotEquals(
+                function.apply(ConsentTestingSupport.newAttributeMap().get("attribute1").getValues()), hash);
+        Assert.assertEquals(function.applyAll(ConsentTestingSupport.newAttributeMap().values()).get("attribute2"),
+                hash);
+    }
+
 }
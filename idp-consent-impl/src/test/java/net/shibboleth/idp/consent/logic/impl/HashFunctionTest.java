@@ -42,4 +42,13 @@ public class HashFunctionTest {
         Assert.assertEquals(function.apply("foo"), "LCa0a2j/xo/5m0U8HTBBNBNCLXBkg7+g+YpeiGJm564=");
     }
 
+    @Test public void testFingerprint() {
+        function.setFingerprint(true);
+        final String hash = function.apply("foo");
+        Assert.assertNotNull(hash);
+        Assert.assertNotEquals(hash, "LCa0a2j/xo/5m0U8HTBBNBNCLXBkg7+g+YpeiGJm564=");
+        Assert.assertEquals(function.apply("foo"), hash);
+        Assert.assertNotEquals(function.apply("bar"), hash);
+    }
+
 }
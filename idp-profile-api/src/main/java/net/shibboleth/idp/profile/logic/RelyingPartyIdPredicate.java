@@ -19,18 +19,22 @@ package net.shibboleth.idp.profile.logic;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import net.shibboleth.idp.profile.context.navigate.RelyingPartyIdLookupFunction;
 import net.shibboleth.utilities.java.support.annotation.ParameterName;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
 import net.shibboleth.utilities.java.support.logic.StrategyIndirectedPredicate;
 import net.shibboleth.utilities.java.support.primitive.StringSupport;
 
 import org.opensaml.profile.context.ProfileRequestContext;
 
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
 
 /**
  * Predicate that evaluates a {@link ProfileRequestContext} by looking for a relying party ID
@@ -39,6 +43,9 @@ import com.google.common.base.Predicate;
  */
 public class RelyingPartyIdPredicate extends StrategyIndirectedPredicate<ProfileRequestContext,String> {
 
+    /** The hardwired set of values to check against, if any. */
+    @Nullable @NonnullElements private final Set<String> candidateSet;
+
     /**
      * Constructor.
      * 
@@ -47,6 +54,7 @@ public class RelyingPartyIdPredicate extends StrategyIndirectedPredicate<Profile
     public RelyingPartyIdPredicate(
             @Nonnull @NonnullElements @ParameterName(name="candidates") final Collection<String> candidates) {
         super(new RelyingPartyIdLookupFunction(), StringSupport.normalizeStringCollection(candidates));
+        candidateSet = ImmutableSet.copyOf(StringSupport.normalizeStringCollection(candidates));
     }
 
     /**
@@ -65,6 +73,18 @@ public class RelyingPartyIdPredicate extends StrategyIndirectedPredicate<Profile
      */
     public RelyingPartyIdPredicate(@Nonnull @ParameterName(name="pred") final Predicate<String> pred) {
         super(new RelyingPartyIdLookupFunction(), pred);
+        candidateSet = null;
+    }
+
+    /**
+     * Get the hardwired set of relying party IDs this predicate checks against.
+     * 
+     * @return the candidate IDs, or null if the predicate was built from a generalized predicate
+     * 
+     * @since 3.4.0
+     */
+    @Nullable @NonnullElements @Unmodifiable public Set<String> getCandidates() {
+        return candidateSet;
     }
     
 }
\ No newline at end of file
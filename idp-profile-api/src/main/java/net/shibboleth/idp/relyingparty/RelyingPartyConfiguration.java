@@ -244,6 +244,17 @@ public class RelyingPartyConfiguration extends AbstractIdentifiableInitializable
         profileConfigurationsLookupStrategy = strategy;
     }
 
+    /**
+     * Get the condition under which the relying party configuration should be active.
+     * 
+     * @return the activation condition
+     * 
+     * @since 3.4.0
+     */
+    @Nonnull public Predicate<ProfileRequestContext> getActivationCondition() {
+        return activationCondition;
+    }
+
     /**
      * Set the condition under which the relying party configuration should be active.
      * 
@@ -23,15 +23,19 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import net.shibboleth.ext.spring.service.AbstractServiceableComponent;
 import net.shibboleth.idp.profile.config.SecurityConfiguration;
+import net.shibboleth.idp.profile.context.navigate.RelyingPartyIdLookupFunction;
+import net.shibboleth.idp.profile.logic.RelyingPartyIdPredicate;
 import net.shibboleth.idp.profile.logic.VerifiedProfilePredicate;
 import net.shibboleth.idp.relyingparty.RelyingPartyConfiguration;
 import net.shibboleth.idp.relyingparty.RelyingPartyConfigurationResolver;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
@@ -49,11 +53,15 @@ import org.opensaml.security.credential.Credential;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Ints;
 
 /**
  * Retrieves a per-relying party configuration for a given profile request based on the request context.
@@ -61,14 +69,27 @@ import com.google.common.collect.ImmutableMap;
  * <p>
  * Note that this resolver does not permit more than one {@link RelyingPartyConfiguration} with the same ID.
  * </p>
+ * 
+ * <p>
+ * Configurations activated by a plain {@link RelyingPartyIdPredicate} over a fixed set of IDs are indexed by those
+ * IDs, so that a request only checks the configurations naming its relying party along with those that have any
+ * other kind of activation condition, in their original order. The candidates for each relying party are cached for
+ * the life of the resolver, which is to say until the service is next reloaded.
+ * </p>
  */
 public class DefaultRelyingPartyConfigurationResolver
         extends AbstractServiceableComponent<RelyingPartyConfigurationResolver>
         implements RelyingPartyConfigurationResolver, IdentifiableComponent {
 
+    /** Default number of relying parties whose candidate configurations are cached. */
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+
     /** Class logger. */
     @Nonnull private final Logger log = LoggerFactory.getLogger(DefaultRelyingPartyConfigurationResolver.class);
 
+    /** Strategy used to obtain the relying party ID, matching that of {@link RelyingPartyIdPredicate}. */
+    @Nonnull private final Function<ProfileRequestContext,String> relyingPartyIdLookupStrategy;
+
     /** Registered relying party configurations. */
     @Nonnull private List<RelyingPartyConfiguration> rpConfigurations;
 
@@ -93,8 +114,25 @@ public class DefaultRelyingPartyConfigurationResolver
     /** The global list of all configured encryption credentials. */
     @Nullable private List<Credential> encryptionCredentials;
 
+    /** Maximum number of relying parties whose candidate configurations are cached. */
+    @NonNegative private int cacheSize;
+
+    /** Positions of the configurations indexed under each relying party ID. */
+    @NonnullAfterInit private Map<String,int[]> indexedConfigurations;
+
+    /** The configurations which must be checked for every request, in order. */
+    @NonnullAfterInit private List<RelyingPartyConfiguration> unindexedConfigurations;
+
+    /** Positions of the configurations which must be checked for every request. */
+    @NonnullAfterInit private int[] unindexedPositions;
+
+    /** The configurations to check for each relying party ID, in order. */
+    @NonnullAfterInit private Cache<String,List<RelyingPartyConfiguration>> candidateCache;
+
     /** Constructor. */
     public DefaultRelyingPartyConfigurationResolver() {
+        relyingPartyIdLookupStrategy = new RelyingPartyIdLookupFunction();
+        cacheSize = DEFAULT_CACHE_SIZE;
         rpConfigurations = Collections.emptyList();
         verificationPredicate = new VerifiedProfilePredicate();
         securityConfigurationMap = Collections.emptyMap();
@@ -227,6 +265,21 @@ public class DefaultRelyingPartyConfigurationResolver
         defaultSecurityConfiguration = config;
     }
 
+    /**
+     * Set the maximum number of relying parties whose candidate configurations are cached.
+     * 
+     * <p>Default is {@link #DEFAULT_CACHE_SIZE}.</p>
+     * 
+     * @param size the cache size, zero to disable caching
+     * 
+     * @since 3.4.0
+     */
+    public void setCacheSize(@NonNegative final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        
+        cacheSize = (int) Constraint.isGreaterThanOrEqual(0, size, "Cache size cannot be negative");
+    }
+
     /** {@inheritDoc} */
     @Override protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
@@ -239,6 +292,114 @@ public class DefaultRelyingPartyConfigurationResolver
             }
             configIds.add(config.getId());
         }
+        
+        buildIndex();
+        candidateCache = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    /**
+     * Index the configurations activated by a fixed set of relying party IDs.
+     */
+    private void buildIndex() {
+        final Map<String,List<Integer>> indexed = new HashMap<>();
+        final List<Integer> unindexed = new ArrayList<>();
+        
+        for (int i = 0; i < rpConfigurations.size(); i++) {
+            final Set<String> candidates = getCandidateIds(rpConfigurations.get(i));
+            if (candidates == null) {
+                unindexed.add(i);
+                continue;
+            }
+            for (final String candidate : candidates) {
+                List<Integer> positions = indexed.get(candidate);
+                if (positions == null) {
+                    positions = new ArrayList<>(1);
+                    indexed.put(candidate, positions);
+                }
+                positions.add(i);
+            }
+        }
+        
+        indexedConfigurations = new HashMap<>(indexed.size());
+        for (final Map.Entry<String,List<Integer>> entry : indexed.entrySet()) {
+            indexedConfigurations.put(entry.getKey(), Ints.toArray(entry.getValue()));
+        }
+        unindexedPositions = Ints.toArray(unindexed);
+        unindexedConfigurations = merge(null);
+        
+        log.debug("Indexed {} relying party configurations by relying party ID, {} must be checked for every request",
+                rpConfigurations.size() - unindexed.size(), unindexed.size());
+    }
+
+    /**
+     * Get the fixed set of relying party IDs that activate a configuration.
+     * 
+     * <p>Only the exact classes whose behavior is known are considered, so that an override of
+     * {@link RelyingPartyConfiguration#apply(ProfileRequestContext)} is never bypassed.</p>
+     * 
+     * @param config the configuration
+     * 
+     * @return the relying party IDs, or null if the configuration's activation condition is of any other kind
+     */
+    @Nullable private Set<String> getCandidateIds(@Nonnull final RelyingPartyConfiguration config) {
+        if (config.getClass() != RelyingPartyConfiguration.class) {
+            return null;
+        }
+        final Predicate<ProfileRequestContext> condition = config.getActivationCondition();
+        if (condition.getClass() != RelyingPartyIdPredicate.class) {
+            return null;
+        }
+        return ((RelyingPartyIdPredicate) condition).getCandidates();
+    }
+
+    /**
+     * Get the configurations that could apply to a request, in order.
+     * 
+     * @param context the current profile request context
+     * 
+     * @return the candidate configurations
+     */
+    @Nonnull @NonnullElements private List<RelyingPartyConfiguration> getCandidates(
+            @Nonnull final ProfileRequestContext context) {
+        if (indexedConfigurations.isEmpty()) {
+            return rpConfigurations;
+        }
+        
+        final String relyingPartyId = relyingPartyIdLookupStrategy.apply(context);
+        if (relyingPartyId == null) {
+            return unindexedConfigurations;
+        }
+
+        List<RelyingPartyConfiguration> candidates = candidateCache.getIfPresent(relyingPartyId);
+        if (candidates == null) {
+            candidates = merge(indexedConfigurations.get(relyingPartyId));
+            candidateCache.put(relyingPartyId, candidates);
+        }
+        return candidates;
+    }
+
+    /**
+     * Merge the configurations indexed under a relying party ID with those checked for every request.
+     * 
+     * @param indexedPositions the positions of the indexed configurations, or null
+     * 
+     * @return the configurations, in their original order
+     */
+    @Nonnull @NonnullElements @Unmodifiable private List<RelyingPartyConfiguration> merge(
+            @Nullable final int[] indexedPositions) {
+        final int[] indexed = indexedPositions != null ? indexedPositions : new int[0];
+        final List<RelyingPartyConfiguration> merged = new ArrayList<>(indexed.length + unindexedPositions.length);
+        
+        int i = 0;
+        int j = 0;
+        while (i < indexed.length || j < unindexedPositions.length) {
+            if (j == unindexedPositions.length || (i < indexed.length && indexed[i] < unindexedPositions[j])) {
+                merged.add(rpConfigurations.get(indexed[i++]));
+            } else {
+                merged.add(rpConfigurations.get(unindexedPositions[j++]));
+            }
+        }
+        return Collections.unmodifiableList(merged);
     }
 
     /** {@inheritDoc} */
@@ -263,7 +424,7 @@ public class DefaultRelyingPartyConfigurationResolver
 
         final ArrayList<RelyingPartyConfiguration> matches = new ArrayList<>();
 
-        for (final RelyingPartyConfiguration configuration : rpConfigurations) {
+        for (final RelyingPartyConfiguration configuration : getCandidates(context)) {
             log.debug("Checking if relying party configuration {} is applicable", configuration.getId());
             if (configuration.apply(context)) {
                 log.debug("Relying party configuration {} is applicable", configuration.getId());
@@ -301,7 +462,7 @@ public class DefaultRelyingPartyConfigurationResolver
             return getUnverifiedConfiguration();
         }
 
-        for (final RelyingPartyConfiguration configuration : rpConfigurations) {
+        for (final RelyingPartyConfiguration configuration : getCandidates(context)) {
             log.debug("Checking if relying party configuration {} is applicable", configuration.getId());
             if (configuration.apply(context)) {
                 log.debug("Relying party configuration {} is applicable", configuration.getId());
@@ -18,10 +18,12 @@
 package net.shibboleth.idp.relyingparty.impl;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
 import net.shibboleth.idp.profile.context.RelyingPartyContext;
+import net.shibboleth.idp.profile.logic.RelyingPartyIdPredicate;
 import net.shibboleth.idp.relyingparty.RelyingPartyConfiguration;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 
@@ -29,6 +31,7 @@ import org.opensaml.profile.context.ProfileRequestContext;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 
 /** Unit test for {@link DefaultRelyingPartyConfigurationResolver}. */
@@ -206,4 +209,64 @@ public class DefaultRelyingPartyConfigurationResolverTest {
         result = resolver.resolveSingle(null);
         Assert.assertNull(result);
     }
-}
\ No newline at end of file
+
+    @Test public void testIndexedResolve() throws Exception {
+        final RelyingPartyConfiguration defaultRP = buildConfiguration("defaultRPId", null);
+        final RelyingPartyConfiguration one =
+                buildConfiguration("one", new RelyingPartyIdPredicate(Collections.singleton("sp1")));
+        final RelyingPartyConfiguration two =
+                buildConfiguration("two", Predicates.<ProfileRequestContext>alwaysFalse());
+        final RelyingPartyConfiguration three =
+                buildConfiguration("three", new RelyingPartyIdPredicate(Arrays.asList("sp1", "sp2")));
+        final RelyingPartyConfiguration four =
+                buildConfiguration("four", new RelyingPartyIdPredicate(Predicates.equalTo("sp2")));
+        final RelyingPartyConfiguration five =
+                buildConfiguration("five", new RelyingPartyIdPredicate(Collections.singleton("sp3")));
+
+        final DefaultRelyingPartyConfigurationResolver resolver = new DefaultRelyingPartyConfigurationResolver();
+        resolver.setId("test");
+        resolver.setRelyingPartyConfigurations(Arrays.asList(one, two, three, four, five));
+        resolver.setDefaultConfiguration(defaultRP);
+        resolver.initialize();
+
+        ProfileRequestContext requestContext = buildContext("sp1");
+        Assert.assertEquals(resolver.resolve(requestContext), Arrays.asList(one, three));
+        Assert.assertSame(resolver.resolveSingle(requestContext), one);
+        Assert.assertSame(resolver.resolveSingle(requestContext), one);
+
+        requestContext = buildContext("sp2");
+        Assert.assertEquals(resolver.resolve(requestContext), Arrays.asList(three, four));
+        Assert.assertSame(resolver.resolveSingle(requestContext), three);
+
+        requestContext = buildContext("sp3");
+        Assert.assertEquals(resolver.resolve(requestContext), Collections.singletonList(five));
+        Assert.assertSame(resolver.resolveSingle(requestContext), five);
+
+        requestContext = buildContext("sp4");
+        Assert.assertEquals(resolver.resolve(requestContext), Collections.singleton(defaultRP));
+        Assert.assertSame(resolver.resolveSingle(requestContext), defaultRP);
+
+        requestContext = buildContext(null);
+        Assert.assertEquals(resolver.resolve(requestContext), Collections.singleton(defaultRP));
+        Assert.assertSame(resolver.resolveSingle(requestContext), defaultRP);
+    }
+
+    private RelyingPartyConfiguration buildConfiguration(final String id,
+            final Predicate<ProfileRequestContext> condition) throws ComponentInitializationException {
+        final RelyingPartyConfiguration config = new RelyingPartyConfiguration();
+        config.setId(id);
+        config.setResponderId("foo");
+        if (condition != null) {
+            config.setActivationCondition(condition);
+        }
+        config.initialize();
+        return config;
+    }
+
+    private ProfileRequestContext buildContext(final String relyingPartyId) {
+        final ProfileRequestContext requestContext = new ProfileRequestContext();
+        requestContext.getSubcontext(RelyingPartyContext.class, true).setVerified(true)
+                .setRelyingPartyId(relyingPartyId);
+        return requestContext;
+    }
+}
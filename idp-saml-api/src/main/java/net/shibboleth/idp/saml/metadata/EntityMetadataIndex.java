@@ -0,0 +1,272 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.saml.metadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.collection.LockableClassToInstanceMultiMap;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.saml.ext.saml2mdattr.EntityAttributes;
+import org.opensaml.saml.ext.saml2mdrpi.RegistrationInfo;
+import org.opensaml.saml.metadata.EntityGroupName;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.Extensions;
+
+/**
+ * A precomputed view of the parts of an {@link EntityDescriptor} that policy rules and metadata-driven settings
+ * repeatedly examine: its entity attributes (tags), its registration information and the names of the groups
+ * containing it.
+ *
+ * <p>
+ * The view is built the first time it is asked for and is then held in the descriptor's
+ * {@link XMLObject#getObjectMetadata()}, so it lives exactly as long as that copy of the metadata does and is
+ * rebuilt for the replacement descriptor after a refresh.
+ * </p>
+ *
+ * @since 3.4.0
+ */
+@Immutable
+public final class EntityMetadataIndex {
+
+    /** Tags in the entity's own first EntityAttributes extension, by name, in document order. */
+    @Nonnull @NonnullElements private final Map<String, List<Attribute>> entityTags;
+
+    /** Tags in the first EntityAttributes extension of the entity and each enclosing group, by name, nearest first. */
+    @Nonnull @NonnullElements private final Map<String, List<Attribute>> inheritedTags;
+
+    /** The nearest registration information for the entity. */
+    @Nullable private final RegistrationInfo registrationInfo;
+
+    /** The names of the groups known to contain the entity. */
+    @Nonnull @NonnullElements private final Set<String> groupNames;
+
+    /**
+     * Constructor.
+     *
+     * @param entity the entity to index
+     */
+    private EntityMetadataIndex(@Nonnull final EntityDescriptor entity) {
+        entityTags = new HashMap<>();
+        inheritedTags = new HashMap<>();
+
+        final EntityAttributes own = getEntityAttributes(entity.getExtensions());
+        if (own != null) {
+            addTags(entityTags, own);
+            addTags(inheritedTags, own);
+        }
+
+        RegistrationInfo info = getRegistrationInfo(entity.getExtensions());
+
+        final Set<String> names = new LinkedHashSet<>();
+        for (final EntityGroupName name : entity.getObjectMetadata().get(EntityGroupName.class)) {
+            names.add(name.getName());
+        }
+
+        XMLObject parent = entity.getParent();
+        while (parent instanceof EntitiesDescriptor) {
+            final EntitiesDescriptor group = (EntitiesDescriptor) parent;
+            final EntityAttributes inherited = getEntityAttributes(group.getExtensions());
+            if (inherited != null) {
+                addTags(inheritedTags, inherited);
+            }
+            if (info == null) {
+                info = getRegistrationInfo(group.getExtensions());
+            }
+            parent = group.getParent();
+        }
+
+        freeze(entityTags);
+        freeze(inheritedTags);
+        registrationInfo = info;
+        groupNames = Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Get the tags with a given name in the entity's own EntityAttributes extension.
+     *
+     * @param name the tag name
+     *
+     * @return the matching tags in document order, or an empty list
+     */
+    @Nonnull @NonnullElements @Unmodifiable public List<Attribute> getEntityAttributes(
+            @Nonnull @NotEmpty final String name) {
+        final List<Attribute> tags = entityTags.get(name);
+        return tags != null ? tags : Collections.<Attribute>emptyList();
+    }
+
+    /**
+     * Get the tags with a given name in the EntityAttributes extensions of the entity and its enclosing groups.
+     *
+     * @param name the tag name
+     *
+     * @return the matching tags, those of the entity first and then those of each group outwards, or an empty list
+     */
+    @Nonnull @NonnullElements @Unmodifiable public List<Attribute> getInheritedEntityAttributes(
+            @Nonnull @NotEmpty final String name) {
+        final List<Attribute> tags = inheritedTags.get(name);
+        return tags != null ? tags : Collections.<Attribute>emptyList();
+    }
+
+    /**
+     * Get the registration information of the entity, or failing that of its nearest enclosing group with some.
+     *
+     * @return the registration information, or null
+     */
+    @Nullable public RegistrationInfo getRegistrationInfo() {
+        return registrationInfo;
+    }
+
+    /**
+     * Get the names of the groups known to contain the entity.
+     *
+     * <p>
+     * These are the {@link EntityGroupName}s attached to the entity when its metadata was processed. Membership of
+     * an affiliation is not included.
+     * </p>
+     *
+     * @return the group names
+     */
+    @Nonnull @NonnullElements @Unmodifiable public Set<String> getGroupNames() {
+        return groupNames;
+    }
+
+    /**
+     * Get the index for an entity, building it if necessary.
+     *
+     * @param entity the entity
+     *
+     * @return the index
+     */
+    @Nonnull public static EntityMetadataIndex get(@Nonnull final EntityDescriptor entity) {
+        Constraint.isNotNull(entity, "EntityDescriptor cannot be null");
+
+        final LockableClassToInstanceMultiMap<Object> objectMetadata = entity.getObjectMetadata();
+        final Lock readLock = objectMetadata.getReadWriteLock().readLock();
+        readLock.lock();
+        try {
+            final List<EntityMetadataIndex> existing = objectMetadata.get(EntityMetadataIndex.class);
+            if (!existing.isEmpty()) {
+                return existing.get(0);
+            }
+        } finally {
+            readLock.unlock();
+        }
+
+        final EntityMetadataIndex index = new EntityMetadataIndex(entity);
+
+        final Lock writeLock = objectMetadata.getReadWriteLock().writeLock();
+        writeLock.lock();
+        try {
+            // Another thread may have got there first, in which case its copy is kept.
+            final List<EntityMetadataIndex> existing = objectMetadata.get(EntityMetadataIndex.class);
+            if (!existing.isEmpty()) {
+                return existing.get(0);
+            }
+            objectMetadata.put(index);
+            return index;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Find the first EntityAttributes extension.
+     *
+     * @param extensions the extensions to examine
+     *
+     * @return the extension, or null
+     */
+    @Nullable private static EntityAttributes getEntityAttributes(@Nullable final Extensions extensions) {
+        if (extensions != null) {
+            final List<XMLObject> children = extensions.getUnknownXMLObjects(EntityAttributes.DEFAULT_ELEMENT_NAME);
+            if (!children.isEmpty() && children.get(0) instanceof EntityAttributes) {
+                return (EntityAttributes) children.get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the first RegistrationInfo extension.
+     *
+     * @param extensions the extensions to examine
+     *
+     * @return the extension, or null
+     */
+    @Nullable private static RegistrationInfo getRegistrationInfo(@Nullable final Extensions extensions) {
+        if (extensions != null) {
+            for (final XMLObject object : extensions.getUnknownXMLObjects(RegistrationInfo.DEFAULT_ELEMENT_NAME)) {
+                if (object instanceof RegistrationInfo) {
+                    return (RegistrationInfo) object;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add the tags in an EntityAttributes extension to a map, after any already present.
+     *
+     * @param tags the map to add to
+     * @param entityAttributes the extension
+     */
+    private static void addTags(@Nonnull final Map<String, List<Attribute>> tags,
+            @Nonnull final EntityAttributes entityAttributes) {
+        for (final Attribute tag : entityAttributes.getAttributes()) {
+            if (tag.getName() == null) {
+                continue;
+            }
+            List<Attribute> named = tags.get(tag.getName());
+            if (named == null) {
+                named = new ArrayList<>(1);
+                tags.put(tag.getName(), named);
+            }
+            named.add(tag);
+        }
+    }
+
+    /**
+     * Make the lists in a map of tags unmodifiable.
+     *
+     * @param tags the map of tags
+     */
+    private static void freeze(@Nonnull final Map<String, List<Attribute>> tags) {
+        for (final Map.Entry<String, List<Attribute>> entry : tags.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+    }
+
+}
@@ -31,11 +31,8 @@ import org.opensaml.core.xml.XMLObject;
 import org.opensaml.messaging.context.BaseContext;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.opensaml.saml.common.messaging.context.navigate.EntityDescriptorLookupFunction;
-import org.opensaml.saml.ext.saml2mdattr.EntityAttributes;
 import org.opensaml.saml.saml2.core.Attribute;
-import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
-import org.opensaml.saml.saml2.metadata.Extensions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,6 +40,7 @@ import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.collect.Collections2;
 
+import net.shibboleth.idp.saml.metadata.EntityMetadataIndex;
 import net.shibboleth.idp.saml.profile.context.navigate.SAMLMetadataContextLookupFunction;
 import net.shibboleth.utilities.java.support.annotation.constraint.Live;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
@@ -263,6 +261,9 @@ public abstract class AbstractMetadataDrivenConfigurationLookupStrategy<T> exten
     /**
      * Find a matching entity attribute in the input metadata.
      * 
+     * <p>The tags of the entity and its parent(s) are looked up in its {@link EntityMetadataIndex}, which is built
+     * once for each copy of the metadata.</p>
+     * 
      * @param entity the metadata to examine
      * @param name the tag name to search for
      * 
@@ -272,49 +273,8 @@ public abstract class AbstractMetadataDrivenConfigurationLookupStrategy<T> exten
             @Nonnull @NotEmpty final String name) {
         
         // Check for a tag match in the EntityAttributes extension of the entity and its parent(s).
-        Extensions exts = entity.getExtensions();
-        if (exts != null) {
-            final List<XMLObject> children = exts.getUnknownXMLObjects(EntityAttributes.DEFAULT_ELEMENT_NAME);
-            if (!children.isEmpty() && children.get(0) instanceof EntityAttributes) {
-                final Attribute tag = findMatchingTag((EntityAttributes) children.get(0), name);
-                if (tag != null) {
-                    return tag;
-                }
-            }
-        }
-
-        EntitiesDescriptor group = (EntitiesDescriptor) entity.getParent();
-        while (group != null) {
-            exts = group.getExtensions();
-            if (exts != null) {
-                final List<XMLObject> children = exts.getUnknownXMLObjects(EntityAttributes.DEFAULT_ELEMENT_NAME);
-                if (!children.isEmpty() && children.get(0) instanceof EntityAttributes) {
-                    final Attribute tag = findMatchingTag((EntityAttributes) children.get(0), name);
-                    if (tag != null) {
-                        return tag;
-                    }
-                }
-            }
-            group = (EntitiesDescriptor) group.getParent();
-        }
-        
-        return null;
-    }
-    
-    /**
-     * Find a matching entity attribute in the input metadata.
-     * 
-     * @param entityAttributes the metadata to examine
-     * @param name the tag name to search for
-     * 
-     * @return matching attribute or null
-     */
-    @Nullable private Attribute findMatchingTag(@Nonnull final EntityAttributes entityAttributes,
-            @Nonnull @NotEmpty final String name) {
-        
-        for (final Attribute tag : entityAttributes.getAttributes()) {
-            if (Objects.equals(tag.getName(), name)
-                    && (!strictNameFormat || Objects.equals(tag.getNameFormat(), Attribute.URI_REFERENCE))) {
+        for (final Attribute tag : EntityMetadataIndex.get(entity).getInheritedEntityAttributes(name)) {
+            if (!strictNameFormat || Objects.equals(tag.getNameFormat(), Attribute.URI_REFERENCE)) {
                 return tag;
             }
         }
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.saml.metadata;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.opensaml.core.xml.XMLObjectBaseTestCase;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.schema.XSString;
+import org.opensaml.saml.ext.saml2mdattr.EntityAttributes;
+import org.opensaml.saml.ext.saml2mdrpi.RegistrationInfo;
+import org.opensaml.saml.metadata.EntityGroupName;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.core.AttributeValue;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.Extensions;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/** Unit test for {@link EntityMetadataIndex}. */
+public class EntityMetadataIndexTest extends XMLObjectBaseTestCase {
+
+    @Test public void testEmpty() {
+        final EntityDescriptor entity = buildXMLObject(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        final EntityMetadataIndex index = EntityMetadataIndex.get(entity);
+
+        Assert.assertTrue(index.getEntityAttributes("tag").isEmpty());
+        Assert.assertTrue(index.getInheritedEntityAttributes("tag").isEmpty());
+        Assert.assertNull(index.getRegistrationInfo());
+        Assert.assertTrue(index.getGroupNames().isEmpty());
+        Assert.assertSame(EntityMetadataIndex.get(entity), index);
+    }
+
+    @Test public void testIndex() {
+        final EntitiesDescriptor outer = buildXMLObject(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+        outer.setName("outer");
+        outer.setExtensions(buildExtensions(buildTag("tag", "outer")));
+        final RegistrationInfo info = buildXMLObject(RegistrationInfo.DEFAULT_ELEMENT_NAME);
+        info.setRegistrationAuthority("https://registrar.example.org");
+        outer.getExtensions().getUnknownXMLObjects().add(info);
+
+        final EntitiesDescriptor inner = buildXMLObject(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+        inner.setName("inner");
+        inner.setExtensions(buildExtensions(buildTag("tag", "inner"), buildTag("other", "inner")));
+        outer.getEntitiesDescriptors().add(inner);
+
+        final EntityDescriptor entity = buildXMLObject(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        entity.setEntityID("https://sp.example.org");
+        entity.setExtensions(buildExtensions(buildTag("tag", "entity"), buildTag("tag", "entity2")));
+        inner.getEntityDescriptors().add(entity);
+        entity.getObjectMetadata().put(new EntityGroupName("inner"));
+        entity.getObjectMetadata().put(new EntityGroupName("outer"));
+
+        final EntityMetadataIndex index = EntityMetadataIndex.get(entity);
+
+        List<Attribute> tags = index.getEntityAttributes("tag");
+        Assert.assertEquals(tags.size(), 2);
+        Assert.assertEquals(getValue(tags.get(0)), "entity");
+        Assert.assertEquals(getValue(tags.get(1)), "entity2");
+        Assert.assertTrue(index.getEntityAttributes("other").isEmpty());
+
+        tags = index.getInheritedEntityAttributes("tag");
+        Assert.assertEquals(tags.size(), 4);
+        Assert.assertEquals(getValue(tags.get(0)), "entity");
+        Assert.assertEquals(getValue(tags.get(2)), "inner");
+        Assert.assertEquals(getValue(tags.get(3)), "outer");
+        Assert.assertEquals(index.getInheritedEntityAttributes("other").size(), 1);
+
+        Assert.assertSame(index.getRegistrationInfo(), info);
+        Assert.assertEquals(index.getGroupNames().size(), 2);
+        Assert.assertTrue(index.getGroupNames().contains("inner"));
+        Assert.assertTrue(index.getGroupNames().contains("outer"));
+
+        Assert.assertSame(EntityMetadataIndex.get(entity), index);
+        Assert.assertEquals(entity.getObjectMetadata().get(EntityMetadataIndex.class),
+                Collections.singletonList(index));
+    }
+
+    private Extensions buildExtensions(final Attribute... tags) {
+        final Extensions extensions = buildXMLObject(Extensions.DEFAULT_ELEMENT_NAME);
+        final EntityAttributes entityAttributes = buildXMLObject(EntityAttributes.DEFAULT_ELEMENT_NAME);
+        for (final Attribute tag : tags) {
+            entityAttributes.getAttributes().add(tag);
+        }
+        extensions.getUnknownXMLObjects().add(entityAttributes);
+        return extensions;
+    }
+
+    private Attribute buildTag(final String name, final String value) {
+        final Attribute tag = buildXMLObject(Attribute.DEFAULT_ELEMENT_NAME);
+        tag.setName(name);
+        final XSString attributeValue =
+                XMLObjectProviderRegistrySupport.getBuilderFactory().<XSString>getBuilderOrThrow(XSString.TYPE_NAME)
+                        .buildObject(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+        attributeValue.setValue(value);
+        tag.getAttributeValues().add(attributeValue);
+        return tag;
+    }
+
+    private String getValue(final Attribute tag) {
+        return ((XSString) tag.getAttributeValues().get(0)).getValue();
+    }
+
+}
@@ -22,7 +22,9 @@ import java.util.Collections;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.joda.time.DateTime;
 import org.opensaml.saml.metadata.resolver.MetadataResolver;
+import org.opensaml.saml.metadata.resolver.RefreshableMetadataResolver;
 import org.opensaml.saml.metadata.resolver.filter.MetadataFilter;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.slf4j.Logger;
@@ -42,7 +44,7 @@ import net.shibboleth.utilities.java.support.service.ServiceableComponent;
  * 
  */
 public class ReloadingRelyingPartyMetadataProvider extends AbstractIdentifiableInitializableComponent implements
-        MetadataResolver {
+        RefreshableMetadataResolver {
 
     /** Class logger. */
     @Nonnull private final Logger log = LoggerFactory.getLogger(ReloadingRelyingPartyMetadataProvider.class);
@@ -159,5 +161,76 @@ public class ReloadingRelyingPartyMetadataProvider extends AbstractIdentifiableI
     @Override public void setMetadataFilter(final MetadataFilter newFilter) {
         throw new IllegalAccessError("Cannot set Metadata filter");
     }
-    
-}
\ No newline at end of file
+
+    /** {@inheritDoc} */
+    @Override public void refresh() throws ResolverException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        ServiceableComponent<MetadataResolver> component = null;
+        try {
+            component = service.getServiceableComponent();
+            if (null == component) {
+                log.error("RelyingPartyMetadataProvider '{}': Error accessing underlying metadata source: "
+                        + "Invalid configuration.", getId());
+            } else {
+                final MetadataResolver resolver = component.getComponent();
+                if (resolver instanceof RefreshableMetadataResolver) {
+                    ((RefreshableMetadataResolver) resolver).refresh();
+                }
+            }
+        } finally {
+            if (null != component) {
+                component.unpinComponent();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This is the later of the last refresh of the underlying metadata source and the last reload of the
+     * service.</p>
+     */
+    @Override @Nullable public DateTime getLastRefresh() {
+        return getLastChange(false);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This is the later of the last update of the underlying metadata source and the last reload of the service,
+     * so it changes whenever the metadata visible through this resolver may have changed.</p>
+     */
+    @Override @Nullable public DateTime getLastUpdate() {
+        return getLastChange(true);
+    }
+
+    /**
+     * Get the later of the last refresh or update of the underlying metadata source and the last reload of the
+     * service.
+     *
+     * @param update whether to consider the last update rather than the last refresh of the metadata source
+     *
+     * @return the instant, or null if neither is known
+     */
+    @Nullable private DateTime getLastChange(final boolean update) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        DateTime result = service.getLastSuccessfulReloadInstant();
+        ServiceableComponent<MetadataResolver> component = null;
+        try {
+            component = service.getServiceableComponent();
+            if (null != component && component.getComponent() instanceof RefreshableMetadataResolver) {
+                final RefreshableMetadataResolver resolver = (RefreshableMetadataResolver) component.getComponent();
+                final DateTime instant = update ? resolver.getLastUpdate() : resolver.getLastRefresh();
+                if (null != instant && (null == result || instant.isAfter(result))) {
+                    result = instant;
+                }
+            }
+        } finally {
+            if (null != component) {
+                component.unpinComponent();
+            }
+        }
+        return result;
+    }
+
+}
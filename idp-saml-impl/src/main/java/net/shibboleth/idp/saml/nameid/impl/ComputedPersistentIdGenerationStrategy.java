@@ -19,14 +19,22 @@ package net.shibboleth.idp.saml.nameid.impl;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import net.shibboleth.utilities.java.support.codec.Base32Support;
 import net.shibboleth.utilities.java.support.codec.Base64Support;
@@ -40,6 +48,9 @@ import org.opensaml.saml.common.SAMLException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 /**
  * The basis of a {@link PersistentIdGenerationStrategy} that generates a unique ID by computing the hash of
  * a given attribute value, the entity ID of the inbound message issuer, and a provided salt.
@@ -53,6 +64,9 @@ public class ComputedPersistentIdGenerationStrategy extends AbstractInitializabl
 
     /** An override trigger to apply to all relying parties. */
     @Nonnull @NotEmpty public static final String WILDCARD_OVERRIDE = "*";
+
+    /** Default number of relying parties for which to retain a pre-seeded digest. */
+    public static final long DEFAULT_DIGEST_CACHE_SIZE = 1000;
     
     /** Class logger. */
     @Nonnull private final Logger log = LoggerFactory.getLogger(ComputedPersistentIdGenerationStrategy.class);
@@ -78,11 +92,27 @@ public class ComputedPersistentIdGenerationStrategy extends AbstractInitializabl
     /** Override map to block or re-issue identifiers. */
     @Nonnull private Map<String,Map<String,String>> exceptionMap;
     
+    /** Maximum number of relying parties for which to retain a pre-seeded digest, or 0 for none. */
+    @NonNegative private long digestCacheSize;
+
+    /** Maximum number of computed IDs to retain, or 0 for none. */
+    @NonNegative private long idCacheSize;
+
+    /** Unused digest instance to clone, or null if the algorithm does not support cloning. */
+    @Nullable private MessageDigest prototypeDigest;
+
+    /** Digests already fed the relying party portion of the input, keyed by relying party. */
+    @Nullable private Cache<String,MessageDigest> seededDigests;
+
+    /** Computed IDs using the default salt, keyed by relying party and source ID. */
+    @Nullable private Cache<List<String>,String> computedIds;
+
     /** Constructor. */
     public ComputedPersistentIdGenerationStrategy() {
         algorithm = "SHA";
         encoding = Encoding.BASE64;
         exceptionMap = Collections.emptyMap();
+        digestCacheSize = DEFAULT_DIGEST_CACHE_SIZE;
     }
     
     /**
@@ -182,6 +212,39 @@ public class ComputedPersistentIdGenerationStrategy extends AbstractInitializabl
         }
     }
 
+    /**
+     * Set the number of relying parties for which to retain a digest already fed the relying party
+     * portion of the input, to be cloned for each ID generated. Defaults to
+     * {@link #DEFAULT_DIGEST_CACHE_SIZE}.
+     * 
+     * <p>This has no effect if the digest algorithm does not support cloning.</p>
+     * 
+     * @param size maximum number of relying parties, or 0 to compute each ID from scratch
+     * 
+     * @since 3.4.0
+     */
+    public void setDigestCacheSize(@NonNegative final long size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        
+        digestCacheSize = Constraint.isGreaterThanOrEqual(0, size, "Cache size must be greater than or equal to 0");
+    }
+
+    /**
+     * Set the number of recently computed IDs to retain. Defaults to 0.
+     * 
+     * <p>Only IDs computed with the default salt are retained, and each is held in memory along with its
+     * source ID.</p>
+     * 
+     * @param size maximum number of IDs, or 0 to compute each ID on demand
+     * 
+     * @since 3.4.0
+     */
+    public void setIdCacheSize(@NonNegative final long size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        
+        idCacheSize = Constraint.isGreaterThanOrEqual(0, size, "Cache size must be greater than or equal to 0");
+    }
+
     /** {@inheritDoc} */
     @Override
     protected void doInitialize() throws ComponentInitializationException {
@@ -194,6 +257,23 @@ public class ComputedPersistentIdGenerationStrategy extends AbstractInitializabl
         if (getSalt().length < 16) {
             throw new ComponentInitializationException("Salt must be at least 16 bytes in size");
         }
+        
+        if (digestCacheSize > 0) {
+            try {
+                final MessageDigest md = MessageDigest.getInstance(algorithm);
+                md.clone();
+                prototypeDigest = md;
+                seededDigests = CacheBuilder.newBuilder().maximumSize(digestCacheSize).build();
+            } catch (final NoSuchAlgorithmException e) {
+                // Reported when an ID is generated.
+            } catch (final CloneNotSupportedException e) {
+                log.debug("Digest algorithm {} does not support cloning, computing each ID from scratch", algorithm);
+            }
+        }
+        
+        if (idCacheSize > 0) {
+            computedIds = CacheBuilder.newBuilder().maximumSize(idCacheSize).build();
+        }
     }
     
     /** {@inheritDoc} */
@@ -208,23 +288,128 @@ public class ComputedPersistentIdGenerationStrategy extends AbstractInitializabl
             throw new SAMLException("Generation blocked by exception rule");
         }
         
+        return generate(relyingPartyId, sourceId, effectiveSalt);
+    }
+
+    /**
+     * Generate the IDs for a principal across a number of relying parties.
+     * 
+     * <p>Relying parties for which generation is blocked by an exception rule are omitted from the result.</p>
+     * 
+     * @param assertingPartyId the asserting party
+     * @param relyingPartyIds the relying parties
+     * @param principalName the principal name
+     * @param sourceId the source ID
+     * 
+     * @return map of relying party to ID
+     * 
+     * @throws SAMLException if an ID cannot be computed
+     * 
+     * @since 3.4.0
+     */
+    @Nonnull @NonnullElements public Map<String,String> generate(@Nonnull @NotEmpty final String assertingPartyId,
+            @Nonnull @NonnullElements final Collection<String> relyingPartyIds,
+            @Nonnull @NotEmpty final String principalName, @Nonnull @NotEmpty final String sourceId)
+                    throws SAMLException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        
+        final Map<String,String> ids = new LinkedHashMap<>(relyingPartyIds.size());
+        for (final String relyingPartyId : relyingPartyIds) {
+            final byte[] effectiveSalt = getEffectiveSalt(principalName, relyingPartyId);
+            if (effectiveSalt != null) {
+                ids.put(relyingPartyId, generate(relyingPartyId, sourceId, effectiveSalt));
+            }
+        }
+        return ids;
+    }
+    
+    /**
+     * Generate an ID, from the cache if possible.
+     * 
+     * @param relyingPartyId name of relying party scope
+     * @param sourceId the source ID
+     * @param effectiveSalt salt to use
+     * 
+     * @return the ID
+     * 
+     * @throws SAMLException if the ID cannot be computed
+     */
+    @Nonnull @NotEmpty private String generate(@Nonnull @NotEmpty final String relyingPartyId,
+            @Nonnull @NotEmpty final String sourceId, @Nonnull final byte[] effectiveSalt) throws SAMLException {
+        
+        if (computedIds == null || effectiveSalt != salt) {
+            return compute(relyingPartyId, sourceId, effectiveSalt);
+        }
+        
+        final List<String> key = Arrays.asList(relyingPartyId, sourceId);
+        String id = computedIds.getIfPresent(key);
+        if (id == null) {
+            id = compute(relyingPartyId, sourceId, effectiveSalt);
+            computedIds.put(key, id);
+        }
+        return id;
+    }
+
+    /**
+     * Compute an ID.
+     * 
+     * @param relyingPartyId name of relying party scope
+     * @param sourceId the source ID
+     * @param effectiveSalt salt to use
+     * 
+     * @return the ID
+     * 
+     * @throws SAMLException if the ID cannot be computed
+     */
+    @Nonnull @NotEmpty private String compute(@Nonnull @NotEmpty final String relyingPartyId,
+            @Nonnull @NotEmpty final String sourceId, @Nonnull final byte[] effectiveSalt) throws SAMLException {
+        
+        final MessageDigest md = getSeededDigest(relyingPartyId);
+        md.update(sourceId.getBytes());
+        md.update((byte) '!');
+
+        if (encoding == Encoding.BASE32) {
+            return Base32Support.encode(md.digest(effectiveSalt), Base32Support.UNCHUNKED);
+        } else if (encoding == Encoding.BASE64) {
+            return Base64Support.encode(md.digest(effectiveSalt), Base64Support.UNCHUNKED);
+        } else {
+            throw new SAMLException("Desired encoding was not recognized, unable to compute ID");
+        }
+    }
+
+    /**
+     * Get a digest for exclusive use that has been fed the relying party portion of the input.
+     * 
+     * @param relyingPartyId name of relying party scope
+     * 
+     * @return the digest
+     * 
+     * @throws SAMLException if the digest algorithm is not available
+     */
+    @Nonnull private MessageDigest getSeededDigest(@Nonnull @NotEmpty final String relyingPartyId)
+            throws SAMLException {
+        
         try {
+            if (seededDigests != null) {
+                return (MessageDigest) seededDigests.get(relyingPartyId, new Callable<MessageDigest>() {
+                    @Override public MessageDigest call() throws CloneNotSupportedException {
+                        final MessageDigest md = (MessageDigest) prototypeDigest.clone();
+                        md.update(relyingPartyId.getBytes());
+                        md.update((byte) '!');
+                        return md;
+                    }
+                }).clone();
+            }
+            
             final MessageDigest md = MessageDigest.getInstance(algorithm);
             md.update(relyingPartyId.getBytes());
             md.update((byte) '!');
-            md.update(sourceId.getBytes());
-            md.update((byte) '!');
-
-            if (encoding == Encoding.BASE32) {
-                return Base32Support.encode(md.digest(effectiveSalt), Base32Support.UNCHUNKED);
-            } else if (encoding == Encoding.BASE64) {
-                return Base64Support.encode(md.digest(effectiveSalt), Base64Support.UNCHUNKED);
-            } else {
-                throw new SAMLException("Desired encoding was not recognized, unable to compute ID");
-            }
+            return md;
         } catch (final NoSuchAlgorithmException e) {
             log.error("Digest algorithm {} is not supported", algorithm);
             throw new SAMLException("Digest algorithm was not supported, unable to compute ID", e);
+        } catch (final CloneNotSupportedException | ExecutionException e) {
+            throw new SAMLException("Unable to copy digest, unable to compute ID", e);
         }
     }
     
@@ -27,8 +27,12 @@ import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -41,6 +45,7 @@ import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
 import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
@@ -52,6 +57,9 @@ import org.opensaml.saml.common.SAMLException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 /**
  * JDBC-based storage management for SAML persistent IDs.
  * 
@@ -72,6 +80,8 @@ import org.slf4j.LoggerFactory;
  *    
  * The first three columns should be defined as the primary key of the table, and the other columns
  * should be indexed.</p>
+ * 
+ * <p>Active entries may optionally be cached in memory, see {@link #setCacheSize(long)}.</p>
  */
 public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent implements PersistentIdStoreEx {
 
@@ -138,12 +148,33 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
     /** Parameterized delete statement used to clear dummy rows after verification. */
     @NonnullAfterInit private String deleteSQL;
 
+    /** Maximum number of active entries to cache, or 0 to disable caching. */
+    @NonNegative private long cacheSize;
+
+    /** Time after which a cached entry is discarded, in milliseconds. */
+    @Duration @Positive private long cacheExpiration;
+
+    /** Number of source IDs to process in each transaction during a batch operation. */
+    @Positive private int batchSize;
+
+    /** Keys of {@link #issuedCache} keyed by issuer, recipient and source ID. */
+    @Nullable private Cache<List<String>, List<String>> sourceCache;
+
+    /** Cache of active entries keyed by issuer, recipient and persistent ID. */
+    @Nullable private Cache<List<String>, PersistentIdEntry> issuedCache;
+
+    /** Number of cached entries invalidated, so that entries read before an invalidation are not cached. */
+    @Nonnull private final AtomicLong invalidations;
+
     /** Constructor. */
     public JDBCPersistentIdStoreEx() {
         transactionRetry = 3;
         retryableErrors = Arrays.asList("23000", "23505");
         queryTimeout = 5000;
         verifyDatabase = true;
+        cacheExpiration = 10 * 60 * 1000;
+        batchSize = 100;
+        invalidations = new AtomicLong();
         
         tableName = "shibpid";
         issuerColumn = "localEntity";
@@ -262,6 +293,70 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
         verifyDatabase = flag;
     }
 
+    /**
+     * Get the maximum number of active entries to cache.
+     * 
+     * @return the maximum number of cached entries, or 0 if caching is disabled
+     */
+    @NonNegative public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Set the maximum number of active entries to cache. Defaults to 0, which disables caching.
+     * 
+     * <p>Entries are cached after they are read or created, and are discarded when deactivated or
+     * attached to via this object. Changes made by other servers sharing the database are not seen
+     * until a cached entry expires, see {@link #setCacheExpiration(long)}.</p>
+     * 
+     * @param size the maximum number of cached entries
+     */
+    public void setCacheSize(@NonNegative final long size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        
+        cacheSize = Constraint.isGreaterThanOrEqual(0, size, "Cache size must be greater than or equal to 0");
+    }
+
+    /**
+     * Get the time after which a cached entry is discarded.
+     * 
+     * @return the expiration time in milliseconds
+     */
+    @Positive @Duration public long getCacheExpiration() {
+        return cacheExpiration;
+    }
+
+    /**
+     * Set the time after which a cached entry is discarded. Defaults to 10 minutes.
+     * 
+     * @param expiration the expiration time in milliseconds
+     */
+    @Duration public void setCacheExpiration(@Duration @Positive final long expiration) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        
+        cacheExpiration = Constraint.isGreaterThan(0, expiration, "Cache expiration must be greater than 0");
+    }
+
+    /**
+     * Get the number of source IDs to process in each transaction during a batch operation.
+     * 
+     * @return the batch size
+     */
+    @Positive public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the number of source IDs to process in each transaction during a batch operation. Defaults to 100.
+     * 
+     * @param size the batch size
+     */
+    public void setBatchSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        
+        batchSize = (int) Constraint.isGreaterThan(0, size, "Batch size must be greater than 0");
+    }
+
     /**
      * Set the table name.
      * 
@@ -490,6 +585,13 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
             deleteSQL = "DELETE FROM " + tableName + " WHERE " + issuerColumn + "= ?";
         }
         
+        if (cacheSize > 0) {
+            sourceCache = CacheBuilder.newBuilder().maximumSize(cacheSize)
+                    .expireAfterWrite(cacheExpiration, TimeUnit.MILLISECONDS).build();
+            issuedCache = CacheBuilder.newBuilder().maximumSize(cacheSize)
+                    .expireAfterWrite(cacheExpiration, TimeUnit.MILLISECONDS).build();
+        }
+        
         try {
             verifyDatabase();
             log.info("{} Data source successfully verified", getLogPrefix());
@@ -512,6 +614,15 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
                     throws IOException {
         ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
 
+        final List<String> key = Arrays.asList(nameQualifier, spNameQualifier, persistentId);
+        if (issuedCache != null) {
+            final PersistentIdEntry cached = issuedCache.getIfPresent(key);
+            if (cached != null) {
+                log.debug("{} Returning cached persistent ID entry", getLogPrefix());
+                return copy(cached);
+            }
+        }
+
         log.debug("{} Selecting previously issued persistent ID entry", getLogPrefix(), getByIssuedSelectSQL);
 
         log.trace("{} Prepared statement: {}", getLogPrefix(), getByIssuedSelectSQL);
@@ -519,15 +630,19 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
         log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 2, spNameQualifier);
         log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 3, persistentId);
 
-        try (final Connection dbConn = getConnection(true)) {
-            final PreparedStatement statement = dbConn.prepareStatement(getByIssuedSelectSQL);
+        final long generation = invalidations.get();
+        try (final Connection dbConn = getConnection(true);
+                final PreparedStatement statement = dbConn.prepareStatement(getByIssuedSelectSQL)) {
             statement.setQueryTimeout((int) (queryTimeout / 1000));
 
             statement.setString(1, nameQualifier);
             statement.setString(2, spNameQualifier);
             statement.setString(3, persistentId);
 
-            final List<PersistentIdEntry> entries = buildIdentifierEntries(statement.executeQuery());
+            final List<PersistentIdEntry> entries;
+            try (final ResultSet results = statement.executeQuery()) {
+                entries = buildIdentifierEntries(results);
+            }
 
             if (entries == null || entries.size() == 0) {
                 return null;
@@ -537,6 +652,7 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
                 log.warn("{} More than one record found, only the first will be returned", getLogPrefix());
             }
 
+            cache(entries.get(0), generation);
             return entries.get(0);
         } catch (final SQLException e) {
             throw new IOException(e);
@@ -554,76 +670,168 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
         
         log.debug("{} Obtaining persistent ID for source ID: {}", getLogPrefix(), sourceId);
 
-        log.trace("{} Prepared statement: {}", getLogPrefix(), getBySourceSelectSQL);
-        log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 1, nameQualifier);
-        log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 2, spNameQualifier);
-        log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 3, sourceId);
-        log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 4, nameQualifier);
-        log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 5, spNameQualifier);
-        log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 6, sourceId);
+        final PersistentIdEntry cached = getCachedBySource(nameQualifier, spNameQualifier, sourceId);
+        if (cached != null) {
+            log.debug("{} Returning cached active persistent ID: {}", getLogPrefix(), cached.getPersistentId());
+            return cached;
+        }
 
         int retries = transactionRetry;
         while (true) {
-            try (final Connection dbConn = getConnection(false)) {
-                final PreparedStatement statement = dbConn.prepareStatement(getBySourceSelectSQL);
+            final long generation = invalidations.get();
+            try (final Connection dbConn = getConnection(false);
+                    final PreparedStatement statement = dbConn.prepareStatement(getBySourceSelectSQL)) {
                 statement.setQueryTimeout((int) (queryTimeout / 1000));
-                statement.setString(1, nameQualifier);
-                statement.setString(2, spNameQualifier);
-                statement.setString(3, sourceId);
-                statement.setString(4, nameQualifier);
-                statement.setString(5, spNameQualifier);
-                statement.setString(6, sourceId);
         
                 log.debug("{} Getting active and/or last inactive persistent Id entry", getLogPrefix());
-                final List<PersistentIdEntry> entries = buildIdentifierEntries(statement.executeQuery());
-                if (entries != null && entries.size() > 0 && (entries.get(0).getDeactivationTime() == null
-                        || entries.get(0).getDeactivationTime().getTime() > System.currentTimeMillis())) {
+                final List<PersistentIdEntry> entries =
+                        selectBySource(statement, nameQualifier, spNameQualifier, sourceId);
+                final PersistentIdEntry activeEntry = getActiveEntry(entries);
+                if (activeEntry != null) {
                     log.debug("{} Returning existing active persistent ID: {}", getLogPrefix(),
-                            entries.get(0).getPersistentId());
+                            activeEntry.getPersistentId());
                     dbConn.commit();
-                    return entries.get(0);
+                    cache(activeEntry, generation);
+                    return activeEntry;
                 } else if (!allowCreate) {
                     log.debug("{} No existing persistent ID and creation is not permitted", getLogPrefix());
                     dbConn.commit();
                     return null;
                 }
 
-                final PersistentIdEntry newEntry = new PersistentIdEntry();
-                newEntry.setIssuerEntityId(nameQualifier);
-                newEntry.setRecipientEntityId(spNameQualifier);
-                newEntry.setSourceId(sourceId);
-                newEntry.setPrincipalName(principal);
-                newEntry.setCreationTime(new Timestamp(System.currentTimeMillis()));
-
-                if ((entries == null || entries.size() == 0) && computedIdStrategy != null) {
-                    log.debug("{} Issuing new computed persistent ID", getLogPrefix());
-                    newEntry.setPersistentId(
-                            computedIdStrategy.generate(nameQualifier, spNameQualifier, principal, sourceId));
-                } else {
-                    log.debug("{} Issuing new random persistent ID", getLogPrefix());
-                    newEntry.setPersistentId(UUID.randomUUID().toString());
-                    if (entries != null && entries.size() > 0) {
-                        newEntry.setPeerProvidedId(entries.get(0).getPeerProvidedId());
-                    }
-                }
+                final PersistentIdEntry newEntry = createEntry(nameQualifier, spNameQualifier, sourceId, principal,
+                        entries, computedIdStrategy);
                 store(newEntry, dbConn);
                 dbConn.commit();
+                cache(newEntry, generation);
                 return newEntry;
             } catch (final SQLException e) {
-                boolean retry = false;
-                for (final String msg : retryableErrors) {
-                    if (e.getSQLState() != null && e.getSQLState().contains(msg)) {
-                        log.warn("{} Caught retryable SQL exception", getLogPrefix(), e);
-                        retry = true;
+                if (isRetryable(e)) {
+                    if (--retries < 0) {
+                        log.warn("{} Error retryable, but retry limit exceeded", getLogPrefix());
+                        throw new IOException(e);
+                    } else {
+                        log.info("{} Retrying persistent ID lookup/create operation", getLogPrefix());
                     }
+                } else {
+                    throw new IOException(e);
                 }
-                
-                if (retry) {
+            } catch (final SAMLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Get the persistent ID entries for a number of source IDs, creating any that are missing if permitted.
+     *
+     * <p>This is equivalent to calling
+     * {@link #getBySourceValue(String, String, String, String, boolean, ComputedPersistentIdGenerationStrategy)}
+     * for each source ID, and is intended for pre-generating the IDs for a relying party in bulk. The source IDs
+     * are processed in transactions of {@link #getBatchSize()}, each of which reuses a single query statement
+     * and submits any new records as a single JDBC batch.</p>
+     *
+     * @param nameQualifier the NameQualifier (the issuer)
+     * @param spNameQualifier the SPNameQualifier (the recipient)
+     * @param sourceIds map of source ID to the principal name it belongs to
+     * @param allowCreate whether to create missing entries
+     * @param computedIdStrategy optional strategy for computing new IDs instead of generating random ones
+     *
+     * @return map of source ID to entry, omitting any source ID without an active entry
+     *
+     * @throws IOException if an error occurs accessing the store
+     */
+    @Nonnull @NonnullElements @Live public Map<String, PersistentIdEntry> getBySourceValues(
+            @Nonnull @NotEmpty final String nameQualifier, @Nonnull @NotEmpty final String spNameQualifier,
+            @Nonnull @NonnullElements final Map<String, String> sourceIds, final boolean allowCreate,
+            @Nullable final ComputedPersistentIdGenerationStrategy computedIdStrategy) throws IOException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+
+        log.debug("{} Obtaining persistent IDs for {} source IDs", getLogPrefix(), sourceIds.size());
+
+        final Map<String, PersistentIdEntry> results = new LinkedHashMap<>(sourceIds.size());
+        final List<Map.Entry<String, String>> pending = new ArrayList<>(sourceIds.size());
+        for (final Map.Entry<String, String> sourceId : sourceIds.entrySet()) {
+            final PersistentIdEntry cached = getCachedBySource(nameQualifier, spNameQualifier, sourceId.getKey());
+            if (cached != null) {
+                results.put(sourceId.getKey(), cached);
+            } else {
+                pending.add(sourceId);
+            }
+        }
+
+        for (int start = 0; start < pending.size(); start += batchSize) {
+            results.putAll(getBySourceValues(nameQualifier, spNameQualifier,
+                    pending.subList(start, Math.min(start + batchSize, pending.size())), allowCreate,
+                    computedIdStrategy));
+        }
+
+        return results;
+    }
+
+    /**
+     * Get the persistent ID entries for a batch of source IDs in a single transaction, creating any that are
+     * missing if permitted.
+     *
+     * @param nameQualifier the NameQualifier (the issuer)
+     * @param spNameQualifier the SPNameQualifier (the recipient)
+     * @param batch pairs of source ID and principal name
+     * @param allowCreate whether to create missing entries
+     * @param computedIdStrategy optional strategy for computing new IDs instead of generating random ones
+     *
+     * @return map of source ID to entry, omitting any source ID without an active entry
+     *
+     * @throws IOException if an error occurs accessing the store
+     */
+    @Nonnull @NonnullElements private Map<String, PersistentIdEntry> getBySourceValues(
+            @Nonnull @NotEmpty final String nameQualifier, @Nonnull @NotEmpty final String spNameQualifier,
+            @Nonnull @NonnullElements final List<Map.Entry<String, String>> batch, final boolean allowCreate,
+            @Nullable final ComputedPersistentIdGenerationStrategy computedIdStrategy) throws IOException {
+
+        int retries = transactionRetry;
+        while (true) {
+            final long generation = invalidations.get();
+            try (final Connection dbConn = getConnection(false);
+                    final PreparedStatement selectStatement = dbConn.prepareStatement(getBySourceSelectSQL);
+                    final PreparedStatement insertStatement = dbConn.prepareStatement(insertSQL)) {
+                selectStatement.setQueryTimeout((int) (queryTimeout / 1000));
+                insertStatement.setQueryTimeout((int) (queryTimeout / 1000));
+
+                final Map<String, PersistentIdEntry> results = new LinkedHashMap<>(batch.size());
+                int created = 0;
+                for (final Map.Entry<String, String> sourceId : batch) {
+                    final List<PersistentIdEntry> entries =
+                            selectBySource(selectStatement, nameQualifier, spNameQualifier, sourceId.getKey());
+                    final PersistentIdEntry activeEntry = getActiveEntry(entries);
+                    if (activeEntry != null) {
+                        results.put(sourceId.getKey(), activeEntry);
+                    } else if (allowCreate) {
+                        final PersistentIdEntry newEntry = createEntry(nameQualifier, spNameQualifier,
+                                sourceId.getKey(), sourceId.getValue(), entries, computedIdStrategy);
+                        bindInsert(insertStatement, newEntry);
+                        insertStatement.addBatch();
+                        results.put(sourceId.getKey(), newEntry);
+                        created++;
+                    }
+                }
+
+                if (created > 0) {
+                    log.debug("{} Storing {} new persistent ID entries", getLogPrefix(), created);
+                    insertStatement.executeBatch();
+                }
+                dbConn.commit();
+
+                for (final PersistentIdEntry entry : results.values()) {
+                    cache(entry, generation);
+                }
+                return results;
+            } catch (final SQLException e) {
+                if (isRetryable(e)) {
                     if (--retries < 0) {
                         log.warn("{} Error retryable, but retry limit exceeded", getLogPrefix());
                         throw new IOException(e);
                     } else {
-                        log.info("{} Retrying persistent ID lookup/create operation", getLogPrefix());
+                        log.info("{} Retrying persistent ID batch lookup/create operation", getLogPrefix());
                     }
                 } else {
                     throw new IOException(e);
@@ -657,8 +865,8 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
         log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 3, spNameQualifier);
         log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 4, persistentId);
         
-        try (final Connection dbConn = getConnection(true)) {
-            final PreparedStatement statement = dbConn.prepareStatement(deactivateSQL);
+        try (final Connection dbConn = getConnection(true);
+                final PreparedStatement statement = dbConn.prepareStatement(deactivateSQL)) {
             statement.setQueryTimeout((int) (queryTimeout / 1000));
             statement.setTimestamp(1, deactivationTime);
             statement.setString(2, nameQualifier);
@@ -671,6 +879,8 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
             
         } catch (final SQLException e) {
             throw new IOException(e);
+        } finally {
+            invalidate(nameQualifier, spNameQualifier, persistentId);
         }
     }
 
@@ -689,8 +899,8 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
         log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 3, spNameQualifier);
         log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 4, persistentId);
         
-        try (final Connection dbConn = getConnection(true)) {
-            final PreparedStatement statement = dbConn.prepareStatement(deactivateSQL);
+        try (final Connection dbConn = getConnection(true);
+                final PreparedStatement statement = dbConn.prepareStatement(attachSQL)) {
             statement.setQueryTimeout((int) (queryTimeout / 1000));
             statement.setString(1, spProvidedId);
             statement.setString(2, nameQualifier);
@@ -702,11 +912,11 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
             }
         } catch (final SQLException e) {
             throw new IOException(e);
+        } finally {
+            invalidate(nameQualifier, spNameQualifier, persistentId);
         }
     }
     
-// Checkstyle: MethodLength|CyclomaticComplexity|ParameterNumber ON
-    
     /**
      * Store a record containing the values from the input object.
      * 
@@ -718,6 +928,24 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
     void store(@Nonnull final PersistentIdEntry entry, @Nonnull final Connection dbConn) throws SQLException {
         
         log.debug("{} Storing new persistent ID entry", getLogPrefix());
+
+        try (final PreparedStatement statement = dbConn.prepareStatement(insertSQL)) {
+            statement.setQueryTimeout((int) (queryTimeout / 1000));
+            bindInsert(statement, entry);
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Set the parameters of the insert statement to the values from the input object.
+     *
+     * @param statement the insert statement
+     * @param entry new object to store
+     *
+     * @throws SQLException if an error occurs
+     */
+    private void bindInsert(@Nonnull final PreparedStatement statement, @Nonnull final PersistentIdEntry entry)
+            throws SQLException {
         
         if (StringSupport.trimOrNull(entry.getIssuerEntityId()) == null
                 || StringSupport.trimOrNull(entry.getRecipientEntityId()) == null
@@ -738,9 +966,6 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
         log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 7, entry.getCreationTime());
         log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 8, entry.getDeactivationTime());
         
-        final PreparedStatement statement = dbConn.prepareStatement(insertSQL);
-        statement.setQueryTimeout((int) (queryTimeout / 1000));
-    
         statement.setString(1, entry.getIssuerEntityId());
         statement.setString(2, entry.getRecipientEntityId());
         statement.setString(3, entry.getPersistentId());
@@ -757,8 +982,200 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
         } else {
             statement.setNull(8, Types.TIMESTAMP);
         }
+    }
     
-        statement.executeUpdate();
+    /**
+     * Run the lookup by source ID, returning the active and/or last inactive entries.
+     *
+     * @param statement the lookup statement
+     * @param nameQualifier the NameQualifier (the issuer)
+     * @param spNameQualifier the SPNameQualifier (the recipient)
+     * @param sourceId the source ID
+     *
+     * @return the entries found, most recent first
+     *
+     * @throws SQLException if an error occurs
+     */
+    @Nonnull @NonnullElements @Live private List<PersistentIdEntry> selectBySource(
+            @Nonnull final PreparedStatement statement, @Nonnull @NotEmpty final String nameQualifier,
+            @Nonnull @NotEmpty final String spNameQualifier, @Nonnull @NotEmpty final String sourceId)
+                    throws SQLException {
+
+        log.trace("{} Prepared statement: {}", getLogPrefix(), getBySourceSelectSQL);
+        log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 1, nameQualifier);
+        log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 2, spNameQualifier);
+        log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 3, sourceId);
+        log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 4, nameQualifier);
+        log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 5, spNameQualifier);
+        log.trace("{} Setting prepared statement parameter {}: {}", getLogPrefix(), 6, sourceId);
+
+        statement.setString(1, nameQualifier);
+        statement.setString(2, spNameQualifier);
+        statement.setString(3, sourceId);
+        statement.setString(4, nameQualifier);
+        statement.setString(5, spNameQualifier);
+        statement.setString(6, sourceId);
+
+        try (final ResultSet results = statement.executeQuery()) {
+            return buildIdentifierEntries(results);
+        }
+    }
+
+    /**
+     * Get the entry from the result of a lookup by source ID that is still in effect, if any.
+     *
+     * @param entries the entries found, most recent first
+     *
+     * @return the entry in effect, or null
+     */
+    @Nullable private PersistentIdEntry getActiveEntry(
+            @Nonnull @NonnullElements final List<PersistentIdEntry> entries) {
+        if (entries.size() > 0 && (entries.get(0).getDeactivationTime() == null
+                || entries.get(0).getDeactivationTime().getTime() > System.currentTimeMillis())) {
+            return entries.get(0);
+        }
+        return null;
+    }
+
+    /**
+     * Build a new entry to store for a source ID that has no entry in effect.
+     *
+     * @param nameQualifier the NameQualifier (the issuer)
+     * @param spNameQualifier the SPNameQualifier (the recipient)
+     * @param sourceId the source ID
+     * @param principal the principal name
+     * @param entries the inactive entries found for the source ID, most recent first
+     * @param computedIdStrategy optional strategy for computing the ID instead of generating a random one
+     *
+     * @return the new entry
+     *
+     * @throws SAMLException if the ID cannot be computed
+     */
+    @Nonnull private PersistentIdEntry createEntry(@Nonnull @NotEmpty final String nameQualifier,
+            @Nonnull @NotEmpty final String spNameQualifier, @Nonnull @NotEmpty final String sourceId,
+            @Nonnull @NotEmpty final String principal, @Nonnull @NonnullElements final List<PersistentIdEntry> entries,
+            @Nullable final ComputedPersistentIdGenerationStrategy computedIdStrategy) throws SAMLException {
+
+        final PersistentIdEntry newEntry = new PersistentIdEntry();
+        newEntry.setIssuerEntityId(nameQualifier);
+        newEntry.setRecipientEntityId(spNameQualifier);
+        newEntry.setSourceId(sourceId);
+        newEntry.setPrincipalName(principal);
+        newEntry.setCreationTime(new Timestamp(System.currentTimeMillis()));
+
+        if (entries.size() == 0 && computedIdStrategy != null) {
+            log.debug("{} Issuing new computed persistent ID", getLogPrefix());
+            newEntry.setPersistentId(
+                    computedIdStrategy.generate(nameQualifier, spNameQualifier, principal, sourceId));
+        } else {
+            log.debug("{} Issuing new random persistent ID", getLogPrefix());
+            newEntry.setPersistentId(UUID.randomUUID().toString());
+            if (entries.size() > 0) {
+                newEntry.setPeerProvidedId(entries.get(0).getPeerProvidedId());
+            }
+        }
+        return newEntry;
+    }
+
+    /**
+     * Check whether a driver error signals that a transaction should be retried.
+     *
+     * @param e the error
+     *
+     * @return true iff the error is retryable
+     */
+    private boolean isRetryable(@Nonnull final SQLException e) {
+        boolean retry = false;
+        for (final String msg : retryableErrors) {
+            if (e.getSQLState() != null && e.getSQLState().contains(msg)) {
+                log.warn("{} Caught retryable SQL exception", getLogPrefix(), e);
+                retry = true;
+            }
+        }
+        return retry;
+    }
+
+    /**
+     * Get a copy of the cached entry for a source ID, if any.
+     *
+     * @param nameQualifier the NameQualifier (the issuer)
+     * @param spNameQualifier the SPNameQualifier (the recipient)
+     * @param sourceId the source ID
+     *
+     * @return a copy of the cached entry, or null
+     */
+    @Nullable private PersistentIdEntry getCachedBySource(@Nonnull @NotEmpty final String nameQualifier,
+            @Nonnull @NotEmpty final String spNameQualifier, @Nonnull @NotEmpty final String sourceId) {
+        if (sourceCache == null || issuedCache == null) {
+            return null;
+        }
+        final List<String> issuedKey = sourceCache.getIfPresent(Arrays.asList(nameQualifier, spNameQualifier,
+                sourceId));
+        if (issuedKey == null) {
+            return null;
+        }
+        // The entry itself is only cached by persistent ID, so that invalidating it there suffices.
+        final PersistentIdEntry cached = issuedCache.getIfPresent(issuedKey);
+        return cached != null && sourceId.equals(cached.getSourceId()) ? copy(cached) : null;
+    }
+
+    /**
+     * Cache a copy of an entry by its persistent ID and source ID, provided it has no deactivation time and no
+     * entry has been invalidated since it was read.
+     *
+     * @param entry the entry
+     * @param generation the number of invalidations before the entry was read
+     */
+    private void cache(@Nonnull final PersistentIdEntry entry, final long generation) {
+        if (sourceCache == null || issuedCache == null || entry.getDeactivationTime() != null) {
+            return;
+        }
+        final List<String> issuedKey = Arrays.asList(entry.getIssuerEntityId(), entry.getRecipientEntityId(),
+                entry.getPersistentId());
+        issuedCache.put(issuedKey, copy(entry));
+        sourceCache.put(Arrays.asList(entry.getIssuerEntityId(), entry.getRecipientEntityId(),
+                entry.getSourceId()), issuedKey);
+
+        // An invalidation which began after this check removes the entry itself; one before may not have seen it.
+        if (invalidations.get() != generation) {
+            issuedCache.invalidate(issuedKey);
+        }
+    }
+
+    /**
+     * Discard any cached entry for a persistent ID.
+     *
+     * @param nameQualifier the NameQualifier (the issuer)
+     * @param spNameQualifier the SPNameQualifier (the recipient)
+     * @param persistentId the persistent ID
+     */
+    private void invalidate(@Nonnull @NotEmpty final String nameQualifier,
+            @Nonnull @NotEmpty final String spNameQualifier, @Nonnull @NotEmpty final String persistentId) {
+        if (issuedCache == null) {
+            return;
+        }
+        invalidations.incrementAndGet();
+        issuedCache.invalidate(Arrays.asList(nameQualifier, spNameQualifier, persistentId));
+    }
+
+    /**
+     * Copy an entry so that cached state cannot be modified by callers.
+     *
+     * @param entry the entry
+     *
+     * @return the copy
+     */
+    @Nonnull private PersistentIdEntry copy(@Nonnull final PersistentIdEntry entry) {
+        final PersistentIdEntry copy = new PersistentIdEntry();
+        copy.setIssuerEntityId(entry.getIssuerEntityId());
+        copy.setRecipientEntityId(entry.getRecipientEntityId());
+        copy.setPrincipalName(entry.getPrincipalName());
+        copy.setSourceId(entry.getSourceId());
+        copy.setPersistentId(entry.getPersistentId());
+        copy.setPeerProvidedId(entry.getPeerProvidedId());
+        copy.setCreationTime(entry.getCreationTime());
+        copy.setDeactivationTime(entry.getDeactivationTime());
+        return copy;
     }
 
     /**
@@ -814,8 +1231,8 @@ public class JDBCPersistentIdStoreEx extends AbstractInitializableComponent impl
             
         }
 
-        try (final Connection conn = getConnection(true)) {
-            final PreparedStatement statement = conn.prepareStatement(deleteSQL);
+        try (final Connection conn = getConnection(true);
+                final PreparedStatement statement = conn.prepareStatement(deleteSQL)) {
             statement.setQueryTimeout((int) (queryTimeout / 1000));
             statement.setString(1, "http://dummy.com/idp/" + uuid);
             statement.executeUpdate();
@@ -20,8 +20,11 @@ package net.shibboleth.idp.saml.nameid.impl;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
 
@@ -172,4 +175,69 @@ public class DatabaseBackedIDStoreTest {
         Assert.assertTrue(comparePersistentIdEntrys(gotback, id));
     }
     
-}
\ No newline at end of file
+    @Test public void cachedEntry() throws ComponentInitializationException, IOException, SQLException {
+        final JDBCPersistentIdStoreEx store = new JDBCPersistentIdStoreEx();
+        store.setDataSource(testSource);
+        store.setCacheSize(10);
+        store.initialize();
+
+        final PersistentIdEntry created = store.getBySourceValue(DatabaseTestingSupport.IDP_ENTITY_ID,
+                DatabaseTestingSupport.SP_ENTITY_ID, "localID", DatabaseTestingSupport.PRINCIPAL_ID, true, null);
+        final String persistentId = created.getPersistentId();
+        Assert.assertEquals(store.getByIssuedValue(DatabaseTestingSupport.IDP_ENTITY_ID,
+                DatabaseTestingSupport.SP_ENTITY_ID, persistentId).getPersistentId(), persistentId);
+
+        // Remove the row behind the store's back, the cached entries should still be returned.
+        try (final Connection conn = testSource.getConnection();
+                final PreparedStatement statement = conn.prepareStatement("DELETE FROM shibpid")) {
+            statement.executeUpdate();
+        }
+
+        PersistentIdEntry gotback = store.getBySourceValue(DatabaseTestingSupport.IDP_ENTITY_ID,
+                DatabaseTestingSupport.SP_ENTITY_ID, "localID", DatabaseTestingSupport.PRINCIPAL_ID, false, null);
+        Assert.assertTrue(comparePersistentIdEntrys(gotback, created));
+        gotback.setPeerProvidedId("changed");
+        gotback = store.getByIssuedValue(DatabaseTestingSupport.IDP_ENTITY_ID,
+                DatabaseTestingSupport.SP_ENTITY_ID, persistentId);
+        Assert.assertTrue(comparePersistentIdEntrys(gotback, created));
+
+        // Updating the entry should discard it from the cache.
+        store.attach(DatabaseTestingSupport.IDP_ENTITY_ID, DatabaseTestingSupport.SP_ENTITY_ID, persistentId,
+                "PeerprovidedId");
+        Assert.assertNull(store.getByIssuedValue(DatabaseTestingSupport.IDP_ENTITY_ID,
+                DatabaseTestingSupport.SP_ENTITY_ID, persistentId));
+        Assert.assertNull(store.getBySourceValue(DatabaseTestingSupport.IDP_ENTITY_ID,
+                DatabaseTestingSupport.SP_ENTITY_ID, "localID", DatabaseTestingSupport.PRINCIPAL_ID, false, null));
+    }
+
+    @Test public void batchEntries() throws ComponentInitializationException, IOException {
+        final JDBCPersistentIdStoreEx store = new JDBCPersistentIdStoreEx();
+        store.setDataSource(testSource);
+        store.setBatchSize(2);
+        store.initialize();
+
+        final Map<String, String> sourceIds = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            sourceIds.put("localID" + i, DatabaseTestingSupport.PRINCIPAL_ID + i);
+        }
+        final PersistentIdEntry existing = store.getBySourceValue(DatabaseTestingSupport.IDP_ENTITY_ID,
+                DatabaseTestingSupport.SP_ENTITY_ID, "localID0", DatabaseTestingSupport.PRINCIPAL_ID + 0, true, null);
+
+        Map<String, PersistentIdEntry> entries = store.getBySourceValues(DatabaseTestingSupport.IDP_ENTITY_ID,
+                DatabaseTestingSupport.SP_ENTITY_ID, sourceIds, false, null);
+        Assert.assertEquals(entries.size(), 1);
+        Assert.assertTrue(comparePersistentIdEntrys(entries.get("localID0"), existing));
+
+        entries = store.getBySourceValues(DatabaseTestingSupport.IDP_ENTITY_ID,
+                DatabaseTestingSupport.SP_ENTITY_ID, sourceIds, true, null);
+        Assert.assertEquals(entries.size(), 5);
+        Assert.assertTrue(comparePersistentIdEntrys(entries.get("localID0"), existing));
+        for (int i = 0; i < 5; i++) {
+            final PersistentIdEntry entry = entries.get("localID" + i);
+            Assert.assertEquals(entry.getPrincipalName(), DatabaseTestingSupport.PRINCIPAL_ID + i);
+            Assert.assertTrue(comparePersistentIdEntrys(store.getBySourceValue(DatabaseTestingSupport.IDP_ENTITY_ID,
+                    DatabaseTestingSupport.SP_ENTITY_ID, "localID" + i, "unused", false, null), entry));
+        }
+    }
+    
+}
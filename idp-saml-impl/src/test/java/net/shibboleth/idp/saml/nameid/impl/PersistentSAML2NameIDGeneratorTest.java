@@ -17,7 +17,9 @@
 
 package net.shibboleth.idp.saml.nameid.impl;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Map;
 
 import javax.sql.DataSource;
 
@@ -243,6 +245,36 @@ public class PersistentSAML2NameIDGeneratorTest extends OpenSAMLInitBaseTestCase
         Assert.assertEquals(id.getSPNameQualifier(), TestSources.SP_ENTITY_ID);
     }
     
+    @Test
+    public void testComputedIdCaching() throws Exception {
+        final ComputedPersistentIdGenerationStrategy uncached = new ComputedPersistentIdGenerationStrategy();
+        uncached.setSalt(salt);
+        uncached.setDigestCacheSize(0);
+        uncached.initialize();
+
+        final ComputedPersistentIdGenerationStrategy strategy = new ComputedPersistentIdGenerationStrategy();
+        strategy.setSalt(salt);
+        strategy.setIdCacheSize(10);
+        strategy.setExceptionMap(Collections.singletonMap("foo",
+                Collections.<String,String>singletonMap("https://blocked.org", null)));
+        strategy.initialize();
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(uncached.generate(TestSources.IDP_ENTITY_ID, TestSources.SP_ENTITY_ID, "foo",
+                    TestSources.COMMON_ATTRIBUTE_VALUE_STRING), RESULT);
+            Assert.assertEquals(strategy.generate(TestSources.IDP_ENTITY_ID, TestSources.SP_ENTITY_ID, "foo",
+                    TestSources.COMMON_ATTRIBUTE_VALUE_STRING), RESULT);
+        }
+
+        final Map<String,String> ids = strategy.generate(TestSources.IDP_ENTITY_ID,
+                Arrays.asList(TestSources.SP_ENTITY_ID, "https://blocked.org", "https://affiliation.org"), "foo",
+                TestSources.COMMON_ATTRIBUTE_VALUE_STRING);
+        Assert.assertEquals(ids.size(), 2);
+        Assert.assertEquals(ids.get(TestSources.SP_ENTITY_ID), RESULT);
+        Assert.assertEquals(ids.get("https://affiliation.org"), uncached.generate(TestSources.IDP_ENTITY_ID,
+                "https://affiliation.org", "foo", TestSources.COMMON_ATTRIBUTE_VALUE_STRING));
+    }
+    
     @Test
     public void testComputedIdOverride() throws Exception {
         final ComputedPersistentIdGenerationStrategy strategy = new ComputedPersistentIdGenerationStrategy();
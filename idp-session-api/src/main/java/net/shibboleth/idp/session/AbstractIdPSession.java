@@ -17,6 +17,7 @@
 
 package net.shibboleth.idp.session;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -224,6 +225,29 @@ public abstract class AbstractIdPSession implements IdPSession {
         return ImmutableSet.copyOf(Optional.presentInstances(authenticationResults.values()));
     }
 
+    /**
+     * Get the {@link AuthenticationResult}s associated with this session that were produced by any of a number
+     * of flows.
+     * 
+     * <p>This allows a caller interested in only some of the results to avoid the cost of loading the rest, for
+     * implementations that load results on demand.</p>
+     * 
+     * @param flowIds the IDs of the flows
+     * 
+     * @return the results produced by the flows
+     */
+    @Nonnull @NonnullElements @NotLive @Unmodifiable public Set<AuthenticationResult> getAuthenticationResults(
+            @Nonnull @NonnullElements final Collection<String> flowIds) {
+        final ImmutableSet.Builder<AuthenticationResult> builder = ImmutableSet.builder();
+        for (final String flowId : flowIds) {
+            final AuthenticationResult result = getAuthenticationResult(flowId);
+            if (result != null) {
+                builder.add(result);
+            }
+        }
+        return builder.build();
+    }
+
     /** {@inheritDoc} */
     @Override
     @Nullable public AuthenticationResult getAuthenticationResult(@Nonnull @NotEmpty final String flowId) {
@@ -0,0 +1,261 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.session.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+import org.apache.commons.codec.binary.Base64;
+import org.opensaml.storage.StorageSerializer;
+
+/**
+ * Converts the records stored by {@link StorageBackedSessionManager} to and from a compact form.
+ * 
+ * <p>
+ * The compact form is the record as written by the usual serializer, deflated against a preset dictionary of the
+ * field names, class names and SAML identifiers which make up most of a typical session, result or SP session
+ * record, and then base64-encoded. It is marked by a leading {@link #PREFIX} and a format version, neither of which
+ * can start a JSON object or a class name, so records in either form can be read regardless of whether compact
+ * output is enabled. This allows the compact form to be enabled once every node sharing the storage can read it.
+ * </p>
+ * 
+ * <p>
+ * A record is only written in compact form when that is actually shorter.
+ * </p>
+ */
+@ThreadSafe
+public class CompactStorageCodec {
+
+    /** Character marking a record in compact form. */
+    public static final char PREFIX = '~';
+
+    /** The current format version. */
+    public static final char VERSION_1 = '1';
+
+    /**
+     * Dictionary for format version 1. Must never be changed, only superseded by a new version.
+     * 
+     * <p>Deflate favors the end of the dictionary, so the most common strings go last.</p>
+     */
+    @Nonnull @NotEmpty private static final String DICTIONARY_V1 =
+            "urn:oasis:names:tc:SAML:1.1:nameid-format:unspecified"
+            + "urn:oasis:names:tc:SAML:1.1:nameid-format:emailAddress"
+            + "urn:oasis:names:tc:SAML:2.0:nameid-format:persistent"
+            + "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport"
+            + "urn:oasis:names:tc:SAML:1.0:am:password"
+            + "net.shibboleth.idp.saml.authn.principal.AuthenticationMethodPrincipal"
+            + "net.shibboleth.idp.saml.authn.principal.AuthnContextClassRefPrincipal"
+            + "net.shibboleth.idp.authn.principal.UsernamePrincipal"
+            + "{\"typ\":\"\",\"nam\":\"\"}"
+            + "\"pub\":[],\"priv\":[]}"
+            + "{\"id\":\"authn/Password\",\"ts\":,\"princ\":[\"{\\\"U\\\":\\\"\\\"}\""
+            + "net.shibboleth.idp.cas.session.impl.CASSPSession:{\"id\":\"https://\",\"ts\":,\"st\":\"ST-"
+            + "net.shibboleth.idp.saml.session.SAML1SPSession:"
+            + "net.shibboleth.idp.session.BasicSPSession:"
+            + "net.shibboleth.idp.saml.session.SAML2SPSession:{\"id\":\"https://\",\"ts\":,\"nam\":\""
+            + "<saml2:NameID xmlns:saml2=\\\"urn:oasis:names:tc:SAML:2.0:assertion\\\" "
+            + "Format=\\\"urn:oasis:names:tc:SAML:2.0:nameid-format:transient\\\" NameQualifier=\\\"https://\\\" "
+            + "SPNameQualifier=\\\"https://\\\">AAdzZWNyZXQx</saml2:NameID>\",\"ix\":\"_"
+            + "{\"ts\":,\"nam\":\"\",\"v4\":\"\",\"v6\":\"\",\"flows\":[\"authn/\"],\"svcs\":[\"https://";
+
+    /** Dictionary bytes for format version 1. */
+    @Nonnull private static final byte[] DICTIONARY_V1_BYTES = DICTIONARY_V1.getBytes(StandardCharsets.UTF_8);
+
+    /** Whether to write records in compact form. */
+    private final boolean compactOutput;
+
+    /**
+     * Constructor.
+     * 
+     * @param compact whether to write records in compact form, records are read in either form regardless
+     */
+    public CompactStorageCodec(final boolean compact) {
+        compactOutput = compact;
+    }
+
+    /**
+     * Get whether records are written in compact form.
+     * 
+     * @return true iff records are written in compact form
+     */
+    public boolean isCompactOutput() {
+        return compactOutput;
+    }
+
+    /**
+     * Convert a serialized record into the form to store.
+     * 
+     * @param value the serialized record
+     * 
+     * @return the record in compact form, or unchanged if compact output is disabled or would not be shorter
+     */
+    @Nonnull @NotEmpty public String encode(@Nonnull @NotEmpty final String value) {
+        if (!compactOutput) {
+            return value;
+        }
+
+        final byte[] input = value.getBytes(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length);
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setDictionary(DICTIONARY_V1_BYTES);
+            deflater.setInput(input);
+            deflater.finish();
+            final byte[] buffer = new byte[256];
+            while (!deflater.finished()) {
+                final int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        final String encoded = PREFIX + String.valueOf(VERSION_1) + Base64.encodeBase64URLSafeString(out.toByteArray());
+        return encoded.length() < value.length() ? encoded : value;
+    }
+
+    /**
+     * Convert a stored record in either form back into its serialized form.
+     * 
+     * @param value the stored record
+     * 
+     * @return the serialized record
+     * @throws IOException if the record is in compact form and cannot be decoded
+     */
+    @Nonnull @NotEmpty public String decode(@Nonnull @NotEmpty final String value) throws IOException {
+        if (!isCompact(value)) {
+            return value;
+        } else if (value.length() < 2 || value.charAt(1) != VERSION_1) {
+            throw new IOException("Unsupported compact record format");
+        }
+
+        final byte[] compressed = Base64.decodeBase64(value.substring(2));
+        // Raw inflation may need an extra byte of input beyond the compressed data.
+        final byte[] input = new byte[compressed.length + 1];
+        System.arraycopy(compressed, 0, input, 0, compressed.length);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(DICTIONARY_V1_BYTES);
+            inflater.setInput(input);
+            final byte[] buffer = new byte[512];
+            while (!inflater.finished()) {
+                final int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Compact record was truncated");
+                }
+                out.write(buffer, 0, count);
+            }
+        } catch (final DataFormatException e) {
+            throw new IOException("Compact record was corrupt", e);
+        } finally {
+            inflater.end();
+        }
+
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get whether a stored record is in compact form.
+     * 
+     * @param value the stored record
+     * 
+     * @return true iff the record is in compact form
+     */
+    public static boolean isCompact(@Nullable final String value) {
+        return value != null && !value.isEmpty() && value.charAt(0) == PREFIX;
+    }
+
+    /**
+     * Wrap a serializer so that it reads and writes records through this codec.
+     * 
+     * @param <T> type of object serialized
+     * @param delegate the serializer to wrap
+     * 
+     * @return the wrapped serializer
+     */
+    @Nonnull public <T> StorageSerializer<T> wrap(@Nonnull final StorageSerializer<T> delegate) {
+        return new CodecStorageSerializer<>(this, delegate);
+    }
+
+    /**
+     * A {@link StorageSerializer} that applies a {@link CompactStorageCodec} around another serializer.
+     * 
+     * @param <T> type of object serialized
+     */
+    private static final class CodecStorageSerializer<T> implements StorageSerializer<T> {
+
+        /** The codec. */
+        @Nonnull private final CompactStorageCodec codec;
+
+        /** The wrapped serializer. */
+        @Nonnull private final StorageSerializer<T> serializer;
+
+        /**
+         * Constructor.
+         * 
+         * @param storageCodec the codec
+         * @param delegate the serializer to wrap
+         */
+        private CodecStorageSerializer(@Nonnull final CompactStorageCodec storageCodec,
+                @Nonnull final StorageSerializer<T> delegate) {
+            codec = storageCodec;
+            serializer = Constraint.isNotNull(delegate, "Serializer cannot be null");
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean isInitialized() {
+            return serializer.isInitialized();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void initialize() throws ComponentInitializationException {
+            serializer.initialize();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        @Nonnull @NotEmpty public String serialize(@Nonnull final T instance) throws IOException {
+            return codec.encode(serializer.serialize(instance));
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        @Nonnull public T deserialize(final long version, @Nonnull @NotEmpty final String context,
+                @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value,
+                @Nullable final Long expiration) throws IOException {
+            return serializer.deserialize(version, context, key, codec.decode(value), expiration);
+        }
+    }
+
+}
@@ -18,6 +18,7 @@
 package net.shibboleth.idp.session.impl;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import javax.annotation.Nonnull;
@@ -27,6 +28,7 @@ import net.shibboleth.idp.authn.AbstractAuthenticationAction;
 import net.shibboleth.idp.authn.AuthenticationFlowDescriptor;
 import net.shibboleth.idp.authn.AuthenticationResult;
 import net.shibboleth.idp.authn.context.AuthenticationContext;
+import net.shibboleth.idp.session.AbstractIdPSession;
 import net.shibboleth.idp.session.IdPSession;
 import net.shibboleth.idp.session.context.SessionContext;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
@@ -49,6 +51,8 @@ import com.google.common.base.Function;
  * for which flows are to be active, because the potentialFlows collection is filtered by that
  * criterion.</p>
  * 
+ * <p>Results from other flows are not loaded from the session if it supports that.</p>
+ * 
  * <p>If {@link AuthenticationContext#getHintedName()} is null, then it is populated with the
  * principal name from the session.</p>
  * 
@@ -110,8 +114,17 @@ public class ExtractActiveAuthenticationResults extends AbstractAuthenticationAc
             authenticationContext.setHintedName(session.getPrincipalName());
         }
         
+        // Only results from potential flows are of interest, so avoid loading any others if possible.
+        final Collection<AuthenticationResult> results;
+        if (session instanceof AbstractIdPSession) {
+            results = ((AbstractIdPSession) session).getAuthenticationResults(
+                    authenticationContext.getPotentialFlows().keySet());
+        } else {
+            results = session.getAuthenticationResults();
+        }
+        
         final List<AuthenticationResult> actives = new ArrayList<>();
-        for (final AuthenticationResult result : session.getAuthenticationResults()) {
+        for (final AuthenticationResult result : results) {
             final AuthenticationFlowDescriptor descriptor =
                     authenticationContext.getPotentialFlows().get(result.getAuthenticationFlowId());
             if (descriptor == null) {
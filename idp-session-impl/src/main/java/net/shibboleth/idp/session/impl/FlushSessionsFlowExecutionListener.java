@@ -0,0 +1,117 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.session.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.idp.session.SessionException;
+import net.shibboleth.idp.session.SessionManager;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.webflow.definition.StateDefinition;
+import org.springframework.webflow.engine.EndState;
+import org.springframework.webflow.execution.FlowExecutionListenerAdapter;
+import org.springframework.webflow.execution.RequestContext;
+import org.springframework.webflow.execution.View;
+
+/**
+ * Buffers the session changes made during each request processed by a flow, when a
+ * {@link StorageBackedSessionManager} is in write-behind mode, and writes them before the response is produced.
+ * 
+ * <p>
+ * The changes are written before a view is rendered or the top-level flow ends, so that a failure to write them
+ * fails the request unless the session manager masks storage failures. Changes still buffered at the end of the
+ * request are written then. That includes those made before an action writes the response itself, as a message
+ * encoder does, and a failure to write those is only logged, the response having been sent: they are lost, just as
+ * if storage failures were masked.
+ * </p>
+ * 
+ * <p>
+ * The listener does nothing for any other {@link SessionManager}.
+ * </p>
+ */
+public class FlushSessionsFlowExecutionListener extends FlowExecutionListenerAdapter {
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(FlushSessionsFlowExecutionListener.class);
+
+    /** The session manager to flush, or null if it does not buffer changes. */
+    @Nullable private final StorageBackedSessionManager sessionManager;
+
+    /**
+     * Constructor.
+     * 
+     * @param manager the session manager to flush
+     */
+    public FlushSessionsFlowExecutionListener(@Nonnull final SessionManager manager) {
+        Constraint.isNotNull(manager, "SessionManager cannot be null");
+        sessionManager = manager instanceof StorageBackedSessionManager ? (StorageBackedSessionManager) manager
+                : null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void requestSubmitted(final RequestContext context) {
+        if (sessionManager != null) {
+            sessionManager.beginPendingWrites();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void viewRendering(final RequestContext context, final View view, final StateDefinition viewState) {
+        flush(true);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void stateEntering(final RequestContext context, final StateDefinition state) {
+        if (state instanceof EndState && context.getFlowExecutionContext().getActiveSession().isRoot()) {
+            flush(true);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void requestProcessed(final RequestContext context) {
+        flush(!context.getExternalContext().isResponseComplete());
+    }
+
+    /**
+     * Write the changes buffered so far, if any.
+     * 
+     * @param canFail whether the request can still be failed
+     */
+    private void flush(final boolean canFail) {
+        if (sessionManager == null) {
+            return;
+        }
+        try {
+            sessionManager.flushPendingWrites();
+        } catch (final SessionException e) {
+            log.error("Error writing pending session changes to storage", e);
+            if (canFail && !sessionManager.isMaskStorageFailure()) {
+                throw new IllegalStateException("Error writing pending session changes to storage", e);
+            }
+        }
+    }
+
+}
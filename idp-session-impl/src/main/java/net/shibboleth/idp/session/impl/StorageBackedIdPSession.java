@@ -18,7 +18,11 @@
 package net.shibboleth.idp.session.impl;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -52,6 +56,12 @@ import com.google.common.base.Optional;
 
 /**
  * Implementation of {@link net.shibboleth.idp.session.IdPSession} for use with {@link StorageBackedSessionManager}.
+ * 
+ * <p>
+ * If the manager is in write-behind mode, additions and activity updates change only this object until
+ * {@link #flush()}, which writes the new records first and then the master record once. Removals are rare enough
+ * that they flush any pending changes and then write through.
+ * </p>
  */
 public class StorageBackedIdPSession extends AbstractIdPSession {
     
@@ -63,6 +73,30 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
     
     /** Storage version used to synchronize changes. */
     private long version;
+
+    /** Whether the master record has yet to be created. */
+    private boolean pendingCreate;
+
+    /** Whether the master record has pending changes. */
+    private boolean pendingMasterUpdate;
+
+    /** Whether the expiration of the master record has a pending update. */
+    private boolean pendingActivity;
+
+    /** Addresses bound since the last flush. */
+    @Nonnull @NonnullElements private final Set<String> pendingAddresses;
+
+    /** Results added since the last flush, by flow ID. */
+    @Nonnull @NonnullElements private final Map<String,AuthenticationResult> pendingResults;
+
+    /** Results whose activity has been updated since the last flush, by flow ID. */
+    @Nonnull @NonnullElements private final Map<String,AuthenticationResult> pendingResultActivity;
+
+    /** SP sessions added since the last flush, by service ID. */
+    @Nonnull @NonnullElements private final Map<String,SPSession> pendingSPSessions;
+
+    /** Previously stored SP sessions replaced since the last flush, by service ID. */
+    @Nonnull @NonnullElements private final Map<String,SPSession> replacedSPSessions;
     
     /**
      * Constructor.
@@ -80,12 +114,24 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
         sessionManager = Constraint.isNotNull(manager, "SessionManager cannot be null");
         
         version = 1;
+        pendingAddresses = new LinkedHashSet<>();
+        pendingResults = new LinkedHashMap<>();
+        pendingResultActivity = new LinkedHashMap<>();
+        pendingSPSessions = new LinkedHashMap<>();
+        replacedSPSessions = new HashMap<>();
     }
     
     /** {@inheritDoc} */
     @Override @Duration public void setLastActivityInstant(@Duration @Positive final long instant) 
             throws SessionException {
         
+        if (sessionManager.isDeferringWrites()) {
+            super.setLastActivityInstant(instant);
+            pendingActivity = true;
+            sessionManager.deferWrite(this);
+            return;
+        }
+        
         final long exp = instant + sessionManager.getSessionTimeout() + sessionManager.getSessionSlop();
         log.debug("Updating expiration of master record for session {} to {}", getId(), new DateTime(exp));
         
@@ -117,6 +163,12 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
         
         // Update ourselves and then attempt to write back.
         super.bindToAddress(address);
+        if (sessionManager.isDeferringWrites()) {
+            pendingAddresses.add(address);
+            pendingMasterUpdate = true;
+            sessionManager.deferWrite(this);
+            return;
+        }
         try {
             int attempts = 10;
             boolean success = writeToStorage();
@@ -153,29 +205,23 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
     @Override
     @Nonnull @NonnullElements @NotLive @Unmodifiable public Set<AuthenticationResult> getAuthenticationResults() {
         
-        // Check for any sparse/null values in the map, which need to be loaded before returning a complete set.
-        final Iterator<Map.Entry<String, Optional<AuthenticationResult>>> entries =
-                getAuthenticationResultMap().entrySet().iterator();
-        while (entries.hasNext()) {
-            final Map.Entry<String, Optional<AuthenticationResult>> entry = entries.next();
-            if (!entry.getValue().isPresent()) {
-                try {
-                    final AuthenticationResult result = loadAuthenticationResultFromStorage(entry.getKey());
-                    if (result != null) {
-                        entry.setValue(Optional.of(result));
-                    } else {
-                        // A null here means the reference to the record should be removed.
-                        entries.remove();
-                    }
-                } catch (final IOException e) {
-                    // An exception implies the record *might* still be accessible later.
-                }
-            }
-        }
+        // Any sparse/null values in the map need to be loaded before returning a complete set.
+        loadAuthenticationResults(null);
         
         return super.getAuthenticationResults();
     }
 
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull @NonnullElements @NotLive @Unmodifiable public Set<AuthenticationResult> getAuthenticationResults(
+            @Nonnull @NonnullElements final Collection<String> flowIds) {
+        
+        // Only the requested values need to be loaded.
+        loadAuthenticationResults(flowIds);
+        
+        return super.getAuthenticationResults(flowIds);
+    }
+
     /** {@inheritDoc} */
     @Override
     @Nullable public AuthenticationResult getAuthenticationResult(@Nonnull @NotEmpty final String flowId) {
@@ -212,6 +258,16 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
     @Nullable public AuthenticationResult addAuthenticationResult(@Nonnull final AuthenticationResult result)
             throws SessionException {
         
+        if (sessionManager.isDeferringWrites()) {
+            final AuthenticationResult prev = super.addAuthenticationResult(result);
+            pendingResults.put(result.getAuthenticationFlowId(), result);
+            if (prev == null) {
+                pendingMasterUpdate = true;
+            }
+            sessionManager.deferWrite(this);
+            return prev;
+        }
+        
         try {
             // Store the record.
             if (!saveAuthenticationResultToStorage(result) && !sessionManager.isMaskStorageFailure()) {
@@ -233,6 +289,9 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
                 }
                 if (!success) {
                     log.error("Exhausted retry attempts updating record for session {}", getId());
+                    if (!sessionManager.isMaskStorageFailure()) {
+                        throw new SessionException("Exhausted retry attempts updating record for session");
+                    }
                 }
             }
             return prev;
@@ -249,31 +308,27 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
     /** {@inheritDoc} */
     @Override
     public void updateAuthenticationResultActivity(@Nonnull final AuthenticationResult result) throws SessionException {
-        final String flowId = result.getAuthenticationFlowId();
-        final AuthenticationFlowDescriptor flow = sessionManager.getAuthenticationFlowDescriptor(flowId);
-        if (flow != null) {
-            try {
-                if (!sessionManager.getStorageService().updateExpiration(getId(), result.getAuthenticationFlowId(),
-                        result.getLastActivityInstant() + flow.getInactivityTimeout()
-                            + AuthenticationFlowDescriptor.STORAGE_EXPIRATION_OFFSET)) {
-                    log.warn("Skipping update, AuthenticationResult for flow {} in session {} not found in storage",
-                            flowId, getId());
-                }
-            } catch (final IOException e) {
-                log.error("Exception updating AuthenticationResult expiration for session {} and flow {}", getId(),
-                        flowId, e);
-                if (!sessionManager.isMaskStorageFailure()) {
-                    throw new SessionException("Exception updating AuthenticationResult expiration in storage", e);
-                }
+        if (sessionManager.isDeferringWrites()) {
+            pendingResultActivity.put(result.getAuthenticationFlowId(), result);
+            sessionManager.deferWrite(this);
+            return;
+        }
+        
+        try {
+            updateAuthenticationResultExpiration(result);
+        } catch (final IOException e) {
+            log.error("Exception updating AuthenticationResult expiration for session {} and flow {}", getId(),
+                    result.getAuthenticationFlowId(), e);
+            if (!sessionManager.isMaskStorageFailure()) {
+                throw new SessionException("Exception updating AuthenticationResult expiration in storage", e);
             }
-        } else {
-            log.warn("No flow descriptor installed for ID {}, unable to update result in storage", flowId);
         }
     }
 
     /** {@inheritDoc} */
     @Override
     public boolean removeAuthenticationResult(@Nonnull final AuthenticationResult result) throws SessionException {
+        flush();
         if (super.removeAuthenticationResult(result)) {
             try {
                 // Remove the separate record.
@@ -302,6 +357,9 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
                 }
                 if (!success) {
                     log.error("Exhausted retry attempts updating record for session {}", getId());
+                    if (!sessionManager.isMaskStorageFailure()) {
+                        throw new SessionException("Exhausted retry attempts updating record for session");
+                    }
                 }
             } catch (final IOException e) {
                 log.error("Exception updating record for session {}", getId(), e);
@@ -322,25 +380,8 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
     @Nonnull @NonnullElements @NotLive @Unmodifiable public Set<SPSession> getSPSessions() {
         
         if (sessionManager.isTrackSPSessions() && sessionManager.storageServiceMeetsThreshold()) {
-            // Check for any sparse/null values in the map, which need to be loaded before returning a complete set.
-            final Iterator<Map.Entry<String, Optional<SPSession>>> entries =
-                    getSPSessionMap().entrySet().iterator();
-            while (entries.hasNext()) {
-                final Map.Entry<String, Optional<SPSession>> entry = entries.next();
-                if (!entry.getValue().isPresent()) {
-                    try {
-                        final SPSession result = loadSPSessionFromStorage(entry.getKey());
-                        if (result != null) {
-                            entry.setValue(Optional.of(result));
-                        } else {
-                            // A null here means the reference to the record should be removed.
-                            entries.remove();
-                        }
-                    } catch (final IOException e) {
-                        // An exception implies the record *might* still be accessible later.
-                    }
-                }
-            }
+            // Any sparse/null values in the map need to be loaded before returning a complete set.
+            loadSPSessions();
         }
         
         return super.getSPSessions();
@@ -395,6 +436,20 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
                 // we know to remove it.
                 getSPSession(spSession.getId());
 
+                if (sessionManager.isDeferringWrites()) {
+                    final boolean stored = !pendingSPSessions.containsKey(spSession.getId());
+                    final SPSession prev = super.addSPSession(spSession);
+                    pendingSPSessions.put(spSession.getId(), spSession);
+                    if (prev == null) {
+                        pendingMasterUpdate = true;
+                    } else if (stored && !replacedSPSessions.containsKey(spSession.getId())) {
+                        // Only a session which reached storage was indexed.
+                        replacedSPSessions.put(spSession.getId(), prev);
+                    }
+                    sessionManager.deferWrite(this);
+                    return prev;
+                }
+
                 // Store the record.
                 if (!saveSPSessionToStorage(spSession) && !sessionManager.isMaskStorageFailure()) {
                     throw new SessionException("Unable to save SPSession to storage");
@@ -439,6 +494,7 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
     /** {@inheritDoc} */
     @Override
     public boolean removeSPSession(@Nonnull final SPSession spSession) throws SessionException {
+        flush();
         if (super.removeSPSession(spSession)) {
             try {
                 // Remove the separate record.
@@ -467,6 +523,9 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
                 }
                 if (!success) {
                     log.error("Exhausted retry attempts updating record for session {}", getId());
+                    if (!sessionManager.isMaskStorageFailure()) {
+                        throw new SessionException("Exhausted retry attempts updating record for session");
+                    }
                 }
             } catch (final IOException e) {
                 log.error("Exception updating record for session {}", getId(), e);
@@ -492,6 +551,106 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
         }
     }
 
+    /**
+     * Write any changes buffered in write-behind mode to storage.
+     * 
+     * <p>
+     * New result and SP session records are written first, so that the master record never refers to a record
+     * which is missing, and then the master record once. If the master record has changed underneath, it is reloaded
+     * and the buffered changes reapplied before trying again.
+     * </p>
+     * 
+     * @throws SessionException if the changes could not be written and storage failures are not masked
+     */
+    // Checkstyle: CyclomaticComplexity|MethodLength OFF
+    public void flush() throws SessionException {
+        if (!pendingCreate && !pendingMasterUpdate && !pendingActivity && pendingResults.isEmpty()
+                && pendingResultActivity.isEmpty() && pendingSPSessions.isEmpty()) {
+            return;
+        }
+
+        log.debug("Flushing pending changes to session {}", getId());
+        try {
+            for (final AuthenticationResult result : pendingResults.values()) {
+                if (!saveAuthenticationResultToStorage(result) && !sessionManager.isMaskStorageFailure()) {
+                    throw new SessionException("Unable to save AuthenticationResult to storage");
+                }
+            }
+            for (final AuthenticationResult result : pendingResultActivity.values()) {
+                if (!pendingResults.containsKey(result.getAuthenticationFlowId())) {
+                    updateAuthenticationResultExpiration(result);
+                }
+            }
+            for (final SPSession spSession : pendingSPSessions.values()) {
+                if (!saveSPSessionToStorage(spSession) && !sessionManager.isMaskStorageFailure()) {
+                    throw new SessionException("Unable to save SPSession to storage");
+                }
+            }
+
+            final long exp =
+                    getLastActivityInstant() + sessionManager.getSessionTimeout() + sessionManager.getSessionSlop();
+            if (pendingCreate) {
+                if (!sessionManager.getStorageService().create(getId(), StorageBackedSessionManager.SESSION_MASTER_KEY,
+                        this, sessionManager.getStorageSerializer(), exp)) {
+                    throw new SessionException("A duplicate session ID was generated, unable to create session");
+                }
+            } else if (pendingMasterUpdate) {
+                final long activity = getLastActivityInstant();
+                int attempts = 10;
+                boolean success = writeToStorage();
+                while (!success && attempts-- > 0) {
+                    // The record has changed underneath and been reloaded, so reapply our changes.
+                    reapplyPendingChanges(activity);
+                    success = writeToStorage();
+                }
+                if (!success) {
+                    log.error("Exhausted retry attempts updating record for session {}", getId());
+                    if (!sessionManager.isMaskStorageFailure()) {
+                        throw new SessionException("Exhausted retry attempts updating record for session");
+                    }
+                }
+            } else if (pendingActivity) {
+                log.debug("Updating expiration of master record for session {} to {}", getId(), new DateTime(exp));
+                sessionManager.getStorageService().updateExpiration(
+                        getId(), StorageBackedSessionManager.SESSION_MASTER_KEY, exp);
+            }
+
+            if (sessionManager.isTrackSPSessions()) {
+                for (final SPSession prev : replacedSPSessions.values()) {
+                    sessionManager.unindexSPSession(this, prev, 10);
+                }
+                for (final SPSession spSession : pendingSPSessions.values()) {
+                    sessionManager.indexBySPSession(this, spSession, 10);
+                }
+            }
+        } catch (final IOException e) {
+            log.error("Exception flushing pending changes to session {}", getId(), e);
+            if (!sessionManager.isMaskStorageFailure()) {
+                throw new SessionException("Exception flushing pending changes to session", e);
+            }
+        } finally {
+            pendingCreate = false;
+            pendingMasterUpdate = false;
+            pendingActivity = false;
+            pendingAddresses.clear();
+            pendingResults.clear();
+            pendingResultActivity.clear();
+            pendingSPSessions.clear();
+            replacedSPSessions.clear();
+        }
+    }
+    // Checkstyle: CyclomaticComplexity|MethodLength ON
+
+    /**
+     * Mark the master record as not yet created, so that it is created by the next {@link #flush()}.
+     * 
+     * @throws SessionException if another copy of the session could not be flushed
+     */
+    void setPendingCreate() throws SessionException {
+        pendingCreate = true;
+        sessionManager.deferWrite(this);
+    }
+
     /**
      * Get the record version.
      * 
@@ -544,7 +703,7 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
         try {
             final StorageRecord<AuthenticationResult> record = sessionManager.getStorageService().read(getId(), flowId);
             if (record != null) {
-                return record.getValue(flow, getId(), flowId);
+                return decodeAuthenticationResult(flow, record);
             } else {
                 log.debug("No AuthenticationResult for flow {} in session {}", flowId, getId());
                 return null;
@@ -574,17 +733,18 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
             return false;
         }
         
+        final StorageSerializer<AuthenticationResult> resultSerializer = sessionManager.getStorageCodec().wrap(flow);
         try {
             // Create / update loop until we succeed or exhaust attempts.
             int attempts = 10;
             boolean success = false;
             do {
-                success = sessionManager.getStorageService().create(getId(), flowId, result, flow,
+                success = sessionManager.getStorageService().create(getId(), flowId, result, resultSerializer,
                         result.getLastActivityInstant() + flow.getInactivityTimeout()
                             + AuthenticationFlowDescriptor.STORAGE_EXPIRATION_OFFSET);
                 if (!success) {
                     // The record already exists, so we need to overwrite via an update.
-                    success = sessionManager.getStorageService().update(getId(), flowId, result, flow,
+                    success = sessionManager.getStorageService().update(getId(), flowId, result, resultSerializer,
                             result.getLastActivityInstant() + flow.getInactivityTimeout()
                                 + AuthenticationFlowDescriptor.STORAGE_EXPIRATION_OFFSET);
                 }
@@ -602,6 +762,62 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
         }
     }
     
+    /**
+     * Updates the expiration of an {@link AuthenticationResult} record to reflect its last activity.
+     * 
+     * @param result the result
+     * 
+     * @throws IOException if a possibly transitory storage-related error occurs
+     */
+    private void updateAuthenticationResultExpiration(@Nonnull final AuthenticationResult result)
+            throws IOException {
+        final String flowId = result.getAuthenticationFlowId();
+        final AuthenticationFlowDescriptor flow = sessionManager.getAuthenticationFlowDescriptor(flowId);
+        if (flow == null) {
+            log.warn("No flow descriptor installed for ID {}, unable to update result in storage", flowId);
+            return;
+        }
+        
+        if (!sessionManager.getStorageService().updateExpiration(getId(), flowId,
+                result.getLastActivityInstant() + flow.getInactivityTimeout()
+                    + AuthenticationFlowDescriptor.STORAGE_EXPIRATION_OFFSET)) {
+            log.warn("Skipping update, AuthenticationResult for flow {} in session {} not found in storage",
+                    flowId, getId());
+        }
+    }
+    
+    /**
+     * Reapply the changes buffered since the last {@link #flush()} after the master record was reloaded.
+     * 
+     * @param activity the last activity instant prior to the reload
+     * 
+     * @throws SessionException if a different address of the same type is now bound to the session
+     */
+    private void reapplyPendingChanges(final long activity) throws SessionException {
+        if (activity > getLastActivityInstant()) {
+            doSetLastActivityInstant(activity);
+        }
+        for (final String address : pendingAddresses) {
+            final String nowBound = getAddress(getAddressFamily(address));
+            if (nowBound == null) {
+                doBindToAddress(address);
+            } else if (!nowBound.equals(address)) {
+                log.warn("Client address is {} but session {} already bound to {}", address, getId(), nowBound);
+                throw new SessionException("A different address of the same type was bound to the session");
+            }
+        }
+        for (final AuthenticationResult result : pendingResults.values()) {
+            if (!getAuthenticationResultMap().containsKey(result.getAuthenticationFlowId())) {
+                super.addAuthenticationResult(result);
+            }
+        }
+        for (final SPSession spSession : pendingSPSessions.values()) {
+            if (!getSPSessionMap().containsKey(spSession.getId())) {
+                super.addSPSession(spSession);
+            }
+        }
+    }
+
     /**
      * Loads a {@link SPSession} record from storage and deserializes it using the object
      * registered in the attached {@link net.shibboleth.idp.session.SPSessionSerializerRegistry}.
@@ -623,13 +839,150 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
                 return null;
             }
             
+            return decodeSPSession(key, record);
+            
+        } catch (final IOException e) {
+            log.error("IOException loading SPSession for service {} from storage", serviceId, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Loads any {@link AuthenticationResult} records not yet loaded, reading them from storage together.
+     * 
+     * <p>Records which are missing or unusable are dropped from the session, while those which could not be read
+     * are left to be loaded later.</p>
+     * 
+     * @param flowIds IDs of the results/flows to load, or null for all
+     */
+    private void loadAuthenticationResults(@Nullable @NonnullElements final Collection<String> flowIds) {
+        final Map<String,AuthenticationFlowDescriptor> flows = new LinkedHashMap<>();
+        final Iterator<Map.Entry<String, Optional<AuthenticationResult>>> entries =
+                getAuthenticationResultMap().entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<String, Optional<AuthenticationResult>> entry = entries.next();
+            if (!entry.getValue().isPresent() && (flowIds == null || flowIds.contains(entry.getKey()))) {
+                final AuthenticationFlowDescriptor flow =
+                        sessionManager.getAuthenticationFlowDescriptor(entry.getKey());
+                if (flow != null) {
+                    flows.put(entry.getKey(), flow);
+                } else {
+                    log.warn("No flow descriptor installed for ID {}, unable to load result from storage",
+                            entry.getKey());
+                    entries.remove();
+                }
+            }
+        }
+        if (flows.isEmpty()) {
+            return;
+        }
+        
+        log.debug("Loading AuthenticationResults for flows {} in session {}", flows.keySet(), getId());
+        final Map<String,StorageRecord<AuthenticationResult>> records;
+        try {
+            records = sessionManager.readRecords(getId(), flows.keySet());
+        } catch (final IOException e) {
+            // An exception implies the records *might* still be accessible later.
+            log.error("Exception loading AuthenticationResults for session {} from storage", getId(), e);
+            return;
+        }
+        
+        for (final Map.Entry<String,AuthenticationFlowDescriptor> flow : flows.entrySet()) {
+            final StorageRecord<AuthenticationResult> record = records.get(flow.getKey());
+            if (record == null) {
+                // A missing record means the reference to it should be removed.
+                log.debug("No AuthenticationResult for flow {} in session {}", flow.getKey(), getId());
+                getAuthenticationResultMap().remove(flow.getKey());
+                continue;
+            }
+            try {
+                getAuthenticationResultMap().put(flow.getKey(),
+                        Optional.of(decodeAuthenticationResult(flow.getValue(), record)));
+            } catch (final IOException e) {
+                log.error("Exception loading AuthenticationResult for flow {} from storage", flow.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Deserializes an {@link AuthenticationResult} record using the object attached to the corresponding
+     * {@link AuthenticationFlowDescriptor}.
+     * 
+     * @param flow the descriptor of the flow producing the result
+     * @param record the record
+     * 
+     * @return the result
+     * @throws IOException if the record cannot be deserialized
+     */
+    @Nonnull private AuthenticationResult decodeAuthenticationResult(@Nonnull final AuthenticationFlowDescriptor flow,
+            @Nonnull final StorageRecord<AuthenticationResult> record) throws IOException {
+        return record.getValue(sessionManager.getStorageCodec().wrap(flow), getId(), flow.getId());
+    }
+
+    /**
+     * Loads any {@link SPSession} records not yet loaded, reading them from storage together.
+     * 
+     * <p>Records which are missing or unusable are dropped from the session, while those which could not be read
+     * are left to be loaded later.</p>
+     */
+    private void loadSPSessions() {
+        final Map<String,String> keys = new LinkedHashMap<>();
+        for (final Map.Entry<String, Optional<SPSession>> entry : getSPSessionMap().entrySet()) {
+            if (!entry.getValue().isPresent()) {
+                keys.put(getSPSessionStorageKey(entry.getKey()), entry.getKey());
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        
+        log.debug("Loading SPSessions for services {} in session {}", keys.values(), getId());
+        final Map<String,StorageRecord<SPSession>> records;
+        try {
+            records = sessionManager.readRecords(getId(), keys.keySet());
+        } catch (final IOException e) {
+            // An exception implies the records *might* still be accessible later.
+            log.error("IOException loading SPSessions for session {} from storage", getId(), e);
+            return;
+        }
+        
+        for (final Map.Entry<String,String> key : keys.entrySet()) {
+            final StorageRecord<SPSession> record = records.get(key.getKey());
+            if (record == null) {
+                // A missing record means the reference to it should be removed.
+                log.debug("No SPSession found for service {} in session {}", key.getValue(), getId());
+                getSPSessionMap().remove(key.getValue());
+                continue;
+            }
+            try {
+                getSPSessionMap().put(key.getValue(), Optional.of(decodeSPSession(key.getKey(), record)));
+            } catch (final IOException e) {
+                log.error("IOException loading SPSession for service {} from storage", key.getValue(), e);
+            }
+        }
+    }
+
+    /**
+     * Deserializes a {@link SPSession} record using the object registered in the attached
+     * {@link net.shibboleth.idp.session.SPSessionSerializerRegistry}.
+     * 
+     * @param key the storage key of the record
+     * @param record the record
+     * 
+     * @return the session
+     * @throws IOException if the record cannot be deserialized
+     */
+    @Nonnull private SPSession decodeSPSession(@Nonnull @NotEmpty final String key,
+            @Nonnull final StorageRecord<SPSession> record) throws IOException {
+        try {
             // Parse out the class type.
-            final int pos = record.getValue().indexOf(':');
+            final String value = sessionManager.getStorageCodec().decode(record.getValue());
+            final int pos = value.indexOf(':');
             if (pos <= 0) {
                 throw new IOException("No class type found prefixed to record");
             }
             
-            final String sessionClassName = record.getValue().substring(0,  pos);
+            final String sessionClassName = value.substring(0,  pos);
             
             // Look up the serializer instance for that class type.
             final StorageSerializer<? extends SPSession> spSessionSerializer =
@@ -641,13 +994,10 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
             
             // Deserializer starting past the colon delimiter.
             return spSessionSerializer.deserialize(
-                    record.getVersion(), getId(), key, record.getValue().substring(pos + 1), record.getExpiration());
+                    record.getVersion(), getId(), key, value.substring(pos + 1), record.getExpiration());
             
-        } catch (final IOException e) {
-            log.error("IOException loading SPSession for service {} from storage", serviceId, e);
-            throw e;
         } catch (final ClassNotFoundException e) {
-            log.error("ClassNotFoundException loading SPSession for service {} from storage", serviceId, e);
+            log.error("ClassNotFoundException loading SPSession record {} from storage", key, e);
             throw new IOException(e);
         }
     }
@@ -675,17 +1025,18 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
         // Prefix the class name to the serialized data.
         final StringBuilder builder = new StringBuilder(session.getClass().getName());
         builder.append(':').append(spSessionSerializer.serialize(session));
+        final String value = sessionManager.getStorageCodec().encode(builder.toString());
         
         try {
             // Create / update loop until we succeed or exhaust attempts.
             int attempts = 10;
             boolean success = false;
             do {
-                success = sessionManager.getStorageService().create(getId(), key, builder.toString(),
+                success = sessionManager.getStorageService().create(getId(), key, value,
                         session.getExpirationInstant() + sessionManager.getSessionSlop());
                 if (!success) {
                     // The record already exists, so we need to overwrite via an update.
-                    success = sessionManager.getStorageService().update(getId(), key, builder.toString(),
+                    success = sessionManager.getStorageService().update(getId(), key, value,
                             session.getExpirationInstant() + sessionManager.getSessionSlop());
                 }
             } while (!success && attempts-- > 0);
@@ -743,7 +1094,8 @@ public class StorageBackedIdPSession extends AbstractIdPSession {
                 log.error("Record for session {} has disappeared from backing store", getId());
                 throw new IOException("Unable to update session, record disappeared");
             }
-            record.getValue(new StorageBackedIdPSessionSerializer(sessionManager, this),
+            record.getValue(
+                    sessionManager.getStorageCodec().wrap(new StorageBackedIdPSessionSerializer(sessionManager, this)),
                     getId(), StorageBackedSessionManager.SESSION_MASTER_KEY);
             return false;
         }
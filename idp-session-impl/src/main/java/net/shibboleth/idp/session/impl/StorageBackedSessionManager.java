@@ -18,8 +18,11 @@
 package net.shibboleth.idp.session.impl;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import javax.annotation.Nonnull;
@@ -54,6 +57,7 @@ import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
 import net.shibboleth.utilities.java.support.resolver.ResolverException;
 import net.shibboleth.utilities.java.support.security.IdentifierGenerationStrategy;
 
+import org.opensaml.storage.StorageCapabilitiesEx;
 import org.opensaml.storage.StorageRecord;
 import org.opensaml.storage.StorageSerializer;
 import org.opensaml.storage.StorageService;
@@ -103,9 +107,23 @@ import com.google.common.collect.Iterables;
  * </p>
  * 
  * <p>
+ * The list may optionally be spread across a number of records, or shards, each listing just the sessions whose IDs
+ * select it, and whose keys after the first are suffixed with the shard number. This avoids contention between
+ * sessions for the same service key, at the cost of reading every shard during a lookup. The largest number of
+ * shards ever used is recorded in storage, so that a lookup continues to read them all should it be lowered.
+ * </p>
+ * 
+ * <p>
  * The primary purpose of the secondary list is SAML logout, and is an optional feature that can be disabled. In the
  * case of a SAML 2 session, the secondary key is some form of the NameID issued to the service.
  * </p>
+ * 
+ * <p>
+ * In write-behind mode, sessions created or modified on a thread between calls to {@link #beginPendingWrites()} and
+ * {@link #flushPendingWrites()}, typically made by a {@link FlushSessionsFlowExecutionListener} at the start and end
+ * of each request, are not written to storage until the latter. All the changes to a session are then written
+ * together, with a single update of the master record. Changes made at any other time are written immediately.
+ * </p>
  */
 public class StorageBackedSessionManager extends AbstractIdentifiableInitializableComponent implements SessionManager,
         SessionResolver {
@@ -113,6 +131,15 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
     /** Storage key of master session records. */
     @Nonnull @NotEmpty public static final String SESSION_MASTER_KEY = "_session";
 
+    /** Storage key of the record of the number of secondary index shards, in the master record context. */
+    @Nonnull @NotEmpty private static final String SHARDS_KEY = "_secondaryIndexShards";
+
+    /** Separates the shard number from the service key in the storage key of a secondary index shard. */
+    private static final char SHARD_DELIMITER = '#';
+
+    /** Separates the session ID from its expiration in an entry of a sharded secondary index. */
+    private static final char EXPIRATION_DELIMITER = '!';
+
     /** Default cookie name for session tracking. */
     @Nonnull @NotEmpty protected static final String DEFAULT_COOKIE_NAME = "shib_idp_session";
 
@@ -140,6 +167,12 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
     /** Indicates whether to secondary-index SPSessions. */
     private boolean secondaryServiceIndex;
 
+    /** Number of records across which each secondary index list is spread. */
+    private int secondaryServiceIndexShards;
+
+    /** Number of secondary index shards which may hold entries, or 0 until read from storage. */
+    private volatile int usedSecondaryServiceIndexShards;
+
     /** Indicates whether sessions are bound to client addresses. */
     private boolean consistentAddress;
 
@@ -161,12 +194,27 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
     /** Serializer for sessions. */
     @Nonnull private final StorageBackedIdPSessionSerializer serializer;
 
+    /** Whether to write records in compact form. */
+    private boolean compactSerialization;
+
+    /** Codec applied to stored records. */
+    @NonnullAfterInit private CompactStorageCodec storageCodec;
+
+    /** Serializer for sessions, applying the codec. */
+    @NonnullAfterInit private StorageSerializer<StorageBackedIdPSession> storageSerializer;
+
     /** Flows that could potentially be used to authenticate the user. */
     @Nonnull @NonnullElements private final Map<String,AuthenticationFlowDescriptor> flowDescriptorMap;
 
     /** Mappings between a SPSession type and a serializer implementation. */
     @Nullable private SPSessionSerializerRegistry spSessionSerializerRegistry;
 
+    /** Whether to buffer session changes until {@link #flushPendingWrites()}. */
+    private boolean writeBehind;
+
+    /** Sessions created or modified on each thread with changes not yet written, by ID, while deferring writes. */
+    @Nonnull private final ThreadLocal<Map<String,StorageBackedIdPSession>> pendingSessions;
+
     /**
      * Constructor.
      * 
@@ -178,6 +226,8 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
         consistentAddress = true;
         cookieName = DEFAULT_COOKIE_NAME;
         storageServiceThreshold = 1024 * 1024;
+        secondaryServiceIndexShards = 1;
+        pendingSessions = new ThreadLocal<>();
     }
 
     /**
@@ -310,6 +360,42 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
         secondaryServiceIndex = flag;
     }
 
+    /**
+     * Get the number of records across which each secondary index list is spread.
+     * 
+     * @return the number of records
+     */
+    @Positive public int getSecondaryServiceIndexShards() {
+        return secondaryServiceIndexShards;
+    }
+
+    /**
+     * Set the number of records across which each secondary index list is spread.
+     * 
+     * <p>
+     * Each session is listed in just one of the records, chosen by its ID, so concurrent updates for the same
+     * service key rarely contend for the same record, at the cost of a lookup reading every record. A sharded index
+     * also records the expiration of each entry, so entries which have expired are pruned on every update without
+     * having to look up the sessions. Both forms are read regardless, but only this version can read the expirations,
+     * so this should only be changed from the default of 1 once every node sharing the storage runs it.
+     * </p>
+     * 
+     * <p>
+     * A lookup costs one read per record on top of one per matching session, so the default keeps its cost in
+     * proportion to the matching sessions alone. The largest value ever set is recorded in storage, when each node
+     * first uses the index, and every lookup reads that many records. Lowering the value therefore does not orphan
+     * entries, but nor does it make lookups any cheaper. Every node sharing the storage should use the same value.
+     * </p>
+     * 
+     * @param shards the number of records, between 1 and 99
+     */
+    public void setSecondaryServiceIndexShards(@Positive final int shards) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        Constraint.isTrue(shards < 100, "Shards must be less than 100");
+        secondaryServiceIndexShards = (int) Constraint.isGreaterThan(0, shards, "Shards must be greater than 0");
+    }
+
     /**
      * Get whether sessions are bound to client addresses.
      * 
@@ -330,6 +416,31 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
         consistentAddress = flag;
     }
 
+    /**
+     * Get whether session changes are buffered until {@link #flushPendingWrites()}.
+     * 
+     * @return true iff session changes are buffered
+     */
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Set whether session changes are buffered until {@link #flushPendingWrites()}.
+     * 
+     * <p>
+     * Changes are only buffered between calls to {@link #beginPendingWrites()} and {@link #flushPendingWrites()},
+     * and this requires a server-side {@link StorageService}.
+     * </p>
+     * 
+     * @param flag flag to set
+     */
+    public void setWriteBehind(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        writeBehind = flag;
+    }
+
     /**
      * Set the cookie name to use for session tracking.
      * 
@@ -419,8 +530,42 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
      * 
      * @return the serializer to use when writing back session objects
      */
-    @Nonnull public StorageSerializer<StorageBackedIdPSession> getStorageSerializer() {
-        return serializer;
+    @NonnullAfterInit public StorageSerializer<StorageBackedIdPSession> getStorageSerializer() {
+        return storageSerializer;
+    }
+
+    /**
+     * Get the codec applied to all the records written and read by this implementation.
+     * 
+     * @return the codec
+     */
+    @NonnullAfterInit public CompactStorageCodec getStorageCodec() {
+        return storageCodec;
+    }
+
+    /**
+     * Get whether records are written in the compact form produced by {@link CompactStorageCodec}.
+     * 
+     * @return true iff records are written in compact form
+     */
+    public boolean isCompactSerialization() {
+        return compactSerialization;
+    }
+
+    /**
+     * Set whether records are written in the compact form produced by {@link CompactStorageCodec}.
+     * 
+     * <p>
+     * Records in either form are read regardless, so this should only be enabled once every node sharing the
+     * storage is capable of reading the compact form. Defaults to false.
+     * </p>
+     * 
+     * @param flag flag to set
+     */
+    public void setCompactSerialization(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        compactSerialization = flag;
     }
 
     /**
@@ -486,10 +631,16 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
                     "Initialization of StorageBackedSessionManager requires non-null CookieManager");
         } else if (trackSPSessions && spSessionSerializerRegistry == null) {
             throw new ComponentInitializationException("Tracking SPSessions requires a spSessionSerializerRegistry");
+        } else if (writeBehind && storageService.getCapabilities() instanceof StorageCapabilitiesEx
+                && !((StorageCapabilitiesEx) storageService.getCapabilities()).isServerSide()) {
+            // Client-side storage is written to the response before the changes would be.
+            throw new ComponentInitializationException("Write-behind mode requires a server-side StorageService");
         }
 
         // This is our private instance, so we initialize it.
         serializer.initialize();
+        storageCodec = new CompactStorageCodec(compactSerialization);
+        storageSerializer = storageCodec.wrap(serializer);
     }
 
     /** {@inheritDoc} */
@@ -519,8 +670,15 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
             newSession.doBindToAddress(remoteAddr);
         }
 
+        if (isDeferringWrites()) {
+            newSession.setPendingCreate();
+            log.debug("Created new session {} for principal {}, deferring storage", sessionId, principalName);
+            cookieManager.addCookie(cookieName, sessionId);
+            return newSession;
+        }
+
         try {
-            if (!storageService.create(sessionId, SESSION_MASTER_KEY, newSession, serializer,
+            if (!storageService.create(sessionId, SESSION_MASTER_KEY, newSession, storageSerializer,
                     newSession.getCreationInstant() + sessionTimeout + sessionSlop)) {
                 throw new SessionException("A duplicate session ID was generated, unable to create session");
             }
@@ -548,6 +706,11 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
             cookieManager.unsetCookie(cookieName);
         }
 
+        final Map<String,StorageBackedIdPSession> pending = pendingSessions.get();
+        if (pending != null) {
+            pending.remove(sessionId);
+        }
+
         try {
             storageService.deleteContext(sessionId);
             log.debug("Destroyed session {}", sessionId);
@@ -622,6 +785,119 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
         return null;
     }
 
+    /**
+     * Begin buffering the changes to sessions created or modified on this thread, if in write-behind mode.
+     * 
+     * <p>
+     * Every call must be followed by one to {@link #flushPendingWrites()} on the same thread. Any changes still
+     * buffered by a previous call, which cannot have been followed by one, are discarded.
+     * </p>
+     */
+    public void beginPendingWrites() {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+
+        if (!writeBehind) {
+            return;
+        }
+        final Map<String,StorageBackedIdPSession> stale = pendingSessions.get();
+        if (stale != null && !stale.isEmpty()) {
+            log.warn("Discarding unwritten changes to sessions {}", stale.keySet());
+        }
+        pendingSessions.set(new LinkedHashMap<String,StorageBackedIdPSession>());
+    }
+
+    /**
+     * Write the buffered changes to all the sessions created or modified on this thread since
+     * {@link #beginPendingWrites()}, after which changes are written immediately until it is next called.
+     * 
+     * <p>
+     * Every session is flushed even if an earlier one fails, and no changes remain buffered afterwards.
+     * </p>
+     * 
+     * @throws SessionException if a session could not be written and storage failures are not masked
+     */
+    public void flushPendingWrites() throws SessionException {
+        final Map<String,StorageBackedIdPSession> pending = pendingSessions.get();
+        if (pending == null) {
+            return;
+        }
+        pendingSessions.remove();
+
+        SessionException failure = null;
+        for (final StorageBackedIdPSession session : pending.values()) {
+            try {
+                session.flush();
+            } catch (final SessionException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Get whether changes to sessions on this thread are currently being buffered.
+     * 
+     * @return true iff in write-behind mode and between {@link #beginPendingWrites()} and
+     *          {@link #flushPendingWrites()}
+     */
+    boolean isDeferringWrites() {
+        return writeBehind && pendingSessions.get() != null;
+    }
+
+    /**
+     * Note that a session has changes to be written by {@link #flushPendingWrites()}, which must only be done if
+     * {@link #isDeferringWrites()}.
+     * 
+     * <p>
+     * Should a different copy of the same session already have pending changes, that copy is flushed first.
+     * </p>
+     * 
+     * @param session the session
+     * 
+     * @throws SessionException if a different copy of the session could not be flushed
+     */
+    void deferWrite(@Nonnull final StorageBackedIdPSession session) throws SessionException {
+        final Map<String,StorageBackedIdPSession> pending = pendingSessions.get();
+        if (pending == null) {
+            throw new SessionException("Session changes are not being deferred on this thread");
+        }
+        final StorageBackedIdPSession prev = pending.put(session.getId(), session);
+        if (prev != null && prev != session) {
+            prev.flush();
+        }
+    }
+
+    /**
+     * Read a number of the records belonging to a session.
+     * 
+     * <p>
+     * The {@link StorageService} interface has no multi-record read, so the records are read in turn, but all the
+     * bulk loads of a session's records are made through this method so that they can be combined in one place.
+     * </p>
+     * 
+     * @param <T> type of object stored in the records
+     * @param sessionId the ID of the session
+     * @param keys the keys of the records to read
+     * 
+     * @return the records found, by key
+     * @throws IOException if a possibly transitory storage-related error occurs
+     */
+    @Nonnull @NonnullElements <T> Map<String,StorageRecord<T>> readRecords(@Nonnull @NotEmpty final String sessionId,
+            @Nonnull @NonnullElements final Collection<String> keys) throws IOException {
+        final Map<String,StorageRecord<T>> records = new HashMap<>(keys.size());
+        for (final String key : keys) {
+            final StorageRecord<T> record = storageService.read(sessionId, key);
+            if (record != null) {
+                records.put(key, record);
+            }
+        }
+        return records;
+    }
+
     /**
      * Insert or update a secondary index record from an SPSession to a parent IdPSession.
      * 
@@ -639,58 +915,55 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
                 throw new SessionException("Exceeded retry attempts while adding to secondary index");
             }
         } else if (secondaryServiceIndex && storageServiceMeetsThreshold()) {
-            String serviceId = spSession.getId();
-            String serviceKey = spSession.getSPSessionKey();
+            final String serviceKey = spSession.getSPSessionKey();
             if (serviceKey == null) {
                 return;
             }
-            log.debug("Maintaining secondary index for service ID {} and key {}", serviceId, serviceKey);
-
-            final int contextSize = storageService.getCapabilities().getContextSize();
-            final int keySize = storageService.getCapabilities().getKeySize();
-
-            // Truncate context and key if needed.
-            if (serviceId.length() > contextSize) {
-                serviceId = serviceId.substring(0, contextSize);
-            }
-            if (serviceKey.length() > keySize) {
-                serviceKey = serviceKey.substring(0, keySize);
-            }
+            final String serviceId = getSecondaryIndexContext(spSession.getId());
+            // Record the number of shards before using it, so that they are all read after it has been lowered.
+            getUsedSecondaryIndexShards();
+            final String shardKey = getSecondaryIndexKey(serviceKey, getSecondaryIndexShard(idpSession.getId()));
+            log.debug("Maintaining secondary index for service ID {} and key {}", serviceId, shardKey);
 
             StorageRecord sessionList = null;
 
             try {
-                sessionList = storageService.read(serviceId, serviceKey);
+                sessionList = storageService.read(serviceId, shardKey);
             } catch (final IOException e) {
-                log.error("Exception while querying based service ID {} and key {}", serviceId, serviceKey, e);
+                log.error("Exception while querying based service ID {} and key {}", serviceId, shardKey, e);
                 if (!maskStorageFailure) {
                     throw new SessionException("Exception while querying based on SPSession", e);
                 }
             }
 
+            final long expiration = spSession.getExpirationInstant() + sessionSlop;
             try {
                 if (sessionList != null) {
-                    if (!sessionList.getValue().contains(idpSession.getId() + ',')) {
+                    final Map<String,Long> entries = parseSecondaryIndexEntries(sessionList.getValue());
+                    final Long existing = entries.get(idpSession.getId());
+                    if (existing == null || (existing != 0 && existing < expiration)
+                            || entries.size() < countSecondaryIndexEntries(sessionList.getValue())) {
                         // Need to update record.
-                        final String updated = sessionList.getValue() + idpSession.getId() + ',';
-                        if (storageService.updateWithVersion(sessionList.getVersion(), serviceId, serviceKey, updated,
-                                Math.max(sessionList.getExpiration(), 
-                                         spSession.getExpirationInstant() + sessionSlop)) == null) {
+                        entries.put(idpSession.getId(), expiration);
+                        if (storageService.updateWithVersion(sessionList.getVersion(), serviceId, shardKey,
+                                formatSecondaryIndexEntries(entries),
+                                Math.max(sessionList.getExpiration(), expiration)) == null) {
                             log.debug("Secondary index record disappeared, retrying as insert");
                             indexBySPSession(idpSession, spSession, attempts - 1);
                         }
                     } else {
                         log.debug("IdP session {} already indexed against service ID {} and key {}", idpSession.getId(),
-                                serviceId, serviceKey);
+                                serviceId, shardKey);
                     }
-                } else if (!storageService.create(serviceId, serviceKey, idpSession.getId() + ',',
-                        spSession.getExpirationInstant() + sessionSlop)) {
+                } else if (!storageService.create(serviceId, shardKey,
+                        formatSecondaryIndexEntries(Collections.singletonMap(idpSession.getId(), expiration)),
+                        expiration)) {
                     log.debug("Secondary index record appeared, retrying as update");
                     indexBySPSession(idpSession, spSession, attempts - 1);
                 }
             } catch (final IOException e) {
                 log.error("Exception maintaining secondary index for service ID {} and key {}",
-                        serviceId, serviceKey, e);
+                        serviceId, shardKey, e);
                 if (!maskStorageFailure) {
                     throw new SessionException("Exception maintaining secondary index", e);
                 }
@@ -718,30 +991,20 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
                 throw new SessionException("Exceeded retry attempts while removing from secondary index");
             }
         } else if (secondaryServiceIndex && storageServiceMeetsThreshold()) {
-            String serviceId = spSession.getId();
-            String serviceKey = spSession.getSPSessionKey();
+            final String serviceKey = spSession.getSPSessionKey();
             if (serviceKey == null) {
                 return;
             }
-            log.debug("Removing secondary index for service ID {} and key {}", serviceId, serviceKey);
-
-            final int contextSize = storageService.getCapabilities().getContextSize();
-            final int keySize = storageService.getCapabilities().getKeySize();
-
-            // Truncate context and key if needed.
-            if (serviceId.length() > contextSize) {
-                serviceId = serviceId.substring(0, contextSize);
-            }
-            if (serviceKey.length() > keySize) {
-                serviceKey = serviceKey.substring(0, keySize);
-            }
+            final String serviceId = getSecondaryIndexContext(spSession.getId());
+            final String shardKey = getSecondaryIndexKey(serviceKey, getSecondaryIndexShard(idpSession.getId()));
+            log.debug("Removing secondary index for service ID {} and key {}", serviceId, shardKey);
 
             StorageRecord sessionList = null;
 
             try {
-                sessionList = storageService.read(serviceId, serviceKey);
+                sessionList = storageService.read(serviceId, shardKey);
             } catch (final IOException e) {
-                log.error("Exception while querying based service ID {} and key {}", serviceId, serviceKey, e);
+                log.error("Exception while querying based service ID {} and key {}", serviceId, shardKey, e);
                 if (!maskStorageFailure) {
                     throw new SessionException("Exception while querying based on SPSession", e);
                 }
@@ -749,28 +1012,27 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
 
             try {
                 if (sessionList != null) {
-                    final String recordValue = sessionList.getValue();
-                    if (recordValue.contains(idpSession.getId() + ',')) {
+                    final Map<String,Long> entries = parseSecondaryIndexEntries(sessionList.getValue());
+                    if (entries.remove(idpSession.getId()) != null) {
                         // Need to update or delete record.
-                        final String updated = recordValue.replace(idpSession.getId() + ',', "");
-                        if (updated.length() > 0) {
-                            if (storageService.updateWithVersion(sessionList.getVersion(), serviceId, serviceKey,
-                                    updated, sessionList.getExpiration()) == null) {
+                        if (!entries.isEmpty()) {
+                            if (storageService.updateWithVersion(sessionList.getVersion(), serviceId, shardKey,
+                                    formatSecondaryIndexEntries(entries), sessionList.getExpiration()) == null) {
                                 log.debug("Secondary index record disappeared, nothing to do");
                             }
                         } else {
-                            storageService.deleteWithVersion(sessionList.getVersion(), serviceId, serviceKey);
+                            storageService.deleteWithVersion(sessionList.getVersion(), serviceId, shardKey);
                         }
                     } else {
                         log.debug("IdP session {} not indexed against service ID {} and key {}", idpSession.getId(),
-                                serviceId, serviceKey);
+                                serviceId, shardKey);
                     }
                 } else {
                     log.debug("Secondary index record not found, nothing to do");
                 }
             } catch (final IOException e) {
                 log.error("Exception removing secondary index for service ID {} and key {}",
-                        serviceId, serviceKey, e);
+                        serviceId, shardKey, e);
                 if (!maskStorageFailure) {
                     throw new SessionException("Exception maintaining secondary index", e);
                 }
@@ -795,13 +1057,20 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
             return null;
         }
         
+        final Map<String,StorageBackedIdPSession> pending = pendingSessions.get();
+        if (pending != null && pending.containsKey(sessionId)) {
+            // Storage is behind the copy already in use on this thread.
+            log.debug("Using session {} with pending changes", sessionId);
+            return pending.get(sessionId);
+        }
+
         log.debug("Performing primary lookup on session ID {}", sessionId);
 
         try {
             final StorageRecord<StorageBackedIdPSession> sessionRecord =
                     storageService.read(sessionId, SESSION_MASTER_KEY);
             if (sessionRecord != null) {
-                return sessionRecord.getValue(serializer, sessionId, SESSION_MASTER_KEY);
+                return sessionRecord.getValue(storageSerializer, sessionId, SESSION_MASTER_KEY);
             } else {
                 log.debug("Primary lookup failed for session ID {}", sessionId);
             }
@@ -826,65 +1095,239 @@ public class StorageBackedSessionManager extends AbstractIdentifiableInitializab
     @Nonnull @NonnullElements private Iterable<IdPSession>
             lookupBySPSession(@Nonnull final SPSessionCriterion criterion) throws ResolverException {
 
-        final int contextSize = storageService.getCapabilities().getContextSize();
-        final int keySize = storageService.getCapabilities().getKeySize();
+        final String serviceId = getSecondaryIndexContext(criterion.getServiceId());
+        log.debug("Performing secondary lookup on service ID {} and key {}", serviceId, criterion.getSPSessionKey());
 
-        String serviceId = criterion.getServiceId();
-        String serviceKey = criterion.getSPSessionKey();
-        log.debug("Performing secondary lookup on service ID {} and key {}", serviceId, serviceKey);
+        final ImmutableList.Builder builder = ImmutableList.<IdPSession> builder();
 
-        // Truncate context and key if needed.
-        if (serviceId.length() > contextSize) {
-            serviceId = serviceId.substring(0, contextSize);
-        }
-        if (serviceKey.length() > keySize) {
-            serviceKey = serviceKey.substring(0, keySize);
+        final int shards = getUsedSecondaryIndexShards();
+        for (int shard = 0; shard < shards; shard++) {
+            final String shardKey = getSecondaryIndexKey(criterion.getSPSessionKey(), shard);
+
+            StorageRecord sessionList = null;
+
+            try {
+                sessionList = storageService.read(serviceId, shardKey);
+            } catch (final IOException e) {
+                log.error("Exception while querying based service ID {} and key {}", serviceId, shardKey, e);
+                if (!maskStorageFailure) {
+                    throw new ResolverException("Exception while querying based on SPSession", e);
+                }
+            }
+
+            if (sessionList == null) {
+                log.debug("Secondary lookup failed on service ID {} and key {}", serviceId, shardKey);
+                continue;
+            }
+
+            // Expired entries are dropped without looking them up.
+            final Map<String,Long> entries = parseSecondaryIndexEntries(sessionList.getValue());
+            final Iterator<Map.Entry<String,Long>> entryIterator = entries.entrySet().iterator();
+            while (entryIterator.hasNext()) {
+                final IdPSession session = lookupBySessionId(entryIterator.next().getKey());
+                if (session != null) {
+                    // Session was found, so add it to the return set and keep it in the updated index record.
+                    builder.add(session);
+                } else {
+                    entryIterator.remove();
+                }
+            }
+
+            try {
+                if (entries.isEmpty()) {
+                    storageService.deleteWithVersion(sessionList.getVersion(), serviceId, shardKey);
+                } else {
+                    final String writeBackValue = formatSecondaryIndexEntries(entries);
+                    if (!writeBackValue.equals(sessionList.getValue())) {
+                        storageService.updateWithVersion(sessionList.getVersion(), serviceId, shardKey,
+                                writeBackValue, sessionList.getExpiration());
+                    }
+                }
+            } catch (final IOException e) {
+                log.warn("Ignoring exception while updating secondary index", e);
+            } catch (final VersionMismatchException e) {
+                log.debug("Ignoring version mismatch while updating secondary index");
+            }
         }
 
-        StorageRecord sessionList = null;
+        return builder.build();
+    }
+
+    /**
+     * Get the number of secondary index shards which may hold entries, the larger of the number configured and
+     * the number recorded in storage, recording the former if it is larger.
+     * 
+     * <p>
+     * The outcome is kept once storage has been read successfully.
+     * </p>
+     * 
+     * @return the number of shards to read
+     */
+    private int getUsedSecondaryIndexShards() {
+        int shards = usedSecondaryServiceIndexShards;
+        if (shards != 0) {
+            return shards;
+        }
 
         try {
-            sessionList = storageService.read(serviceId, serviceKey);
-        } catch (final IOException e) {
-            log.error("Exception while querying based service ID {} and key {}", serviceId, serviceKey, e);
-            if (!maskStorageFailure) {
-                throw new ResolverException("Exception while querying based on SPSession", e);
+            final StorageRecord record = storageService.read(SESSION_MASTER_KEY, SHARDS_KEY);
+            int recorded = 1;
+            if (record != null) {
+                try {
+                    recorded = Math.min(99, Math.max(1, Integer.parseInt(record.getValue())));
+                } catch (final NumberFormatException e) {
+                    log.warn("Ignoring invalid record of the number of secondary index shards: {}",
+                            record.getValue());
+                }
+            }
+            shards = Math.max(recorded, secondaryServiceIndexShards);
+            if (recorded < secondaryServiceIndexShards) {
+                final String value = Integer.toString(secondaryServiceIndexShards);
+                if (record == null ? !storageService.create(SESSION_MASTER_KEY, SHARDS_KEY, value, null)
+                        : storageService.updateWithVersion(record.getVersion(), SESSION_MASTER_KEY, SHARDS_KEY,
+                                value, null) == null) {
+                    log.debug("Record of the number of secondary index shards changed, will read it again");
+                    return shards;
+                }
+            } else if (recorded > secondaryServiceIndexShards) {
+                log.info("Secondary index was previously spread across {} records, all of which will be read",
+                        recorded);
             }
+        } catch (final IOException e) {
+            log.error("Exception reading the number of secondary index shards, will read it again", e);
+            return secondaryServiceIndexShards;
+        } catch (final VersionMismatchException e) {
+            log.debug("Record of the number of secondary index shards changed, will read it again");
+            return Math.max(shards, secondaryServiceIndexShards);
         }
 
-        if (sessionList == null) {
-            log.debug("Secondary lookup failed on service ID {} and key {}", serviceId, serviceKey);
-            return ImmutableList.of();
+        usedSecondaryServiceIndexShards = shards;
+        return shards;
+    }
+
+    /**
+     * Get the storage context of the secondary index records for a service.
+     * 
+     * @param serviceId the service ID
+     * 
+     * @return the storage context
+     */
+    @Nonnull @NotEmpty private String getSecondaryIndexContext(@Nonnull @NotEmpty final String serviceId) {
+        final int contextSize = storageService.getCapabilities().getContextSize();
+        return serviceId.length() > contextSize ? serviceId.substring(0, contextSize) : serviceId;
+    }
+
+    /**
+     * Get the storage key of a shard of the secondary index record for a service key.
+     * 
+     * <p>
+     * The first shard uses the key alone, as the unsharded index always has, and the others a suffix.
+     * </p>
+     * 
+     * @param serviceKey the service key
+     * @param shard the shard
+     * 
+     * @return the storage key
+     */
+    @Nonnull @NotEmpty private String getSecondaryIndexKey(@Nonnull @NotEmpty final String serviceKey,
+            final int shard) {
+        final int keySize = storageService.getCapabilities().getKeySize();
+        if (shard == 0) {
+            return serviceKey.length() > keySize ? serviceKey.substring(0, keySize) : serviceKey;
         }
 
-        final ImmutableList.Builder builder = ImmutableList.<IdPSession> builder();
+        final String suffix = SHARD_DELIMITER + Integer.toString(shard);
+        final int baseSize = keySize - suffix.length();
+        return (serviceKey.length() > baseSize ? serviceKey.substring(0, baseSize) : serviceKey) + suffix;
+    }
 
-        final StringBuilder writeBackSessionList = new StringBuilder(sessionList.getValue().length());
+    /**
+     * Get the shard of the secondary index records in which a session is listed.
+     * 
+     * @param sessionId the session ID
+     * 
+     * @return the shard
+     */
+    private int getSecondaryIndexShard(@Nonnull @NotEmpty final String sessionId) {
+        return secondaryServiceIndexShards == 1 ? 0 : (sessionId.hashCode() & 0x7fffffff) % secondaryServiceIndexShards;
+    }
 
-        for (final String sessionId : sessionList.getValue().split(",")) {
-            final IdPSession session = lookupBySessionId(sessionId);
-            if (session != null) {
-                // Session was found, so add it to the return set and to the updated index record.
-                builder.add(session);
-                writeBackSessionList.append(sessionId);
-                writeBackSessionList.append(',');
+    /**
+     * Parse the entries of a secondary index record.
+     * 
+     * <p>
+     * Entries known to have expired are omitted.
+     * </p>
+     * 
+     * @param value the record value
+     * 
+     * @return session IDs mapped to the expiration of the entry, or 0 if unknown, in record order
+     */
+    @Nonnull @NonnullElements private Map<String,Long> parseSecondaryIndexEntries(@Nonnull final String value) {
+        final long now = System.currentTimeMillis();
+        final Map<String,Long> entries = new LinkedHashMap<>();
+        for (final String entry : value.split(",")) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            final int pos = entry.indexOf(EXPIRATION_DELIMITER);
+            if (pos < 0) {
+                entries.put(entry, 0L);
+            } else {
+                final long expiration;
+                try {
+                    expiration = Long.parseLong(entry.substring(pos + 1));
+                } catch (final NumberFormatException e) {
+                    log.warn("Ignoring malformed secondary index entry {}", entry);
+                    continue;
+                }
+                if (expiration >= now) {
+                    entries.put(entry.substring(0, pos), expiration);
+                }
             }
         }
+        return entries;
+    }
 
-        try {
-            final String writeBackValue = writeBackSessionList.toString();
-            if (writeBackValue.length() == 0) {
-                storageService.deleteWithVersion(sessionList.getVersion(), serviceId, serviceKey);
-            } else if (!writeBackValue.equals(sessionList.getValue())) {
-                storageService.updateWithVersion(sessionList.getVersion(), serviceId, serviceKey, writeBackValue,
-                        sessionList.getExpiration());
+    /**
+     * Count the entries of a secondary index record, including any that have expired.
+     * 
+     * @param value the record value
+     * 
+     * @return the number of entries
+     */
+    private int countSecondaryIndexEntries(@Nonnull final String value) {
+        int count = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == ',') {
+                count++;
             }
-        } catch (final IOException e) {
-            log.warn("Ignoring exception while updating secondary index", e);
-        } catch (final VersionMismatchException e) {
-            log.debug("Ignoring version mismatch while updating secondary index");
         }
+        return count;
+    }
 
-        return builder.build();
+    /**
+     * Format the entries of a secondary index record.
+     * 
+     * <p>
+     * The expirations are only recorded when the index is sharded, so that an unsharded index remains readable by
+     * older versions.
+     * </p>
+     * 
+     * @param entries session IDs mapped to the expiration of the entry, or 0 if unknown
+     * 
+     * @return the record value
+     */
+    @Nonnull @NotEmpty private String formatSecondaryIndexEntries(@Nonnull @NonnullElements
+            final Map<String,Long> entries) {
+        final StringBuilder builder = new StringBuilder(entries.size() * 64);
+        for (final Map.Entry<String,Long> entry : entries.entrySet()) {
+            builder.append(entry.getKey());
+            if (secondaryServiceIndexShards > 1 && entry.getValue() != 0) {
+                builder.append(EXPIRATION_DELIMITER).append(entry.getValue());
+            }
+            builder.append(',');
+        }
+        return builder.toString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.session.impl;
+
+import java.io.IOException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/** {@link CompactStorageCodec} unit test. */
+public class CompactStorageCodecTest {
+
+    private static final String SESSION =
+            "{\"ts\":1378827849463,\"nam\":\"jdoe\",\"v4\":\"192.168.1.1\","
+            + "\"flows\":[\"authn/Password\"],\"svcs\":[\"https://sp.example.org/shibboleth\"]}";
+
+    private static final String SP_SESSION =
+            "net.shibboleth.idp.session.BasicSPSession:{\"id\":\"https://sp.example.org/shibboleth\","
+            + "\"ts\":1378827849463}";
+
+    @Test public void testRoundTrip() throws IOException {
+        final CompactStorageCodec codec = new CompactStorageCodec(true);
+
+        final String encoded = codec.encode(SESSION);
+        Assert.assertTrue(CompactStorageCodec.isCompact(encoded));
+        Assert.assertTrue(encoded.length() < SESSION.length());
+        Assert.assertEquals(codec.decode(encoded), SESSION);
+
+        final String encodedSP = codec.encode(SP_SESSION);
+        Assert.assertTrue(CompactStorageCodec.isCompact(encodedSP));
+        Assert.assertTrue(encodedSP.length() < SP_SESSION.length());
+        Assert.assertEquals(codec.decode(encodedSP), SP_SESSION);
+    }
+
+    @Test public void testNotShorter() throws IOException {
+        final CompactStorageCodec codec = new CompactStorageCodec(true);
+
+        final String value = "{\"x\":1}";
+        Assert.assertEquals(codec.encode(value), value);
+        Assert.assertEquals(codec.decode(value), value);
+    }
+
+    @Test public void testMixedForms() throws IOException {
+        final CompactStorageCodec compact = new CompactStorageCodec(true);
+        final CompactStorageCodec plain = new CompactStorageCodec(false);
+
+        Assert.assertEquals(plain.encode(SESSION), SESSION);
+        Assert.assertEquals(plain.decode(compact.encode(SESSION)), SESSION);
+        Assert.assertEquals(compact.decode(plain.encode(SESSION)), SESSION);
+    }
+
+    @Test(expectedExceptions = IOException.class) public void testUnknownVersion() throws IOException {
+        new CompactStorageCodec(true).decode("~9AAAA");
+    }
+
+    @Test(expectedExceptions = IOException.class) public void testCorrupt() throws IOException {
+        final CompactStorageCodec codec = new CompactStorageCodec(true);
+        final String encoded = codec.encode(SESSION);
+        codec.decode(encoded.substring(0, encoded.length() / 2));
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.session.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.idp.session.IdPSession;
+import net.shibboleth.idp.session.SPSession;
+import net.shibboleth.idp.session.SessionException;
+import net.shibboleth.idp.session.criterion.SPSessionCriterion;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.net.CookieManager;
+import net.shibboleth.utilities.java.support.net.HttpServletRequestResponseContext;
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
+import net.shibboleth.utilities.java.support.resolver.ResolverException;
+import net.shibboleth.utilities.java.support.security.SecureRandomIdentifierGenerationStrategy;
+
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/** {@link StorageBackedSessionManager} unit test with a sharded secondary index. */
+public class ShardedSessionManagerTest extends StorageBackedSessionManagerTest {
+
+    private static final String SERVICE_ID = "https://sp.example.org/shibboleth";
+
+    /** {@inheritDoc} */
+    @Override
+    protected void adjustProperties() {
+        super.adjustProperties();
+        sessionManager.setSecondaryServiceIndexShards(4);
+    }
+
+    @Test
+    public void testShardedLookup() throws ResolverException, SessionException, IOException {
+        HttpServletRequestResponseContext.loadCurrent(new MockHttpServletRequest(), new MockHttpServletResponse());
+
+        final List<IdPSession> created = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final IdPSession session = sessionManager.createSession("joe" + i);
+            Assert.assertNull(session.addSPSession(new ExtendedSPSession(SERVICE_ID,
+                    System.currentTimeMillis(), System.currentTimeMillis() + 60 * 60 * 1000)));
+            created.add(session);
+        }
+
+        // The sessions are spread across the shards.
+        int shards = 0;
+        if (storageService.read(SERVICE_ID, ExtendedSPSession.SESSION_KEY) != null) {
+            shards++;
+        }
+        for (int i = 1; i < 4; i++) {
+            if (storageService.read(SERVICE_ID, ExtendedSPSession.SESSION_KEY + "#" + i) != null) {
+                shards++;
+            }
+        }
+        Assert.assertTrue(shards > 1);
+
+        Assert.assertEquals(countSessions(), 8);
+
+        sessionManager.destroySession(created.get(0).getId(), true);
+        Assert.assertEquals(countSessions(), 7);
+
+        for (final IdPSession session : created.subList(1, created.size())) {
+            for (final SPSession spSession : session.getSPSessions()) {
+                Assert.assertTrue(session.removeSPSession(spSession));
+            }
+            sessionManager.destroySession(session.getId(), true);
+        }
+        Assert.assertEquals(countSessions(), 0);
+        HttpServletRequestResponseContext.clearCurrent();
+    }
+
+    @Test
+    public void testExpiredEntry() throws ResolverException, SessionException {
+        HttpServletRequestResponseContext.loadCurrent(new MockHttpServletRequest(), new MockHttpServletResponse());
+
+        // The index entry expires ahead of the session, and is pruned without looking the session up.
+        final IdPSession session = sessionManager.createSession("joe");
+        final long expired = System.currentTimeMillis() - sessionManager.getSessionSlop() - 60 * 1000;
+        Assert.assertNull(session.addSPSession(new ExtendedSPSession(SERVICE_ID, expired - 60 * 1000, expired)));
+        Assert.assertEquals(countSessions(), 0);
+
+        sessionManager.destroySession(session.getId(), true);
+        HttpServletRequestResponseContext.clearCurrent();
+    }
+
+    @Test
+    public void testLoweredShards() throws ComponentInitializationException, ResolverException, SessionException {
+        HttpServletRequestResponseContext.loadCurrent(new MockHttpServletRequest(), new MockHttpServletResponse());
+
+        final List<IdPSession> created = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final IdPSession session = sessionManager.createSession("joe" + i);
+            Assert.assertNull(session.addSPSession(new ExtendedSPSession(SERVICE_ID,
+                    System.currentTimeMillis(), System.currentTimeMillis() + 60 * 60 * 1000)));
+            created.add(session);
+        }
+
+        // As if restarted with fewer shards, all those previously used are still read.
+        final CookieManager cookieManager = new CookieManager();
+        cookieManager.setHttpServletRequest(requestProxy);
+        cookieManager.setHttpServletResponse(responseProxy);
+        cookieManager.initialize();
+        final StorageBackedSessionManager lowered = new StorageBackedSessionManager();
+        lowered.setId("Lowered Session Manager");
+        lowered.setSessionTimeout(sessionManager.getSessionTimeout());
+        lowered.setSessionSlop(sessionManager.getSessionSlop());
+        lowered.setStorageService(storageService);
+        lowered.setIDGenerator(new SecureRandomIdentifierGenerationStrategy());
+        lowered.setHttpServletRequest(requestProxy);
+        lowered.setHttpServletResponse(responseProxy);
+        lowered.setCookieManager(cookieManager);
+        lowered.setTrackSPSessions(true);
+        lowered.setSecondaryServiceIndex(true);
+        lowered.setSPSessionSerializerRegistry(sessionManager.getSPSessionSerializerRegistry());
+        lowered.initialize();
+        Assert.assertEquals(countSessions(lowered), 8);
+
+        for (final IdPSession session : created) {
+            for (final SPSession spSession : session.getSPSessions()) {
+                Assert.assertTrue(session.removeSPSession(spSession));
+            }
+            sessionManager.destroySession(session.getId(), true);
+        }
+        Assert.assertEquals(countSessions(lowered), 0);
+        lowered.destroy();
+        HttpServletRequestResponseContext.clearCurrent();
+    }
+
+    /**
+     * Count the sessions found by a secondary lookup.
+     * 
+     * @return the number of sessions
+     * @throws ResolverException if the lookup fails
+     */
+    private int countSessions() throws ResolverException {
+        return countSessions(sessionManager);
+    }
+
+    /**
+     * Count the sessions found by a secondary lookup.
+     * 
+     * @param manager the session manager to look them up with
+     * @return the number of sessions
+     * @throws ResolverException if the lookup fails
+     */
+    private int countSessions(@Nonnull final StorageBackedSessionManager manager) throws ResolverException {
+        int count = 0;
+        for (final IdPSession session : manager.resolve(
+                new CriteriaSet(new SPSessionCriterion(SERVICE_ID, ExtendedSPSession.SESSION_KEY)))) {
+            count++;
+        }
+        return count;
+    }
+
+}
@@ -255,6 +255,33 @@ public class StorageBackedSessionManagerTest extends SessionManagerBaseTestCase
         sessionManager.destroySession(session.getId(), true);
     }
     
+    @Test
+    public void testAuthenticationResultProjection() throws ResolverException, SessionException {
+        
+        HttpServletRequestResponseContext.loadCurrent(new MockHttpServletRequest(), new MockHttpServletResponse());
+        
+        IdPSession session = sessionManager.createSession("joe");
+        Assert.assertNull(session.addAuthenticationResult(
+                new AuthenticationResult("AuthenticationFlow/Foo", new UsernamePrincipal("joe"))));
+        Assert.assertNull(session.addAuthenticationResult(
+                new AuthenticationResult("AuthenticationFlow/Bar", new UsernamePrincipal("joe"))));
+        
+        // Load from storage and only ask for one of the results.
+        StorageBackedIdPSession session2 = (StorageBackedIdPSession) sessionManager.resolveSingle(
+                new CriteriaSet(new SessionIdCriterion(session.getId())));
+        Collection<AuthenticationResult> results =
+                session2.getAuthenticationResults(Arrays.asList("AuthenticationFlow/Foo", "AuthenticationFlow/Baz"));
+        Assert.assertEquals(results.size(), 1);
+        Assert.assertEquals(results.iterator().next().getAuthenticationFlowId(), "AuthenticationFlow/Foo");
+        Assert.assertTrue(session2.getAuthenticationResultMap().get("AuthenticationFlow/Foo").isPresent());
+        Assert.assertFalse(session2.getAuthenticationResultMap().get("AuthenticationFlow/Bar").isPresent());
+        
+        // The rest are loaded together on demand.
+        Assert.assertEquals(session2.getAuthenticationResults().size(), 2);
+        
+        sessionManager.destroySession(session.getId(), true);
+    }
+    
     @Test(threadPoolSize = 10, invocationCount = 10,  timeOut = 10000)
     public void testSPSessions() throws ResolverException, SessionException, InterruptedException {
         
@@ -356,7 +383,7 @@ public class StorageBackedSessionManagerTest extends SessionManagerBaseTestCase
         Assert.assertEquals(sessions.size(), 0);
     }
 
-    private static class ExtendedSPSession extends BasicSPSession {
+    static class ExtendedSPSession extends BasicSPSession {
 
         public static final String SESSION_KEY = "PerSessionNameWouldGoHere";
         
@@ -0,0 +1,292 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shibboleth.idp.session.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.idp.authn.AuthenticationFlowDescriptor;
+import net.shibboleth.idp.authn.AuthenticationResult;
+import net.shibboleth.idp.authn.impl.DefaultAuthenticationResultSerializer;
+import net.shibboleth.idp.authn.principal.UsernamePrincipal;
+import net.shibboleth.idp.session.BasicSPSession;
+import net.shibboleth.idp.session.IdPSession;
+import net.shibboleth.idp.session.SPSession;
+import net.shibboleth.idp.session.SPSessionSerializerRegistry;
+import net.shibboleth.idp.session.SessionException;
+import net.shibboleth.idp.session.SessionManager;
+import net.shibboleth.idp.session.criterion.SessionIdCriterion;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.net.CookieManager;
+import net.shibboleth.utilities.java.support.net.HttpServletRequestResponseContext;
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
+import net.shibboleth.utilities.java.support.resolver.ResolverException;
+import net.shibboleth.utilities.java.support.security.SecureRandomIdentifierGenerationStrategy;
+
+import org.opensaml.storage.StorageCapabilities;
+import org.opensaml.storage.StorageCapabilitiesEx;
+import org.opensaml.storage.StorageSerializer;
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.webflow.test.MockRequestContext;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/** {@link StorageBackedSessionManager} unit test in write-behind mode. */
+public class WriteBehindSessionManagerTest extends SessionManagerBaseTestCase {
+
+    private AuthenticationFlowDescriptor flowDescriptor;
+
+    private SPSessionSerializerRegistry serializerRegistry;
+
+    @BeforeClass public void setUp() throws ComponentInitializationException {
+        serializerRegistry = new SPSessionSerializerRegistry();
+        final Map<Class<? extends SPSession>,StorageSerializer<? extends SPSession>> map = new HashMap<>();
+        map.put(BasicSPSession.class, new BasicSPSessionSerializer(0));
+        serializerRegistry.setMappings(map);
+        serializerRegistry.initialize();
+
+        final StorageSerializer<AuthenticationResult> resultSerializer = new DefaultAuthenticationResultSerializer();
+        resultSerializer.initialize();
+
+        flowDescriptor = new AuthenticationFlowDescriptor();
+        flowDescriptor.setId("AuthenticationFlow/Foo");
+        flowDescriptor.setLifetime(60 * 1000);
+        flowDescriptor.setInactivityTimeout(60 * 1000);
+        flowDescriptor.setResultSerializer(resultSerializer);
+        flowDescriptor.initialize();
+
+        super.setUp();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void adjustProperties() {
+        sessionManager.setAuthenticationFlowDescriptors(Collections.singletonList(flowDescriptor));
+        sessionManager.setTrackSPSessions(true);
+        sessionManager.setSPSessionSerializerRegistry(serializerRegistry);
+        sessionManager.setWriteBehind(true);
+    }
+
+    @Test
+    public void testDeferredCreate() throws ResolverException, SessionException, IOException {
+        HttpServletRequestResponseContext.loadCurrent(new MockHttpServletRequest(), new MockHttpServletResponse());
+        sessionManager.beginPendingWrites();
+
+        final IdPSession session = sessionManager.createSession("joe");
+        Assert.assertNull(storageService.read(session.getId(), StorageBackedSessionManager.SESSION_MASTER_KEY));
+
+        // Lookups on this thread see the pending copy.
+        Assert.assertSame(sessionManager.resolveSingle(new CriteriaSet(new SessionIdCriterion(session.getId()))),
+                session);
+
+        sessionManager.flushPendingWrites();
+        Assert.assertNotNull(storageService.read(session.getId(), StorageBackedSessionManager.SESSION_MASTER_KEY));
+
+        final IdPSession session2 =
+                sessionManager.resolveSingle(new CriteriaSet(new SessionIdCriterion(session.getId())));
+        Assert.assertNotSame(session2, session);
+        Assert.assertEquals(session2.getPrincipalName(), "joe");
+
+        sessionManager.destroySession(session.getId(), true);
+        HttpServletRequestResponseContext.clearCurrent();
+    }
+
+    @Test
+    public void testCoalescedUpdates() throws ResolverException, SessionException, IOException {
+        HttpServletRequestResponseContext.loadCurrent(new MockHttpServletRequest(), new MockHttpServletResponse());
+        sessionManager.beginPendingWrites();
+
+        final IdPSession session = sessionManager.createSession("joe");
+        sessionManager.flushPendingWrites();
+        sessionManager.beginPendingWrites();
+        final long version =
+                storageService.read(session.getId(), StorageBackedSessionManager.SESSION_MASTER_KEY).getVersion();
+
+        final AuthenticationResult result =
+                new AuthenticationResult("AuthenticationFlow/Foo", new UsernamePrincipal("joe"));
+        final SPSession spSession = new BasicSPSession("https://sp.example.org/shibboleth",
+                System.currentTimeMillis(), System.currentTimeMillis() + 60 * 60 * 1000);
+        Assert.assertNull(session.addAuthenticationResult(result));
+        Assert.assertNull(session.addSPSession(spSession));
+        session.checkTimeout();
+        Assert.assertNull(storageService.read(session.getId(), "AuthenticationFlow/Foo"));
+
+        sessionManager.flushPendingWrites();
+
+        // One update of the master record for both additions.
+        Assert.assertEquals(
+                storageService.read(session.getId(), StorageBackedSessionManager.SESSION_MASTER_KEY).getVersion(),
+                version + 1);
+        Assert.assertNotNull(storageService.read(session.getId(), "AuthenticationFlow/Foo"));
+
+        final IdPSession session2 =
+                sessionManager.resolveSingle(new CriteriaSet(new SessionIdCriterion(session.getId())));
+        Assert.assertNotNull(session2.getAuthenticationResult("AuthenticationFlow/Foo"));
+        Assert.assertNotNull(session2.getSPSession("https://sp.example.org/shibboleth"));
+
+        sessionManager.destroySession(session.getId(), true);
+        HttpServletRequestResponseContext.clearCurrent();
+    }
+
+    @Test
+    public void testConcurrentUpdate() throws ResolverException, SessionException, IOException {
+        HttpServletRequestResponseContext.loadCurrent(new MockHttpServletRequest(), new MockHttpServletResponse());
+        sessionManager.beginPendingWrites();
+
+        final IdPSession session = sessionManager.createSession("joe");
+        sessionManager.flushPendingWrites();
+        sessionManager.beginPendingWrites();
+
+        // Two independent copies of the same session, as if used by two requests.
+        final IdPSession session2 =
+                sessionManager.resolveSingle(new CriteriaSet(new SessionIdCriterion(session.getId())));
+        final IdPSession session3 =
+                sessionManager.resolveSingle(new CriteriaSet(new SessionIdCriterion(session.getId())));
+        Assert.assertNotSame(session2, session3);
+
+        // Deferring the second copy flushes the first, so the second meets a version mismatch.
+        Assert.assertNull(session2.addAuthenticationResult(
+                new AuthenticationResult("AuthenticationFlow/Foo", new UsernamePrincipal("joe"))));
+        Assert.assertNull(session3.addSPSession(new BasicSPSession("https://sp.example.org/shibboleth",
+                System.currentTimeMillis(), System.currentTimeMillis() + 60 * 60 * 1000)));
+        Assert.assertNotNull(storageService.read(session.getId(), "AuthenticationFlow/Foo"));
+        sessionManager.flushPendingWrites();
+
+        // Both changes survive the version mismatch.
+        final IdPSession session4 =
+                sessionManager.resolveSingle(new CriteriaSet(new SessionIdCriterion(session.getId())));
+        Assert.assertNotNull(session4.getAuthenticationResult("AuthenticationFlow/Foo"));
+        Assert.assertNotNull(session4.getSPSession("https://sp.example.org/shibboleth"));
+
+        sessionManager.destroySession(session.getId(), true);
+        HttpServletRequestResponseContext.clearCurrent();
+    }
+
+    @Test
+    public void testWriteThrough() throws ResolverException, SessionException, IOException {
+        HttpServletRequestResponseContext.loadCurrent(new MockHttpServletRequest(), new MockHttpServletResponse());
+
+        // Outside beginPendingWrites and flushPendingWrites, changes are not buffered.
+        final IdPSession session = sessionManager.createSession("joe");
+        Assert.assertNotNull(storageService.read(session.getId(), StorageBackedSessionManager.SESSION_MASTER_KEY));
+        Assert.assertNull(session.addAuthenticationResult(
+                new AuthenticationResult("AuthenticationFlow/Foo", new UsernamePrincipal("joe"))));
+        Assert.assertNotNull(storageService.read(session.getId(), "AuthenticationFlow/Foo"));
+
+        sessionManager.beginPendingWrites();
+        final IdPSession session2 = sessionManager.createSession("joe");
+        // A later request on the same thread starts afresh.
+        sessionManager.beginPendingWrites();
+        sessionManager.flushPendingWrites();
+        Assert.assertNull(storageService.read(session2.getId(), StorageBackedSessionManager.SESSION_MASTER_KEY));
+
+        sessionManager.destroySession(session.getId(), true);
+        HttpServletRequestResponseContext.clearCurrent();
+    }
+
+    @Test
+    public void testListener() throws SessionException {
+        final StorageBackedSessionManager failingManager = new StorageBackedSessionManager() {
+            @Override public void flushPendingWrites() throws SessionException {
+                throw new SessionException("Unable to write");
+            }
+        };
+        final FlushSessionsFlowExecutionListener listener = new FlushSessionsFlowExecutionListener(failingManager);
+        try {
+            listener.requestProcessed(new MockRequestContext());
+            Assert.fail("Failure to write should not be swallowed");
+        } catch (final IllegalStateException e) {
+            Assert.assertTrue(e.getCause() instanceof SessionException);
+        }
+
+        try {
+            listener.viewRendering(new MockRequestContext(), null, null);
+            Assert.fail("Failure to write before rendering a view should fail the request");
+        } catch (final IllegalStateException e) {
+            Assert.assertTrue(e.getCause() instanceof SessionException);
+        }
+
+        // Once the response has been sent, the failure is only logged.
+        final MockRequestContext completed = new MockRequestContext();
+        completed.getExternalContext().recordResponseComplete();
+        listener.requestProcessed(completed);
+
+        failingManager.setMaskStorageFailure(true);
+        listener.requestProcessed(new MockRequestContext());
+    }
+
+    @Test
+    public void testListenerOtherManager() {
+        final FlushSessionsFlowExecutionListener listener = new FlushSessionsFlowExecutionListener(
+                new SessionManager() {
+                    @Override @Nonnull public IdPSession createSession(@Nonnull @NotEmpty final String principalName)
+                            throws SessionException {
+                        throw new SessionException("Not implemented");
+                    }
+                    @Override public void destroySession(@Nonnull @NotEmpty final String sessionId,
+                            final boolean unbind) throws SessionException {
+                        throw new SessionException("Not implemented");
+                    }
+                });
+        listener.requestSubmitted(new MockRequestContext());
+        listener.requestProcessed(new MockRequestContext());
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void testClientStorage() throws ComponentInitializationException {
+        final MemoryStorageService clientStorage = new MemoryStorageService() {
+            @Override @Nonnull public StorageCapabilities getCapabilities() {
+                final StorageCapabilities caps = super.getCapabilities();
+                return new StorageCapabilitiesEx() {
+                    @Override public int getContextSize() {
+                        return caps.getContextSize();
+                    }
+                    @Override public int getKeySize() {
+                        return caps.getKeySize();
+                    }
+                    @Override public long getValueSize() {
+                        return caps.getValueSize();
+                    }
+                    @Override public boolean isServerSide() {
+                        return false;
+                    }
+                    @Override public boolean isClustered() {
+                        return false;
+                    }
+                };
+            }
+        };
+
+        final StorageBackedSessionManager manager = new StorageBackedSessionManager();
+        manager.setId("Test Session Manager");
+        manager.setStorageService(clientStorage);
+        manager.setIDGenerator(new SecureRandomIdentifierGenerationStrategy());
+        manager.setCookieManager(new CookieManager());
+        manager.setWriteBehind(true);
+        manager.initialize();
+    }
+
+}